@@ -30,6 +30,7 @@ import static io.stallion.utils.Literals.*;
 import com.mashape.unirest.http.Unirest;
 import io.stallion.assets.AssetsController;
 import io.stallion.asyncTasks.AsyncCoordinator;
+import io.stallion.asyncTasks.FailedTasksAction;
 import io.stallion.asyncTasks.ForceTaskAction;
 import io.stallion.asyncTasks.SimpleAsyncRunner;
 import io.stallion.boot.*;
@@ -449,6 +450,7 @@ public abstract class StallionApplication extends StallionJavaPlugin {
                 new SqlGenerationAction(),
                 new SqlObsoleteAction(),
                 new ForceTaskAction(),
+                new FailedTasksAction(),
                 new SecretsDecryptAction()
 
         );
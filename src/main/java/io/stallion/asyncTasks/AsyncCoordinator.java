@@ -23,34 +23,45 @@ import io.stallion.exceptions.UsageException;
 import io.stallion.jobs.JobCoordinator;
 import io.stallion.jobs.JobDefinition;
 import io.stallion.jobs.Schedule;
+import io.stallion.monitoring.MetricsRegistry;
 import io.stallion.services.Log;
-import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 
 import javax.ws.rs.NotFoundException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static io.stallion.utils.Literals.list;
-import static io.stallion.utils.Literals.mils;
+import static io.stallion.utils.Literals.*;
 
 /**
  * The AsyncCoordinator handles the running of asychronous tasks. The coordinator
- * continuously polls for new tasks, and dispatches them to an executable pool. If
- * the task fails, it is marked for a later retry.
+ * looks for ready tasks, and dispatches them to an executable pool. If
+ * the task fails, it is marked for a later retry. When no task is ready, the coordinator
+ * sleeps until nextWakeAt(), or until wakeUp() is called because a task was enqueued.
+ *
+ * Tasks run in lanes, each with its own worker threads, see registerLane(). Within a lane,
+ * due tasks run highest priority first. A handler can also be limited to a number of
+ * concurrently running tasks, see setHandlerMaxConcurrency() and {@link AsyncTaskOptions}.
  *
  */
 public abstract class AsyncCoordinator extends Thread {
 
     private static AsyncCoordinator INSTANCE;
 
+    public static final String DEFAULT_LANE = "default";
+
     ExecutorService pool;
+    private final Map<String, AsyncTaskLane> lanes = new ConcurrentHashMap<>();
+    private final Map<String, Integer> handlerLimits = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> handlerInFlight = new ConcurrentHashMap<>();
     List<AsyncTaskExecuteRunnable> threads;
-    private boolean triggerShutDown = false;
+    private volatile boolean triggerShutDown = false;
     private boolean synchronousMode = false;
     private List<ClassLoader> extraClassLoaders = list();
+    private final Object wakeMonitor = new Object();
+    private boolean wakeRequested = false;
 
 
     public static AsyncCoordinator instance() {
@@ -84,6 +95,26 @@ public abstract class AsyncCoordinator extends Thread {
             AsyncTaskController.registerFileBased();
         }
         INSTANCE.setName("stallion-async-coordinator-thread");
+        registerMetrics();
+    }
+
+    private static void registerMetrics() {
+        MetricsRegistry.instance().gauge(
+                "stallion_async_tasks_pending",
+                "Async tasks waiting to be executed.",
+                () -> INSTANCE == null ? 0 : INSTANCE.getPendingTaskCount());
+        MetricsRegistry.instance().callback(
+                "stallion_async_lane_in_flight", "gauge",
+                "Async tasks currently executing, by lane.",
+                new String[]{"lane"},
+                samples -> {
+                    if (INSTANCE == null) {
+                        return;
+                    }
+                    for (AsyncTaskLane lane: INSTANCE.getLanes()) {
+                        samples.add(lane.getInFlight(), lane.getName());
+                    }
+                });
     }
 
     public static void initEphemeralSynchronousForTests() {
@@ -147,30 +178,139 @@ public abstract class AsyncCoordinator extends Thread {
 
     protected AsyncCoordinator() {
         threads = new ArrayList<>();
-        int poolSize = 4;
-        BasicThreadFactory factory = new BasicThreadFactory.Builder()
-                .namingPattern("stallion-async-task-runnable-%d")
-                .build();
-        // Create an executor service for single-threaded execution
-        pool = Executors.newFixedThreadPool(poolSize, factory);
+        AsyncTaskLane defaultLane = new AsyncTaskLane(DEFAULT_LANE, 4);
+        lanes.put(DEFAULT_LANE, defaultLane);
+        pool = defaultLane.getPool();
 
     }
 
+    /**
+     * Add a lane with its own pool of worker threads. Tasks whose lane is this name only
+     * run on these threads, and never take threads from other lanes.
+     *
+     * @param name
+     * @param threads
+     */
+    public void registerLane(String name, int threads) {
+        if (empty(name) || DEFAULT_LANE.equals(name)) {
+            throw new UsageException("Lane name must not be blank or '" + DEFAULT_LANE + "'");
+        }
+        if (threads < 1) {
+            throw new UsageException("Lane " + name + " must have at least one thread");
+        }
+        if (lanes.containsKey(name)) {
+            throw new UsageException("Lane " + name + " is already registered");
+        }
+        lanes.put(name, new AsyncTaskLane(name, threads));
+        wakeUp();
+    }
+
+    public Collection<AsyncTaskLane> getLanes() {
+        return lanes.values();
+    }
+
+    /**
+     * Limit how many tasks of the given handler can run at the same time on this node.
+     * Overrides the maxConcurrent of the handler's AsyncTaskOptions.
+     *
+     * @param handlerName - the class name of the handler
+     * @param maxConcurrent - 0 for no limit
+     */
+    public void setHandlerMaxConcurrency(String handlerName, int maxConcurrent) {
+        handlerLimits.put(handlerName, maxConcurrent);
+        wakeUp();
+    }
+
+    /**
+     * Get the name of the registered lane the task runs in.
+     *
+     * @param task
+     * @return
+     */
+    public String laneOf(AsyncTask task) {
+        if (!empty(task.getLane()) && lanes.containsKey(task.getLane())) {
+            return task.getLane();
+        }
+        return DEFAULT_LANE;
+    }
+
+    /**
+     * @return the names of the registered lanes, other than the default lane
+     */
+    protected List<String> getExtraLaneNames() {
+        List<String> names = list();
+        for (String name: lanes.keySet()) {
+            if (!DEFAULT_LANE.equals(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private int getHandlerLimit(String handlerName) {
+        Integer limit = handlerLimits.get(handlerName);
+        if (limit == null) {
+            try {
+                Class cls = AsyncTaskExecuteRunnable.lookupHandlerClass(handlerName);
+                AsyncTaskOptions options = (AsyncTaskOptions)cls.getAnnotation(AsyncTaskOptions.class);
+                limit = options == null ? 0 : options.maxConcurrent();
+                handlerLimits.put(handlerName, limit);
+            } catch (ClassNotFoundException e) {
+                // Look again next time, the class may come from a plugin that is not loaded yet
+                return 0;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * How many more tasks of the given handler may be started right now.
+     *
+     * @param handlerName
+     * @return Integer.MAX_VALUE if the handler has no concurrency limit
+     */
+    protected int remainingHandlerCapacity(String handlerName) {
+        int limit = getHandlerLimit(handlerName);
+        if (limit < 1) {
+            return Integer.MAX_VALUE;
+        }
+        AtomicInteger running = handlerInFlight.get(handlerName);
+        return Math.max(0, limit - (running == null ? 0 : running.get()));
+    }
+
+    /**
+     * @return the names of handlers that are already running as many tasks as they are allowed
+     */
+    protected Set<String> getSaturatedHandlers() {
+        Set<String> saturated = new HashSet<>();
+        for (String handlerName: handlerInFlight.keySet()) {
+            if (remainingHandlerCapacity(handlerName) < 1) {
+                saturated.add(handlerName);
+            }
+        }
+        return saturated;
+    }
+
 
 
     public void run() {
         while (!triggerShutDown) {
+            if (getFreeWorkerSlots() < 1) {
+                // Every worker is busy, wait for one to finish before claiming more tasks
+                waitForWork(mils() + 1000);
+                continue;
+            }
             boolean taskExecuted = false;
             try {
-                taskExecuted = executeNext(mils());
+                taskExecuted = executeReady(mils()) > 0;
             } catch (Exception e) {
                 Log.exception(e, "Error in main sync loop");
             }
             if (!taskExecuted) {
                 try {
-                    Thread.sleep(1000);
-                } catch(InterruptedException e) {
-
+                    waitForWork(nextWakeAt(mils()));
+                } catch (Exception e) {
+                    Log.exception(e, "Error waiting for the next task");
                 }
             }
         }
@@ -179,16 +319,63 @@ public abstract class AsyncCoordinator extends Thread {
             thread.setTriggerShutdown(true);
         }
         Log.finer("shutting down the pool");
-        pool.shutdownNow();
+        for (AsyncTaskLane lane: lanes.values()) {
+            lane.getPool().shutdownNow();
+        }
         try {
-            while (!pool.awaitTermination(100, TimeUnit.MILLISECONDS)) {
-                Log.finer("wating for all async threads to terminate");
+            for (AsyncTaskLane lane: lanes.values()) {
+                while (!lane.getPool().awaitTermination(100, TimeUnit.MILLISECONDS)) {
+                    Log.finer("wating for all async threads to terminate");
+                }
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Wake up the coordinator thread, if it is sleeping, so that it looks for a ready task
+     * right away and then recalculates how long to sleep. Called whenever a task is
+     * enqueued or rescheduled in this process.
+     */
+    public void wakeUp() {
+        synchronized (wakeMonitor) {
+            wakeRequested = true;
+            wakeMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Block until the given time, or until wakeUp() is called.
+     *
+     * @param until - milliseconds since the epoch
+     */
+    protected void waitForWork(long until) {
+        synchronized (wakeMonitor) {
+            long remaining = until - mils();
+            while (!wakeRequested && !triggerShutDown && remaining > 0) {
+                try {
+                    wakeMonitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                remaining = until - mils();
+            }
+            wakeRequested = false;
+        }
+    }
+
+    /**
+     * When no task was ready to run, get the time at which the coordinator should look
+     * again. Subclasses that know when the next task is due should wake up exactly then.
+     *
+     * @param now
+     * @return milliseconds since the epoch
+     */
+    protected long nextWakeAt(long now) {
+        return now + 1000;
+    }
+
     /**
      * Execute the text in the queue, if any exists.
      *
@@ -210,16 +397,70 @@ public abstract class AsyncCoordinator extends Thread {
         if (task == null) {
             return false;
         }
+        dispatch(task);
+        return true;
+    }
+
+    /**
+     * For every lane with idle workers, lock as many ready tasks as there are idle workers
+     * and hand them to the lane's pool.
+     *
+     * @param now - milliseconds since the epoch.
+     * @return the number of tasks dispatched
+     */
+    public int executeReady(Long now) {
+        int count = 0;
+        for (AsyncTaskLane lane: lanes.values()) {
+            int free = lane.getFreeSlots();
+            if (free < 1) {
+                continue;
+            }
+            for (AsyncTask task: findAndLockReadyTasks(now, lane.getName(), free)) {
+                dispatch(task);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void dispatch(AsyncTask task) {
         AsyncTaskExecuteRunnable runnable = new AsyncTaskExecuteRunnable(task);
 
         if (isSynchronousMode()) {
             runnable.run(true);
-        } else {
-            pool.submit(runnable);
+            return;
         }
-        return true;
+        AsyncTaskLane lane = lanes.getOrDefault(laneOf(task), lanes.get(DEFAULT_LANE));
+        String handlerName = task.getHandlerName();
+        AtomicInteger handlerCount = handlerInFlight.computeIfAbsent(handlerName, k -> new AtomicInteger(0));
+        lane.getInFlightCounter().incrementAndGet();
+        handlerCount.incrementAndGet();
+        lane.getPool().submit(() -> {
+            try {
+                runnable.run();
+            } finally {
+                // Wake the coordinator if it was waiting for a free worker in this lane,
+                // or for this handler to drop under its concurrency limit
+                boolean laneWasFull = lane.getInFlightCounter().getAndDecrement() >= lane.getThreads();
+                int limit = getHandlerLimit(handlerName);
+                boolean handlerWasFull = handlerCount.getAndDecrement() >= limit && limit > 0;
+                if (laneWasFull || handlerWasFull) {
+                    wakeUp();
+                }
+            }
+        });
     }
 
+    /**
+     * @return the number of workers, across all lanes, not currently running or assigned a task
+     */
+    public int getFreeWorkerSlots() {
+        int free = 0;
+        for (AsyncTaskLane lane: lanes.values()) {
+            free += lane.getFreeSlots();
+        }
+        return free;
+    }
 
     /**
      * Register a handler that will run tasks of a given name.
@@ -229,6 +470,8 @@ public abstract class AsyncCoordinator extends Thread {
      */
     public void registerHandler(String name, Class cls) {
         AsyncTaskExecuteRunnable.registerClass(name, cls);
+        handlerLimits.remove(name);
+        AsyncTaskRetryPolicy.forget(name);
     }
 
 
@@ -241,6 +484,17 @@ public abstract class AsyncCoordinator extends Thread {
      */
     protected abstract AsyncTask findAndLockNextTask(Long now);
 
+    /**
+     * Find and lock up to max tasks in the given lane that are ready for execution, highest
+     * priority first, without going over the remainingHandlerCapacity() of any handler.
+     *
+     * @param now
+     * @param lane
+     * @param max
+     * @return
+     */
+    protected abstract List<AsyncTask> findAndLockReadyTasks(Long now, String lane, int max);
+
     /**
      * Save a new task to the data store
      *
@@ -381,7 +635,9 @@ public abstract class AsyncCoordinator extends Thread {
             runnable.setTriggerShutdown(true);
         }
         DataAccessRegistry.instance().deregister("async_tasks");
-        INSTANCE.pool.shutdown();
+        for (AsyncTaskLane lane: INSTANCE.lanes.values()) {
+            lane.getPool().shutdown();
+        }
         INSTANCE = null;
     }
 
@@ -400,14 +656,16 @@ public abstract class AsyncCoordinator extends Thread {
         for(AsyncTaskExecuteRunnable runnable: INSTANCE.threads) {
             runnable.setTriggerShutdown(true);
         }
-        INSTANCE.pool.shutdown();
+        for (AsyncTaskLane lane: INSTANCE.lanes.values()) {
+            lane.getPool().shutdown();
+        }
         INSTANCE.interrupt();
 
         int maxMinutesToWait = 5;
         int xMax = maxMinutesToWait*60*10;
         Log.info("Waiting for all async stuff to terminate.");
         for (int x=0; x<(xMax+10);x++) {
-            if (INSTANCE.pool.isTerminated()) {
+            if (INSTANCE.lanes.values().stream().allMatch(lane -> lane.getPool().isTerminated())) {
                 break;
             }
             if (x % 5000 == 0) {
@@ -22,14 +22,34 @@ import io.stallion.services.Log;
 import io.stallion.settings.Settings;
 import io.stallion.utils.GeneralUtils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.stallion.utils.Literals.list;
 import static io.stallion.utils.Literals.or;
 
 
 public class AsyncDbCoordinator extends AsyncFileCoordinator {
+    /**
+     * When the database has no ready tasks, the delay between polls starts at MIN_IDLE_POLL
+     * and doubles up to MAX_IDLE_POLL. Tasks enqueued by this process wake the coordinator
+     * directly, so the backoff only delays picking up tasks enqueued by other nodes.
+     */
+    static final long MIN_IDLE_POLL = 250;
+    static final long MAX_IDLE_POLL = 5000;
+
+    private volatile long idlePoll = MIN_IDLE_POLL;
+    private final AtomicLong nextKnownExecuteAt = new AtomicLong(Long.MAX_VALUE);
 
     @Override
     public void updateTask(AsyncTask task, boolean executeAtChanged) {
         AsyncTaskController.instance().save(task);
+        if (executeAtChanged) {
+            taskScheduled(task.getExecuteAt());
+        }
     }
 
     @Override
@@ -43,11 +63,74 @@ public class AsyncDbCoordinator extends AsyncFileCoordinator {
             task.setLocalMode(or(System.getenv("USER"), GeneralUtils.slugify(Settings.instance().getTargetFolder())));
         }
         AsyncTaskController.instance().save(task);
+        taskScheduled(task.getExecuteAt());
     }
 
     @Override
     public AsyncTask findAndLockNextTask(Long now) {
-        return ((AsyncTaskDbPersister)getTaskPersister()).findAndLockNextTask(now);
+        AsyncTask task = ((AsyncTaskDbPersister)getTaskPersister()).findAndLockNextTask(now);
+        if (task != null) {
+            idlePoll = MIN_IDLE_POLL;
+        }
+        return task;
+    }
+
+    @Override
+    protected List<AsyncTask> findAndLockReadyTasks(Long now, String lane, int max) {
+        AsyncTaskDbPersister persister = (AsyncTaskDbPersister)getTaskPersister();
+        List<AsyncTask> claimed = persister.claimDueTasks(now, max,
+                new AsyncTaskDbPersister.ReadyTasksFilter()
+                        .setLane(lane)
+                        .setOtherLanes(DEFAULT_LANE.equals(lane) ? getExtraLaneNames() : list())
+                        .setExcludedHandlers(new ArrayList<>(getSaturatedHandlers())));
+        // One batch can hold more tasks of a handler than it has room for, hand the extras back
+        List<AsyncTask> tasks = list();
+        Map<String, Integer> taken = new HashMap<>();
+        for (AsyncTask task: claimed) {
+            int alreadyTaken = taken.getOrDefault(task.getHandlerName(), 0);
+            if (alreadyTaken >= remainingHandlerCapacity(task.getHandlerName())) {
+                persister.releaseLock(task);
+                continue;
+            }
+            taken.put(task.getHandlerName(), alreadyTaken + 1);
+            tasks.add(task);
+        }
+        if (tasks.size() > 0) {
+            idlePoll = MIN_IDLE_POLL;
+        }
+        return tasks;
+    }
+
+    @Override
+    public void requeue(AsyncTask task) {
+        // The retry is already saved to the database with its new executeAt
+        taskScheduled(task.getExecuteAt());
+    }
+
+    /**
+     * Remember when a task saved by this process is due, and wake up the coordinator so
+     * that it can run it right away or shorten its sleep.
+     *
+     * @param executeAt
+     */
+    private void taskScheduled(long executeAt) {
+        nextKnownExecuteAt.accumulateAndGet(executeAt, Math::min);
+        idlePoll = MIN_IDLE_POLL;
+        wakeUp();
+    }
+
+    @Override
+    protected long nextWakeAt(long now) {
+        long wakeAt = now + idlePoll;
+        idlePoll = Math.min(idlePoll * 2, MAX_IDLE_POLL);
+        long known = nextKnownExecuteAt.get();
+        if (known <= now) {
+            // Already due, and either just run or taken by another node
+            nextKnownExecuteAt.compareAndSet(known, Long.MAX_VALUE);
+        } else if (known < wakeAt) {
+            wakeAt = known;
+        }
+        return wakeAt;
     }
 
 
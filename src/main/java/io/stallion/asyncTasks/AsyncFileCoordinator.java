@@ -23,18 +23,36 @@ import io.stallion.utils.DateUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.ws.rs.ServerErrorException;
-import java.util.HashSet;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static io.stallion.utils.Literals.empty;
+import static io.stallion.utils.Literals.list;
 import static io.stallion.utils.Literals.or;
 
 
 public class AsyncFileCoordinator extends AsyncCoordinator {
+    /**
+     * How long to sleep when the queue is empty. Anything added to the queue in this
+     * process wakes the coordinator, so this only bounds how stale the sleep can get.
+     */
+    static final long MAX_IDLE_SLEEP = 30000;
+    /**
+     * How many ready tasks to look through, per lane and per pass, for ones whose handler
+     * is not at its concurrency limit.
+     */
+    static final int MAX_READY_SCAN = 1000;
+    static final Comparator<AsyncTask> READY_ORDER = Comparator
+            .comparingInt(AsyncTask::getPriority).reversed()
+            .thenComparingLong(AsyncTask::getExecuteAt);
 
     private AtomicLong counter = new AtomicLong(1);
-    private PriorityBlockingQueue<AsyncTask> taskQueue = new PriorityBlockingQueue<>();
+    // Guards taskQueue and readyByLane
+    private final Object queueLock = new Object();
+    // Tasks that are not yet due, by executeAt
+    private final IndexedTaskQueue taskQueue = new IndexedTaskQueue();
+    // Tasks that are due, by lane, in priority order
+    private final Map<String, IndexedTaskQueue> readyByLane = new HashMap<>();
     private HashSet<Object> seenTaskIds = new HashSet<>();
 
 
@@ -117,10 +135,14 @@ public class AsyncFileCoordinator extends AsyncCoordinator {
     public void updateTask(AsyncTask task, boolean executeAtChanged) {
         AsyncTaskController.instance().save(task);
         if (executeAtChanged) {
-            // Need to remove and add back in order to re-sort
-            // This could get expensive if the Queue is big
-            taskQueue.remove(task);
-            taskQueue.add(task);
+            // Adding a task that is already queued moves it to its new place
+            synchronized (queueLock) {
+                for (IndexedTaskQueue ready: readyByLane.values()) {
+                    ready.remove(task.getId());
+                }
+                taskQueue.add(task);
+            }
+            wakeUp();
         }
     }
 
@@ -128,40 +150,120 @@ public class AsyncFileCoordinator extends AsyncCoordinator {
     public void saveNewTask(AsyncTask task) {
         AsyncTaskController.instance().save(task);
         Log.info("Adding task to the queue: id={0} handler={1} customKey={2}", task.getId(), task.getHandlerName(), task.getCustomKey());
-        taskQueue.add(task);
+        synchronized (queueLock) {
+            taskQueue.add(task);
+        }
+        wakeUp();
 
     }
 
     @Override
     public AsyncTask findAndLockNextTask(Long now) {
         now = or(now, DateUtils.mils());
-        if (getTaskQueue().size() == 0) {
-            return null;
-        }
-        AsyncTask task = getTaskQueue().poll();
-        if (task == null) {
-            return null;
-        }
-        if (task.getExecuteAt() > now) {
-            getTaskQueue().put(task);
-            return null;
+        List<String> laneNames = list(DEFAULT_LANE);
+        laneNames.addAll(getExtraLaneNames());
+        for (String lane: laneNames) {
+            List<AsyncTask> tasks = findAndLockReadyTasks(now, lane, 1);
+            if (tasks.size() > 0) {
+                return tasks.get(0);
+            }
         }
-        if (task.getLockedAt() > 0) {
-            // Locked by someone else, carry on
-            Log.warn("Task is already locked {0} {1} currentThread={2} lockUid={3}", task.getId(), task.getLockedAt(), Thread.currentThread().getId(), task.getLockUuid());
-            return null;
+        return null;
+    }
+
+    @Override
+    protected List<AsyncTask> findAndLockReadyTasks(Long now, String lane, int max) {
+        List<AsyncTask> tasks = list();
+        synchronized (queueLock) {
+            promoteDueTasks(now);
+            IndexedTaskQueue ready = readyByLane.get(lane);
+            if (ready == null) {
+                return tasks;
+            }
+            List<AsyncTask> skipped = list();
+            Map<String, Integer> taken = new HashMap<>();
+            int scanned = 0;
+            while (tasks.size() < max && scanned < MAX_READY_SCAN && !ready.isEmpty()) {
+                AsyncTask task = ready.poll();
+                scanned++;
+                int alreadyTaken = taken.getOrDefault(task.getHandlerName(), 0);
+                if (alreadyTaken >= remainingHandlerCapacity(task.getHandlerName())) {
+                    skipped.add(task);
+                    continue;
+                }
+                if (task.getLockedAt() > 0) {
+                    // Locked by someone else, carry on
+                    Log.warn("Task is already locked {0} {1} currentThread={2} lockUid={3}", task.getId(), task.getLockedAt(), Thread.currentThread().getId(), task.getLockUuid());
+                    continue;
+                }
+                boolean locked = lockTaskForExecution(task);
+                if (!locked) {
+                    Log.warn("Unable to lock task! {0}", task.getId());
+                    continue;
+                }
+                taken.put(task.getHandlerName(), alreadyTaken + 1);
+                tasks.add(task);
+            }
+            for (AsyncTask task: skipped) {
+                ready.add(task);
+            }
         }
+        Log.finer("Queue size is {0}", getPendingTaskCount());
+        return tasks;
+    }
 
+    /**
+     * Move the tasks that are due from the schedule queue into the ready queue of their lane.
+     * Must be called while synchronized on queueLock.
+     *
+     * @param now
+     */
+    private void promoteDueTasks(long now) {
+        while (!taskQueue.isEmpty() && taskQueue.peek().getExecuteAt() <= now) {
+            AsyncTask task = taskQueue.poll();
+            readyByLane.computeIfAbsent(laneOf(task), k -> new IndexedTaskQueue(READY_ORDER)).add(task);
+        }
+    }
 
-        Log.finer("Queue size is {0}", getTaskQueue().size());
-        boolean locked = lockTaskForExecution(task);
-        if (!locked) {
-            Log.warn("Unable to lock task! {0}", task.getId());
-            return null;
+    /**
+     * Sleep until the task at the head of the queue is due.
+     *
+     * @param now
+     * @return
+     */
+    @Override
+    protected long nextWakeAt(long now) {
+        synchronized (queueLock) {
+            for (IndexedTaskQueue ready: readyByLane.values()) {
+                if (!ready.isEmpty()) {
+                    // Due tasks are waiting on a busy lane or handler, finishing
+                    // tasks wake the coordinator, this is just a fallback
+                    return now + 1000;
+                }
+            }
+            AsyncTask next = taskQueue.peek();
+            if (next == null) {
+                return now + MAX_IDLE_SLEEP;
+            }
+            if (next.getExecuteAt() <= now) {
+                // Due but could not be locked, check back at the old polling interval
+                return now + 1000;
+            }
+            return Math.min(next.getExecuteAt(), now + MAX_IDLE_SLEEP);
         }
-        return task;
     }
 
+    /**
+     * Put a task that failed back in the queue, to be retried at its new executeAt time.
+     *
+     * @param task
+     */
+    public void requeue(AsyncTask task) {
+        synchronized (queueLock) {
+            taskQueue.add(task);
+        }
+        wakeUp();
+    }
 
     protected boolean lockTaskForExecution(AsyncTask task) {
         if (seenTaskIds.contains(task.getId())) {
@@ -195,13 +297,27 @@ public class AsyncFileCoordinator extends AsyncCoordinator {
     }
 
     public boolean hasTaskWithId(Long id) {
-        AsyncTask mirror = new AsyncTask();
-        mirror.setId(id);
-        return taskQueue.contains(mirror);
+        synchronized (queueLock) {
+            if (taskQueue.contains(id)) {
+                return true;
+            }
+            for (IndexedTaskQueue ready: readyByLane.values()) {
+                if (ready.contains(id)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     @Override
     public boolean hasPendingTaskWithCustomKey(String key) {
+        synchronized (queueLock) {
+            AsyncTask queued = taskQueue.getByCustomKey(key);
+            if (queued != null && queued.getExecuteAt() > DateUtils.mils()) {
+                return true;
+            }
+        }
         AsyncTask task = AsyncTaskController.instance().forUniqueKey("customKey", key);
         if (task == null) {
             return false;
@@ -222,19 +338,33 @@ public class AsyncFileCoordinator extends AsyncCoordinator {
     }
 
 
-    public PriorityBlockingQueue<AsyncTask> getTaskQueue() {
+    /**
+     * The queue of tasks that are not yet due. It is not thread safe, so only touch it
+     * directly while the coordinator is not running.
+     *
+     * @return
+     */
+    public IndexedTaskQueue getTaskQueue() {
         return taskQueue;
     }
 
     public void onLoadTaskOnBoot(AsyncTask task) {
         if (!StringUtils.isEmpty(task.getId().toString()) && task.getCompletedAt() == 0 && task.getLockedAt() == 0) {
-            taskQueue.add(task);
+            synchronized (queueLock) {
+                taskQueue.add(task);
+            }
         }
     }
 
     @Override
     public int getPendingTaskCount() {
-        return taskQueue.size();
+        synchronized (queueLock) {
+            int count = taskQueue.size();
+            for (IndexedTaskQueue ready: readyByLane.values()) {
+                count += ready.size();
+            }
+            return count;
+        }
     }
 
 }
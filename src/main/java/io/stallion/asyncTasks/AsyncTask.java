@@ -45,6 +45,8 @@ public class AsyncTask extends ModelBase implements Comparable<AsyncTask> {
     private String errorMessage = "";
     private String dataJson = "";
     private String localMode = "";
+    private int priority = 0;
+    private String lane = "";
 
 
     public static AsyncTaskController controller() {
@@ -118,6 +120,11 @@ public class AsyncTask extends ModelBase implements Comparable<AsyncTask> {
 
         setHandlerName(handler.getClass().getName());
         setDataJson(JSON.stringify(handler));
+        AsyncTaskOptions options = handler.getClass().getAnnotation(AsyncTaskOptions.class);
+        if (options != null) {
+            setLane(options.lane());
+            setPriority(options.priority());
+        }
 
         return this;
     }
@@ -350,4 +357,35 @@ public class AsyncTask extends ModelBase implements Comparable<AsyncTask> {
         this.localMode = localMode;
         return this;
     }
+
+    /**
+     * Among tasks in the same lane that are due, higher priority tasks run first. Defaults
+     * to the priority in the handler's AsyncTaskOptions.
+     * @return
+     */
+    @Column
+    public int getPriority() {
+        return priority;
+    }
+
+    public AsyncTask setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * The name of the lane, with its own worker threads, that the task runs in. Blank
+     * or unregistered lanes run in the default lane. Defaults to the lane in the
+     * handler's AsyncTaskOptions.
+     * @return
+     */
+    @Column
+    public String getLane() {
+        return lane;
+    }
+
+    public AsyncTask setLane(String lane) {
+        this.lane = lane;
+        return this;
+    }
 }
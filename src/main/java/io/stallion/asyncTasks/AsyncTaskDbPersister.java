@@ -17,43 +17,52 @@
 
 package io.stallion.asyncTasks;
 
+import io.stallion.dataAccess.db.Col;
 import io.stallion.dataAccess.db.DB;
 import io.stallion.dataAccess.db.DbPersister;
+import io.stallion.dataAccess.db.converters.RowMapper;
 import io.stallion.services.Log;
 import io.stallion.settings.Settings;
 import io.stallion.utils.DateUtils;
 import io.stallion.utils.GeneralUtils;
+import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
 import java.util.UUID;
 
-import static io.stallion.utils.Literals.mils;
-import static io.stallion.utils.Literals.or;
+import static io.stallion.utils.Literals.*;
 
 
 public class AsyncTaskDbPersister extends DbPersister<AsyncTask> implements AsyncTaskPersister {
+    // Do not execute tasks that are more than 2 days stale
+    static final long STALE_AFTER = 86400 * 2 * 1000;
+    // Tasks that failed permanently
+    static final String DEAD_TABLE = "stallion_async_tasks_dead";
 
     public AsyncTask findAndLockNextTask(Long now) {
-        return findAndLockNextTask(now, 0);
+        return findAndLockNextTask(now, null, 0);
     }
 
 
     public AsyncTask findAndLockNextTask(Long now, int depth) {
+        return findAndLockNextTask(now, null, depth);
+    }
+
+    private AsyncTask findAndLockNextTask(Long now, ReadyTasksFilter filter, int depth) {
         // Stop recursion at ten queries
         if (depth > 10) {
             return null;
         }
-        String localMode = "";
-        if (Settings.instance().getLocalMode()) {
-            localMode = or(System.getenv("USER"), GeneralUtils.slugify(Settings.instance().getTargetFolder()));
-        }
-        // Do not execute tasks that are more than 2 days stale
-        Long minTime = now - 86400 * 2 * 1000;
+        DB.SqlAndParams where = readyWhere(now, filter);
         AsyncTask task = DB.instance().queryForOne(
                 AsyncTask.class,
-                "SELECT * FROM stallion_async_tasks WHERE lockUuid='' AND executeAt<=? AND executeAt>? AND " +
-                        " completedAt=0 AND localMode=? ORDER BY executeAt ASC",
-                now, minTime, localMode);
+                "SELECT * FROM stallion_async_tasks WHERE " + where.getSql() + " ORDER BY priority DESC, executeAt ASC",
+                where.getParams());
 
         if (task == null) {
             return null;
@@ -66,7 +75,7 @@ public class AsyncTaskDbPersister extends DbPersister<AsyncTask> implements Asyn
             // If this happens, we just run the whole method again to get another row.
             // We could have done a SELECT FOR UPDATE, but we want to minimize locking. So better to do optimisic
             // locking rather than overly lock and create problems for MySQL
-            return findAndLockNextTask(now, depth + 1);
+            return findAndLockNextTask(now, filter, depth + 1);
         } else {
             task.setLockedAt(lockedAt);
             task.setLockUuid(lockUuid);
@@ -74,23 +83,270 @@ public class AsyncTaskDbPersister extends DbPersister<AsyncTask> implements Asyn
         }
     }
 
+    /**
+     * Lock up to limit tasks that are ready to run, and return them, highest priority first.
+     * All the tasks in the batch share one lockUuid.
+     *
+     * If the database supports SKIP LOCKED, the due rows are selected FOR UPDATE SKIP LOCKED
+     * and marked locked in the same transaction, so concurrent workers each take a different
+     * set of rows without waiting on each other. Otherwise MySQL marks the rows with a single
+     * UPDATE ... ORDER BY ... LIMIT, and other databases fall back to findAndLockNextTask().
+     *
+     * @param now
+     * @param limit
+     * @param filter - which lane to claim from and which handlers to skip, or null for any task
+     * @return
+     */
+    public List<AsyncTask> claimDueTasks(Long now, int limit, ReadyTasksFilter filter) {
+        List<AsyncTask> tasks = list();
+        if (limit < 1) {
+            return tasks;
+        }
+        DB.SqlAndParams where = readyWhere(now, filter);
+        String lockUuid = UUID.randomUUID().toString();
+        Long lockedAt = mils();
+        if (DB.instance().supportsSkipLocked()) {
+            return claimSkippingLocked(where, limit, lockUuid, lockedAt);
+        }
+        if (!"postgres".equals(DB.instance().getDbImplementation().getName())) {
+            List<Object> params = list(lockedAt, lockUuid);
+            params.addAll(where.getParamsList());
+            int affected = DB.instance().execute(
+                    "UPDATE stallion_async_tasks SET lockedAt=?, lockUuid=? WHERE " + where.getSql() +
+                            " ORDER BY priority DESC, executeAt ASC LIMIT " + limit,
+                    params.toArray());
+            if (affected == 0) {
+                return tasks;
+            }
+            return DB.instance().query(AsyncTask.class,
+                    "SELECT * FROM stallion_async_tasks WHERE lockUuid=? ORDER BY priority DESC, executeAt ASC", lockUuid);
+        }
+        for (int x = 0; x < limit; x++) {
+            AsyncTask task = findAndLockNextTask(now, filter, 0);
+            if (task == null) {
+                break;
+            }
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private List<AsyncTask> claimSkippingLocked(DB.SqlAndParams where, int limit, String lockUuid, Long lockedAt) {
+        List<AsyncTask> tasks = list();
+        try (Connection conn = DB.instance().getDataSource().getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement st = conn.prepareStatement(
+                        "SELECT * FROM stallion_async_tasks WHERE " + where.getSql() +
+                                " ORDER BY priority DESC, executeAt ASC LIMIT " + limit + " FOR UPDATE SKIP LOCKED")) {
+                    Object[] params = where.getParams();
+                    for (int i = 0; i < params.length; i++) {
+                        st.setObject(i + 1, params[i]);
+                    }
+                    try (ResultSet rs = st.executeQuery()) {
+                        RowMapper<AsyncTask> mapper = DB.instance().getSchema(AsyncTask.class).getRowMapper(rs.getMetaData());
+                        while (rs.next()) {
+                            tasks.add(mapper.map(rs));
+                        }
+                    }
+                }
+                if (tasks.size() > 0) {
+                    DB.SqlAndParams in = DB.instance().toInQueryParams(apply(tasks, task -> task.getId()));
+                    try (PreparedStatement st = conn.prepareStatement(
+                            "UPDATE stallion_async_tasks SET lockedAt=?, lockUuid=? WHERE id IN " + in.getSql())) {
+                        st.setLong(1, lockedAt);
+                        st.setString(2, lockUuid);
+                        Object[] ids = in.getParams();
+                        for (int i = 0; i < ids.length; i++) {
+                            st.setObject(3 + i, ids[i]);
+                        }
+                        st.executeUpdate();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        for (AsyncTask task: tasks) {
+            task.setLockedAt(lockedAt);
+            task.setLockUuid(lockUuid);
+        }
+        return tasks;
+    }
+
+    /**
+     * Unlock a task that was claimed but will not be run now, so that it can be claimed again.
+     *
+     * @param task
+     */
+    public void releaseLock(AsyncTask task) {
+        DB.instance().execute("UPDATE stallion_async_tasks SET lockedAt=0, lockUuid='' WHERE id=? AND lockUuid=?",
+                task.getId(), task.getLockUuid());
+        task.setLockedAt(0);
+        task.setLockUuid("");
+    }
+
+    private DB.SqlAndParams readyWhere(Long now, ReadyTasksFilter filter) {
+        List<Object> params = list(now, now - STALE_AFTER, getLocalModeKey());
+        StringBuilder sql = new StringBuilder("lockUuid='' AND executeAt<=? AND executeAt>? AND completedAt=0 AND localMode=?");
+        if (filter != null) {
+            if (!empty(filter.getLane()) && !AsyncCoordinator.DEFAULT_LANE.equals(filter.getLane())) {
+                sql.append(" AND lane=?");
+                params.add(filter.getLane());
+            } else if (filter.getOtherLanes().size() > 0) {
+                // The default lane runs every task not in one of the other registered lanes
+                DB.SqlAndParams in = DB.instance().toInQueryParams(filter.getOtherLanes());
+                sql.append(" AND lane NOT IN " + in.getSql());
+                params.addAll(in.getParamsList());
+            }
+            if (filter.getExcludedHandlers().size() > 0) {
+                DB.SqlAndParams in = DB.instance().toInQueryParams(filter.getExcludedHandlers());
+                sql.append(" AND handlerName NOT IN " + in.getSql());
+                params.addAll(in.getParamsList());
+            }
+        }
+        return new DB.SqlAndParams().setSql(sql.toString()).setParamsList(params);
+    }
+
+    /**
+     * Restricts which ready tasks claimDueTasks() may claim.
+     */
+    public static class ReadyTasksFilter {
+        private String lane = AsyncCoordinator.DEFAULT_LANE;
+        private List<String> otherLanes = list();
+        private List<String> excludedHandlers = list();
+
+        public String getLane() {
+            return lane;
+        }
+
+        /**
+         * The lane to claim tasks for
+         */
+        public ReadyTasksFilter setLane(String lane) {
+            this.lane = lane;
+            return this;
+        }
+
+        public List<String> getOtherLanes() {
+            return otherLanes;
+        }
+
+        /**
+         * The other registered lanes, whose tasks are never claimed for the default lane
+         */
+        public ReadyTasksFilter setOtherLanes(List<String> otherLanes) {
+            this.otherLanes = otherLanes;
+            return this;
+        }
+
+        public List<String> getExcludedHandlers() {
+            return excludedHandlers;
+        }
+
+        /**
+         * Handlers already at their concurrency limit
+         */
+        public ReadyTasksFilter setExcludedHandlers(List<String> excludedHandlers) {
+            this.excludedHandlers = excludedHandlers;
+            return this;
+        }
+    }
+
+    private String getLocalModeKey() {
+        if (Settings.instance().getLocalMode()) {
+            return or(System.getenv("USER"), GeneralUtils.slugify(Settings.instance().getTargetFolder()));
+        }
+        return "";
+    }
+
     @Override
     public boolean markFailed(AsyncTask task, Throwable e) {
         Log.info("Mark task failed: id={0} handler={1} customKey={2}", task.getId(), task.getHandlerName(), task.getCustomKey());
         task.setTryCount(task.getTryCount() + 1);
         task.setErrorMessage(e.toString() + ExceptionUtils.getStackTrace(e));
-        if (task.getTryCount() >= 5) {
+        AsyncTaskRetryPolicy policy = AsyncTaskRetryPolicy.forHandler(task.getHandlerName());
+        if (!policy.shouldRetry(task)) {
             task.setFailedAt(DateUtils.mils());
             Log.info("Mark task failed permanently: id={0} handler={1} customKey={2}", task.getId(), task.getHandlerName(), task.getCustomKey());
+            persist(task);
+            moveToDeadLetters(task);
         } else {
-            task.setExecuteAt(DateUtils.mils() + ((2^task.getTryCount())*1000));
+            task.setExecuteAt(DateUtils.mils() + policy.nextDelay(task.getTryCount()));
             task.setLockedAt(0);
             task.setLockUuid("");
+            persist(task);
         }
-        persist(task);
         return true;
     }
 
+    /**
+     * Move a task that failed permanently out of stallion_async_tasks and into
+     * stallion_async_tasks_dead, so that the table the claim queries run against only
+     * holds live tasks.
+     *
+     * @param task
+     */
+    private void moveToDeadLetters(AsyncTask task) {
+        String columns = getColumnList();
+        DB.instance().inTransaction(conn -> {
+            QueryRunner runner = new QueryRunner();
+            runner.update(conn, "INSERT INTO " + DEAD_TABLE + " (" + columns + ") SELECT " + columns +
+                    " FROM stallion_async_tasks WHERE id=?", task.getId());
+            runner.update(conn, "DELETE FROM stallion_async_tasks WHERE id=?", task.getId());
+        });
+    }
+
+    @Override
+    public List<AsyncTask> listFailed(int limit) {
+        return DB.instance().query(AsyncTask.class,
+                "SELECT * FROM " + DEAD_TABLE + " ORDER BY failedAt DESC LIMIT " + limit);
+    }
+
+    @Override
+    public boolean requeueFailed(Long taskId) {
+        AsyncTask dead = DB.instance().queryForOne(AsyncTask.class, "SELECT * FROM " + DEAD_TABLE + " WHERE id=?", taskId);
+        if (dead == null) {
+            return false;
+        }
+        String columns = getColumnList();
+        Long now = mils();
+        DB.instance().inTransaction(conn -> {
+            QueryRunner runner = new QueryRunner();
+            runner.update(conn, "INSERT INTO stallion_async_tasks (" + columns + ") SELECT " + columns +
+                    " FROM " + DEAD_TABLE + " WHERE id=?", taskId);
+            runner.update(conn, "DELETE FROM " + DEAD_TABLE + " WHERE id=?", taskId);
+            runner.update(conn, "UPDATE stallion_async_tasks SET tryCount=0, failedAt=0, lockedAt=0, lockUuid='', " +
+                    "errorMessage='', executeAt=? WHERE id=?", now, taskId);
+        });
+        Log.info("Requeued failed task: id={0} handler={1} customKey={2}", taskId, dead.getHandlerName(), dead.getCustomKey());
+        if (AsyncCoordinator.instance() != null) {
+            AsyncCoordinator.instance().wakeUp();
+        }
+        return true;
+    }
+
+    /**
+     * The columns shared by stallion_async_tasks and the dead letter table, listed out so
+     * that moving rows between them does not depend on the column order of either table.
+     *
+     * @return
+     */
+    private String getColumnList() {
+        List<String> columns = list("id");
+        for (Col col: DB.instance().getSchema(AsyncTask.class).getColumns()) {
+            columns.add(col.getName());
+        }
+        return String.join(", ", columns);
+    }
+
     @Override
     public boolean markComplete(AsyncTask task) {
         Log.info("Mark task complete: id={0} handler={1} customKey={2}", task.getId(), task.getHandlerName(), task.getCustomKey());
@@ -24,14 +24,14 @@ import io.stallion.requests.TaskRequest;
 import io.stallion.services.Log;
 import io.stallion.utils.json.JSON;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AsyncTaskExecuteRunnable implements Runnable {
 
     private Boolean triggerShutdown = false;
     private AsyncTask task;
-    private static final Map<String, Class> classCache = new HashMap<>();
+    private static final Map<String, Class> classCache = new ConcurrentHashMap<>();
 
     public AsyncTaskExecuteRunnable(AsyncTask task) {
         this.task = task;
@@ -58,7 +58,7 @@ public class AsyncTaskExecuteRunnable implements Runnable {
                             .setCustomKey(task.getCustomKey())
                             .setTaskId(task.getId())
             );
-            Class cls = lookupClass(task.getHandlerName());
+            Class cls = lookupHandlerClass(task.getHandlerName());
             Log.info("Loaded async handler class: {0}", cls.getName());
             AsyncTaskHandler handler = (AsyncTaskHandler)JSON.parse(task.getDataJson(), cls);
 
@@ -78,9 +78,9 @@ public class AsyncTaskExecuteRunnable implements Runnable {
                     task.getId(), task.getHandlerName(), task.getCustomKey(), dump);
             try {
                 AsyncCoordinator.instance().markFailed(task, e);
-                if (task.getTryCount() < 5) {
+                if (task.getFailedAt() == 0) {
                     Log.info("Adding task back into the queue {0}", task.getId());
-                    ((AsyncFileCoordinator)AsyncCoordinator.instance()).getTaskQueue().add(task);
+                    ((AsyncFileCoordinator)AsyncCoordinator.instance()).requeue(task);
                 }
             } catch (Exception persistException) {
                 Log.exception(persistException, "Exception persisting task changes for id:{0}", task.getId());
@@ -90,7 +90,15 @@ public class AsyncTaskExecuteRunnable implements Runnable {
         }
     }
 
-    private Class lookupClass(String className) throws ClassNotFoundException {
+    /**
+     * Find the handler class for the given name, in the registered classes, this class's
+     * loader, the plugins, and the extra class loaders registered with the coordinator.
+     *
+     * @param className
+     * @return
+     * @throws ClassNotFoundException
+     */
+    static Class lookupHandlerClass(String className) throws ClassNotFoundException {
         if (classCache.containsKey(className)) {
             return classCache.get(className);
         }
@@ -100,7 +108,7 @@ public class AsyncTaskExecuteRunnable implements Runnable {
         Class cls = null;
 
         try {
-            cls = getClass().getClassLoader().loadClass(task.getHandlerName());
+            cls = AsyncTaskExecuteRunnable.class.getClassLoader().loadClass(className);
         } catch (ClassNotFoundException e) {
 
         }
@@ -110,7 +118,7 @@ public class AsyncTaskExecuteRunnable implements Runnable {
         }
         for (StallionJavaPlugin booter: PluginRegistry.instance().getJavaPluginByName().values()) {
             try {
-                cls = booter.getClass().getClassLoader().loadClass(task.getHandlerName());
+                cls = booter.getClass().getClassLoader().loadClass(className);
                 if (cls != null) {
                     classCache.put(className, cls);
                     return cls;
@@ -121,7 +129,7 @@ public class AsyncTaskExecuteRunnable implements Runnable {
         }
         for (ClassLoader loader: AsyncCoordinator.instance().getExtraClassLoaders()) {
             try {
-                cls = loader.loadClass(task.getHandlerName());
+                cls = loader.loadClass(className);
                 if (cls != null) {
                     classCache.put(className, cls);
                     return cls;
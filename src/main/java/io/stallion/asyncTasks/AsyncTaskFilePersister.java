@@ -29,6 +29,7 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import java.io.File;
 import java.io.FileFilter;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public class AsyncTaskFilePersister extends JsonFilePersister implements AsyncTaskPersister {
@@ -138,10 +139,12 @@ public class AsyncTaskFilePersister extends JsonFilePersister implements AsyncTa
         task.setTryCount(task.getTryCount() + 1);
 
         task.setErrorMessage(e.toString() + ExceptionUtils.getStackTrace(e));
-        if (task.getTryCount() >= 5) {
+        AsyncTaskRetryPolicy policy = AsyncTaskRetryPolicy.forHandler(task.getHandlerName());
+        if (!policy.shouldRetry(task)) {
+            // The failed folder is the dead letter bucket, fetchAll() never loads it
             task.setFailedAt(DateUtils.mils());
         } else {
-            task.setExecuteAt(DateUtils.mils() + ((2^task.getTryCount())*1000));
+            task.setExecuteAt(DateUtils.mils() + policy.nextDelay(task.getTryCount()));
             task.setLockedAt(0);
             task.setLockUuid("");
         }
@@ -154,6 +157,39 @@ public class AsyncTaskFilePersister extends JsonFilePersister implements AsyncTa
         return true;
     }
 
+    @Override
+    public List<AsyncTask> listFailed(int limit) {
+        FileFilter fileFilter = new RegexFileFilter("\\d+\\.json");
+        File[] files = new File(getBucketFolderPath() + "/failed").listFiles(fileFilter);
+        List<AsyncTask> tasks = new ArrayList<>();
+        if (files == null) {
+            return tasks;
+        }
+        for (File file: files) {
+            tasks.add((AsyncTask)fetchOne(file.getAbsolutePath()));
+        }
+        tasks.sort(Comparator.comparingLong(AsyncTask::getFailedAt).reversed());
+        return tasks.subList(0, Math.min(limit, tasks.size()));
+    }
+
+    @Override
+    public boolean requeueFailed(Long taskId) {
+        File file = new File(getBucketFolderPath() + "/failed/" + taskId + ".json");
+        if (!file.isFile()) {
+            return false;
+        }
+        AsyncTask task = (AsyncTask)fetchOne(file.getAbsolutePath());
+        task.setLockUuid("").setTryCount(0).setLockedAt(0).setFailedAt(0).setErrorMessage("");
+        task.setExecuteAt(DateUtils.mils());
+        if (!file.delete()) {
+            return false;
+        }
+        // Saving through the controller also replaces the failed copy in the stash
+        AsyncTaskController.instance().save(task);
+        ((AsyncFileCoordinator)AsyncCoordinator.instance()).requeue(task);
+        return true;
+    }
+
     @Override
     public String fullFilePathForObj(Model model) {
         AsyncTask task = (AsyncTask)model;
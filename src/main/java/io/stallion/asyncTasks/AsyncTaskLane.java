@@ -0,0 +1,74 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A named group of worker threads for async tasks. Each lane has its own thread quota,
+ * so a backlog of tasks in one lane cannot hold up the tasks in another.
+ */
+public class AsyncTaskLane {
+    private final String name;
+    private final int threads;
+    private final ExecutorService pool;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    AsyncTaskLane(String name, int threads) {
+        this.name = name;
+        this.threads = threads;
+        BasicThreadFactory factory = new BasicThreadFactory.Builder()
+                .namingPattern(AsyncCoordinator.DEFAULT_LANE.equals(name) ? "stallion-async-task-runnable-%d" : "stallion-async-task-" + name + "-%d")
+                .build();
+        this.pool = Executors.newFixedThreadPool(threads, factory);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the number of tasks dispatched to this lane that have not finished yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of threads in this lane not running or assigned a task
+     */
+    public int getFreeSlots() {
+        return Math.max(0, threads - inFlight.get());
+    }
+
+    ExecutorService getPool() {
+        return pool;
+    }
+
+    AtomicInteger getInFlightCounter() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Scheduling options for an AsyncTaskHandler class. For example, to keep a large batch
+ * of newsletter emails from starving password reset emails:
+ *
+ * <pre>
+ * &#64;AsyncTaskOptions(lane="bulk", maxConcurrent=2)
+ * public class NewsletterHandler extends AsyncTaskHandlerBase { ... }
+ * </pre>
+ *
+ * and register the lane at boot with AsyncCoordinator.instance().registerLane("bulk", 2)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface AsyncTaskOptions {
+    /**
+     * The lane tasks for this handler run in. Each lane has its own worker threads. Tasks
+     * in a lane that has not been registered run in the default lane.
+     */
+    public String lane() default "";
+
+    /**
+     * Within a lane, tasks that are due run in order of highest priority first, then
+     * earliest executeAt.
+     */
+    public int priority() default 0;
+
+    /**
+     * The most tasks of this handler that may run at the same time on one node, 0 for no limit.
+     */
+    public int maxConcurrent() default 0;
+
+    /**
+     * How many times a task is tried before it fails permanently and is moved to the
+     * dead letters.
+     */
+    public int maxTries() default 5;
+
+    /**
+     * The delay before the first retry, in milliseconds. Each retry after that waits twice
+     * as long as the one before, up to maxRetryDelay, and the actual delay is jittered to
+     * between half and all of that.
+     */
+    public long retryDelay() default 1000;
+
+    /**
+     * The longest delay between retries, in milliseconds.
+     */
+    public long maxRetryDelay() default 3600000;
+}
@@ -17,12 +17,15 @@
 
 package io.stallion.asyncTasks;
 
+import java.util.List;
+
 public interface AsyncTaskPersister {
 
     /**
      * Mark the last task execution as failed in the datastore.
-     * Remove locks and increment the try count. Mark for retry with exponential back-off.
-     * If the count is too high, do not mark for retry.
+     * Remove locks and increment the try count. Mark for retry with the back-off of the
+     * handler's AsyncTaskRetryPolicy. If the policy says not to retry, move the task to
+     * the dead letters.
      * @param task
      * @param e
      * @return
@@ -49,4 +52,19 @@ public interface AsyncTaskPersister {
      */
     public void deleteOldTasks();
 
+    /**
+     * @param limit
+     * @return the tasks that failed permanently, most recently failed first
+     */
+    public List<AsyncTask> listFailed(int limit);
+
+    /**
+     * Move a task that failed permanently back into the queue, with its try count reset,
+     * to run right away.
+     *
+     * @param taskId
+     * @return false if there is no failed task with that id
+     */
+    public boolean requeueFailed(Long taskId);
+
 }
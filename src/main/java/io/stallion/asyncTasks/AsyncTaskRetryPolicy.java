@@ -0,0 +1,116 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed task is retried, and how long to wait before the retry.
+ * Retries back off exponentially from retryDelay, capped at maxRetryDelay, with
+ * "equal jitter": the delay is a random time between half and all of the backed off
+ * delay, so that tasks that failed together do not all retry at the same moment.
+ *
+ * Each handler gets the policy from its AsyncTaskOptions, unless one was registered
+ * for it with register().
+ */
+public class AsyncTaskRetryPolicy {
+    public static final AsyncTaskRetryPolicy DEFAULT = new AsyncTaskRetryPolicy(5, 1000, 3600000);
+
+    private static final Map<String, AsyncTaskRetryPolicy> registered = new ConcurrentHashMap<>();
+    private static final Map<String, AsyncTaskRetryPolicy> fromOptions = new ConcurrentHashMap<>();
+
+    private final int maxTries;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+
+    public AsyncTaskRetryPolicy(int maxTries, long retryDelay, long maxRetryDelay) {
+        this.maxTries = maxTries;
+        this.retryDelay = Math.max(1, retryDelay);
+        this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+    }
+
+    /**
+     * Use the given policy for the handler, instead of the one in its AsyncTaskOptions.
+     *
+     * @param handlerName - the class name of the handler
+     * @param policy
+     */
+    public static void register(String handlerName, AsyncTaskRetryPolicy policy) {
+        registered.put(handlerName, policy);
+    }
+
+    public static AsyncTaskRetryPolicy forHandler(String handlerName) {
+        AsyncTaskRetryPolicy policy = registered.get(handlerName);
+        if (policy != null) {
+            return policy;
+        }
+        policy = fromOptions.get(handlerName);
+        if (policy != null) {
+            return policy;
+        }
+        try {
+            Class cls = AsyncTaskExecuteRunnable.lookupHandlerClass(handlerName);
+            AsyncTaskOptions options = (AsyncTaskOptions)cls.getAnnotation(AsyncTaskOptions.class);
+            policy = options == null ? DEFAULT : new AsyncTaskRetryPolicy(options.maxTries(), options.retryDelay(), options.maxRetryDelay());
+            fromOptions.put(handlerName, policy);
+            return policy;
+        } catch (ClassNotFoundException e) {
+            return DEFAULT;
+        }
+    }
+
+    static void forget(String handlerName) {
+        fromOptions.remove(handlerName);
+    }
+
+    /**
+     * @param task - a task that just failed, with its tryCount already incremented
+     * @return true if the task should be tried again
+     */
+    public boolean shouldRetry(AsyncTask task) {
+        return !task.isNeverRetry() && task.getTryCount() < maxTries;
+    }
+
+    /**
+     * @param tryCount - the number of times the task has been tried so far, at least 1
+     * @return how many milliseconds to wait before the next try
+     */
+    public long nextDelay(int tryCount) {
+        int doublings = Math.min(Math.max(tryCount - 1, 0), 40);
+        long ceiling = maxRetryDelay;
+        if (doublings < Long.numberOfLeadingZeros(retryDelay) - 1) {
+            ceiling = Math.min(maxRetryDelay, retryDelay << doublings);
+        }
+        long half = ceiling / 2;
+        return ceiling - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public int getMaxTries() {
+        return maxTries;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+}
@@ -19,6 +19,10 @@ package io.stallion.asyncTasks;
 
 import io.stallion.dataAccess.DummyPersister;
 
+import java.util.List;
+
+import static io.stallion.utils.Literals.list;
+
 
 public class DummyTaskPersister extends DummyPersister implements AsyncTaskPersister {
 
@@ -42,4 +46,14 @@ public class DummyTaskPersister extends DummyPersister implements AsyncTaskPersi
     public void deleteOldTasks() {
 
     }
+
+    @Override
+    public List<AsyncTask> listFailed(int limit) {
+        return list();
+    }
+
+    @Override
+    public boolean requeueFailed(Long taskId) {
+        return false;
+    }
 }
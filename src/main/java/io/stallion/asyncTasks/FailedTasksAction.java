@@ -0,0 +1,76 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import io.stallion.boot.StallionRunAction;
+import io.stallion.jobs.JobCoordinator;
+import io.stallion.services.Log;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+
+
+/**
+ * Lists the async tasks that failed permanently, or with -taskId or -all, puts them back
+ * in the queue to run again.
+ */
+public class FailedTasksAction implements StallionRunAction<FailedTasksOptions> {
+
+    @Override
+    public String getActionName() {
+        return "failed-tasks";
+    }
+
+    @Override
+    public String getHelp() {
+        return "List the async tasks that failed permanently, or requeue them with -taskId=<id> or -all.";
+    }
+
+    @Override
+    public FailedTasksOptions newCommandOptions() {
+        return new FailedTasksOptions();
+    }
+
+    @Override
+    public void execute(FailedTasksOptions options) throws Exception {
+        AsyncTaskPersister persister = AsyncCoordinator.instance().getTaskPersister();
+        if (options.getTaskId() > 0L) {
+            if (persister.requeueFailed(options.getTaskId())) {
+                Log.info("Requeued failed task {0}", options.getTaskId());
+            } else {
+                Log.warn("No failed task found with id {0}", options.getTaskId());
+            }
+        } else {
+            List<AsyncTask> tasks = persister.listFailed(options.getLimit());
+            for (AsyncTask task: tasks) {
+                if (options.getAll()) {
+                    persister.requeueFailed(task.getId());
+                    Log.info("Requeued failed task {0}", task.getId());
+                } else {
+                    Log.info("id={0} handler={1} customKey={2} tries={3} failedAt={4} error={5}",
+                            task.getId(), task.getHandlerName(), task.getCustomKey(), task.getTryCount(),
+                            task.getFailedAt(), StringUtils.abbreviate(StringUtils.defaultString(task.getErrorMessage()), 200));
+                }
+            }
+            Log.info("{0} failed tasks {1}", tasks.size(), options.getAll() ? "requeued" : "found");
+        }
+
+        AsyncCoordinator.gracefulShutdown();
+        JobCoordinator.shutdown();
+    }
+}
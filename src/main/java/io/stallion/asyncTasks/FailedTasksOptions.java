@@ -0,0 +1,63 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import io.stallion.boot.CommandOptionsBase;
+import org.kohsuke.args4j.Option;
+
+
+public class FailedTasksOptions extends CommandOptionsBase {
+
+    @Option(name="-taskId", usage="Requeue the failed task with this id")
+    private Long taskId = 0L;
+
+    @Option(name="-all", usage="Requeue every failed task, up to -limit")
+    private Boolean all = false;
+
+    @Option(name="-limit", usage="The most failed tasks to list or requeue")
+    private Integer limit = 100;
+
+
+
+    public Long getTaskId() {
+        return taskId;
+    }
+
+    public FailedTasksOptions setTaskId(Long taskId) {
+        this.taskId = taskId;
+        return this;
+    }
+
+    public Boolean getAll() {
+        return all;
+    }
+
+    public FailedTasksOptions setAll(Boolean all) {
+        this.all = all;
+        return this;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public FailedTasksOptions setLimit(Integer limit) {
+        this.limit = limit;
+        return this;
+    }
+}
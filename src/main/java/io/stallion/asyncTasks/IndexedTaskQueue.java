@@ -0,0 +1,221 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.asyncTasks;
+
+import io.stallion.exceptions.UsageException;
+
+import java.util.*;
+
+import static io.stallion.utils.Literals.empty;
+import static io.stallion.utils.Literals.list;
+
+/**
+ * A binary heap of tasks that also indexes each task's position by id, and the task
+ * ids by customKey. Adding, removing and rescheduling a task are O(log n), and
+ * looking up a task by id or customKey is O(1).
+ *
+ * Adding a task whose id is already in the queue replaces it and moves it to its
+ * new position, so rescheduling is just calling add() again after changing executeAt.
+ *
+ * Not thread safe, callers must synchronize.
+ */
+public class IndexedTaskQueue {
+    private final Comparator<AsyncTask> comparator;
+    private AsyncTask[] heap = new AsyncTask[16];
+    private int size = 0;
+    private final Map<Long, Integer> positionById = new HashMap<>();
+    private final Map<String, Long> idByCustomKey = new HashMap<>();
+
+    /**
+     * A queue ordered by executeAt, earliest first.
+     */
+    public IndexedTaskQueue() {
+        this(Comparator.naturalOrder());
+    }
+
+    public IndexedTaskQueue(Comparator<AsyncTask> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Add the task, or if a task with the same id is already queued, replace it and
+     * move it to where it now belongs.
+     *
+     * @param task
+     * @return true if the task was new to the queue, false if it replaced a queued task
+     */
+    public boolean add(AsyncTask task) {
+        if (task.getId() == null) {
+            throw new UsageException("Cannot queue a task that does not have an id yet");
+        }
+        Integer position = positionById.get(task.getId());
+        if (position != null) {
+            AsyncTask old = heap[position];
+            unindexCustomKey(old);
+            heap[position] = task;
+            indexCustomKey(task);
+            if (!siftUp(position)) {
+                siftDown(position);
+            }
+            return false;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = task;
+        positionById.put(task.getId(), size);
+        indexCustomKey(task);
+        size++;
+        siftUp(size - 1);
+        return true;
+    }
+
+    public AsyncTask peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    public AsyncTask poll() {
+        if (size == 0) {
+            return null;
+        }
+        return removeAt(0);
+    }
+
+    /**
+     * @param id
+     * @return the removed task, or null if no task with the id was queued
+     */
+    public AsyncTask remove(Long id) {
+        Integer position = positionById.get(id);
+        if (position == null) {
+            return null;
+        }
+        return removeAt(position);
+    }
+
+    public boolean contains(Long id) {
+        return positionById.containsKey(id);
+    }
+
+    public AsyncTask get(Long id) {
+        Integer position = positionById.get(id);
+        return position == null ? null : heap[position];
+    }
+
+    public AsyncTask getByCustomKey(String customKey) {
+        Long id = idByCustomKey.get(customKey);
+        return id == null ? null : get(id);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+        positionById.clear();
+        idByCustomKey.clear();
+    }
+
+    /**
+     * @return a copy of the queued tasks, in no particular order
+     */
+    public List<AsyncTask> toList() {
+        List<AsyncTask> tasks = list();
+        for (int i = 0; i < size; i++) {
+            tasks.add(heap[i]);
+        }
+        return tasks;
+    }
+
+    private AsyncTask removeAt(int position) {
+        AsyncTask task = heap[position];
+        positionById.remove(task.getId());
+        unindexCustomKey(task);
+        size--;
+        if (position != size) {
+            heap[position] = heap[size];
+            positionById.put(heap[position].getId(), position);
+            heap[size] = null;
+            if (!siftUp(position)) {
+                siftDown(position);
+            }
+        } else {
+            heap[size] = null;
+        }
+        return task;
+    }
+
+    /**
+     * @return true if the task moved
+     */
+    private boolean siftUp(int position) {
+        int start = position;
+        AsyncTask task = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (comparator.compare(task, heap[parent]) >= 0) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(task, position);
+        return position != start;
+    }
+
+    private void siftDown(int position) {
+        AsyncTask task = heap[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if (right < size && comparator.compare(heap[right], heap[child]) < 0) {
+                child = right;
+            }
+            if (comparator.compare(task, heap[child]) <= 0) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(task, position);
+    }
+
+    private void place(AsyncTask task, int position) {
+        heap[position] = task;
+        positionById.put(task.getId(), position);
+    }
+
+    private void indexCustomKey(AsyncTask task) {
+        if (!empty(task.getCustomKey())) {
+            idByCustomKey.put(task.getCustomKey(), task.getId());
+        }
+    }
+
+    private void unindexCustomKey(AsyncTask task) {
+        if (!empty(task.getCustomKey()) && task.getId().equals(idByCustomKey.get(task.getCustomKey()))) {
+            idByCustomKey.remove(task.getCustomKey());
+        }
+    }
+}
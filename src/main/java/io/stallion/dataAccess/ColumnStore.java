@@ -0,0 +1,501 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess;
+
+import io.stallion.dataAccess.filtering.CompiledFilter;
+import io.stallion.dataAccess.filtering.FilterOperation;
+import io.stallion.dataAccess.filtering.FilterOperator;
+import io.stallion.exceptions.ConfigException;
+import io.stallion.reflection.PropertyGetter;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static io.stallion.utils.Literals.map;
+
+/**
+ * A columnar shadow copy of the {@link Columnar} properties of every item in a
+ * LocalMemoryStash. Each item gets a row, and each column holds its values in a
+ * primitive array: integral numbers in a long[], floating point numbers in a
+ * double[], and ZonedDateTimes as epoch milliseconds in a long[].
+ *
+ * FilterChain uses it to evaluate comparison filters and to compute sums and
+ * averages by scanning the arrays, without reading properties or boxing values.
+ * Filters on numeric columns are evaluated exactly the same as CompiledFilter
+ * would. Date columns only hold milliseconds, and ZonedDateTime comparisons also
+ * look at nanoseconds and zones, so filters on dates are used to narrow down the
+ * candidates and are still checked against the items.
+ *
+ * Rows are kept in the order items were first indexed, which is the order of
+ * LocalMemoryStash.getItems(), so a column scan returns items in the same order
+ * as a full scan. The rows of removed items are reclaimed by compacting the
+ * store, keeping that order, once at least half of the rows are empty.
+ *
+ * @param <T>
+ */
+public class ColumnStore<T extends Model> {
+    private static final int INITIAL_CAPACITY = 1024;
+    // Do not bother compacting until there are at least this many empty rows
+    private static final int MIN_COMPACT_ROWS = 1024;
+
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Integer> rowById = new HashMap<>();
+    private final List<T> rowItems = new ArrayList<>();
+    // Rows of items that are in the stash and not deleted
+    private final BitSet live = new BitSet();
+    // Rows of items that were removed, which get reclaimed by compact()
+    private int emptyRows = 0;
+
+    public ColumnStore(Collection<String> propertyNames) {
+        for (String name: propertyNames) {
+            columns.put(name, new Column(name));
+        }
+    }
+
+    public Set<String> getColumnNames() {
+        return columns.keySet();
+    }
+
+    /**
+     * Add the item to the store, or update its row if it is already there.
+     *
+     * @param item
+     */
+    public void index(T item) {
+        if (item.getId() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer row = rowById.get(item.getId());
+            if (row == null) {
+                row = rowItems.size();
+                rowItems.add(item);
+                rowById.put(item.getId(), row);
+            } else {
+                rowItems.set(row, item);
+            }
+            for (Column column: columns.values()) {
+                column.set(row, PropertyGetter.forObject(item, column.name).get(item));
+            }
+            live.set(row, !Boolean.TRUE.equals(item.getDeleted()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop returning the item from any selection, and let go of it. If the item comes
+     * back it gets a new row at the end, the same as it would in the stash.
+     *
+     * @param item
+     */
+    public void remove(T item) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowById.remove(item.getId());
+            if (row != null) {
+                live.clear(row);
+                rowItems.set(row, null);
+                emptyRows++;
+                if (emptyRows >= MIN_COMPACT_ROWS && emptyRows * 2 >= rowItems.size()) {
+                    compact();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Move every item down into the empty rows before it, keeping the items in order,
+     * and shrink the columns to fit. Must be called with the write lock held.
+     */
+    private void compact() {
+        int rowCount = rowItems.size();
+        int target = 0;
+        for (int row = 0; row < rowCount; row++) {
+            T item = rowItems.get(row);
+            if (item == null) {
+                continue;
+            }
+            if (target != row) {
+                rowItems.set(target, item);
+                rowById.put(item.getId(), target);
+                live.set(target, live.get(row));
+                for (Column column: columns.values()) {
+                    column.move(row, target);
+                }
+            }
+            target++;
+        }
+        rowItems.subList(target, rowCount).clear();
+        live.clear(target, rowCount);
+        for (Column column: columns.values()) {
+            column.truncate(target, rowCount);
+        }
+        emptyRows = 0;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * True if this operation can be applied to the column store.
+     *
+     * @param op
+     * @return
+     */
+    public boolean canFilter(FilterOperation op) {
+        if (op.isOrOperation() || op.getIsExclude() || op.isCaseInsensitive() || op.getOriginalValue() == null) {
+            return false;
+        }
+        Column column = columns.get(op.getFieldName());
+        if (column == null || column.kind == null || column.mixed) {
+            return false;
+        }
+        switch (op.getOperator()) {
+            case EQUAL:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL:
+                return true;
+            case NOT_EQUAL:
+                return column.kind != Kind.TIME;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Find all live rows matching all of the operations, and compute the totals of the
+     * aggregate columns over them.
+     *
+     * @param ops - operations that passed canFilter()
+     * @param aggregateColumns - properties to sum and average, if they are all numeric columns
+     * @return
+     */
+    public Selection<T> select(List<FilterOperation> ops, Collection<String> aggregateColumns) {
+        lock.readLock().lock();
+        try {
+            int rowCount = rowItems.size();
+            BitSet rows = (BitSet) live.clone();
+            List<FilterOperation> exact = new ArrayList<>();
+            List<FilterOperation> applied = new ArrayList<>();
+            for (FilterOperation op: ops) {
+                Column column = columns.get(op.getFieldName());
+                if (column == null || column.mixed || column.kind == null) {
+                    continue;
+                }
+                Object operand;
+                try {
+                    operand = CompiledFilter.coerce(op.getOriginalValue(), column.sample);
+                } catch (RuntimeException e) {
+                    // Leave it for the compiled filter, which will throw the error to the caller
+                    continue;
+                }
+                if (operand == null || operand.getClass() != column.valueClass) {
+                    continue;
+                }
+                column.filter(rows, rowCount, op.getOperator(), operand);
+                applied.add(op);
+                if (column.kind != Kind.TIME) {
+                    exact.add(op);
+                }
+            }
+
+            List<T> items = new ArrayList<>(rows.cardinality());
+            for (int row = rows.nextSetBit(0); row >= 0 && row < rowCount; row = rows.nextSetBit(row + 1)) {
+                items.add(rowItems.get(row));
+            }
+
+            Map<String, double[]> totals = null;
+            if (aggregateColumns != null && !aggregateColumns.isEmpty()) {
+                totals = new HashMap<>();
+                for (String name: aggregateColumns) {
+                    Column column = columns.get(name);
+                    if (column == null || column.mixed || (column.kind != Kind.LONG && column.kind != Kind.DOUBLE)) {
+                        totals = null;
+                        break;
+                    }
+                    totals.put(name, column.total(rows, rowCount));
+                }
+            }
+            return new Selection<T>(items, applied, exact, totals, rowCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The result of scanning the column store.
+     *
+     * @param <T>
+     */
+    public static class Selection<T> {
+        private final List<T> items;
+        private final List<FilterOperation> appliedOperations;
+        private final List<FilterOperation> exactOperations;
+        private final Map<String, double[]> totals;
+        private final int scannedRows;
+
+        Selection(List<T> items, List<FilterOperation> appliedOperations, List<FilterOperation> exactOperations, Map<String, double[]> totals, int scannedRows) {
+            this.items = items;
+            this.appliedOperations = appliedOperations;
+            this.exactOperations = exactOperations;
+            this.totals = totals;
+            this.scannedRows = scannedRows;
+        }
+
+        /**
+         * The matching items, in stash order
+         *
+         * @return
+         */
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * All the operations that were used to narrow down the items.
+         *
+         * @return
+         */
+        public List<FilterOperation> getAppliedOperations() {
+            return appliedOperations;
+        }
+
+        /**
+         * The operations that were evaluated exactly, and do not need to be checked again.
+         *
+         * @return
+         */
+        public List<FilterOperation> getExactOperations() {
+            return exactOperations;
+        }
+
+        public int getScannedRows() {
+            return scannedRows;
+        }
+
+        /**
+         * True if sums and averages were computed for all of the aggregate columns.
+         *
+         * @return
+         */
+        public boolean hasTotals() {
+            return totals != null;
+        }
+
+        public Map<String, Double> getSums(Collection<String> columnNames) {
+            Map<String, Double> sums = map();
+            for (String name: columnNames) {
+                sums.put(name, totals.get(name)[0]);
+            }
+            return sums;
+        }
+
+        public Map<String, Double> getAverages(Collection<String> columnNames) {
+            Map<String, Double> averages = map();
+            for (String name: columnNames) {
+                double[] total = totals.get(name);
+                averages.put(name, total[1] == 0 ? null : total[0] / total[1]);
+            }
+            return averages;
+        }
+    }
+
+    private static enum Kind {
+        LONG,
+        DOUBLE,
+        TIME
+    }
+
+    private static class Column {
+        private final String name;
+        private volatile Kind kind;
+        private Class valueClass;
+        private Object sample;
+        // Set when the property returns values of more than one class, in which case we stop using the column
+        private volatile boolean mixed = false;
+        private long[] longs = new long[0];
+        private double[] doubles = new double[0];
+        private final BitSet nonNull = new BitSet();
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        void set(int row, Object value) {
+            if (value == null) {
+                nonNull.clear(row);
+                return;
+            }
+            if (kind == null) {
+                kind = kindOf(value);
+                valueClass = value.getClass();
+                sample = value;
+            } else if (value.getClass() != valueClass) {
+                mixed = true;
+            }
+            nonNull.set(row);
+            if (kind == Kind.DOUBLE) {
+                doubles = ensureCapacity(doubles, row);
+                doubles[row] = ((Number) value).doubleValue();
+            } else if (kind == Kind.TIME) {
+                longs = ensureCapacity(longs, row);
+                longs[row] = ((ZonedDateTime) value).toInstant().toEpochMilli();
+            } else {
+                longs = ensureCapacity(longs, row);
+                longs[row] = ((Number) value).longValue();
+            }
+        }
+
+        void move(int from, int to) {
+            nonNull.set(to, nonNull.get(from));
+            if (from < longs.length) {
+                longs[to] = longs[from];
+            }
+            if (from < doubles.length) {
+                doubles[to] = doubles[from];
+            }
+        }
+
+        void truncate(int rowCount, int oldRowCount) {
+            nonNull.clear(rowCount, oldRowCount);
+            int capacity = Math.max(INITIAL_CAPACITY, rowCount * 2);
+            if (longs.length > capacity) {
+                longs = Arrays.copyOf(longs, capacity);
+            }
+            if (doubles.length > capacity) {
+                doubles = Arrays.copyOf(doubles, capacity);
+            }
+        }
+
+        private Kind kindOf(Object value) {
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return Kind.LONG;
+            } else if (value instanceof Double || value instanceof Float) {
+                return Kind.DOUBLE;
+            } else if (value instanceof ZonedDateTime) {
+                return Kind.TIME;
+            }
+            throw new ConfigException("The property " + name + " is @Columnar, but its value is not an integer, " +
+                    "floating point number or ZonedDateTime: " + value.getClass().getName());
+        }
+
+        /**
+         * Clear the bits of all rows not matching the comparison. For dates, the comparison
+         * is widened to include rows in the same millisecond as the operand.
+         */
+        void filter(BitSet rows, int rowCount, FilterOperator operator, Object operand) {
+            rows.and(nonNull);
+            if (kind == Kind.DOUBLE) {
+                double value = ((Number) operand).doubleValue();
+                for (int row = rows.nextSetBit(0); row >= 0 && row < rowCount; row = rows.nextSetBit(row + 1)) {
+                    if (!test(Double.compare(doubles[row], value), operator)) {
+                        rows.clear(row);
+                    }
+                }
+                return;
+            }
+            long value;
+            if (kind == Kind.TIME) {
+                value = ((ZonedDateTime) operand).toInstant().toEpochMilli();
+                if (operator == FilterOperator.GREATER_THAN) {
+                    operator = FilterOperator.GREATER_THAN_OR_EQUAL;
+                } else if (operator == FilterOperator.LESS_THAN) {
+                    operator = FilterOperator.LESS_THAN_OR_EQUAL;
+                }
+            } else {
+                value = ((Number) operand).longValue();
+            }
+            for (int row = rows.nextSetBit(0); row >= 0 && row < rowCount; row = rows.nextSetBit(row + 1)) {
+                if (!test(Long.compare(longs[row], value), operator)) {
+                    rows.clear(row);
+                }
+            }
+        }
+
+        private static boolean test(int comparison, FilterOperator operator) {
+            switch (operator) {
+                case EQUAL:
+                    return comparison == 0;
+                case NOT_EQUAL:
+                    return comparison != 0;
+                case GREATER_THAN:
+                    return comparison > 0;
+                case GREATER_THAN_OR_EQUAL:
+                    return comparison >= 0;
+                case LESS_THAN:
+                    return comparison < 0;
+                case LESS_THAN_OR_EQUAL:
+                    return comparison <= 0;
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * @return [sum, count of non-null values] over the selected rows
+         */
+        double[] total(BitSet rows, int rowCount) {
+            double sum = 0;
+            long count = 0;
+            for (int row = rows.nextSetBit(0); row >= 0 && row < rowCount; row = rows.nextSetBit(row + 1)) {
+                if (!nonNull.get(row)) {
+                    continue;
+                }
+                sum += kind == Kind.DOUBLE ? doubles[row] : (double) longs[row];
+                count++;
+            }
+            return new double[] {sum, count};
+        }
+
+        private static long[] ensureCapacity(long[] array, int row) {
+            if (row < array.length) {
+                return array;
+            }
+            return Arrays.copyOf(array, Math.max(INITIAL_CAPACITY, Math.max(row + 1, array.length * 2)));
+        }
+
+        private static double[] ensureCapacity(double[] array, int row) {
+            if (row < array.length) {
+                return array;
+            }
+            return Arrays.copyOf(array, Math.max(INITIAL_CAPACITY, Math.max(row + 1, array.length * 2)));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a numeric or ZonedDateTime model property to be kept in the LocalMemoryStash's
+ * column store. The column store holds the values of every item in primitive arrays
+ * (dates as epoch milliseconds), so that range filters and sums over the property
+ * can scan the arrays instead of reading the property of every item.
+ *
+ * Use this for the numbers and dates of large, analytics-style buckets, where filters
+ * and reports touch most of the items.
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Columnar {
+}
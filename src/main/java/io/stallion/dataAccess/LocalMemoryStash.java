@@ -18,6 +18,7 @@
 package io.stallion.dataAccess;
 
 import io.stallion.dataAccess.db.Col;
+import io.stallion.dataAccess.filtering.CompiledFilter;
 import io.stallion.dataAccess.filtering.FilterCache;
 import io.stallion.dataAccess.filtering.FilterChain;
 import io.stallion.exceptions.ConfigException;
@@ -28,6 +29,9 @@ import io.stallion.settings.Settings;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import static io.stallion.utils.Literals.*;
 
@@ -44,19 +48,104 @@ import static io.stallion.utils.Literals.*;
  * you will have to iterate through every single item every time you do a
  * filter or lookup.
  *
+ * Properties annotated with {@link SortedKey} get a {@link SortedIndex}, which
+ * the FilterChain uses to answer range filters and sorts on that property
+ * without scanning and sorting every item.
+ *
+ * The stash is safe to read from many threads while it is being written to.
+ * Reads never take a lock: the items list handed out by getItems() and the
+ * sorted indexes are immutable snapshots, and the lookup tables are concurrent
+ * maps. Writes (save, hardDelete, loadItem, reset) are serialized per bucket by
+ * a write lock. Items are copy-on-write: a save or reload builds a new instance
+ * of the item and then swaps it in for the old one in every lookup table, so a
+ * reader never sees an item with only some of its fields changed. A
+ * reset() builds a whole new set of lookup tables off to the side, and swaps
+ * them in at once when it is done, so readers see either the old data or the
+ * new data, but never a half-loaded stash.
+ *
  * @param <T>
  */
 public class LocalMemoryStash<T extends Model> extends StashBase<T> {
 
-    protected Map<Long, T> itemByPrimaryKey;
-    protected List<T> items;
     protected Set<String> keyFields;
     protected Set<String> uniqueFields;
-    protected Map<String, Map<Object, Set<T>>> keyNameToKeyToValue;
-    protected Map<String, Map<Object, T>> keyNameToUniqueKeyToValue;
+    protected Map<String, MaterializedAggregate<T>> aggregates = new ConcurrentHashMap<>();
     protected List<Col> columns;
-    protected Set<String> uniqueFieldsCaseInsensitive = set();
-    protected boolean dataPreloaded = false;
+    protected Set<String> uniqueFieldsCaseInsensitive = ConcurrentHashMap.newKeySet();
+    protected volatile boolean dataPreloaded = false;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // The indexes that readers see
+    private volatile Indexes<T> indexes;
+    // The indexes being filled in by reset(), only touched while holding the write lock
+    private Indexes<T> rebuilding;
+
+    /**
+     * All the lookup tables for the items in the stash. A stash swaps in a new
+     * instance on reset(), so that readers never see a partially loaded set of tables.
+     *
+     * @param <Y>
+     */
+    protected static class Indexes<Y extends Model> {
+        protected final Map<Long, Y> itemByPrimaryKey = new ConcurrentHashMap<>();
+        protected final SnapshotList<Y> items = new SnapshotList<>();
+        protected final Map<String, Map<Object, Set<Y>>> keyNameToKeyToValue = new HashMap<>();
+        protected final Map<String, Map<Object, Y>> keyNameToUniqueKeyToValue = new HashMap<>();
+        protected final Map<String, SortedIndex<Y>> sortedIndexes = new HashMap<>();
+        protected ColumnStore<Y> columnStore;
+
+        protected Y forId(Long id) {
+            if (id == null) {
+                return null;
+            }
+            return itemByPrimaryKey.get(id);
+        }
+    }
+
+    /**
+     * The items for one value of an alternative key. Items are held by id, so that
+     * adding the new instance of a saved item replaces the old instance in one step,
+     * and the item is never missing from the set while it is being swapped.
+     *
+     * @param <Y>
+     */
+    private static class ItemSet<Y extends Model> extends AbstractSet<Y> {
+        private final Map<Long, Y> itemById = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean add(Y item) {
+            if (item.getId() == null) {
+                return false;
+            }
+            return itemById.put(item.getId(), item) == null;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Model) || ((Model) o).getId() == null) {
+                return false;
+            }
+            return itemById.remove(((Model) o).getId()) != null;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Model) || ((Model) o).getId() == null) {
+                return false;
+            }
+            return itemById.containsKey(((Model) o).getId());
+        }
+
+        @Override
+        public Iterator<Y> iterator() {
+            return itemById.values().iterator();
+        }
+
+        @Override
+        public int size() {
+            return itemById.size();
+        }
+    }
 
     @Override
     public void init(DataAccessRegistration registration, ModelController<T> controller, Persister<T> persister) {
@@ -75,22 +164,32 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
             throw new ConfigException("A controller must have a valid bucket before it is inited");
         }
         FilterCache.initCache(getBucket());
-        this.items = new ArrayList<>();
         this.keyFields = set();
         this.uniqueFields = set();
-        this.itemByPrimaryKey = new HashMap<Long, T>();
-        this.keyNameToKeyToValue = new HashMap<String, Map<Object, Set<T>>>();
+        this.indexes = newIndexes();
+        for (MaterializedAggregate<T> aggregate: aggregates.values()) {
+            aggregate.clear();
+        }
+    }
+
+    /**
+     * Create an empty set of lookup tables, with a table for every key, unique key,
+     * sorted key and columnar property of the model. This also updates keyFields
+     * and uniqueFields.
+     *
+     * @return
+     */
+    private Indexes<T> newIndexes() {
+        Indexes<T> idx = new Indexes<>();
         if (this.getKeyFields() != null) {
             for (String keyFieldName : this.getKeyFields()) {
-                HashMap<Object, Set<T>> keyToValues = new HashMap<>();
-                this.keyNameToKeyToValue.put(keyFieldName, keyToValues);
+                idx.keyNameToKeyToValue.put(keyFieldName, new ConcurrentHashMap<Object, Set<T>>());
             }
         }
-        // Use a hashtable to enforce uniqueness
-        this.keyNameToUniqueKeyToValue = new Hashtable<String, Map<Object, T>>();
         for(String key: getUniqueFields()) {
-            this.keyNameToUniqueKeyToValue.put(key, new Hashtable<Object, T>());
+            idx.keyNameToUniqueKeyToValue.put(key, new ConcurrentHashMap<Object, T>());
         }
+        List<String> columnarFields = list();
 
         // Get the unique keys and alternative keys from annotations
         for(String propertyName: PropertyUtils.getPropertyNames(this.getPersister().getModelClass())) {
@@ -100,12 +199,20 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
                 if (uk.caseInsensitive()) {
                     this.uniqueFieldsCaseInsensitive.add(propertyName);
                 }
-                this.keyNameToUniqueKeyToValue.put(propertyName, new HashMap<Object, T>());
+                idx.keyNameToUniqueKeyToValue.put(propertyName, new ConcurrentHashMap<Object, T>());
 
             }
             if (PropertyUtils.propertyHasAnnotation(this.getPersister().getModelClass(), propertyName, AlternativeKey.class)) {
                 Log.finer("Model:{0} has alternativeKey on {1}", this.getPersister().getModelClass(), propertyName);
-                this.keyNameToKeyToValue.put(propertyName, new HashMap<Object, Set<T>>());
+                idx.keyNameToKeyToValue.put(propertyName, new ConcurrentHashMap<Object, Set<T>>());
+            }
+            if (PropertyUtils.propertyHasAnnotation(this.getPersister().getModelClass(), propertyName, SortedKey.class)) {
+                Log.finer("Model:{0} has sortedKey on {1}", this.getPersister().getModelClass(), propertyName);
+                idx.sortedIndexes.put(propertyName, new SortedIndex<T>(propertyName));
+            }
+            if (PropertyUtils.propertyHasAnnotation(this.getPersister().getModelClass(), propertyName, Columnar.class)) {
+                Log.finer("Model:{0} has columnar property {1}", this.getPersister().getModelClass(), propertyName);
+                columnarFields.add(propertyName);
             }
         }
         if (!empty(columns)) {
@@ -114,36 +221,100 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
                     if (true == col.getCaseInsensitive()) {
                         this.uniqueFieldsCaseInsensitive.add(col.getPropertyName());
                     }
-                    this.keyNameToUniqueKeyToValue.put(col.getPropertyName(), new HashMap<Object, T>());
+                    idx.keyNameToUniqueKeyToValue.put(col.getPropertyName(), new ConcurrentHashMap<Object, T>());
                 } else if (col.getAlternativeKey()) {
-                    this.keyNameToKeyToValue.put(col.getPropertyName(), new HashMap<Object, Set<T>>());
+                    idx.keyNameToKeyToValue.put(col.getPropertyName(), new ConcurrentHashMap<Object, Set<T>>());
+                }
+                if (col.getSortedKey()) {
+                    idx.sortedIndexes.put(col.getPropertyName(), new SortedIndex<T>(col.getPropertyName()));
+                }
+                if (col.getColumnar() && !columnarFields.contains(col.getPropertyName())) {
+                    columnarFields.add(col.getPropertyName());
                 }
 
             }
         }
-        keyFields = this.keyNameToKeyToValue.keySet();
-        uniqueFields = this.keyNameToUniqueKeyToValue.keySet();
+        idx.columnStore = columnarFields.isEmpty() ? null : new ColumnStore<T>(columnarFields);
+        keyFields = Collections.unmodifiableSet(new HashSet<>(idx.keyNameToKeyToValue.keySet()));
+        uniqueFields = Collections.unmodifiableSet(new HashSet<>(idx.keyNameToUniqueKeyToValue.keySet()));
+        return idx;
+    }
+
+    /**
+     * The indexes that writes should go to: the new indexes while a reset() is
+     * loading, otherwise the live ones. Only call while holding the write lock.
+     *
+     * @return
+     */
+    protected Indexes<T> writableIndexes() {
+        Indexes<T> idx = rebuilding;
+        if (idx != null) {
+            return idx;
+        }
+        return indexes;
+    }
+
+    /**
+     * The lock that serializes all writes to this stash. Subclasses that override
+     * the loading or saving methods should hold it while they change the stash.
+     *
+     * @return
+     */
+    protected ReentrantLock getWriteLock() {
+        return writeLock;
+    }
+
+    /**
+     * Get the attached item for the id from the indexes being written to, without
+     * checking whether the stash has been preloaded. For use while loading items.
+     *
+     * @param id
+     * @return the item, or null if there is none
+     */
+    protected T loadedForId(Long id) {
+        return writableIndexes().forId(id);
     }
 
     @Override
     public void syncForSave(T obj) {
-        T existing = this.originalForId(obj.getId());
-        List<String> changedKeyFields = new ArrayList<>();
-        cloneInto(obj, existing, null, true, changedKeyFields);
+        syncInto(obj, true);
     }
 
     @Override
     public void sync(T obj) {
         // TODO: exclude properties with annotation @SyncExclude
-        T existing = this.originalForId(obj.getId());
-        List<String> changedKeyFields = new ArrayList<>();
-        cloneInto(obj, existing, null, false, changedKeyFields);
+        syncInto(obj, false);
+    }
+
+    /**
+     * Swap in a copy of the stashed item with the values of obj copied over it.
+     *
+     * @param obj
+     * @param copyNulls
+     */
+    private void syncInto(T obj, boolean copyNulls) {
+        // Pre-read before taking the lock, since the pre-read can poll the change journal,
+        // and the poller takes this lock while holding the journal's own lock.
+        onPreRead();
+        writeLock.lock();
+        try {
+            T existing = loadedForId(obj.getId());
+            if (existing == null) {
+                return;
+            }
+            T synced = forceDetach(existing);
+            cloneInto(obj, synced, null, copyNulls, null);
+            publish(existing, synced);
+        } finally {
+            writeLock.unlock();
+        }
+        FilterCache.clearBucket(getBucket());
     }
 
 
     @Override
     public T detach(T obj) {
-        T existing = this.itemByPrimaryKey.get(obj.getId());
+        T existing = indexes.forId(obj.getId());
         if (existing == null) {
             return obj;
         }
@@ -152,7 +323,17 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
 
     @Override
     public void save(T obj) {
-        T internal = this.itemByPrimaryKey.getOrDefault(obj.getId(), null);
+        writeLock.lock();
+        try {
+            doSave(obj);
+        } finally {
+            writeLock.unlock();
+        }
+        FilterCache.clearBucket(getBucket());
+    }
+
+    private void doSave(T obj) {
+        T internal = loadedForId(obj.getId());
         if (internal == null) {
             try {
                 internal = (T)obj.getClass().newInstance();
@@ -168,56 +349,180 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
                 internal.setIsNewInsert(true);
             }
             preRegisterItem(internal);
-            getPersister().persist(internal);
-            registerItem(internal);
-            registerKeys(internal);
+            try {
+                getPersister().persist(internal);
+            } catch (RuntimeException e) {
+                writableIndexes().itemByPrimaryKey.remove(internal.getId());
+                throw e;
+            }
+            publish(null, internal);
             obj.setId(internal.getId());
             obj.setIsNewInsert(false);
             cloneInto(internal, obj, null, true, null);
+        } else if (obj != internal) {
+            // Find the changed values, and save them to a copy of the stashed item, which
+            // replaces the stashed item once it has been persisted
+            Map<String, Object> changedValues = map();
+            for (Map.Entry<String, Object> entry: PropertyUtils.getProperties(obj).entrySet()) {
+                Object org = PropertyUtils.getPropertyOrMappedValue(internal, entry.getKey());
+                if (org == null && entry.getValue() != null) {
+                    changedValues.put(entry.getKey(), entry.getValue());
+                } else if (org != null && !org.equals(entry.getValue())) {
+                    changedValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            T updated = forceDetach(internal);
+            cloneInto(obj, updated, null, true, null);
+            getPersister().update(updated, changedValues);
+            publish(internal, updated);
+            cloneInto(updated, obj, null, true, null);
         } else {
+            // The caller changed the stashed instance itself, so all we can do is persist and reindex it
+            getPersister().persist(obj);
+            publish(internal, internal);
+        }
+    }
 
-            Map<String, Object> changedValues = map();
-            // If these are not the same reference in memory, then we find the changed values,
-            // and sync values from the detached object into the permanent object
-            if (internal != null && obj != internal) {
-                for (Map.Entry<String, Object> entry: PropertyUtils.getProperties(obj).entrySet()) {
-                    Object org = PropertyUtils.getPropertyOrMappedValue(internal, entry.getKey());
-                    if (org == null && entry.getValue() != null) {
-                        changedValues.put(entry.getKey(), entry.getValue());
-                    } else if (org != null && !org.equals(entry.getValue())) {
-                        changedValues.put(entry.getKey(), entry.getValue());
+
+    /**
+     * Save all the objects with a single call to Persister.persistAll(), so a database
+     * backed stash writes them in batches, and then registers them all in the indexes.
+     *
+     * Updates are persisted from copies of the stashed items, and the copies only replace
+     * the stashed items once persistAll() succeeds, so a failed write leaves the stash as it was.
+     *
+     * @param objs
+     */
+    @Override
+    public void saveAll(List<T> objs) {
+        if (objs.isEmpty()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            List<T> internals = new ArrayList<>(objs.size());
+            List<T> toPersist = new ArrayList<>(objs);
+            boolean[] created = new boolean[objs.size()];
+            for (int i = 0; i < objs.size(); i++) {
+                T obj = objs.get(i);
+                T internal = loadedForId(obj.getId());
+                if (internal == null) {
+                    try {
+                        internal = (T)obj.getClass().newInstance();
+                    } catch (InstantiationException | IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                    cloneInto(obj, internal, null, true, null);
+                    internal.setId(obj.getId());
+                    if (empty(obj.getId())) {
+                        internal.setId(DataAccessRegistry.instance().getTickets().nextId());
+                        internal.setIsNewInsert(true);
                     }
+                    preRegisterItem(internal);
+                    created[i] = true;
+                    toPersist.set(i, internal);
+                    internals.add(internal);
+                } else {
+                    T updated = forceDetach(internal);
+                    cloneInto(obj, updated, null, true, null);
+                    internals.add(internal);
+                    toPersist.set(i, updated);
                 }
-                this.syncForSave(obj);
-                getPersister().update(obj, changedValues);
-            } else {
-                getPersister().persist(obj);
             }
-
+            try {
+                getPersister().persistAll(toPersist);
+            } catch (RuntimeException e) {
+                for (int i = 0; i < internals.size(); i++) {
+                    if (created[i]) {
+                        writableIndexes().itemByPrimaryKey.remove(internals.get(i).getId());
+                    }
+                }
+                throw e;
+            }
+            for (int i = 0; i < internals.size(); i++) {
+                T internal = internals.get(i);
+                T obj = objs.get(i);
+                if (created[i]) {
+                    publish(null, internal);
+                    obj.setId(internal.getId());
+                    obj.setIsNewInsert(false);
+                    cloneInto(internal, obj, null, true, null);
+                } else {
+                    publish(internal, toPersist.get(i));
+                }
+            }
+        } finally {
+            writeLock.unlock();
         }
         FilterCache.clearBucket(getBucket());
-
     }
 
-
     @Override
     public void hardDelete(T obj)  {
-        getPersister().hardDelete(obj);
-        obj.setDeleted(true);
-        if (itemByPrimaryKey.containsKey(obj.getId())) {
-            sync(obj);
-            itemByPrimaryKey.remove(obj.getId());
+        writeLock.lock();
+        try {
+            getPersister().hardDelete(obj);
+            obj.setDeleted(true);
+            T existing = writableIndexes().forId(obj.getId());
+            removeFromIndexes(existing == null ? obj : existing);
+        } finally {
+            writeLock.unlock();
         }
-        for(String field: this.uniqueFields) {
-            Object val = PropertyUtils.getProperty(obj, field);
-            if (val != null && this.keyNameToUniqueKeyToValue.get(field).containsKey(val)) {
-                this.keyNameToUniqueKeyToValue.get(field).remove(val);
+
+        FilterCache.clearBucket(getBucket());
+    }
+
+    @Override
+    public void unloadForId(Long id) {
+        writeLock.lock();
+        try {
+            T existing = writableIndexes().forId(id);
+            if (existing == null) {
+                return;
             }
+            removeFromIndexes(existing);
+        } finally {
+            writeLock.unlock();
         }
-
         FilterCache.clearBucket(getBucket());
     }
 
+    /**
+     * Remove the item from every lookup table and from the items list. Readers that
+     * already have a snapshot of the items keep seeing it.
+     *
+     * @param item
+     */
+    private void removeFromIndexes(T item) {
+        Indexes<T> idx = writableIndexes();
+        if (item.getId() != null) {
+            idx.itemByPrimaryKey.remove(item.getId());
+        }
+        idx.items.remove(item);
+        for (Map.Entry<String, Map<Object, Set<T>>> keyEntry: idx.keyNameToKeyToValue.entrySet()) {
+            Object val = PropertyUtils.getPropertyOrMappedValue(item, keyEntry.getKey());
+            Set<T> things = val == null ? null : keyEntry.getValue().get(val);
+            if (things != null) {
+                things.remove(item);
+            }
+        }
+        for (Map.Entry<String, Map<Object, T>> uniqueEntry: idx.keyNameToUniqueKeyToValue.entrySet()) {
+            Object val = uniqueKeyValue(uniqueEntry.getKey(), item);
+            if (val != null) {
+                uniqueEntry.getValue().remove(val, item);
+            }
+        }
+        for(SortedIndex<T> index: idx.sortedIndexes.values()) {
+            index.remove(item);
+        }
+        for (MaterializedAggregate<T> aggregate: aggregates.values()) {
+            aggregate.remove(item);
+        }
+        if (idx.columnStore != null) {
+            idx.columnStore.remove(item);
+        }
+    }
+
 
     /**
      * Clones all non-null values from "source" into "dest"
@@ -277,30 +582,47 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
         }
 
         Log.fine("Load all from {0}. ", getBucket());
-        List<T> items = this.getPersister().fetchAll();
-        for(T item: items) {
-            loadItem(item);
+        try (Stream<T> items = this.getPersister().streamAll()) {
+            items.forEach(this::loadItem);
         }
         dataPreloaded = true;
     }
 
 
     public boolean loadItem(T item)  {
+        return loadItem(item, false);
+    }
+
+    /**
+     * Load an item fetched from the persister into the stash. If the stash already
+     * has the item, the fetched values are copied over a copy of it, which then
+     * replaces it.
+     *
+     * @param item
+     * @param copyNulls - whether null values in the fetched item overwrite stashed values
+     * @return true if the item is new or any of its values changed
+     */
+    protected boolean loadItem(T item, boolean copyNulls)  {
         //Log.fine("Pojo item: {0}:{1}", item.getClass().getName(), item.getId());
         boolean hasChanges = false;
         if (item.getId() == null) {
             Log.warn("Loading a pojo item with a null ID! bucket: {0} class:{1}", getBucket(), item.getClass().getName());
         }
-        T original = itemByPrimaryKey.getOrDefault(item.getId(), null);
-        if (original != null) {
-            hasChanges = cloneInto(item, original, null, false, list());
-            item = original;
-        } else {
-            hasChanges = true;
-            registerItem(item);
+        writeLock.lock();
+        try {
+            T original = loadedForId(item.getId());
+            T loaded = item;
+            if (original != null) {
+                loaded = forceDetach(original);
+                hasChanges = cloneInto(item, loaded, null, copyNulls, list());
+            } else {
+                hasChanges = true;
+            }
+            getController().onPostLoadItem(loaded);
+            publish(original, loaded);
+        } finally {
+            writeLock.unlock();
         }
-        getController().onPostLoadItem(item);
-        registerKeys(item);
         return hasChanges;
     }
 
@@ -327,59 +649,217 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
      * @param item
      */
     protected void preRegisterItem(T item) {
-        itemByPrimaryKey.put(item.getId(), item);
+        if (item.getId() != null) {
+            writableIndexes().itemByPrimaryKey.put(item.getId(), item);
+        }
     }
 
     protected void registerItem(T item) {
-        itemByPrimaryKey.put(item.getId(), item);
-        items.add(item);
+        Indexes<T> idx = writableIndexes();
+        if (item.getId() != null) {
+            idx.itemByPrimaryKey.put(item.getId(), item);
+        }
+        idx.items.add(item);
     }
 
     public void registerKeys(T item) {
+        Indexes<T> idx = writableIndexes();
         if (getKeyFields() != null) {
-            for (String keyField : keyNameToKeyToValue.keySet()) {
+            for (String keyField : idx.keyNameToKeyToValue.keySet()) {
                 Object obj = PropertyUtils.getPropertyOrMappedValue(item, keyField);
                 if (obj != null) {
-                    if (!this.keyNameToKeyToValue.get(keyField).containsKey(obj)) {
-                        this.keyNameToKeyToValue.get(keyField).put(obj, set());
-                    }
-                    this.keyNameToKeyToValue.get(keyField).get(obj).add(item);
+                    idx.keyNameToKeyToValue.get(keyField)
+                            .computeIfAbsent(obj, k -> new ItemSet<T>())
+                            .add(item);
                 }
             }
         }
-        for (String uniqueKey : keyNameToUniqueKeyToValue.keySet()) {
-            Object val = PropertyUtils.getPropertyOrMappedValue(item, uniqueKey);
-
+        for (String uniqueKey : idx.keyNameToUniqueKeyToValue.keySet()) {
+            Object val = uniqueKeyValue(uniqueKey, item);
             if (val != null) {
-                if (this.uniqueFieldsCaseInsensitive.contains(uniqueKey) && val instanceof String) {
-                    val = ((String) val).toLowerCase();
+                idx.keyNameToUniqueKeyToValue.get(uniqueKey).put(val, item);
+            }
+        }
+        registerIndexes(item);
+        updateAggregates(item);
+    }
+
+    /**
+     * Make a new or changed item visible to readers. The new instance replaces the previous
+     * instance in the items list and in every lookup table, and the previous instance is
+     * dropped from the keys it no longer has. The previous instance itself is left alone,
+     * so readers that already have it keep seeing the old values.
+     *
+     * Only call while holding the write lock.
+     *
+     * @param previous - the instance being replaced, or null if the item is new
+     * @param item
+     */
+    protected void publish(T previous, T item) {
+        if (previous == null) {
+            registerItem(item);
+        } else {
+            Indexes<T> idx = writableIndexes();
+            if (item.getId() != null) {
+                idx.itemByPrimaryKey.put(item.getId(), item);
+            }
+            idx.items.replace(previous, item);
+            if (previous != item) {
+                unregisterChangedKeys(previous, item);
+            }
+        }
+        registerKeys(item);
+    }
+
+    /**
+     * Remove the previous instance of an item from the keys whose value is different in
+     * the new instance.
+     *
+     * @param previous
+     * @param item
+     */
+    private void unregisterChangedKeys(T previous, T item) {
+        Indexes<T> idx = writableIndexes();
+        for (Map.Entry<String, Map<Object, Set<T>>> keyEntry: idx.keyNameToKeyToValue.entrySet()) {
+            Object before = PropertyUtils.getPropertyOrMappedValue(previous, keyEntry.getKey());
+            if (before != null && !before.equals(PropertyUtils.getPropertyOrMappedValue(item, keyEntry.getKey()))) {
+                Set<T> things = keyEntry.getValue().get(before);
+                if (things != null) {
+                    things.remove(previous);
                 }
-                this.keyNameToUniqueKeyToValue.get(uniqueKey).put(val, item);
             }
         }
+        for (Map.Entry<String, Map<Object, T>> uniqueEntry: idx.keyNameToUniqueKeyToValue.entrySet()) {
+            Object before = uniqueKeyValue(uniqueEntry.getKey(), previous);
+            if (before != null && !before.equals(uniqueKeyValue(uniqueEntry.getKey(), item))) {
+                uniqueEntry.getValue().remove(before, previous);
+            }
+        }
+    }
+
+    /**
+     * Get the value of the unique key property, lower cased if the key is case insensitive.
+     *
+     * @param uniqueKey
+     * @param item
+     * @return
+     */
+    private Object uniqueKeyValue(String uniqueKey, T item) {
+        Object val = PropertyUtils.getPropertyOrMappedValue(item, uniqueKey);
+        if (this.uniqueFieldsCaseInsensitive.contains(uniqueKey) && val instanceof String) {
+            val = ((String) val).toLowerCase();
+        }
+        return val;
+    }
+
+    protected void registerIndexes(T item) {
+        Indexes<T> idx = writableIndexes();
+        for (SortedIndex<T> index: idx.sortedIndexes.values()) {
+            index.index(item);
+        }
+        if (idx.columnStore != null) {
+            idx.columnStore.index(item);
+        }
+    }
+
+    protected void updateAggregates(T item) {
+        // While resetting, the aggregates are refilled once the new indexes are swapped in
+        if (rebuilding != null) {
+            return;
+        }
+        for (MaterializedAggregate<T> aggregate: aggregates.values()) {
+            aggregate.update(item);
+        }
+    }
+
+    /**
+     * Register an aggregate that will be kept up to date as items are loaded, saved
+     * and deleted. It is filled in from the items already in the stash.
+     *
+     * @param aggregate
+     * @return the aggregate
+     */
+    public MaterializedAggregate<T> registerAggregate(MaterializedAggregate<T> aggregate) {
+        if (aggregates.containsKey(aggregate.getName())) {
+            throw new UsageException("An aggregate named " + aggregate.getName() + " is already registered for " + getBucket());
+        }
+        writeLock.lock();
+        try {
+            aggregate.markStarted();
+            aggregates.put(aggregate.getName(), aggregate);
+            for (T item: writableIndexes().items.snapshot()) {
+                aggregate.update(item);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return aggregate;
+    }
+
+    /**
+     * Stop maintaining the aggregate with the given name.
+     *
+     * @param name
+     * @return the aggregate that was removed, or null if none was registered with that name
+     */
+    public MaterializedAggregate<T> unregisterAggregate(String name) {
+        writeLock.lock();
+        try {
+            return aggregates.remove(name);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get a registered aggregate by name
+     *
+     * @param name
+     * @return the aggregate, or null if none is registered with that name
+     */
+    public MaterializedAggregate<T> getAggregate(String name) {
+        return aggregates.get(name);
     }
 
 
+    /**
+     * Get an immutable snapshot of all the items in the stash. Items saved or deleted
+     * after this is called will not change the returned list, and iterating it never
+     * throws a ConcurrentModificationException. The same list instance is returned
+     * until the next write.
+     *
+     * @return
+     */
     @Override
     public List<T> getItems() {
-        return items;
+        return indexes.items.snapshot();
     }
 
+    /**
+     * Reload all items from the persister into a new set of indexes. Readers keep
+     * seeing the old items until loading is finished, and then the new indexes are
+     * swapped in all at once.
+     */
     @Override
     public void reset() {
-        items = new ArrayList<>();
-        itemByPrimaryKey = new HashMap<Long, T>();
-        keyNameToKeyToValue = new HashMap<String, Map<Object, Set<T>>>();
-        keyNameToUniqueKeyToValue = new Hashtable<String, Map<Object, T>>();
-        if (getKeyFields() != null) {
-            for (String keyFieldName : getKeyFields()) {
-                HashMap<Object, Set<T>> keyToValues = new HashMap<>();
-                keyNameToKeyToValue.put(keyFieldName, keyToValues);
+        writeLock.lock();
+        try {
+            rebuilding = newIndexes();
+            try {
+                loadAll();
+                indexes = rebuilding;
+            } finally {
+                rebuilding = null;
+            }
+            for (MaterializedAggregate<T> aggregate: aggregates.values()) {
+                aggregate.clear();
+                for (T item: indexes.items.snapshot()) {
+                    aggregate.update(item);
+                }
             }
+        } finally {
+            writeLock.unlock();
         }
-        dataPreloaded = false;
-        initialize();
-        loadAll();
         FilterCache.clearBucket(getBucket());
 
     }
@@ -387,7 +867,7 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
     @Override
     public T forId(Long id) {
         onPreRead();
-        T item = this.itemByPrimaryKey.get(id);
+        T item = indexes.forId(id);
         if (item == null) {
             return null;
         }
@@ -397,7 +877,7 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
     @Override
     public T originalForId(Long id) {
         onPreRead();
-        T item = this.itemByPrimaryKey.get(id);
+        T item = indexes.forId(id);
         if (item == null) {
             return null;
         }
@@ -406,8 +886,24 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
 
     @Override
     public T forUniqueKey(String keyName, Object lookupValue) {
+        T value = originalForUniqueKey(keyName, lookupValue);
+        if (value == null) {
+            return null;
+        }
+        return detach(value);
+    }
+
+    /**
+     * Get the attached, original item for the unique key, or null if there is
+     * no matching item or the item has been deleted.
+     *
+     * @param keyName
+     * @param lookupValue
+     * @return
+     */
+    public T originalForUniqueKey(String keyName, Object lookupValue) {
         onPreRead();
-        Map<Object, T> map = this.keyNameToUniqueKeyToValue.getOrDefault(keyName, null);
+        Map<Object, T> map = indexes.keyNameToUniqueKeyToValue.getOrDefault(keyName, null);
         if (map == null) {
             throw new ConfigException("There is no unique key '" + keyName + "' defined for bucket '" + getBucket() + "'");
         }
@@ -421,19 +917,61 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
         if (value.getDeleted() == true) {
             return null;
         }
-        return detach(value);
+        return value;
     }
 
     @Override
     public List<T> listForKey(String keyName, Object value) {
         onPreRead();
-        Set<T> things = this.keyNameToKeyToValue.get(keyName).getOrDefault(value, Collections.EMPTY_SET);
+        Set<T> things = setForKey(keyName, value);
         return new ArrayList<T>(things);
     }
 
     @Override
     public int countForKey(String keyName, Object value) {
-        return this.keyNameToKeyToValue.get(keyName).size();
+        return setForKey(keyName, value).size();
+    }
+
+    /**
+     * Get a read-only view of the original items for the alternative key. Unlike
+     * listForKey(), this does not copy the items, so it should only be used for
+     * lookups and iteration while filtering.
+     *
+     * @param keyName
+     * @param value
+     * @return
+     */
+    public Set<T> itemsForKey(String keyName, Object value) {
+        return Collections.unmodifiableSet(setForKey(keyName, value));
+    }
+
+    /**
+     * Look up the set of items for the key value. If there is no exact match, the value is
+     * coerced to the type of the keys (so that looking up an Integer finds a Long key) and
+     * looked up again.
+     *
+     * @param keyName
+     * @param value
+     * @return
+     */
+    private Set<T> setForKey(String keyName, Object value) {
+        Map<Object, Set<T>> keyToValues = indexes.keyNameToKeyToValue.get(keyName);
+        Set<T> things = keyToValues.get(value);
+        if (things == null && value != null && !keyToValues.isEmpty()) {
+            Object sampleKey = keyToValues.keySet().iterator().next();
+            try {
+                Object typedValue = CompiledFilter.coerce(value, sampleKey);
+                if (typedValue != value) {
+                    things = keyToValues.get(typedValue);
+                }
+            } catch (RuntimeException e) {
+                Log.finer("Could not convert {0} to the type of key {1}", value, keyName);
+            }
+        }
+        if (things == null) {
+            return Collections.EMPTY_SET;
+        }
+        return things;
     }
 
     @Override
@@ -452,7 +990,7 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
     @Override
     public FilterChain<T> filterByKey(String keyName, Object value) {
         onPreRead();
-        Map<Object, Set<T>> keyValMap = this.keyNameToKeyToValue.getOrDefault(keyName, null);
+        Map<Object, Set<T>> keyValMap = indexes.keyNameToKeyToValue.getOrDefault(keyName, null);
         if (keyValMap == null) {
             throw new ConfigException("The key " + keyName + " is not a valid key for the bucket " + getBucket() +
                     ". You must either override getKeyFields() in your controller, or pass in the key during the constructore");
@@ -489,5 +1027,33 @@ public class LocalMemoryStash<T extends Model> extends StashBase<T> {
         return uniqueFields;
     }
 
+    /**
+     * The names of all properties that have a {@link SortedIndex}
+     *
+     * @return
+     */
+    public Set<String> getSortedFields() {
+        return indexes.sortedIndexes.keySet();
+    }
+
+    /**
+     * Get the sorted index for the property, or null if the property is not a {@link SortedKey}
+     *
+     * @param propertyName
+     * @return
+     */
+    public SortedIndex<T> getSortedIndex(String propertyName) {
+        return indexes.sortedIndexes.get(propertyName);
+    }
+
+    /**
+     * Get the store of {@link Columnar} properties.
+     *
+     * @return the column store, or null if the model has no columnar properties
+     */
+    public ColumnStore<T> getColumnStore() {
+        return indexes.columnStore;
+    }
+
 
 }
@@ -0,0 +1,331 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess;
+
+import io.stallion.dataAccess.filtering.CompiledFilter;
+import io.stallion.dataAccess.filtering.FilterOperation;
+import io.stallion.dataAccess.filtering.FilterOperator;
+import io.stallion.exceptions.UsageException;
+import io.stallion.reflection.PropertyGetter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.stallion.utils.Literals.list;
+import static io.stallion.utils.Literals.map;
+
+/**
+ * A group by count, with optional sums and averages, that the LocalMemoryStash
+ * keeps up to date as items are loaded, saved and deleted. Reading the
+ * groups costs O(groups), rather than the O(items) of FilterChain.countBy().
+ *
+ * Register it once, typically when the controller is registered:
+ *
+ * BookController.instance().getStash().registerAggregate(
+ *     new MaterializedAggregate<Book>("publishedByAuthor")
+ *         .where("published", true)
+ *         .groupBy("author")
+ *         .sum("pageCount")
+ * );
+ *
+ * And then read it with stash.getAggregate("publishedByAuthor").getGroups().
+ *
+ * Deleted items are never counted. Groups are returned in the order they were
+ * first created.
+ *
+ * @param <T>
+ */
+public class MaterializedAggregate<T extends Model> {
+    private final String name;
+    private List<String> groupByFields = list();
+    private List<String> sumColumns = list();
+    private List<FilterOperation> operations = list();
+    private CompiledFilter filter = null;
+    private boolean started = false;
+
+    private final Map<List<Object>, Totals> totalsByKey = new LinkedHashMap<>();
+    private final Map<Long, Contribution> contributionById = new HashMap<>();
+
+    public MaterializedAggregate(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Count only items where the property equals the value.
+     *
+     * @param fieldName
+     * @param value
+     * @return
+     */
+    public MaterializedAggregate<T> where(String fieldName, Object value) {
+        return where(fieldName, value, FilterOperator.EQUAL);
+    }
+
+    /**
+     * Count only items matching the operation, the same as FilterChain.filterBy()
+     *
+     * @param fieldName
+     * @param value
+     * @param op
+     * @return
+     */
+    public MaterializedAggregate<T> where(String fieldName, Object value, FilterOperator op) {
+        assertNotStarted();
+        FilterOperation operation = new FilterOperation();
+        operation.setFieldName(fieldName);
+        operation.setOriginalValue(value);
+        operation.setOperator(op);
+        operations.add(operation);
+        return this;
+    }
+
+    /**
+     * The properties to group on. With no group by fields, there is just one group
+     * holding the totals for all matching items.
+     *
+     * @param fieldNames
+     * @return
+     */
+    public MaterializedAggregate<T> groupBy(String...fieldNames) {
+        assertNotStarted();
+        groupByFields.addAll(Arrays.asList(fieldNames));
+        return this;
+    }
+
+    /**
+     * Keep a running sum, and therefore the average, of these numeric properties for every group.
+     *
+     * @param columns
+     * @return
+     */
+    public MaterializedAggregate<T> sum(String...columns) {
+        assertNotStarted();
+        sumColumns.addAll(Arrays.asList(columns));
+        return this;
+    }
+
+    private void assertNotStarted() {
+        if (started) {
+            throw new UsageException("You cannot change the aggregate " + name + " after it has been registered.");
+        }
+    }
+
+    /**
+     * Add, move or remove the item's contribution, based on its current values.
+     *
+     * @param item
+     */
+    public synchronized void update(T item) {
+        if (item.getId() == null) {
+            return;
+        }
+        remove(item);
+        if (Boolean.TRUE.equals(item.getDeleted()) || !getFilter().matches(item)) {
+            return;
+        }
+        List<Object> key = new ArrayList<>(groupByFields.size());
+        for (String field: groupByFields) {
+            key.add(PropertyGetter.forObject(item, field).get(item));
+        }
+        key = Collections.unmodifiableList(key);
+        Object[] values = new Object[sumColumns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = PropertyGetter.forObject(item, sumColumns.get(i)).get(item);
+        }
+        Contribution contribution = new Contribution(key, values);
+        totalsByKey.computeIfAbsent(key, k -> new Totals(sumColumns.size())).add(contribution, 1);
+        contributionById.put(item.getId(), contribution);
+    }
+
+    /**
+     * Remove whatever the item contributed to the aggregate.
+     *
+     * @param item
+     */
+    public synchronized void remove(T item) {
+        Contribution previous = contributionById.remove(item.getId());
+        if (previous == null) {
+            return;
+        }
+        Totals totals = totalsByKey.get(previous.key);
+        totals.add(previous, -1);
+        if (totals.count == 0) {
+            totalsByKey.remove(previous.key);
+        }
+    }
+
+    public synchronized void clear() {
+        totalsByKey.clear();
+        contributionById.clear();
+    }
+
+    /**
+     * A snapshot of every group.
+     *
+     * @return
+     */
+    public synchronized List<Group> getGroups() {
+        List<Group> groups = new ArrayList<>(totalsByKey.size());
+        for (Map.Entry<List<Object>, Totals> entry: totalsByKey.entrySet()) {
+            groups.add(toGroup(entry.getKey(), entry.getValue()));
+        }
+        return groups;
+    }
+
+    /**
+     * Get the group for the given values of the group by fields, or null if no item falls in it.
+     *
+     * @param keyValues
+     * @return
+     */
+    public synchronized Group getGroup(Object...keyValues) {
+        List<Object> key = Arrays.asList(keyValues);
+        Totals totals = totalsByKey.get(key);
+        if (totals == null) {
+            return null;
+        }
+        return toGroup(key, totals);
+    }
+
+    /**
+     * The count of matching items in the group for the given values of the group by fields.
+     *
+     * @param keyValues
+     * @return
+     */
+    public synchronized long getCount(Object...keyValues) {
+        Totals totals = totalsByKey.get(Arrays.asList(keyValues));
+        return totals == null ? 0 : totals.count;
+    }
+
+    /**
+     * The count of all matching items, across all groups.
+     *
+     * @return
+     */
+    public synchronized long getTotalCount() {
+        return contributionById.size();
+    }
+
+    private Group toGroup(List<Object> key, Totals totals) {
+        Map<String, Double> sums = map();
+        Map<String, Double> averages = map();
+        for (int i = 0; i < sumColumns.size(); i++) {
+            sums.put(sumColumns.get(i), totals.sums[i]);
+            averages.put(sumColumns.get(i), totals.counts[i] == 0 ? null : totals.sums[i] / totals.counts[i]);
+        }
+        return new Group(key, totals.count, sums, averages);
+    }
+
+    private CompiledFilter getFilter() {
+        if (filter == null) {
+            filter = CompiledFilter.compile(operations);
+        }
+        return filter;
+    }
+
+    void markStarted() {
+        started = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getGroupByFields() {
+        return Collections.unmodifiableList(groupByFields);
+    }
+
+    public List<String> getSumColumns() {
+        return Collections.unmodifiableList(sumColumns);
+    }
+
+    /**
+     * The values of the group by fields of a single group, along with the count,
+     * sums and averages of the items in it.
+     */
+    public static class Group {
+        private final List<Object> key;
+        private final long count;
+        private final Map<String, Double> sums;
+        private final Map<String, Double> averages;
+
+        Group(List<Object> key, long count, Map<String, Double> sums, Map<String, Double> averages) {
+            this.key = key;
+            this.count = count;
+            this.sums = sums;
+            this.averages = averages;
+        }
+
+        public List<Object> getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public Map<String, Double> getSums() {
+            return sums;
+        }
+
+        public Map<String, Double> getAverages() {
+            return averages;
+        }
+    }
+
+    private static class Contribution {
+        private final List<Object> key;
+        private final Object[] values;
+
+        Contribution(List<Object> key, Object[] values) {
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    private static class Totals {
+        private long count = 0;
+        private final double[] sums;
+        private final long[] counts;
+
+        Totals(int columns) {
+            this.sums = new double[columns];
+            this.counts = new long[columns];
+        }
+
+        /**
+         * Add (sign of 1) or retract (sign of -1) an item's contribution.
+         */
+        void add(Contribution contribution, int sign) {
+            count += sign;
+            for (int i = 0; i < sums.length; i++) {
+                Object value = contribution.values[i];
+                if (value instanceof Number) {
+                    sums[i] += sign * ((Number) value).doubleValue();
+                    counts[i] += sign;
+                }
+            }
+        }
+    }
+}
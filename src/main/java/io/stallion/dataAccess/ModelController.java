@@ -119,6 +119,18 @@ public interface ModelController<T extends Model> {
      */
     public void save(T obj);
 
+    /**
+     * Saves all the objects, running the same hooks as save(), but persisting them to the
+     * data store in batches, and updating the stash once at the end.
+     *
+     * @param objs
+     */
+    public default void saveAll(List<T> objs) {
+        for (T obj: objs) {
+            save(obj);
+        }
+    }
+
 
     /**
      * Update
@@ -52,6 +52,11 @@ public class NoStash<T extends Model> extends StashBase<T> {
         getPersister().persist(obj);
     }
 
+    @Override
+    public void saveAll(List<T> objs) {
+        getPersister().persistAll(objs);
+    }
+
 
     @Override
     public void hardDelete(T obj) {
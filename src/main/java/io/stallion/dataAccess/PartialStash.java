@@ -30,6 +30,7 @@ import io.stallion.settings.Settings;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.*;
+import java.util.stream.Stream;
 
 import static io.stallion.utils.Literals.*;
 
@@ -178,6 +179,23 @@ public class PartialStash<T extends Model> extends Stash<T> {
         FilterCache.clearBucket(getBucket());
     }
 
+    @Override
+    public void unloadForId(Long id) {
+        T existing = itemByPrimaryKey.get(id);
+        if (existing == null) {
+            return;
+        }
+        existing.setDeleted(true);
+        itemByPrimaryKey.remove(id);
+        for(String field: this.uniqueFields) {
+            Object val = PropertyUtils.getProperty(existing, field);
+            if (val != null && this.keyNameToUniqueKeyToValue.get(field).containsKey(val)) {
+                this.keyNameToUniqueKeyToValue.get(field).remove(val);
+            }
+        }
+        FilterCache.clearBucket(getBucket());
+    }
+
     @Override
     public void loadAll() {
         // In lightweight mode, we don't sync all models so as to boot quicker
@@ -186,8 +204,8 @@ public class PartialStash<T extends Model> extends Stash<T> {
         }
         if (!DB.isUseDummyPersisterForSqlGenerationMode()) {
 
-            for (T obj : DB.instance().query(getPersister().getModelClass(), getInitialLoadSql())) {
-                loadItem(obj);
+            try (Stream<T> items = DB.instance().stream(getPersister().getModelClass(), getInitialLoadSql())) {
+                items.forEach(this::loadItem);
             }
         }
     }
@@ -22,6 +22,7 @@ import io.stallion.reflection.PropertyUtils;
 
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * A Persister actually handles interaction with the data store. There are
@@ -60,6 +61,17 @@ public interface Persister<T extends Model> {
      */
     public List fetchAll();
 
+    /**
+     * Stream all the items from the underlying data store. Persisters that can read
+     * lazily, such as the database persister, override this so that loading a large
+     * table does not hold every row in memory at once. The caller must close the stream.
+     * @return
+     */
+    public default Stream<T> streamAll() {
+        List<T> items = fetchAll();
+        return items.stream();
+    }
+
     /**
      * Fetch one object with the given ID
      * @param id
@@ -102,6 +114,18 @@ public interface Persister<T extends Model> {
      */
     public void persist(T obj);
 
+    /**
+     * Persist all the objects to the underlying data store. Datastores that can write
+     * many objects in one round trip should override this.
+     *
+     * @param objs
+     */
+    public default void persistAll(List<T> objs) {
+        for (T obj: objs) {
+            persist(obj);
+        }
+    }
+
     /**
      * Update the specified values. For datastores that support it, it should only save the updated
      * values to the datastore -- not the entire object.
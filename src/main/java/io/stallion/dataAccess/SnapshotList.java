@@ -0,0 +1,170 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+package io.stallion.dataAccess;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list that hands out immutable snapshots. Writers add, replace and remove
+ * items under a lock; readers call snapshot(), which is lock-free and returns a
+ * fixed-size view that will never change or throw a ConcurrentModificationException,
+ * no matter how the list is written to while it is being iterated.
+ *
+ * The items are kept in fixed-size chunks. Appending fills in a slot past the end
+ * of every published snapshot, so it never copies anything but the small array of
+ * chunks when it has to grow. Replacing an item copies the chunk it lives in, so
+ * older snapshots keep the previous item. Removing an item copies the whole list,
+ * so it should be rare.
+ *
+ * Items are found for replace() and remove() by identity, not equals().
+ *
+ * The same snapshot instance is returned until the next write, so callers can
+ * compare snapshots by identity to tell whether anything changed.
+ *
+ * @param <T>
+ */
+public class SnapshotList<T> {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private Object[][] chunks = new Object[4][];
+    private int size = 0;
+    private final Map<Object, Integer> positions = new IdentityHashMap<>();
+    private volatile Snapshot<T> snapshot = new Snapshot<>(chunks, 0);
+
+    /**
+     * Append an item and publish a new snapshot that includes it.
+     *
+     * @param item
+     */
+    public synchronized void add(T item) {
+        int chunk = size >> CHUNK_BITS;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Object[CHUNK_SIZE];
+        }
+        chunks[chunk][size & CHUNK_MASK] = item;
+        positions.put(item, size);
+        size++;
+        snapshot = new Snapshot<>(chunks, size);
+    }
+
+    /**
+     * Put the replacement where the previous item was, and publish a new snapshot.
+     * If the previous item is not in the list, the replacement is appended.
+     *
+     * @param previous
+     * @param replacement
+     */
+    public synchronized void replace(T previous, T replacement) {
+        Integer position = positions.remove(previous);
+        if (position == null) {
+            add(replacement);
+            return;
+        }
+        int chunk = position >> CHUNK_BITS;
+        chunks = chunks.clone();
+        chunks[chunk] = chunks[chunk].clone();
+        chunks[chunk][position & CHUNK_MASK] = replacement;
+        positions.put(replacement, position);
+        snapshot = new Snapshot<>(chunks, size);
+    }
+
+    /**
+     * Remove the item, and publish a new snapshot without it.
+     *
+     * @param item
+     * @return true if the item was in the list
+     */
+    public synchronized boolean remove(T item) {
+        Integer position = positions.remove(item);
+        if (position == null) {
+            return false;
+        }
+        Object[][] copy = new Object[chunks.length][];
+        int target = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == position) {
+                continue;
+            }
+            Object element = chunks[i >> CHUNK_BITS][i & CHUNK_MASK];
+            if (copy[target >> CHUNK_BITS] == null) {
+                copy[target >> CHUNK_BITS] = new Object[CHUNK_SIZE];
+            }
+            copy[target >> CHUNK_BITS][target & CHUNK_MASK] = element;
+            if (i > position) {
+                positions.put(element, target);
+            }
+            target++;
+        }
+        chunks = copy;
+        size = target;
+        snapshot = new Snapshot<>(chunks, size);
+        return true;
+    }
+
+    /**
+     * @return an immutable view of all the items in the list
+     */
+    public List<T> snapshot() {
+        return snapshot;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    private static class Snapshot<Y> extends AbstractList<Y> implements RandomAccess {
+        private final Object[][] chunks;
+        private final int size;
+
+        Snapshot(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public Y get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return (Y) chunks[index >> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object[] toArray() {
+            Object[] array = new Object[size];
+            for (int start = 0; start < size; start += CHUNK_SIZE) {
+                System.arraycopy(chunks[start >> CHUNK_BITS], 0, array, start, Math.min(CHUNK_SIZE, size - start));
+            }
+            return array;
+        }
+    }
+}
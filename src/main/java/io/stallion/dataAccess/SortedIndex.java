@@ -0,0 +1,327 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess;
+
+import io.stallion.dataAccess.filtering.CompiledFilter;
+import io.stallion.exceptions.ConfigException;
+import io.stallion.reflection.PropertyGetter;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A secondary index for a {@link SortedKey} property, kept by the LocalMemoryStash.
+ *
+ * Items are held ordered by the property value, and then by id, so that a range of values can
+ * be read off without scanning every item, and items can be iterated in sort order without
+ * sorting. Items with a null value are kept separately and, as with
+ * {@link io.stallion.reflection.ModelPropertyComparator}, sort after all non-null values.
+ *
+ * Writes go to skip lists under the index's lock. Reads go to an immutable, array backed view of
+ * the index, which is built from the skip lists on the first read after a write and then shared by
+ * all readers until the next write. A reader that is iterating a range or the whole index never sees
+ * a write that happened after it started, and never sees an item twice or an item missing because it
+ * was moved while being iterated.
+ *
+ * @param <T>
+ */
+public class SortedIndex<T extends Model> {
+    private final String propertyName;
+    private final ConcurrentSkipListSet<Entry<T>> entries = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListMap<Long, T> nullValued = new ConcurrentSkipListMap<>();
+    private final Map<Long, Entry<T>> entryById = new ConcurrentHashMap<>();
+    private volatile Class valueClass;
+    // The view that readers see, or null if it has to be rebuilt after a write
+    private volatile View<T> view;
+
+    public SortedIndex(String propertyName) {
+        this.propertyName = propertyName;
+    }
+
+    /**
+     * Add the item to the index, or move it if its value has changed since it was last indexed.
+     *
+     * @param item
+     */
+    public synchronized void index(T item) {
+        if (item.getId() == null) {
+            return;
+        }
+        Object value = PropertyGetter.forObject(item, propertyName).get(item);
+        Entry<T> existing = entryById.get(item.getId());
+        if (value == null) {
+            if (existing != null) {
+                entries.remove(existing);
+                entryById.remove(item.getId());
+            }
+            nullValued.put(item.getId(), item);
+            view = null;
+            return;
+        }
+        if (!(value instanceof Comparable)) {
+            throw new ConfigException("The property " + propertyName + " of " + item.getClass().getName() +
+                    " is a @SortedKey, but its value is not Comparable: " + value.getClass().getName());
+        }
+        if (existing != null && existing.item == item && existing.value.equals(value)) {
+            return;
+        }
+        nullValued.remove(item.getId());
+        if (existing != null) {
+            entries.remove(existing);
+        }
+        Entry<T> entry = new Entry<>((Comparable) value, item.getId(), item);
+        entries.add(entry);
+        entryById.put(item.getId(), entry);
+        valueClass = value.getClass();
+        view = null;
+    }
+
+    /**
+     * Remove the item with the same id as the passed in item from the index.
+     *
+     * @param item
+     */
+    public synchronized void remove(T item) {
+        if (item.getId() == null) {
+            return;
+        }
+        Entry<T> existing = entryById.remove(item.getId());
+        if (existing != null) {
+            entries.remove(existing);
+        }
+        nullValued.remove(item.getId());
+        view = null;
+    }
+
+    /**
+     * Get all items whose value is within the given bounds, in ascending order. Pass in null
+     * for a bound to leave that side of the range open. Items with null values never match
+     * a range.
+     *
+     * The bounds are coerced to the type of the indexed values in the same way that
+     * FilterChain coerces filter values.
+     *
+     * @param lower
+     * @param lowerInclusive
+     * @param upper
+     * @param upperInclusive
+     * @return the matching items, or null if the bounds cannot be compared against the indexed values
+     */
+    public List<T> range(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        View<T> current = view();
+        Entry<T>[] sorted = current.entries;
+        if (sorted.length == 0) {
+            return new ArrayList<>();
+        }
+        Entry<T> sample = sorted[0];
+        int from = 0;
+        int to = sorted.length;
+        try {
+            if (lower != null) {
+                Comparable lowerValue = toComparable(lower, sample);
+                if (lowerValue == null) {
+                    return null;
+                }
+                from = firstAtOrAfter(sorted, new Entry<T>(lowerValue, lowerInclusive ? Long.MIN_VALUE : Long.MAX_VALUE, null));
+            }
+            if (upper != null) {
+                Comparable upperValue = toComparable(upper, sample);
+                if (upperValue == null) {
+                    return null;
+                }
+                to = firstAtOrAfter(sorted, new Entry<T>(upperValue, upperInclusive ? Long.MAX_VALUE : Long.MIN_VALUE, null));
+            }
+        } catch (ClassCastException | IllegalArgumentException e) {
+            return null;
+        }
+        List<T> items = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            items.add(sorted[i].item);
+        }
+        return items;
+    }
+
+    /**
+     * Iterate over all indexed items in order of the property value, with nulls last
+     * when ascending and first when descending.
+     *
+     * @param ascending
+     * @return
+     */
+    public Iterable<T> ordered(boolean ascending) {
+        View<T> current = view();
+        List<T> sorted = new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                return current.entries[index].item;
+            }
+
+            @Override
+            public int size() {
+                return current.entries.length;
+            }
+        };
+        List<T> nulls = Arrays.asList(current.nullValued);
+        if (ascending) {
+            return () -> concat(sorted.iterator(), nulls.iterator());
+        } else {
+            return () -> concat(reversed(nulls), reversed(sorted));
+        }
+    }
+
+    /**
+     * Whether iterating with {@link #ordered(boolean)} gives the same order as sorting with a
+     * ModelPropertyComparator. Strings are compared case-insensitively by the comparator, so
+     * they are not.
+     *
+     * @return
+     */
+    public boolean isSortable() {
+        return !String.class.equals(valueClass);
+    }
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    public int size() {
+        return entryById.size() + nullValued.size();
+    }
+
+    /**
+     * Get the view of the index that readers should use, building it if the index
+     * was written to since the last one was built.
+     *
+     * @return
+     */
+    private View<T> view() {
+        View<T> current = view;
+        if (current == null) {
+            synchronized (this) {
+                current = view;
+                if (current == null) {
+                    current = new View<>(entries.toArray(new Entry[0]), nullValued.values().toArray((T[]) new Model[0]));
+                    view = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Binary search for the index of the first entry that is not less than the key.
+     *
+     * @param entries
+     * @param key
+     * @return the index, or entries.length if every entry is less than the key
+     */
+    private static <Y> int firstAtOrAfter(Entry<Y>[] entries, Entry<Y> key) {
+        int low = 0;
+        int high = entries.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Comparable toComparable(Object bound, Entry<T> sample) {
+        Object typed = CompiledFilter.coerce(bound, sample.value);
+        if (!(typed instanceof Comparable) || !typed.getClass().equals(sample.value.getClass())) {
+            return null;
+        }
+        return (Comparable) typed;
+    }
+
+    private static <Y> Iterator<Y> reversed(List<Y> items) {
+        ListIterator<Y> iterator = items.listIterator(items.size());
+        return new Iterator<Y>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasPrevious();
+            }
+
+            @Override
+            public Y next() {
+                return iterator.previous();
+            }
+        };
+    }
+
+    private static <Y> Iterator<Y> concat(Iterator<Y> first, Iterator<Y> second) {
+        return new Iterator<Y>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public Y next() {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                return second.next();
+            }
+        };
+    }
+
+    private static class View<Y> {
+        // Sorted by value and then id
+        private final Entry<Y>[] entries;
+        // Sorted by id
+        private final Y[] nullValued;
+
+        View(Entry<Y>[] entries, Y[] nullValued) {
+            this.entries = entries;
+            this.nullValued = nullValued;
+        }
+    }
+
+    private static class Entry<Y> implements Comparable<Entry<Y>> {
+        private final Comparable value;
+        private final long id;
+        private final Y item;
+
+        Entry(Comparable value, long id, Y item) {
+            this.value = value;
+            this.id = id;
+            this.item = item;
+        }
+
+        @Override
+        public int compareTo(Entry<Y> o) {
+            int result = value.compareTo(o.value);
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(id, o.id);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a model property as a sorted key. The LocalMemoryStash will keep the items
+ * in a sorted index by this property, so that range filters (greater than, less than)
+ * and sorts on the property do not have to scan and sort every single item.
+ *
+ * Use this for dates and numbers that you frequently sort or page by. String properties
+ * can be indexed for range filters, but are not used for sorting, since sorting on strings
+ * is case-insensitive.
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SortedKey {
+}
@@ -157,6 +157,33 @@ public class StandardModelController<T extends Model> implements ModelController
         }
     }
 
+    @Override
+    public void saveAll(List<T> objs) {
+        boolean[] created = new boolean[objs.size()];
+        for (int i = 0; i < objs.size(); i++) {
+            T obj = objs.get(i);
+            created[i] = obj.getId() == null || this.forIdWithDeleted(obj.getId()) == null;
+            if (created[i]) {
+                onPreCreatePrepare(obj);
+                onPreSavePrepare(obj);
+                onPreCreateValidate(obj);
+                onPreSaveValidate(obj);
+            } else {
+                onPreSavePrepare(obj);
+                onPreSaveValidate(obj);
+            }
+        }
+        Log.finer("Saving {0} objects to {1}", objs.size(), getBucket());
+        getStash().saveAll(objs);
+        for (int i = 0; i < objs.size(); i++) {
+            if (created[i]) {
+                onPostCreate(objs.get(i));
+            } else {
+                onPostSave(objs.get(i));
+            }
+        }
+    }
+
     @Override
     public void softDelete(T obj)  {
         obj.setDeleted(true);
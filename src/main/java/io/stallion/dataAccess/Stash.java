@@ -203,12 +203,35 @@ public abstract class Stash<T extends Model> {
      */
     public abstract void save(T obj);
 
+    /**
+     * Save all the objects to the stash and the underlying data store. Stashes that can
+     * persist many objects at once should override this.
+     *
+     * @param objs
+     */
+    public void saveAll(List<T> objs) {
+        for (T obj: objs) {
+            save(obj);
+        }
+    }
+
     /**
      * Remove the object from the stash and the underlying data store
      * @param obj
      */
     public abstract void hardDelete(T obj);
 
+    /**
+     * Remove the item from the stash, without touching the underlying data store. Used
+     * when the item was deleted from the data store by another process. Stashes that
+     * keep items in memory must override this.
+     *
+     * @param id
+     */
+    public void unloadForId(Long id) {
+
+    }
+
     /**
      * Load all items from the datastore into the stash.
      */
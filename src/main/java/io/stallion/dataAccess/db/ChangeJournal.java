@@ -0,0 +1,390 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.db;
+
+import io.stallion.services.Log;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.stallion.utils.Literals.*;
+
+/**
+ * A journal of every insert, update and delete that goes through DB, stored in the
+ * stallion_change_journal table with an auto-incrementing sequence number. Instead of
+ * each DbPersister re-querying its table for recently updated rows, a node asks the
+ * journal for all entries past the last sequence number it has seen, in one query that
+ * covers every bucket, and then reloads or removes only the rows that changed. Unlike
+ * the row_updated_at scan, this also picks up hard deletes made by other nodes.
+ *
+ * Entries are written on the same connection and in the same transaction as the change
+ * they record, so a rolled back change never leaves an entry behind, and a change is
+ * never committed without its entry.
+ *
+ * Sequence numbers are handed out when a row is inserted, but transactions can commit
+ * out of order, so an entry with a lower number can show up after one with a higher
+ * number. When a poll skips over numbers, they are remembered as gaps and looked for
+ * again on later polls, until they show up or GAP_TIMEOUT passes (auto-increment values
+ * can also be skipped for good, for example by a rolled back insert). If a poll skips over
+ * more numbers than can be remembered, every registered persister is fully resynced instead,
+ * once right away and once more after GAP_TIMEOUT, to catch entries that commit late.
+ */
+public class ChangeJournal {
+    public static final String TABLE_NAME = "stallion_change_journal";
+    public static final String UPSERT = "U";
+    public static final String DELETE = "D";
+
+    static final long GAP_TIMEOUT = 60000;
+    static final int MAX_GAPS = 1000;
+    static final int BATCH_SIZE = 5000;
+    static final long RETENTION = TimeUnit.DAYS.toMillis(2);
+
+    private final DB db;
+    private final Map<String, DbPersister> persisters = new ConcurrentHashMap<>();
+    private final ReentrantLock pollLock = new ReentrantLock();
+    // Sequence number => when the gap was first seen
+    private final TreeMap<Long, Long> gaps = new TreeMap<>();
+    private long lastSequence = 0;
+    private volatile long lastPolledAt = 0;
+    private long lastPrunedAt = 0;
+    // When the next full resync is due, or 0 if none is, and when the last one is due
+    private long resyncAt = 0;
+    private long resyncUntil = 0;
+    private volatile boolean enabled = false;
+
+    public ChangeJournal(DB db) {
+        this.db = db;
+    }
+
+    /**
+     * Create the journal table if needed, and start reading from the current end of the journal.
+     * If the table cannot be created, the journal stays disabled and DbPersister falls back
+     * to scanning for recently updated rows.
+     */
+    public void start() {
+        try {
+            db.execute(getCreateTableSql());
+            Long max = db.queryScalar("SELECT MAX(seq) FROM " + TABLE_NAME);
+            startAt(max == null ? 0 : max);
+            Log.info("Change journal started at sequence {0}", lastSequence);
+        } catch (RuntimeException e) {
+            Log.exception(e, "Could not create the change journal table, falling back to polling for updated rows");
+            enabled = false;
+        }
+    }
+
+    /**
+     * Start reading from after the given sequence number.
+     *
+     * @param sequence
+     */
+    void startAt(long sequence) {
+        lastSequence = sequence;
+        lastPolledAt = mils();
+        enabled = true;
+    }
+
+    protected String getCreateTableSql() {
+        if ("postgres".equals(db.getDbImplementation().getName())) {
+            return "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    "seq BIGSERIAL PRIMARY KEY, " +
+                    "table_name VARCHAR(100) NOT NULL, " +
+                    "row_id BIGINT NOT NULL, " +
+                    "change_type CHAR(1) NOT NULL, " +
+                    "created_at BIGINT NOT NULL)";
+        }
+        return "CREATE TABLE IF NOT EXISTS `" + TABLE_NAME + "` (\n" +
+                "  `seq` bigint(20) unsigned NOT NULL AUTO_INCREMENT,\n" +
+                "  `table_name` varchar(100) NOT NULL,\n" +
+                "  `row_id` bigint(20) unsigned NOT NULL,\n" +
+                "  `change_type` char(1) NOT NULL,\n" +
+                "  `created_at` bigint(20) NOT NULL,\n" +
+                "  PRIMARY KEY (`seq`),\n" +
+                "  KEY `created_at_key` (`created_at`)\n" +
+                ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;";
+    }
+
+    /**
+     * Have the journal send changes to the given table to the persister.
+     *
+     * @param tableName
+     * @param persister
+     */
+    public void register(String tableName, DbPersister persister) {
+        persisters.put(tableName.toLowerCase(), persister);
+    }
+
+    /**
+     * Record that a row was inserted, updated, or deleted. Call this on the connection
+     * that made the change, inside its transaction, so that the entry commits or rolls
+     * back along with the change.
+     *
+     * @param conn
+     * @param tableName
+     * @param rowId
+     * @param changeType - UPSERT or DELETE
+     * @throws SQLException
+     */
+    public void record(Connection conn, String tableName, Long rowId, String changeType) throws SQLException {
+        if (rowId == null) {
+            return;
+        }
+        recordAll(conn, tableName, list(rowId), changeType);
+    }
+
+    /**
+     * Record that many rows of the same table were changed, with multi-row inserts. As with
+     * record(), call this on the connection and inside the transaction that made the changes.
+     *
+     * @param conn
+     * @param tableName
+     * @param rowIds
+     * @param changeType - UPSERT or DELETE
+     * @throws SQLException
+     */
+    public void recordAll(Connection conn, String tableName, List<Long> rowIds, String changeType) throws SQLException {
+        if (!enabled || rowIds.isEmpty()) {
+            return;
+        }
+        String table = tableName.toLowerCase();
+        long now = mils();
+        for (int start = 0; start < rowIds.size(); start += BATCH_SIZE) {
+            List<Long> chunk = rowIds.subList(start, Math.min(start + BATCH_SIZE, rowIds.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO " + TABLE_NAME + " (table_name, row_id, change_type, created_at) VALUES");
+            for (int x = 0; x < chunk.size(); x++) {
+                sql.append(x == 0 ? " " : ", ").append("(?, ?, ?, ?)");
+            }
+            try (PreparedStatement st = conn.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (Long rowId: chunk) {
+                    st.setString(index++, table);
+                    st.setLong(index++, rowId);
+                    st.setString(index++, changeType);
+                    st.setLong(index++, now);
+                }
+                st.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Read all new journal entries, and apply them to the registered persisters. If another
+     * thread finished polling after notBefore, this returns without querying again.
+     *
+     * @param notBefore - epoch millis
+     * @return true if the poll ran, or was already done by another thread
+     */
+    public boolean poll(long notBefore) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            if (!pollLock.tryLock(10, TimeUnit.SECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            if (lastPolledAt >= notBefore) {
+                return true;
+            }
+            long now = mils();
+            while (pollBatch(now) >= BATCH_SIZE) {
+                Log.finer("Change journal batch was full, reading again from {0}", lastSequence);
+            }
+            resyncIfNeeded(now);
+            lastPolledAt = now;
+            if (lastPrunedAt < now - TimeUnit.HOURS.toMillis(1)) {
+                lastPrunedAt = now;
+                prune(now - RETENTION);
+            }
+            return true;
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    /**
+     * Read one batch of new entries, along with any gaps that have since been committed,
+     * and apply them.
+     *
+     * @param now - epoch millis, used to time out gaps
+     * @return the number of new entries read
+     */
+    int pollBatch(long now) {
+        List<Map<String, Object>> rows = list();
+        gaps.values().removeIf(firstSeenAt -> firstSeenAt < now - GAP_TIMEOUT);
+        if (!gaps.isEmpty()) {
+            rows.addAll(findEntries(new ArrayList<>(gaps.keySet())));
+        }
+        List<Map<String, Object>> newRows = findEntriesAfter(lastSequence, BATCH_SIZE);
+        rows.addAll(newRows);
+
+        // table name => row id => latest change type, in sequence order
+        Map<String, Map<Long, String>> changesByTable = new HashMap<>();
+        for (Map<String, Object> row: rows) {
+            long seq = ((Number)row.get("seq")).longValue();
+            if (seq <= lastSequence) {
+                // A gap that has now been committed
+                gaps.remove(seq);
+            } else {
+                long missingCount = seq - lastSequence - 1;
+                if (missingCount > 0 && missingCount <= MAX_GAPS - gaps.size()) {
+                    for (long missing = lastSequence + 1; missing < seq; missing++) {
+                        gaps.put(missing, now);
+                    }
+                } else if (missingCount > 0) {
+                    Log.warn("Change journal skipped {0} sequence numbers after {1}, too many to track, so every table will be resynced",
+                            missingCount, lastSequence);
+                    resyncAt = now;
+                    resyncUntil = now + GAP_TIMEOUT;
+                }
+                lastSequence = seq;
+            }
+            String tableName = ((String)row.get("table_name")).toLowerCase();
+            Long rowId = ((Number)row.get("row_id")).longValue();
+            changesByTable
+                    .computeIfAbsent(tableName, k -> new LinkedHashMap<>())
+                    .put(rowId, (String)row.get("change_type"));
+        }
+
+        for (Map.Entry<String, Map<Long, String>> entry: changesByTable.entrySet()) {
+            List<Long> upserted = list();
+            List<Long> deleted = list();
+            for (Map.Entry<Long, String> change: entry.getValue().entrySet()) {
+                if (DELETE.equals(change.getValue())) {
+                    deleted.add(change.getKey());
+                } else {
+                    upserted.add(change.getKey());
+                }
+            }
+            try {
+                applyChanges(entry.getKey(), upserted, deleted);
+            } catch (RuntimeException e) {
+                Log.exception(e, "Error applying change journal entries to table {0}", entry.getKey());
+            }
+        }
+        return newRows.size();
+    }
+
+    /**
+     * Run the full resync, if one is due.
+     *
+     * @param now - epoch millis
+     */
+    void resyncIfNeeded(long now) {
+        if (resyncAt == 0 || now < resyncAt) {
+            return;
+        }
+        resyncAll();
+        resyncAt = now >= resyncUntil ? 0 : resyncUntil;
+    }
+
+    /**
+     * Reload every table from the database, removing the rows that were deleted.
+     */
+    protected void resyncAll() {
+        for (Map.Entry<String, DbPersister> entry: persisters.entrySet()) {
+            try {
+                entry.getValue().resyncAll();
+            } catch (RuntimeException e) {
+                Log.exception(e, "Error resyncing table {0} from the database", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Find the entries with the given sequence numbers.
+     *
+     * @param sequences
+     * @return rows with the seq, table_name, row_id and change_type columns, in sequence order
+     */
+    protected List<Map<String, Object>> findEntries(List<Long> sequences) {
+        DB.SqlAndParams in = db.toInQueryParams(sequences);
+        return db.findRecords(
+                "SELECT seq, table_name, row_id, change_type FROM " + TABLE_NAME + " WHERE seq IN " + in.getSql() + " ORDER BY seq",
+                in.getParams());
+    }
+
+    /**
+     * Find the first entries after the given sequence number.
+     *
+     * @param sequence
+     * @param limit
+     * @return rows with the seq, table_name, row_id and change_type columns, in sequence order
+     */
+    protected List<Map<String, Object>> findEntriesAfter(long sequence, int limit) {
+        return db.findRecords(
+                "SELECT seq, table_name, row_id, change_type FROM " + TABLE_NAME + " WHERE seq > ? ORDER BY seq LIMIT " + limit,
+                sequence);
+    }
+
+    /**
+     * Send the changes to the persister registered for the table, if there is one.
+     *
+     * @param tableName
+     * @param upserted - ids of rows that were inserted or updated
+     * @param deleted - ids of rows that were deleted
+     */
+    protected void applyChanges(String tableName, List<Long> upserted, List<Long> deleted) {
+        DbPersister persister = persisters.get(tableName);
+        if (persister != null) {
+            persister.applyJournalChanges(upserted, deleted);
+        }
+    }
+
+    /**
+     * Delete entries older than the given time.
+     *
+     * @param before - epoch millis
+     */
+    protected void prune(long before) {
+        db.execute("DELETE FROM " + TABLE_NAME + " WHERE created_at < ?", before);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return epoch millis of the last completed poll
+     */
+    public long getLastPolledAt() {
+        return lastPolledAt;
+    }
+
+    /**
+     * @return the highest sequence number that has been read
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the number of skipped sequence numbers that are still being looked for
+     */
+    int getGapCount() {
+        return gaps.size();
+    }
+}
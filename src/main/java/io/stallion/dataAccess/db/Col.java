@@ -34,6 +34,8 @@ public class Col {
     private Class jType = String.class;
     private Boolean alternativeKey = false;
     private Boolean uniqueKey = false;
+    private Boolean sortedKey = false;
+    private Boolean columnar = false;
     private Boolean caseInsensitive = false;
     private Boolean updateable = true;
     private Boolean insertable = true;
@@ -181,6 +183,32 @@ public class Col {
         return this;
     }
 
+    /**
+     * Should the LocalMemoryStash keep a sorted index of this column?
+     * @return
+     */
+    public Boolean getSortedKey() {
+        return sortedKey;
+    }
+
+    public Col setSortedKey(Boolean sortedKey) {
+        this.sortedKey = sortedKey;
+        return this;
+    }
+
+    /**
+     * Should the LocalMemoryStash keep this column in its primitive column store?
+     * @return
+     */
+    public Boolean getColumnar() {
+        return columnar;
+    }
+
+    public Col setColumnar(Boolean columnar) {
+        this.columnar = columnar;
+        return this;
+    }
+
     /**
      * Is this column a unique key?
      * @return
@@ -0,0 +1,281 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.db;
+
+import io.stallion.dataAccess.MappedModel;
+import io.stallion.dataAccess.Model;
+import io.stallion.dataAccess.db.converters.AttributeConverter;
+import io.stallion.reflection.PropertyUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.stallion.utils.Literals.empty;
+
+/**
+ * The parts of a {@link Schema} that are the same for every row: the INSERT and UPDATE
+ * sql text, the resolved converter for each column, and method handles for the getter
+ * and setter of each column's property. Built once per schema by Schema.getCompiled(),
+ * so that DB and the row mappers do not have to re-walk the columns, rebuild the sql
+ * or look up accessors by reflection for every row.
+ */
+public class CompiledSchema {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Schema schema;
+    private final List<CompiledColumn> columns;
+    private final List<CompiledColumn> insertColumns;
+    private final List<CompiledColumn> updateColumns;
+    private final String insertSql;
+    private final String updateSql;
+    private final Map<Integer, String> multiRowInsertSql = new ConcurrentHashMap<>();
+
+    public CompiledSchema(Schema schema) {
+        this.schema = schema;
+        List<CompiledColumn> columns = new ArrayList<>();
+        List<CompiledColumn> insertColumns = new ArrayList<>();
+        List<CompiledColumn> updateColumns = new ArrayList<>();
+        for (Col col: schema.getColumns()) {
+            CompiledColumn column = new CompiledColumn(schema.getClazz(), col);
+            columns.add(column);
+            if (col.getInsertable()) {
+                insertColumns.add(column);
+            }
+            if (col.getUpdateable()) {
+                updateColumns.add(column);
+            }
+        }
+        this.columns = columns;
+        this.insertColumns = insertColumns;
+        this.updateColumns = updateColumns;
+        this.insertSql = buildInsertSql(1);
+        this.updateSql = buildUpdateSql();
+    }
+
+    private String buildInsertSql(int rowCount) {
+        StringBuilder sql = new StringBuilder("INSERT INTO `" + schema.getName() + "`  (id ");
+        StringBuilder row = new StringBuilder("(?");
+        for (CompiledColumn column: insertColumns) {
+            sql.append(", `" + column.getCol().getName() + "` ");
+            row.append(", ?");
+        }
+        row.append(")");
+        sql.append(") VALUES");
+        for (int x = 0; x < rowCount; x++) {
+            sql.append(x == 0 ? " " : ", ");
+            sql.append(row);
+        }
+        return sql.toString();
+    }
+
+    private String buildUpdateSql() {
+        StringBuilder sql = new StringBuilder("UPDATE `" + schema.getName() + "` SET ");
+        for (int x = 0; x < updateColumns.size(); x++) {
+            if (x > 0) {
+                sql.append(", ");
+            }
+            sql.append("`" + updateColumns.get(x).getCol().getName() + "`=?");
+        }
+        sql.append(" WHERE id=?");
+        return sql.toString();
+    }
+
+    /**
+     * @return the single row INSERT statement, with the id as the first parameter
+     */
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    /**
+     * Get an INSERT statement with a VALUES tuple for each of rowCount rows. The
+     * statements for each row count are built once and then reused.
+     *
+     * @param rowCount
+     * @return
+     */
+    public String getInsertSql(int rowCount) {
+        if (rowCount == 1) {
+            return insertSql;
+        }
+        return multiRowInsertSql.computeIfAbsent(rowCount, this::buildInsertSql);
+    }
+
+    /**
+     * @return the UPDATE statement for all updateable columns, with the id as the last parameter
+     */
+    public String getUpdateSql() {
+        return updateSql;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public List<CompiledColumn> getColumns() {
+        return columns;
+    }
+
+    public List<CompiledColumn> getInsertColumns() {
+        return insertColumns;
+    }
+
+    public List<CompiledColumn> getUpdateColumns() {
+        return updateColumns;
+    }
+
+    /**
+     * A column together with the converter and property accessors resolved for it. When
+     * the property has no public getter or setter on the model class (for instance, the
+     * values of a {@link MappedModel}), reads and writes fall back to {@link PropertyUtils}.
+     */
+    public static class CompiledColumn {
+        private final Class modelClass;
+        private final Col col;
+        private final AttributeConverter converter;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final Class setterType;
+
+        CompiledColumn(Class modelClass, Col col) {
+            this.modelClass = modelClass;
+            this.col = col;
+            if (col.getAttributeConverter() != null) {
+                converter = col.getAttributeConverter();
+            } else if (!StringUtils.isBlank(col.getConverterClassName())) {
+                converter = DB.instance().getConverter(col.getConverterClassName());
+            } else {
+                converter = null;
+            }
+            Method getterMethod = findGetter(modelClass, col.getPropertyName());
+            Method setterMethod = findSetter(modelClass, col.getPropertyName(),
+                    getterMethod == null ? null : getterMethod.getReturnType());
+            getter = unreflect(getterMethod, GETTER_TYPE);
+            setter = unreflect(setterMethod, SETTER_TYPE);
+            setterType = setter == null ? null : setterMethod.getParameterTypes()[0];
+        }
+
+        private static Method findGetter(Class cls, String propertyName) {
+            if (cls == null || empty(propertyName) || propertyName.contains(".")) {
+                return null;
+            }
+            String suffix = propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
+            for (Method method: cls.getMethods()) {
+                if ((method.getName().equals("get" + suffix) || method.getName().equals("is" + suffix))
+                        && method.getParameterTypes().length == 0
+                        && !method.getReturnType().equals(void.class)) {
+                    return method;
+                }
+            }
+            return null;
+        }
+
+        private static Method findSetter(Class cls, String propertyName, Class preferredType) {
+            if (cls == null || empty(propertyName) || propertyName.contains(".")) {
+                return null;
+            }
+            String setterName = "set" + propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
+            Method found = null;
+            for (Method method: cls.getMethods()) {
+                if (method.getName().equals(setterName) && method.getParameterTypes().length == 1) {
+                    if (preferredType == null || method.getParameterTypes()[0].equals(preferredType)) {
+                        return method;
+                    }
+                    if (found == null) {
+                        found = method;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private static MethodHandle unreflect(Method method, MethodType type) {
+            if (method == null || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                return null;
+            }
+            try {
+                return MethodHandles.publicLookup().unreflect(method).asType(type);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Read the value of this column's property from the model.
+         *
+         * @param obj
+         * @return
+         */
+        public Object get(Model obj) {
+            if (getter != null && modelClass.isInstance(obj)) {
+                try {
+                    return (Object)getter.invokeExact((Object)obj);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return PropertyUtils.getPropertyOrMappedValue(obj, col.getPropertyName());
+        }
+
+        /**
+         * Set this column's property on the model, coercing the value the same way
+         * PropertyUtils.setProperty() does.
+         *
+         * @param obj
+         * @param value
+         */
+        public void set(Model obj, Object value) {
+            if (setter == null || !modelClass.isInstance(obj) || value == null && setterType.isPrimitive()) {
+                PropertyUtils.setProperty(obj, col.getPropertyName(), value);
+                return;
+            }
+            if (value != null) {
+                value = PropertyUtils.transform(value, setterType);
+            }
+            try {
+                setter.invokeExact((Object)obj, value);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Col getCol() {
+            return col;
+        }
+
+        /**
+         * @return the converter from the column's AttributeConverter or converter class name, or null
+         */
+        public AttributeConverter getConverter() {
+            return converter;
+        }
+    }
+}
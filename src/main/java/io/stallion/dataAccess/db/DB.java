@@ -22,6 +22,7 @@ import io.stallion.dataAccess.*;
 import io.stallion.dataAccess.db.converters.*;
 import io.stallion.exceptions.ConfigException;
 import io.stallion.exceptions.UsageException;
+import io.stallion.monitoring.MetricsRegistry;
 import io.stallion.reflection.PropertyUtils;
 import io.stallion.services.Log;
 import io.stallion.settings.Settings;
@@ -50,6 +51,8 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static io.stallion.Context.dal;
 import static io.stallion.utils.Literals.*;
@@ -66,14 +69,23 @@ public class DB {
     private DataSource dataSource;
     private Map<String, AttributeConverter> converters = new HashMap<String, AttributeConverter>();
     private Tickets tickets;
+    private ChangeJournal changeJournal;
 
     private Jdbi jdbi;
 
     private DbImplementation dbImplementation;
+    private volatile Boolean supportsSkipLocked;
     private static boolean useDummyPersisterForSqlGenerationMode = false;
 
     private static DB _instance;
 
+    // The most rows to send in one JDBC batch or one multi-row INSERT
+    static final int BATCH_SIZE = 500;
+    // Stay well under the 65,535 placeholders MySQL allows in one prepared statement
+    static final int MAX_BATCH_PARAMS = 60000;
+    // Rows the driver buffers at a time when reading a result set through stream()
+    static final int STREAM_FETCH_SIZE = 500;
+
     public static DB instance() {
         return _instance;
     }
@@ -122,9 +134,48 @@ public class DB {
 
 
         _instance = db;
+        registerPoolMetrics();
         return _instance;
     }
 
+    /**
+     * Expose the c3p0 connection pool usage to the metrics registry. The pool is looked
+     * up at scrape time, so the callback survives the DB being shutdown and reloaded.
+     */
+    private static void registerPoolMetrics() {
+        MetricsRegistry.instance().callback(
+                "stallion_db_pool_connections", "gauge",
+                "Connections in the database pool, by state.",
+                new String[]{"state"},
+                samples -> {
+                    if (_instance == null || !(_instance.getDataSource() instanceof ComboPooledDataSource)) {
+                        return;
+                    }
+                    ComboPooledDataSource pool = (ComboPooledDataSource) _instance.getDataSource();
+                    try {
+                        samples.add(pool.getNumBusyConnectionsDefaultUser(), "busy");
+                        samples.add(pool.getNumIdleConnectionsDefaultUser(), "idle");
+                        samples.add(pool.getNumConnectionsDefaultUser(), "total");
+                    } catch (SQLException e) {
+                        Log.exception(e, "Error reading connection pool stats");
+                    }
+                });
+        MetricsRegistry.instance().callback(
+                "stallion_db_pool_threads_awaiting_checkout", "gauge",
+                "Threads waiting for a connection from the database pool.",
+                new String[0],
+                samples -> {
+                    if (_instance == null || !(_instance.getDataSource() instanceof ComboPooledDataSource)) {
+                        return;
+                    }
+                    try {
+                        samples.add(((ComboPooledDataSource) _instance.getDataSource()).getNumThreadsAwaitingCheckoutDefaultUser());
+                    } catch (SQLException e) {
+                        Log.exception(e, "Error reading connection pool stats");
+                    }
+                });
+    }
+
     /**
      * Close the datasource pool, null out the singleton instance.
      */
@@ -257,6 +308,11 @@ public class DB {
 
         this.tickets = dbImplementation.initTicketsService(this);
 
+        if (!Boolean.FALSE.equals(config.getUseChangeJournal())) {
+            this.changeJournal = new ChangeJournal(this);
+            this.changeJournal.start();
+        }
+
     }
 
     public Jdbi getJdbi() {
@@ -281,11 +337,12 @@ public class DB {
     }
 
     /**
-     * Returns a QueryRunner instance associated with the underlying dataSource
+     * Returns a QueryRunner instance associated with the underlying dataSource. Time
+     * spent in its queries counts towards the database time of the current request.
      * @return
      */
     public QueryRunner newQuery() {
-        return new QueryRunner(dataSource);
+        return new TimedQueryRunner(dataSource);
     }
 
     /**
@@ -323,7 +380,7 @@ public class DB {
      */
     public <T> T queryScalar(String sql, Object...params) {
 
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         try {
             return runner.query(sql, new ScalarHandler<T>(), params);
         } catch (SQLException e) {
@@ -343,7 +400,7 @@ public class DB {
      */
     public <T> List<T> queryColumn(String sql, Object...params) {
 
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         try {
             return runner.query(sql, new ColumnListHandler<T>(), params);
         } catch (SQLException e) {
@@ -387,7 +444,7 @@ public class DB {
      */
     public <T> T fetchOne(Class<? extends T> model, String field, Object value) {
         Schema schema = getSchemaForModelClass(model);
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         //ResultSetHandler handler = new BeanHandler(model);
         ResultSetHandler handler = new ModelResultHandler(schema);
         String sql = "SELECT * FROM " + schema.getName() + " WHERE " + field + "=? LIMIT 1";
@@ -411,7 +468,7 @@ public class DB {
      */
     public <T extends Model> List<T> fetchAll(Class<? extends T> model, String field, Object value) {
         Schema schema = getSchemaForModelClass(model);
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         ModelListHandler<T> handler = new ModelListHandler<T>(schema);
 
         String sql = "SELECT * FROM " + schema.getName();
@@ -440,8 +497,33 @@ public class DB {
      */
     public <T extends Model> List<T> fetchAllSorted(Class<? extends T> model, String sortField, String sortDirection) {
         Schema schema = getSchemaForModelClass(model);
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         ModelListHandler<T> handler = new ModelListHandler<T>(schema);
+        String sql = buildSortedSql(schema, model, sortField, sortDirection);
+        List records = null;
+        try {
+            records = runner.query(sql, handler);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return records;
+    }
+
+    /**
+     * Stream all objects, sorted, without loading the whole table into memory. See stream().
+     *
+     * @param model
+     * @param sortField
+     * @param sortDirection
+     * @param <T>
+     * @return
+     */
+    public <T extends Model> Stream<T> streamAllSorted(Class<T> model, String sortField, String sortDirection) {
+        Schema schema = getSchemaForModelClass(model);
+        return stream(model, buildSortedSql(schema, model, sortField, sortDirection));
+    }
+
+    private String buildSortedSql(Schema schema, Class model, String sortField, String sortDirection) {
         sortDirection = sortDirection.toUpperCase();
         if (!"ASC".equals(sortDirection) && !"DESC".equals(sortDirection)) {
             throw new UsageException("Invalid sort direction: " + sortDirection);
@@ -451,14 +533,132 @@ public class DB {
             throw new UsageException("Sort field must be a database key. Sort field was: " + sortField + " on model " + model.getCanonicalName());
         }
 
-        String sql = "SELECT * FROM " + schema.getName() + " ORDER BY " + sortField + " " + sortDirection;
-        List records = null;
+        return "SELECT * FROM " + schema.getName() + " ORDER BY " + sortField + " " + sortDirection;
+    }
+
+    /**
+     * Run the query and map the rows into objects lazily, as the stream is consumed, rather
+     * than loading the whole result into a list. The rows are read through a forward only
+     * cursor: the driver fetches STREAM_FETCH_SIZE rows at a time (on postgres this requires
+     * running the query inside a transaction, which is done here).
+     *
+     * The stream holds a database connection until it is either read to the end or closed,
+     * so use it in a try-with-resources block:
+     *
+     * <pre>
+     * try (Stream&lt;Book&gt; books = DB.instance().stream(Book.class, "SELECT * FROM books")) {
+     *     books.forEach(book -&gt; ...);
+     * }
+     * </pre>
+     *
+     * @param model
+     * @param sql
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends Model> Stream<T> stream(Class<T> model, String sql, Object ...args) {
+        Schema schema = getSchemaForModelClass(model);
+        if (schema == null) {
+            throw new UsageException("No database schema registered for model class " + model.getName());
+        }
+        ModelCursor<T> cursor = new ModelCursor<>();
         try {
-            records = runner.query(sql, handler);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            cursor.conn = dataSource.getConnection();
+            cursor.autoCommit = cursor.conn.getAutoCommit();
+            if ("postgres".equals(getDbImplementation().getName())) {
+                cursor.conn.setAutoCommit(false);
+            }
+            cursor.statement = cursor.conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            cursor.statement.setFetchSize(STREAM_FETCH_SIZE);
+            fillStatement(cursor.statement, 1, Arrays.asList(args));
+            cursor.resultSet = cursor.statement.executeQuery();
+            cursor.mapper = schema.getRowMapper(cursor.resultSet.getMetaData());
+        } catch (SQLException | RuntimeException e) {
+            cursor.close();
+            throw e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+        }
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Iterates over the rows of an open result set, and releases the connection once the
+     * rows run out, mapping fails, or the owning stream is closed.
+     */
+    private static class ModelCursor<T extends Model> implements Iterator<T> {
+        private Connection conn;
+        private boolean autoCommit = true;
+        private PreparedStatement statement;
+        private ResultSet resultSet;
+        private RowMapper<T> mapper;
+        private T next;
+        private boolean closed = false;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            try {
+                if (resultSet.next()) {
+                    next = mapper.map(resultSet);
+                    return true;
+                }
+            } catch (SQLException | RuntimeException e) {
+                close();
+                throw e instanceof RuntimeException ? (RuntimeException)e : new RuntimeException(e);
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+            next = null;
+            return item;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                Log.exception(e, "Error closing streamed result set");
+            }
+            if (conn != null) {
+                try {
+                    if (conn.getAutoCommit() != autoCommit) {
+                        conn.rollback();
+                        conn.setAutoCommit(autoCommit);
+                    }
+                } catch (SQLException e) {
+                    Log.exception(e, "Error resetting streamed connection");
+                } finally {
+                    try {
+                        conn.close();
+                    } catch (SQLException e) {
+                        Log.exception(e, "Error closing streamed connection");
+                    }
+                }
+            }
         }
-        return records;
     }
 
     /**
@@ -469,7 +669,7 @@ public class DB {
      * @return
      */
     public List<Map<String, Object>> findRecords(String sql, Object... args) {
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         MapListHandler handler = new MapListHandler();
         try {
             return runner.query(sql, handler, args);
@@ -486,7 +686,7 @@ public class DB {
      * @return
      */
     public Map<String, Object> findRecord(String sql, Object... args) {
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         MapHandler handler = new MapHandler();
         try {
             return runner.query(sql, handler, args);
@@ -523,7 +723,7 @@ public class DB {
      * @return
      */
     public <T extends Model> List<T> query(Class<T> model, String sql, Object ...args) {
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         Schema schema = null;
         if (Model.class.isAssignableFrom(model)) {
             schema = getSchemaForModelClass(model);
@@ -557,7 +757,7 @@ public class DB {
      * @return
      */
     public <T> List<T> queryBean(Class<T> model, String sql, Object ...args) {
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         //BeanListHandler<T> handler = new BeanListHandler(model);
         BeanListHandler<T> handler = new BeanListHandler(model);
         try {
@@ -579,7 +779,7 @@ public class DB {
      * @return
      */
     public <T> T fetchBean(Class<T> model, String sql, Object ...args) {
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         //BeanListHandler<T> handler = new BeanListHandler(model);
         BeanListHandler<T> handler = new BeanListHandler(model);
         try {
@@ -611,7 +811,7 @@ public class DB {
         if (result != null) {
             return (List<T>)result;
         }
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         List<T> items = list();
         try {
             Schema schema = getSchemaForModelClass(model);
@@ -646,7 +846,7 @@ public class DB {
         if (result != null) {
             return result;
         }
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         try {
             result = runner.query(sql, new ScalarHandler<T>(), params);
             SmartQueryCache.set(model.getCanonicalName(), cacheKey, result);
@@ -674,7 +874,7 @@ public class DB {
         }
         Schema schema = getSchemaForModelClass(model);
 
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         //ResultSetHandler handler = new BeanHandler(model);
         String sql = "SELECT * FROM " + schema.getName() + " WHERE " + where;
         ModelListHandler<T> handler = new ModelListHandler<T>(schema);
@@ -722,7 +922,7 @@ public class DB {
     public Object where(Class model, String where, Object ...args) {
         Schema schema = getSchemaForModelClass(model);
 
-        QueryRunner runner = new QueryRunner(dataSource);
+        QueryRunner runner = newQuery();
         //ResultSetHandler handler = new BeanHandler(model);
         String sql = "SELECT * FROM \"" + schema.getName() + "\" WHERE " + where;
         ModelListHandler handler = new ModelListHandler(schema);
@@ -742,12 +942,7 @@ public class DB {
         Schema schema = getSchemaForModelClass(obj.getClass());
 
         String sql = "DELETE FROM " + schema.getName() + " WHERE id=?";
-        QueryRunner runner = new QueryRunner(dataSource);
-        try {
-            runner.update(sql, obj.getId());
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        executeAndRecord(schema, obj, ChangeJournal.DELETE, sql, obj.getId());
         obj.setDeleted(true);
     }
 
@@ -760,27 +955,10 @@ public class DB {
     public int update(Model obj) {
         Schema schema = getSchemaForModelClass(obj.getClass());
 
-        String sql = "UPDATE `" + schema.getName() + "` SET ";
-        List args = new ArrayList<>();
-        for (Col col: schema.getColumns()) {
-            if (col.getUpdateable()) {
-                sql += "`" + col.getName() + "`" + "=?, ";
-                Object arg = PropertyUtils.getPropertyOrMappedValue(obj, col.getPropertyName());
-                arg = convertColumnArg(obj, col, arg);
-                args.add(arg);
-            }
-        }
-        sql = StringUtils.strip(sql.trim(), ",");
-        sql += " WHERE id=?";
+        String sql = buildUpdateSql(schema);
+        List<Object> args = updateArgs(schema, obj);
         args.add(obj.getId());
-        QueryRunner run = new QueryRunner( dataSource );
-        int affected = 0;
-        try {
-            affected = run.update(sql, args.toArray());
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return affected;
+        return executeAndRecord(schema, obj, ChangeJournal.UPSERT, sql, args.toArray());
     }
 
     /**
@@ -810,14 +988,7 @@ public class DB {
         sql = StringUtils.strip(sql.trim(), ",");
         sql += " WHERE id=?";
         args.add(obj.getId());
-        QueryRunner run = new QueryRunner( dataSource );
-        int affected = 0;
-        try {
-            affected = run.update(sql, args.toArray());
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return affected;
+        return executeAndRecord(schema, obj, ChangeJournal.UPSERT, sql, args.toArray());
     }
 
     /**
@@ -832,35 +1003,369 @@ public class DB {
         if (obj.getId() == null) {
             obj.setId(dal().getTickets().nextId());
         }
-        String sql = "INSERT INTO `" + schema.getName() + "`  (id ";
-        List args = new ArrayList<>();
-        args.add(obj.getId());
-        for(Col col: schema.getColumns()) {
-            if (col.getInsertable()) {
-                sql += ", `" + col.getName() + "` ";
+        String sql = buildInsertSql(schema, 1);
+        List<Object> args = insertArgs(schema, obj);
+        executeAndRecord(schema, obj, ChangeJournal.UPSERT, sql, args.toArray());
+        return obj;
+    }
+
+    /**
+     * Save all the objects, inserting the new ones and updating the existing ones, in as few
+     * round trips as possible. The objects are grouped by table, and the updates and inserts
+     * for each table are written in a single transaction, so an update that falls back to an
+     * insert either lands along with the rest of its table or not at all.
+     *
+     * @param objs
+     * @return
+     */
+    public <T extends Model> List<T> saveAll(List<T> objs) {
+        for (Map.Entry<Schema, List<Model>> group: groupBySchema(objs).entrySet()) {
+            Schema schema = group.getKey();
+            List<Model> inserts = list();
+            List<Model> updates = list();
+            for (Model obj: group.getValue()) {
+                if (obj.getId() == null || obj.getIsNewInsert()) {
+                    inserts.add(obj);
+                } else {
+                    updates.add(obj);
+                }
+            }
+            List<Model> written = list();
+            inTransaction(conn -> {
+                written.clear();
+                List<Model> rowInserts = new ArrayList<>(inserts);
+                if (updates.size() > 0) {
+                    int[] affected = updateRows(conn, schema, updates);
+                    for (int i = 0; i < updates.size(); i++) {
+                        // Just like save(), an update that did not find the row becomes an insert
+                        if (affected[i] == 0) {
+                            rowInserts.add(updates.get(i));
+                        } else {
+                            written.add(updates.get(i));
+                        }
+                    }
+                }
+                if (rowInserts.size() > 0) {
+                    insertRows(conn, schema, rowInserts);
+                    written.addAll(rowInserts);
+                }
+                recordChanges(conn, schema, written, ChangeJournal.UPSERT);
+            });
+            for (Model obj: written) {
+                obj.setIsNewInsert(false);
             }
         }
-        sql += ") VALUES(?";
-        for(Col col: schema.getColumns()) {
-            if (col.getInsertable()) {
-                sql += ", ?";
-                Object arg = PropertyUtils.getPropertyOrMappedValue(obj, col.getPropertyName());
-                if (arg == null && col.getDefaultValue() != null) {
-                    arg = col.getDefaultValue();
-                    PropertyUtils.setProperty(obj, col.getPropertyName(), arg);
+        return objs;
+    }
+
+    /**
+     * Insert all the objects. The objects are grouped by table, and each table is written
+     * in a single transaction, using multi-row INSERT statements on MySQL, and JDBC batches
+     * of a single prepared statement on other databases.
+     *
+     * @param objs
+     * @return
+     */
+    public <T extends Model> List<T> insertAll(List<T> objs) {
+        for (Map.Entry<Schema, List<Model>> group: groupBySchema(objs).entrySet()) {
+            Schema schema = group.getKey();
+            List<Model> rows = group.getValue();
+            inTransaction(conn -> {
+                insertRows(conn, schema, rows);
+                recordChanges(conn, schema, rows, ChangeJournal.UPSERT);
+            });
+        }
+        return objs;
+    }
+
+    /**
+     * Update all the objects, with one JDBC batch of a single prepared UPDATE statement per
+     * table, in a single transaction per table.
+     *
+     * @param objs
+     * @return the total rows affected
+     */
+    public int updateAll(List<? extends Model> objs) {
+        int total = 0;
+        for (Map.Entry<Schema, List<Model>> group: groupBySchema(objs).entrySet()) {
+            Schema schema = group.getKey();
+            List<Model> rows = group.getValue();
+            int[] affected = new int[rows.size()];
+            inTransaction(conn -> {
+                System.arraycopy(updateRows(conn, schema, rows), 0, affected, 0, rows.size());
+                List<Model> updated = list();
+                for (int i = 0; i < rows.size(); i++) {
+                    if (affected[i] > 0) {
+                        updated.add(rows.get(i));
+                    }
                 }
-                arg = convertColumnArg(obj, col, arg);
-                args.add(arg);
+                recordChanges(conn, schema, updated, ChangeJournal.UPSERT);
+            });
+            for (int count: affected) {
+                total += count;
             }
         }
-        sql += ") ";
-        QueryRunner runner = new QueryRunner(dataSource);
-        try {
-            runner.update(sql, args.toArray());
+        return total;
+    }
+
+    /**
+     * Insert the rows of a single table on the given connection, assigning ids to any rows
+     * that do not have one yet.
+     *
+     * @param conn
+     * @param schema
+     * @param rows
+     * @throws SQLException
+     */
+    private void insertRows(Connection conn, Schema schema, List<Model> rows) throws SQLException {
+        for (Model obj: rows) {
+            if (obj.getId() == null) {
+                obj.setId(dal().getTickets().nextId());
+            }
+        }
+        int width = insertArgs(schema, rows.get(0)).size();
+        int rowsPerStatement = Math.max(1, Math.min(BATCH_SIZE, MAX_BATCH_PARAMS / width));
+        if ("mysql".equals(dbImplementation.getName())) {
+            // Full chunks all share one prepared statement, only the last chunk needs its own
+            try (PreparedStatement full = conn.prepareStatement(buildInsertSql(schema, Math.min(rowsPerStatement, rows.size())))) {
+                for (int start = 0; start < rows.size(); start += rowsPerStatement) {
+                    List<Model> chunk = rows.subList(start, Math.min(start + rowsPerStatement, rows.size()));
+                    if (chunk.size() == rowsPerStatement || start == 0) {
+                        fillChunk(full, schema, chunk);
+                        full.executeUpdate();
+                    } else {
+                        try (PreparedStatement last = conn.prepareStatement(buildInsertSql(schema, chunk.size()))) {
+                            fillChunk(last, schema, chunk);
+                            last.executeUpdate();
+                        }
+                    }
+                }
+            }
+        } else {
+            try (PreparedStatement st = conn.prepareStatement(buildInsertSql(schema, 1))) {
+                int pending = 0;
+                for (Model obj: rows) {
+                    fillStatement(st, 1, insertArgs(schema, obj));
+                    st.addBatch();
+                    pending++;
+                    if (pending >= BATCH_SIZE) {
+                        st.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    st.executeBatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the rows of a single table on the given connection, in JDBC batches.
+     *
+     * @param conn
+     * @param schema
+     * @param rows
+     * @return the rows affected by each update, in the same order as the rows
+     * @throws SQLException
+     */
+    private int[] updateRows(Connection conn, Schema schema, List<Model> rows) throws SQLException {
+        int[] affected = new int[rows.size()];
+        try (PreparedStatement st = conn.prepareStatement(buildUpdateSql(schema))) {
+            for (int start = 0; start < rows.size(); start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, rows.size());
+                for (Model obj: rows.subList(start, end)) {
+                    List<Object> args = updateArgs(schema, obj);
+                    args.add(obj.getId());
+                    fillStatement(st, 1, args);
+                    st.addBatch();
+                }
+                int[] counts = st.executeBatch();
+                List<Integer> unreported = list();
+                for (int i = 0; i < counts.length; i++) {
+                    affected[start + i] = counts[i];
+                    if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                        unreported.add(start + i);
+                    }
+                }
+                if (unreported.size() > 0) {
+                    fillUnreportedCounts(conn, schema, rows, unreported, affected);
+                }
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * The driver may not report the counts of a rewritten batch, so look up which of those rows
+     * actually exist, on the same connection so the lookup sees the uncommitted updates. A row
+     * that exists was updated, a row that does not exist was not.
+     *
+     * @param conn
+     * @param schema
+     * @param rows
+     * @param unreported - the indexes into rows of the updates with no count
+     * @param affected - gets the count filled in for each unreported index
+     * @throws SQLException
+     */
+    private void fillUnreportedCounts(Connection conn, Schema schema, List<Model> rows, List<Integer> unreported, int[] affected) throws SQLException {
+        StringBuilder sql = new StringBuilder("SELECT id FROM `" + schema.getName() + "` WHERE id IN (");
+        for (int i = 0; i < unreported.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        Set<Long> existing = new HashSet<>();
+        try (PreparedStatement st = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < unreported.size(); i++) {
+                st.setObject(i + 1, rows.get(unreported.get(i)).getId());
+            }
+            try (ResultSet results = st.executeQuery()) {
+                while (results.next()) {
+                    existing.add(results.getLong(1));
+                }
+            }
+        }
+        for (int index: unreported) {
+            affected[index] = existing.contains(rows.get(index).getId()) ? 1 : 0;
+        }
+    }
+
+    private Map<Schema, List<Model>> groupBySchema(List<? extends Model> objs) {
+        Map<Schema, List<Model>> groups = new LinkedHashMap<>();
+        for (Model obj: objs) {
+            Schema schema = getSchemaForModelClass(obj.getClass());
+            if (schema == null) {
+                throw new UsageException("No database schema registered for model class " + obj.getClass().getName());
+            }
+            groups.computeIfAbsent(schema, k -> new ArrayList<>()).add(obj);
+        }
+        return groups;
+    }
+
+    private String buildInsertSql(Schema schema, int rowCount) {
+        return schema.getCompiled().getInsertSql(rowCount);
+    }
+
+    private List<Object> insertArgs(Schema schema, Model obj) {
+        List<CompiledSchema.CompiledColumn> columns = schema.getCompiled().getInsertColumns();
+        List<Object> args = new ArrayList<>(columns.size() + 1);
+        args.add(obj.getId());
+        for (CompiledSchema.CompiledColumn column: columns) {
+            Object arg = column.get(obj);
+            if (arg == null && column.getCol().getDefaultValue() != null) {
+                arg = column.getCol().getDefaultValue();
+                column.set(obj, arg);
+            }
+            args.add(convertColumnArg(obj, column, arg));
+        }
+        return args;
+    }
+
+    private String buildUpdateSql(Schema schema) {
+        return schema.getCompiled().getUpdateSql();
+    }
+
+    private List<Object> updateArgs(Schema schema, Model obj) {
+        List<CompiledSchema.CompiledColumn> columns = schema.getCompiled().getUpdateColumns();
+        List<Object> args = new ArrayList<>(columns.size() + 1);
+        for (CompiledSchema.CompiledColumn column: columns) {
+            args.add(convertColumnArg(obj, column, column.get(obj)));
+        }
+        return args;
+    }
+
+    private void fillChunk(PreparedStatement st, Schema schema, List<Model> chunk) throws SQLException {
+        int index = 1;
+        for (Model obj: chunk) {
+            List<Object> args = insertArgs(schema, obj);
+            fillStatement(st, index, args);
+            index += args.size();
+        }
+    }
+
+    private void fillStatement(PreparedStatement st, int startIndex, List<Object> args) throws SQLException {
+        for (int i = 0; i < args.size(); i++) {
+            if (args.get(i) == null) {
+                st.setNull(startIndex + i, Types.NULL);
+            } else {
+                st.setObject(startIndex + i, args.get(i));
+            }
+        }
+    }
+
+    public interface SqlWork {
+        void run(Connection conn) throws SQLException;
+    }
+
+    /**
+     * Run the work on a single connection, in a transaction that is rolled back if anything fails.
+     *
+     * @param work
+     */
+    public void inTransaction(SqlWork work) {
+        try (Connection conn = dataSource.getConnection()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                work.run(conn);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-        return obj;
+    }
+
+    /**
+     * Run a single statement that changes the object's row. If the change journal is
+     * enabled, the statement and the journal entry run in one transaction, so that the
+     * entry is only committed along with the change.
+     *
+     * @param schema
+     * @param obj
+     * @param changeType
+     * @param sql
+     * @param args
+     * @return rows affected
+     */
+    private int executeAndRecord(Schema schema, Model obj, String changeType, String sql, Object...args) {
+        if (changeJournal == null || !changeJournal.isEnabled()) {
+            return execute(sql, args);
+        }
+        int[] affected = new int[1];
+        inTransaction(conn -> {
+            affected[0] = newQuery().update(conn, sql, args);
+            if (affected[0] > 0) {
+                recordChange(conn, schema, obj, changeType);
+            }
+        });
+        return affected[0];
+    }
+
+    private void recordChanges(Connection conn, Schema schema, List<Model> rows, String changeType) throws SQLException {
+        if (changeJournal != null && rows.size() > 0) {
+            changeJournal.recordAll(conn, schema.getName(), apply(rows, row -> row.getId()), changeType);
+        }
+    }
+
+    /**
+     * Record the write in the change journal, if the journal is enabled. Call this on the
+     * connection that made the write, inside its transaction.
+     *
+     * @param conn
+     * @param schema
+     * @param obj
+     * @param changeType
+     * @throws SQLException
+     */
+    protected void recordChange(Connection conn, Schema schema, Model obj, String changeType) throws SQLException {
+        if (changeJournal != null) {
+            changeJournal.record(conn, schema.getName(), obj.getId(), changeType);
+        }
     }
 
     /**
@@ -881,7 +1386,37 @@ public class DB {
         } else if (arg != null && !StringUtils.isBlank(col.getConverterClassName())) {
             AttributeConverter converter = this.getConverter(col.getConverterClassName());
             arg = converter.convertToDatabaseColumn(arg);
-        } else if (arg instanceof LocalDateTime) {
+        } else {
+            arg = convertPlainArg(arg);
+        }
+        return arg;
+    }
+
+    /**
+     * Same as convertColumnArg(), but uses the converter already resolved for the compiled column.
+     *
+     * @param o
+     * @param column
+     * @param arg
+     * @return
+     */
+    protected Object convertColumnArg(Model o, CompiledSchema.CompiledColumn column, Object arg) {
+        Col col = column.getCol();
+        if (arg == null && col.getDefaultValue() != null) {
+            arg = col.getDefaultValue();
+        }
+        if (col.getAttributeConverter() != null) {
+            arg = col.getAttributeConverter().convertToDatabaseColumn(arg);
+        } else if (arg != null && column.getConverter() != null) {
+            arg = column.getConverter().convertToDatabaseColumn(arg);
+        } else {
+            arg = convertPlainArg(arg);
+        }
+        return arg;
+    }
+
+    private Object convertPlainArg(Object arg) {
+        if (arg instanceof LocalDateTime) {
             arg = new Timestamp(((LocalDateTime) arg).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
         } else if (arg instanceof ZonedDateTime) {
             arg = new Timestamp(((ZonedDateTime) arg).toInstant().toEpochMilli());
@@ -1051,6 +1586,12 @@ public class DB {
                 col.setAlternativeKey(true);
                 schema.getKeyNames().add(col.getName());
             }
+            if (method.getAnnotation(SortedKey.class) != null) {
+                col.setSortedKey(true);
+            }
+            if (method.getAnnotation(Columnar.class) != null) {
+                col.setColumnar(true);
+            }
             if (method.getAnnotation(UniqueKey.class) != null) {
                 col.setUniqueKey(true);
                 UniqueKey uk = (UniqueKey)method.getAnnotation(UniqueKey.class);
@@ -1235,6 +1776,18 @@ public class DB {
     }
 
 
+    /**
+     * The journal of writes that DbPersister uses to sync changes made by other nodes.
+     *
+     * @return the journal, or null if it is disabled
+     */
+    public ChangeJournal getChangeJournal() {
+        if (changeJournal == null || !changeJournal.isEnabled()) {
+            return null;
+        }
+        return changeJournal;
+    }
+
     /**
      * Get the Tickets service for generating new IDS
      * @return
@@ -1248,6 +1801,46 @@ public class DB {
         return dbImplementation;
     }
 
+    /**
+     * Check whether the database server supports SELECT ... FOR UPDATE SKIP LOCKED, which
+     * lets many workers claim rows from the same table without blocking on each other.
+     * Supported by postgres 9.5+, MySQL 8+ and MariaDB 10.6+. The answer is looked up from
+     * the connection metadata once and then cached.
+     *
+     * @return
+     */
+    public boolean supportsSkipLocked() {
+        if (supportsSkipLocked == null) {
+            try (Connection conn = dataSource.getConnection()) {
+                DatabaseMetaData meta = conn.getMetaData();
+                supportsSkipLocked = supportsSkipLocked(
+                        meta.getDatabaseProductName(),
+                        meta.getDatabaseProductVersion(),
+                        meta.getDatabaseMajorVersion(),
+                        meta.getDatabaseMinorVersion());
+            } catch (SQLException e) {
+                Log.exception(e, "Could not read the database version, assuming no SKIP LOCKED support");
+                supportsSkipLocked = false;
+            }
+        }
+        return supportsSkipLocked;
+    }
+
+    static boolean supportsSkipLocked(String productName, String productVersion, int major, int minor) {
+        String product = or(productName, "").toLowerCase();
+        String version = or(productVersion, "").toLowerCase();
+        if (product.contains("postgres")) {
+            return major > 9 || (major == 9 && minor >= 5);
+        }
+        if (product.contains("mariadb") || version.contains("mariadb")) {
+            return major > 10 || (major == 10 && minor >= 6);
+        }
+        if (product.contains("mysql")) {
+            return major >= 8;
+        }
+        return false;
+    }
+
 
     /**
      * If true, internally, DalRegistry.register() will never use a DbPersister, instead
@@ -31,15 +31,25 @@ import javax.ws.rs.core.Cookie;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import static io.stallion.utils.Literals.*;
 
 
 public class DbPersister<T extends Model> extends BasePersister<T> {
+    /**
+     * When syncing from the change journal, still rescan for recently updated rows this
+     * often, to pick up rows that were changed with raw SQL rather than through DB.
+     */
+    static final long FULL_SYNC_INTERVAL = 5 * 60 * 1000;
+
     private long lastSyncAt = ZonedDateTime.now(UTC).toInstant().toEpochMilli();
     private String tableName = "";
     private String sortField = "id";
@@ -54,6 +64,10 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
             sortField = defaultSort.field();
             sortDirection = defaultSort.direction();
         }
+        // Only stashes that keep rows in memory need to hear about rows changed by other nodes
+        if (!(stash instanceof NoStash) && DB.available() && DB.instance().getChangeJournal() != null) {
+            DB.instance().getChangeJournal().register(getTableName(), this);
+        }
     }
 
 
@@ -68,6 +82,14 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
         return things;
     }
 
+    @Override
+    public Stream<T> streamAll() {
+        lastSyncAt = DateUtils.mils();
+        return DB.instance()
+                .streamAllSorted(getModelClass(), sortField, sortDirection)
+                .peek(thing -> thing.setBucket(getBucket()));
+    }
+
     @Override
     public T fetchOne(Long id) {
         T o = DB.instance().fetchOne(getModelClass(), id);
@@ -92,6 +114,11 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
         DB.instance().save(obj);
     }
 
+    @Override
+    public void persistAll(List<T> objs) {
+        DB.instance().saveAll(objs);
+    }
+
     @Override
     public void update(T obj, Map<String, Object> values) {
         DB.instance().update(obj, values);
@@ -114,6 +141,7 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
 
 
     final ReentrantLock syncLock = new ReentrantLock();
+    static final String JOURNAL_POLLED_KEY = "change-journal-polled";
 
     @Override
     public void onPreRead() {
@@ -130,6 +158,17 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
         if (!checkNeedsSync()) {
             return;
         }
+        ChangeJournal journal = DB.instance().getChangeJournal();
+        if (journal != null) {
+            // One journal query syncs every bucket, so only poll once per request
+            if (Context.getRequest().getProperty(JOURNAL_POLLED_KEY) == null) {
+                Context.getRequest().setProperty(JOURNAL_POLLED_KEY, true);
+                journal.poll(now);
+            }
+            if (lastSyncAt >= mils() - FULL_SYNC_INTERVAL) {
+                return;
+            }
+        }
         try {
             if (syncLock.tryLock(10, TimeUnit.SECONDS)) {
                 // Was synced by other thread, skipping
@@ -176,6 +215,65 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
 
 
 
+    /**
+     * Reload the rows that the change journal says were inserted or updated, and remove
+     * the rows that were deleted, from the stash.
+     *
+     * @param upsertedIds
+     * @param deletedIds
+     */
+    void applyJournalChanges(List<Long> upsertedIds, List<Long> deletedIds) {
+        boolean hasChanges = false;
+        for (int start = 0; start < upsertedIds.size(); start += 500) {
+            List<Long> ids = new ArrayList<>(upsertedIds.subList(start, Math.min(start + 500, upsertedIds.size())));
+            DB.SqlAndParams in = DB.instance().toInQueryParams(ids);
+            List<T> items = DB.instance().query(getModelClass(), "SELECT * FROM " + getTableName() + " WHERE id IN " + in.getSql(), in.getParams());
+            for (T item: items) {
+                item.setBucket(getBucket());
+                if (getStash().loadItem(item)) {
+                    hasChanges = true;
+                }
+            }
+        }
+        for (Long id: deletedIds) {
+            getStash().unloadForId(id);
+            hasChanges = true;
+        }
+        if (hasChanges) {
+            FilterCache.clearBucket(getBucket());
+        }
+    }
+
+    /**
+     * Reload every row of the table, and remove the stashed items whose rows no longer exist.
+     * Used when the change journal skipped over more entries than it could keep track of,
+     * so it cannot know which rows were changed or deleted.
+     */
+    void resyncAll() {
+        // Only unload items that were stashed before the query, so that an item saved
+        // while the query runs is not mistaken for a deleted one
+        Set<Long> stashedIds = new HashSet<>();
+        for (T item: getStash().getItems()) {
+            stashedIds.add(item.getId());
+        }
+        List<T> items = DB.instance().query(getModelClass(), "SELECT * FROM " + getTableName());
+        boolean hasChanges = false;
+        for (T item: items) {
+            stashedIds.remove(item.getId());
+            item.setBucket(getBucket());
+            if (getStash().loadItem(item)) {
+                hasChanges = true;
+            }
+        }
+        for (Long id: stashedIds) {
+            getStash().unloadForId(id);
+            hasChanges = true;
+        }
+        if (hasChanges) {
+            FilterCache.clearBucket(getBucket());
+        }
+    }
+
     protected String getBucketSyncedKey() {
         return "bucket-synced:" + getBucket();
     }
@@ -191,7 +289,9 @@ public class DbPersister<T extends Model> extends BasePersister<T> {
             return true;
         }
         // Hasn't been synced in more than 15 seconds
-        if (lastSyncAt < (mils() - 15000)) {
+        ChangeJournal journal = DB.instance().getChangeJournal();
+        long syncedAt = journal == null ? lastSyncAt : journal.getLastPolledAt();
+        if (syncedAt < (mils() - 15000)) {
             return true;
         }
         // The current user
@@ -17,8 +17,15 @@
 
 package io.stallion.dataAccess.db;
 
+import io.stallion.dataAccess.Model;
+import io.stallion.dataAccess.db.converters.RowMapper;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static io.stallion.utils.Literals.list;
 
@@ -28,11 +35,15 @@ import static io.stallion.utils.Literals.list;
  * sql when doing database operations.
  */
 public class Schema {
+    private static final int MAX_ROW_MAPPERS = 200;
+
     private List<Col> columns;
     private String name;
     private Class clazz;
     private List<String> keyNames;
     private List<String> extraKeyDefinitions = list();
+    private volatile CompiledSchema compiled;
+    private final Map<String, RowMapper> rowMappers = new ConcurrentHashMap<>();
 
     public Schema(String name, Class clazz) {
         columns = new ArrayList<Col>();
@@ -46,6 +57,8 @@ public class Schema {
 
     public Schema setColumns(List<Col> columns) {
         this.columns = columns;
+        this.compiled = null;
+        this.rowMappers.clear();
         return this;
     }
 
@@ -87,4 +100,41 @@ public class Schema {
         this.extraKeyDefinitions = extraKeyDefinitions;
         return this;
     }
+
+    /**
+     * Get the sql text, converters and property accessors for this schema, building
+     * them the first time they are needed.
+     *
+     * @return
+     */
+    public CompiledSchema getCompiled() {
+        CompiledSchema current = compiled;
+        if (current == null) {
+            current = new CompiledSchema(this);
+            compiled = current;
+        }
+        return current;
+    }
+
+    /**
+     * Get a row mapper for result sets with the given columns. Mappers are cached by the
+     * list of column labels, so each distinct query shape is resolved only once.
+     *
+     * @param meta
+     * @param <T>
+     * @return
+     * @throws SQLException
+     */
+    public <T extends Model> RowMapper<T> getRowMapper(ResultSetMetaData meta) throws SQLException {
+        String signature = RowMapper.signature(meta);
+        RowMapper<T> mapper = rowMappers.get(signature);
+        if (mapper == null) {
+            mapper = new RowMapper<>(this, meta);
+            if (rowMappers.size() >= MAX_ROW_MAPPERS) {
+                rowMappers.clear();
+            }
+            rowMappers.put(signature, mapper);
+        }
+        return mapper;
+    }
 }
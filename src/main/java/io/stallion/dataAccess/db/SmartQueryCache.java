@@ -27,6 +27,10 @@ import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.PersistenceConfiguration;
 
 import javax.ws.rs.core.Cookie;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static io.stallion.utils.Literals.empty;
 import static io.stallion.utils.Literals.mils;
@@ -37,6 +41,7 @@ import static io.stallion.utils.Literals.mils;
  * just made an update never sees stale data.
 */
 public class SmartQueryCache {
+    private static final String CHECKED_KEYS_PROPERTY = "smart-query-cache-checked-keys";
     private static CacheManager manager;
 
 
@@ -100,13 +105,29 @@ public class SmartQueryCache {
 
 
     public static boolean checkShouldSkip(String bucket, String key) {
+        return checkShouldSkip(bucket, (Object) key);
+    }
+
+    /**
+     * Same as checkShouldSkip(bucket, String), for any key with a proper equals() and
+     * hashCode(), such as a FilterCacheKey, so callers do not have to render the key
+     * as a string.
+     *
+     * @param bucket
+     * @param key
+     * @return
+     */
+    public static boolean checkShouldSkip(String bucket, Object key) {
         // We only skip the cache at most once per lookup, per request
-        // So we set a request context item to mark that we've done this check.
-        Boolean seen = (Boolean)Context.getRequest().getProperty("checked-should-skip-for-key-" + bucket + "---" + key);
-        if (seen != null && seen) {
+        // So we keep a request context set of the keys we've done this check for.
+        Set<List<Object>> seen = (Set<List<Object>>) Context.getRequest().getProperty(CHECKED_KEYS_PROPERTY);
+        if (seen == null) {
+            seen = new HashSet<>();
+            Context.getRequest().setProperty(CHECKED_KEYS_PROPERTY, seen);
+        }
+        if (!seen.add(Arrays.asList(bucket, key))) {
             return false;
         }
-        Context.getRequest().setProperty("checked-should-skip-for-key-" + bucket + "---" + key, true);
 
         if (Context.getRequest() instanceof TaskRequest) {
             return true;
@@ -200,7 +200,9 @@ public class SqlMigrationAction  implements StallionRunAction<SqlMigrateCommandO
                 "00035-uploaded-files",
                 "00040-short_code_tokens",
                 "00050-dynamic_settings",
-                "00060-users-add-columns"
+                "00060-users-add-columns",
+                "00070-async-task-lanes",
+                "00080-async-tasks-dead"
         ));
         if (PluginRegistry.instance() != null) {
             for (StallionJavaPlugin plugin : PluginRegistry.instance().getJavaPluginByName().values()) {
@@ -0,0 +1,58 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.db;
+
+import io.stallion.monitoring.RequestTimers;
+import org.apache.commons.dbutils.QueryRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A QueryRunner that adds the time from taking a connection from the pool to handing it
+ * back to the database time of the current request. Only queries where the runner opens
+ * its own connection are timed.
+ */
+class TimedQueryRunner extends QueryRunner {
+    private long started = 0;
+
+    TimedQueryRunner(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    @Override
+    protected Connection prepareConnection() throws SQLException {
+        started = RequestTimers.databaseStarted();
+        try {
+            return super.prepareConnection();
+        } catch (SQLException | RuntimeException e) {
+            RequestTimers.databaseFinished(started);
+            throw e;
+        }
+    }
+
+    @Override
+    protected void close(Connection conn) throws SQLException {
+        try {
+            super.close(conn);
+        } finally {
+            RequestTimers.databaseFinished(started);
+        }
+    }
+}
@@ -23,6 +23,8 @@ import org.apache.commons.dbutils.handlers.AbstractListHandler;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class ModelListHandler<T extends Model> extends AbstractListHandler<T> implements ResultToModel<T> {
@@ -52,6 +54,23 @@ public class ModelListHandler<T extends Model> extends AbstractListHandler<T> im
         return handleOneRow(resultSet);
     }
 
+    /**
+     * Resolves the row mapper against the result set columns once, and then maps every row with it.
+     *
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
+    @Override
+    public List<T> handle(ResultSet resultSet) throws SQLException {
+        RowMapper<T> mapper = schema.getRowMapper(resultSet.getMetaData());
+        List<T> rows = new ArrayList<>();
+        while (resultSet.next()) {
+            rows.add(mapper.map(resultSet));
+        }
+        return rows;
+    }
+
     /*
     @Override
     public List<BaseModel> handle(ResultSet resultSet) throws SQLException {
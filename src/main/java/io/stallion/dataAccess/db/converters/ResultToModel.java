@@ -18,90 +18,26 @@
 package io.stallion.dataAccess.db.converters;
 
 import io.stallion.dataAccess.Model;
-import io.stallion.dataAccess.db.Col;
-import io.stallion.dataAccess.db.DB;
 import io.stallion.dataAccess.db.Schema;
-import io.stallion.exceptions.IllegalEnumValue;
-import io.stallion.reflection.PropertyUtils;
-import io.stallion.services.Log;
-import org.apache.commons.lang3.exception.ExceptionUtils;
 
-import java.math.BigInteger;
-import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.time.LocalDate;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-
-import static io.stallion.utils.Literals.empty;
 
 
 public interface ResultToModel<T extends Model> {
     public Class getModelClass();
     public Schema getSchema();
 
+    /**
+     * Map the current row of the result set into a model. Callers mapping many rows
+     * should get the RowMapper from the schema once and reuse it, as ModelListHandler does.
+     *
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
     public default T handleOneRow(ResultSet resultSet) throws SQLException {
-        try {
-            T obj = (T)getModelClass().newInstance();
-            try {
-                Date date = resultSet.getDate("row_updated_at");
-                if (date != null) {
-                    obj.setLastModifiedMillis(date.getTime());
-                }
-            } catch (SQLException e) {
-
-            }
-            for (Col col : getSchema().getColumns()) {
-                Object value = null;
-                // TODO: really wish there was a way to test for the existence of a column,
-                // rather than throwing the exception
-                try {
-                    value = resultSet.getObject(col.getName());
-                } catch (SQLException e) {
-                    continue;
-                }
-                if (col.getJsDbColumnConverter() != null) {
-                    value = col.getJsDbColumnConverter().fromDb(obj, value, col.getName());
-                } else if (col.getAttributeConverter() != null) {
-                    value = col.getAttributeConverter().convertToEntityAttribute(value);
-                } else if (!empty(col.getConverterClassName())) {
-                    AttributeConverter converter = DB.instance().getConverter(col.getConverterClassName());
-                    value = converter.convertToEntityAttribute(value);
-                }
-                // MySQL driver returns bigint as BigInteger, despite it really being a Long sized field
-                if (value instanceof BigInteger) {
-                    value = ((BigInteger) value).longValue();
-                }
-                if (value instanceof Timestamp) {
-                    //value = ((Timestamp)value)
-                    value = ZonedDateTime.ofInstant(((Timestamp) value).toInstant(), ZoneId.of("UTC"));
-                }
-                if (value instanceof Date) {
-                    value = ((Date) value).toLocalDate();
-                }
-                if (value == null && col.getDefaultValue() != null) {
-                    value = col.getDefaultValue();
-                }
-                try {
-                    PropertyUtils.setProperty(obj, col.getPropertyName(), value);
-                } catch (IllegalEnumValue e) {
-                    Log.warn("Illegal enum value error: " + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e));
-                }
-            }
-
-            Object idObj = resultSet.getObject("id");
-            Long id;
-            if (idObj instanceof BigInteger) {
-                id = ((BigInteger) idObj).longValue();
-            } else  {
-                id = (Long)idObj;
-            }
-            obj.setId(id);
-            return obj;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        RowMapper<T> mapper = getSchema().getRowMapper(resultSet.getMetaData());
+        return mapper.map(resultSet);
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.db.converters;
+
+import io.stallion.dataAccess.Model;
+import io.stallion.dataAccess.db.CompiledSchema;
+import io.stallion.dataAccess.db.Schema;
+import io.stallion.exceptions.IllegalEnumValue;
+import io.stallion.services.Log;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps rows of a result set into model instances. The schema's columns are resolved
+ * against the ResultSetMetaData once, when the mapper is built, so that each row is
+ * read by column index and only the columns actually present in the query are read.
+ * Mappers are cached on the Schema by the list of column labels, see Schema.getRowMapper().
+ *
+ * @param <T>
+ */
+public class RowMapper<T extends Model> {
+    private final Class<T> modelClass;
+    private final CompiledSchema.CompiledColumn[] columns;
+    private final int[] indexes;
+    private final int idIndex;
+    private final int updatedAtIndex;
+
+    public RowMapper(Schema schema, ResultSetMetaData meta) throws SQLException {
+        this.modelClass = schema.getClazz();
+        Map<String, Integer> labelToIndex = new HashMap<>();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            labelToIndex.putIfAbsent(meta.getColumnLabel(i).toLowerCase(), i);
+        }
+        List<CompiledSchema.CompiledColumn> found = new ArrayList<>();
+        List<Integer> foundIndexes = new ArrayList<>();
+        for (CompiledSchema.CompiledColumn column: schema.getCompiled().getColumns()) {
+            Integer index = labelToIndex.get(column.getCol().getName().toLowerCase());
+            if (index != null) {
+                found.add(column);
+                foundIndexes.add(index);
+            }
+        }
+        this.columns = found.toArray(new CompiledSchema.CompiledColumn[found.size()]);
+        this.indexes = new int[foundIndexes.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = foundIndexes.get(i);
+        }
+        this.idIndex = labelToIndex.getOrDefault("id", 0);
+        this.updatedAtIndex = labelToIndex.getOrDefault("row_updated_at", 0);
+    }
+
+    /**
+     * Build a key identifying the shape of a result set, mappers built from result sets
+     * with the same key are interchangeable.
+     *
+     * @param meta
+     * @return
+     * @throws SQLException
+     */
+    public static String signature(ResultSetMetaData meta) throws SQLException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            builder.append(meta.getColumnLabel(i)).append(',');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Map the current row of the result set into a new model instance.
+     *
+     * @param resultSet
+     * @return
+     * @throws SQLException
+     */
+    public T map(ResultSet resultSet) throws SQLException {
+        T obj;
+        try {
+            obj = modelClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        if (updatedAtIndex > 0) {
+            Date date = resultSet.getDate(updatedAtIndex);
+            if (date != null) {
+                obj.setLastModifiedMillis(date.getTime());
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            CompiledSchema.CompiledColumn column = columns[i];
+            Object value = resultSet.getObject(indexes[i]);
+            if (column.getCol().getJsDbColumnConverter() != null) {
+                value = column.getCol().getJsDbColumnConverter().fromDb(obj, value, column.getCol().getName());
+            } else if (column.getConverter() != null) {
+                value = column.getConverter().convertToEntityAttribute(value);
+            }
+            // MySQL driver returns bigint as BigInteger, despite it really being a Long sized field
+            if (value instanceof BigInteger) {
+                value = ((BigInteger) value).longValue();
+            }
+            if (value instanceof Timestamp) {
+                value = ZonedDateTime.ofInstant(((Timestamp) value).toInstant(), ZoneId.of("UTC"));
+            }
+            if (value instanceof Date) {
+                value = ((Date) value).toLocalDate();
+            }
+            if (value == null && column.getCol().getDefaultValue() != null) {
+                value = column.getCol().getDefaultValue();
+            }
+            try {
+                column.set(obj, value);
+            } catch (IllegalEnumValue e) {
+                Log.warn("Illegal enum value error: " + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e));
+            }
+        }
+        if (idIndex == 0) {
+            throw new SQLException("Result set for model " + modelClass.getSimpleName() + " has no id column");
+        }
+        Object idObj = resultSet.getObject(idIndex);
+        if (idObj instanceof Number) {
+            obj.setId(((Number) idObj).longValue());
+        } else {
+            obj.setId((Long)idObj);
+        }
+        return obj;
+    }
+}
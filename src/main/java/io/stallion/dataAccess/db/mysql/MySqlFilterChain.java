@@ -19,12 +19,18 @@ package io.stallion.dataAccess.db.mysql;
 
 
 import io.stallion.dataAccess.Model;
+import io.stallion.dataAccess.db.Col;
 import io.stallion.dataAccess.db.DB;
 import io.stallion.dataAccess.db.Schema;
 import io.stallion.dataAccess.db.SmartQueryCache;
+import io.stallion.dataAccess.filtering.FilterCacheKey;
 import io.stallion.dataAccess.filtering.FilterChain;
 import io.stallion.dataAccess.filtering.FilterOperation;
 import io.stallion.dataAccess.filtering.FilterOperator;
+import io.stallion.dataAccess.filtering.PageCursor;
+import io.stallion.dataAccess.filtering.SortDirection;
+import io.stallion.dataAccess.filtering.TotalCountMode;
+import io.stallion.reflection.PropertyUtils;
 import io.stallion.exceptions.UsageException;
 import io.stallion.services.Log;
 import io.stallion.utils.DateUtils;
@@ -102,12 +108,140 @@ public class MySqlFilterChain<T extends Model> extends FilterChain<T> {
             page = 1;
         }
 
-        StringBuilder whereBuilder = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+        String whereSql = buildWhereSql(params);
+
+        StringBuilder sqlBuilder = new StringBuilder();
+        sqlBuilder.append(buildSelectSql(whereSql));
+        if (!Literals.empty(getSortField())) {
+            checkSortField();
+            sqlBuilder.append(" ORDER BY  " + getSchema().getName() + "." + getSortField() + " " + getSortDirection().forSql());
+            if (!Literals.empty(getSecondarySortField())) {
+                sqlBuilder.append(", " +  getSchema().getName() + "." + getSecondarySortField() + " " + getSecondarySortDirection().forSql());
+            }
+            if (isIdAsSecondarySort()) {
+                sqlBuilder.append(", " + getSchema().getName() + ".id ASC");
+            }
+        }
+        sqlBuilder.append(" LIMIT " + (page - 1) * size + ", " + size);
 
+        Object[] paramObjects = params.toArray();
+        Log.finest(sqlBuilder.toString());
+        setObjects(DB.instance().query(clazz, sqlBuilder.toString(), paramObjects));
 
+        if (page == 1 && getObjects().size() < size) {
+            setMatchingCount(getObjects().size());
+        } else if (fetchTotalCount) {
+            setMatchingCount(fetchCount(whereSql, paramObjects));
+        }
 
-        int x = 0;
+        processAggregates(whereSql, paramObjects);
+    }
+
+    /**
+     * Seeks to the page after the cursor with a WHERE clause on the sort column and id,
+     * instead of using a LIMIT offset, so that MySQL can jump straight to the page using
+     * an index on the sort column, however deep the page is.
+     *
+     * @param after - the cursor to start after, or null for the first page
+     * @param size
+     * @param countMode
+     */
+    @Override
+    protected void processSeek(PageCursor after, int size, TotalCountMode countMode) {
+        checkSortField();
         List<Object> params = new ArrayList<>();
+        String whereSql = buildWhereSql(params);
+        Object[] paramObjects = params.toArray();
+
+        String table = getSchema().getName();
+        String sortColumn = table + "." + getSortField();
+        boolean desc = SortDirection.DESC.equals(getSortDirection());
+        boolean byId = "id".equals(getSortField());
+
+        List<Object> seekParams = new ArrayList<>(params);
+        String seekSql = "";
+        if (after != null) {
+            if (byId) {
+                seekSql = " (" + table + ".id " + (desc ? "<" : ">") + " ?) ";
+                seekParams.add(after.getId());
+            } else if (after.getSortValue() == null) {
+                // MySQL puts nulls first when ascending, and last when descending
+                seekSql = " ((" + sortColumn + " IS NULL AND " + table + ".id > ?)" + (desc ? "" : " OR " + sortColumn + " IS NOT NULL") + ") ";
+                seekParams.add(after.getId());
+            } else {
+                Object sortValue = toSqlParam(after.getSortValue());
+                seekSql = " ((" + sortColumn + (desc ? " < " : " > ") + "?) OR (" + sortColumn + " = ? AND " + table + ".id > ?)" +
+                        (desc ? " OR " + sortColumn + " IS NULL" : "") + ") ";
+                seekParams.add(sortValue);
+                seekParams.add(sortValue);
+                seekParams.add(after.getId());
+            }
+        }
+
+        StringBuilder sqlBuilder = new StringBuilder();
+        sqlBuilder.append(buildSelectSql(whereSql));
+        if (!Literals.empty(seekSql)) {
+            if (Literals.empty(whereSql) && Literals.empty(baseSql)) {
+                sqlBuilder.append(" WHERE ");
+            } else {
+                sqlBuilder.append(" AND ");
+            }
+            sqlBuilder.append(seekSql);
+        }
+        if (byId) {
+            sqlBuilder.append(" ORDER BY " + table + ".id " + (desc ? "DESC" : "ASC"));
+        } else {
+            sqlBuilder.append(" ORDER BY " + sortColumn + " " + (desc ? "DESC" : "ASC") + ", " + table + ".id ASC");
+        }
+        sqlBuilder.append(" LIMIT " + (size + 1));
+        Log.finest(sqlBuilder.toString());
+        setObjects(DB.instance().query(clazz, sqlBuilder.toString(), seekParams.toArray()));
+
+        if (after == null && getObjects().size() <= size) {
+            setMatchingCount(getObjects().size());
+        } else if (countMode == TotalCountMode.EXACT) {
+            setMatchingCount(fetchCount(whereSql, paramObjects));
+        } else if (countMode == TotalCountMode.ESTIMATED) {
+            setMatchingCount(estimateCount(whereSql, paramObjects));
+            setMatchingCountEstimated(true);
+        } else {
+            setMatchingCount(-1);
+        }
+
+        processAggregates(whereSql, paramObjects);
+    }
+
+    @Override
+    protected String continuationTokenAfter(T item) {
+        String propertyName = getSortField();
+        for (Col col: getSchema().getColumns()) {
+            if (col.getName().equalsIgnoreCase(getSortField())) {
+                propertyName = col.getPropertyName();
+                break;
+            }
+        }
+        Object value = "id".equals(getSortField()) ? null : PropertyUtils.getPropertyOrMappedValue(item, propertyName);
+        return new PageCursor(getSortField(), getSortDirection(), value, item.getId()).encode();
+    }
+
+    private void checkSortField() {
+        List<String> columnNames = apply(getSchema().getColumns(), col->col.getName());
+        if (!"id".equals(getSortField()) && !columnNames.contains(getSortField().toLowerCase())) {
+            throw new UsageException(MessageFormat.format("Sort field not found in schema: field={0} schema={1}", getSortField(), clazz.getName()));
+        }
+    }
+
+    /**
+     * Build the conditions for the filter operations, adding the query parameters to params.
+     *
+     * @param params
+     * @return the conditions, starting with WHERE, or with AND if there is a base SQL query
+     */
+    private String buildWhereSql(List<Object> params) {
+        StringBuilder whereBuilder = new StringBuilder();
+
+        int x = 0;
         boolean hasDeletedOp = false;
         List<FilterOperation> ops = removeEmptyInQueries(getOperations());
         for(FilterOperation op: ops) {
@@ -152,49 +286,47 @@ public class MySqlFilterChain<T extends Model> extends FilterChain<T> {
             whereBuilder.append(" " + getSchema().getName() + ".deleted=0 ");
         }
         String whereSql = whereBuilder.toString();
-
-        StringBuilder sqlBuilder = new StringBuilder();
+        if (whereSql.trim().length() == 0) {
+            return "";
+        }
         if (Literals.empty(baseSql)) {
-            sqlBuilder.append("SELECT * FROM " + getSchema().getName() + " ");
-            if (whereSql.trim().length() > 0) {
-                whereSql = " WHERE " + whereSql;
-                sqlBuilder.append(whereSql);
-            }
+            return " WHERE " + whereSql;
         } else {
-            sqlBuilder.append(baseSql);
-            if (whereSql.trim().length() > 0) {
-                whereSql = " AND (" + whereSql + ")";
-                sqlBuilder.append(whereSql);
-            }
+            return " AND (" + whereSql + ")";
         }
-        if (!Literals.empty(getSortField())) {
-            List<String> columnNames = apply(getSchema().getColumns(), col->col.getName());
-            if (!"id".equals(getSortField()) && !columnNames.contains(getSortField().toLowerCase())) {
-                throw new UsageException(MessageFormat.format("Sort field not found in schema: field={0} schema={1}", getSortField(), clazz.getName()));
-            }
-            sqlBuilder.append(" ORDER BY  " + getSchema().getName() + "." + getSortField() + " " + getSortDirection().forSql());
-            if (!Literals.empty(getSecondarySortField())) {
-                sqlBuilder.append(", " +  getSchema().getName() + "." + getSecondarySortField() + " " + getSecondarySortDirection().forSql());
-            }
-            if (isIdAsSecondarySort()) {
-                sqlBuilder.append(", " + getSchema().getName() + ".id ASC");
-            }
+    }
+
+    private String buildSelectSql(String whereSql) {
+        if (Literals.empty(baseSql)) {
+            return "SELECT * FROM " + getSchema().getName() + " " + whereSql;
+        } else {
+            return baseSql + whereSql;
         }
-        sqlBuilder.append(" LIMIT " + (page - 1) * size + ", " + size);
+    }
 
-        Object[] paramObjects = params.toArray();
-        Log.finest(sqlBuilder.toString());
-        setObjects(DB.instance().query(clazz, sqlBuilder.toString(), paramObjects));
+    private int fetchCount(String whereSql, Object[] paramObjects) {
+        String countSql = "SELECT COUNT(*) FROM " + getSchema().getName() + whereSql;
+        Object count = DB.instance().queryScalar(countSql, paramObjects);
+        return count instanceof Integer ? (Integer)count : ((Long)count).intValue();
+    }
 
-        if (page == 1 && getObjects().size() < size) {
-            setMatchingCount(getObjects().size());
-        } else if (fetchTotalCount) {
-            String countSql = "SELECT COUNT(*) FROM " + getSchema().getName() + whereSql;
-            Object count = DB.instance().queryScalar(countSql, paramObjects);
-            Integer countInt = count instanceof Integer ? (Integer)count : ((Long)count).intValue();
-            setMatchingCount(countInt);
+    /**
+     * Get MySQL's estimate of the number of matching rows from the query plan, which
+     * is much cheaper than a COUNT(*) over millions of rows.
+     *
+     * @param whereSql
+     * @param paramObjects
+     * @return
+     */
+    private int estimateCount(String whereSql, Object[] paramObjects) {
+        List<Map<String, Object>> plan = DB.instance().findRecords("EXPLAIN SELECT * FROM " + getSchema().getName() + whereSql, paramObjects);
+        if (plan.size() == 0 || !(plan.get(0).get("rows") instanceof Number)) {
+            return fetchCount(whereSql, paramObjects);
         }
+        return ((Number)plan.get(0).get("rows")).intValue();
+    }
 
+    private void processAggregates(String whereSql, Object[] paramObjects) {
         this.setAverages(map());
         this.setSums(map());
 
@@ -375,7 +507,12 @@ public class MySqlFilterChain<T extends Model> extends FilterChain<T> {
         Object val = op.getOriginalValue();
         if (op.getOperator().equals(FilterOperator.LIKE)) {
             return "%" + val.toString() + "%";
-        } else if (val instanceof ZonedDateTime) {
+        }
+        return toSqlParam(val);
+    }
+
+    private Object toSqlParam(Object val) {
+        if (val instanceof ZonedDateTime) {
             return DateUtils.SQL_FORMAT.format(((ZonedDateTime) val).withZoneSameInstant(Literals.UTC));
         } else if (val instanceof LocalDateTime) {
             return DateUtils.SQL_FORMAT.format(((LocalDateTime) val));
@@ -384,12 +521,12 @@ public class MySqlFilterChain<T extends Model> extends FilterChain<T> {
         } else if (val != null && val.getClass().isEnum()) {
             return val.toString();
         } else {
-            return op.getOriginalValue();
+            return val;
         }
     }
 
     @Override
-    public boolean checkSkipCache(String key) {
+    public boolean checkSkipCache(FilterCacheKey key) {
         return SmartQueryCache.checkShouldSkip(getBucket(), key);
     }
 }
@@ -0,0 +1,443 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.exceptions.UsageException;
+import io.stallion.reflection.PropertyGetter;
+import io.stallion.utils.DateUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigInteger;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The operations of a FilterChain compiled into a tree of predicates.
+ *
+ * Each condition resolves its {@link PropertyGetter} once per model class, and coerces the
+ * filter value into the type of the property once per property type, rather than doing
+ * a reflective lookup and type hydration for every item that gets filtered.
+ *
+ * The tree of predicates only depends on the shape of the operations (the fields, operators,
+ * flags and value types), not on the values themselves, so it is cached by shape and shared
+ * across chains and threads. Each compiled filter binds its own values into the shared tree,
+ * so a filter for author=bob and one for author=sally use the same compiled tree.
+ */
+public final class CompiledFilter {
+    private static final int MAX_CACHED = 2000;
+
+    private static final ConcurrentHashMap<List<OperationShape>, Node> cache = new ConcurrentHashMap<>();
+
+    private static final CompiledFilter MATCH_ALL = new CompiledFilter(new AllOf(new Node[0]), new Object[0]);
+
+    private final Node root;
+    private final Object[] values;
+    // Filled in lazily as items are matched, possibly by several threads at once. The operands
+    // are immutable, so the worst a race can do is coerce the same value twice.
+    private final TypedOperand[] operands;
+
+    private CompiledFilter(Node root, Object[] values) {
+        this.root = root;
+        this.values = values;
+        this.operands = new TypedOperand[values.length];
+    }
+
+    /**
+     * Check whether the item matches the filter.
+     *
+     * @param item
+     * @return
+     */
+    public boolean matches(Object item) {
+        return root.matches(item, this);
+    }
+
+    /**
+     * Compile the operations, reusing the already compiled tree for operations with
+     * the same shape, and binding in the values of these operations.
+     *
+     * @param operations
+     * @return
+     */
+    public static CompiledFilter compile(List<FilterOperation> operations) {
+        if (operations.size() == 0) {
+            return MATCH_ALL;
+        }
+        List<OperationShape> shape = new ArrayList<>(operations.size());
+        List<Object> values = new ArrayList<>();
+        for (FilterOperation op: operations) {
+            shape.add(new OperationShape(op));
+            if (op.isOrOperation()) {
+                for (FilterOperation subOp: op.getOrSubOperations()) {
+                    values.add(subOp.getOriginalValue());
+                }
+            } else {
+                values.add(op.getOriginalValue());
+            }
+        }
+        Node root = cache.get(shape);
+        if (root == null) {
+            root = compileTree(operations);
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            Node existing = cache.putIfAbsent(shape, root);
+            if (existing != null) {
+                root = existing;
+            }
+        }
+        return new CompiledFilter(root, values.toArray());
+    }
+
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Builds the tree, numbering the conditions in the same order that compile()
+     * collects the values, so each condition knows which value slot is its own.
+     *
+     * @param operations
+     * @return
+     */
+    private static Node compileTree(List<FilterOperation> operations) {
+        Node[] parts = new Node[operations.size()];
+        int slot = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            FilterOperation op = operations.get(i);
+            Node node;
+            if (op.isOrOperation()) {
+                Node[] subNodes = new Node[op.getOrSubOperations().size()];
+                for (int j = 0; j < subNodes.length; j++) {
+                    subNodes[j] = new Condition(op.getOrSubOperations().get(j), slot++);
+                }
+                node = new AnyOf(subNodes);
+            } else {
+                node = new Condition(op, slot++);
+            }
+            if (op.getIsExclude()) {
+                node = new Not(node);
+            }
+            parts[i] = node;
+        }
+        return parts.length == 1 ? parts[0] : new AllOf(parts);
+    }
+
+    private TypedOperand operand(int slot, Object propValue) {
+        TypedOperand typed = operands[slot];
+        if (typed == null || typed.propClass != propValue.getClass()) {
+            typed = new TypedOperand(propValue.getClass(), coerce(values[slot], propValue), values[slot]);
+            operands[slot] = typed;
+        }
+        return typed;
+    }
+
+    /**
+     * Apply a bunch of heuristics to make sure we are comparing like types,
+     * we don't want to filter something out because we are comparing a Long to an Integer.
+     *
+     * @param originalValue - the value passed into the filter
+     * @param propValue - a non-null property value from an item being filtered
+     * @return the original value converted to the type of propValue, where possible
+     */
+    public static Object coerce(Object originalValue, Object propValue) {
+        if (originalValue == null) {
+            return null;
+        }
+        if (originalValue.getClass().equals(propValue.getClass())) {
+            return originalValue;
+        }
+        Object typedValue = null;
+        if (originalValue instanceof String) {
+            String val = (String) originalValue;
+            if (propValue instanceof Enum) {
+                typedValue = Enum.valueOf(((Enum) propValue).getDeclaringClass(), val);
+            } else if (propValue instanceof ZonedDateTime) {
+                if (val.length() == 16) {
+                    typedValue = ZonedDateTime.parse(val + ":00 UTC", DateUtils.SQL_FORMAT_ZONED);
+                } else if (val.length() == 19) {
+                    typedValue = ZonedDateTime.parse(val + " UTC", DateUtils.SQL_FORMAT_ZONED);
+                } else {
+                    typedValue = ZonedDateTime.parse(val, DateUtils.ISO_FORMAT);
+                }
+            } else if (propValue instanceof Integer) {
+                typedValue = Integer.parseInt(val);
+            } else if (propValue instanceof Long) {
+                typedValue = Long.parseLong(val);
+            } else if (propValue instanceof Boolean) {
+                typedValue = Boolean.parseBoolean(val);
+            }
+        } else if (originalValue instanceof BigInteger) {
+            typedValue = ((BigInteger) originalValue).longValue();
+        } else if (originalValue instanceof Integer && propValue instanceof Long) {
+            typedValue = ((Integer) originalValue).longValue();
+        } else if (originalValue instanceof Integer && propValue instanceof Float) {
+            typedValue = ((Integer) originalValue).floatValue();
+        } else if (originalValue instanceof Integer && propValue instanceof Double) {
+            typedValue = ((Integer) originalValue).doubleValue();
+        } else if (originalValue instanceof Long && propValue instanceof Double) {
+            typedValue = ((Long) originalValue).doubleValue();
+        } else if (originalValue instanceof Long && propValue instanceof Float) {
+            typedValue = ((Long) originalValue).floatValue();
+        } else if (propValue instanceof Boolean) {
+            if (originalValue instanceof Integer || originalValue instanceof Long) {
+                long num = ((Number) originalValue).longValue();
+                if (num == 0) {
+                    typedValue = false;
+                } else if (num == 1) {
+                    typedValue = true;
+                }
+            }
+        }
+        if (typedValue == null) {
+            typedValue = originalValue;
+        }
+        return typedValue;
+    }
+
+
+
+    /**
+     * The cache key for one operation. It includes the class of the value, since values of different
+     * types take different paths through coerce() (the String "5" will not equal an Integer property,
+     * but the Integer 5 will), but never the value itself.
+     */
+    private static class OperationShape {
+        private final String fieldName;
+        private final FilterOperator operator;
+        private final boolean exclude;
+        private final boolean caseInsensitive;
+        private final Class valueClass;
+        private final List<OperationShape> orShapes;
+        private final int hashCode;
+
+        OperationShape(FilterOperation op) {
+            this.fieldName = op.getFieldName();
+            this.operator = op.getOperator();
+            this.exclude = op.getIsExclude();
+            this.caseInsensitive = op.isCaseInsensitive();
+            this.valueClass = op.getOriginalValue() == null ? null : op.getOriginalValue().getClass();
+            this.orShapes = new ArrayList<>();
+            if (op.isOrOperation()) {
+                for (FilterOperation subOp: op.getOrSubOperations()) {
+                    orShapes.add(new OperationShape(subOp));
+                }
+            }
+            this.hashCode = Objects.hash(fieldName, operator, exclude, caseInsensitive, valueClass, orShapes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof OperationShape)) {
+                return false;
+            }
+            OperationShape other = (OperationShape) o;
+            return hashCode == other.hashCode &&
+                    exclude == other.exclude &&
+                    caseInsensitive == other.caseInsensitive &&
+                    operator == other.operator &&
+                    valueClass == other.valueClass &&
+                    Objects.equals(fieldName, other.fieldName) &&
+                    orShapes.equals(other.orShapes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * A node of the shared tree. The values come from the compiled filter doing the matching.
+     */
+    abstract static class Node {
+        abstract boolean matches(Object item, CompiledFilter bound);
+    }
+
+    static class AllOf extends Node {
+        private final Node[] nodes;
+
+        AllOf(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matches(Object item, CompiledFilter bound) {
+            for (Node node: nodes) {
+                if (!node.matches(item, bound)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class AnyOf extends Node {
+        private final Node[] nodes;
+
+        AnyOf(Node[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean matches(Object item, CompiledFilter bound) {
+            for (Node node: nodes) {
+                if (node.matches(item, bound)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Not extends Node {
+        private final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        boolean matches(Object item, CompiledFilter bound) {
+            return !node.matches(item, bound);
+        }
+    }
+
+    /**
+     * A single field/operator condition, without taking into account isExclude
+     * or "OR" sub-operations. The value is looked up by slot in the bound filter.
+     */
+    static class Condition extends Node {
+        private final String fieldName;
+        private final FilterOperator operator;
+        private final boolean caseInsensitive;
+        private final int slot;
+        private volatile BoundGetter boundGetter;
+
+        Condition(FilterOperation op, int slot) {
+            this.fieldName = op.getFieldName();
+            this.operator = op.getOperator();
+            this.caseInsensitive = op.isCaseInsensitive();
+            this.slot = slot;
+        }
+
+        @Override
+        boolean matches(Object item, CompiledFilter bound) {
+            BoundGetter getter = boundGetter;
+            if (getter == null || getter.itemClass != item.getClass()) {
+                getter = new BoundGetter(item.getClass(), PropertyGetter.forObject(item, fieldName));
+                boundGetter = getter;
+            }
+            Object propValue = getter.getter.get(item);
+            Object originalValue = bound.values[slot];
+
+            // Filter out nulls
+            if (propValue == null) {
+                return originalValue == null && operator == FilterOperator.EQUAL;
+            }
+            if (originalValue == null) {
+                return operator == FilterOperator.NOT_EQUAL;
+            }
+
+            if (caseInsensitive && propValue instanceof String) {
+                propValue = ((String) propValue).toLowerCase();
+            }
+
+            if (operator == FilterOperator.IN) {
+                for (Object val: (Iterable) propValue) {
+                    if (val.equals(originalValue)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (operator == FilterOperator.ANY) {
+                for (Object val: (Iterable) originalValue) {
+                    if (val.equals(propValue)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            TypedOperand typed = bound.operand(slot, propValue);
+
+            // When comparing booleans the string "true" should be considered true, and "false" false, this
+            // is important when applying a filter coming from an untyped query string.
+            if (typed.value instanceof Boolean && propValue instanceof String) {
+                return typed.stringValue.equalsIgnoreCase((String) propValue);
+            }
+
+            switch (operator) {
+                case EQUAL:
+                    return typed.value.equals(propValue);
+                case NOT_EQUAL:
+                    return !typed.value.equals(propValue);
+                case LIKE:
+                    return StringUtils.containsIgnoreCase(propValue.toString(), typed.stringValue);
+                case GREATER_THAN:
+                    return typed.comparable.compareTo(propValue) < 0;
+                case LESS_THAN:
+                    return typed.comparable.compareTo(propValue) > 0;
+                case GREATER_THAN_OR_EQUAL:
+                    return typed.comparable.compareTo(propValue) <= 0;
+                case LESS_THAN_OR_EQUAL:
+                    return typed.comparable.compareTo(propValue) >= 0;
+                default:
+                    throw new UsageException("You used an uninplemented filter operation: " + operator + " on field " + fieldName);
+            }
+        }
+    }
+
+    private static class BoundGetter {
+        private final Class itemClass;
+        private final PropertyGetter getter;
+
+        BoundGetter(Class itemClass, PropertyGetter getter) {
+            this.itemClass = itemClass;
+            this.getter = getter;
+        }
+    }
+
+    private static class TypedOperand {
+        private final Class propClass;
+        private final Object value;
+        private final String stringValue;
+        private final Comparable comparable;
+
+        TypedOperand(Class propClass, Object value, Object originalValue) {
+            this.propClass = propClass;
+            this.value = value;
+            this.stringValue = value.toString();
+            if (value instanceof Comparable) {
+                this.comparable = (Comparable) value;
+            } else if (originalValue instanceof Comparable) {
+                this.comparable = (Comparable) originalValue;
+            } else {
+                this.comparable = null;
+            }
+        }
+    }
+}
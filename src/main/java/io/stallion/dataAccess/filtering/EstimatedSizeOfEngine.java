@@ -31,6 +31,17 @@ public class EstimatedSizeOfEngine implements SizeOfEngine {
 
     @Override
     public Size sizeOf(Object key, Object value, Object container) {
+        return new Size(estimateSize(value), false);
+    }
+
+    /**
+     * Very roughly estimate the heap size of a cached value, assuming that
+     * each item in a result is about 10KB.
+     *
+     * @param value
+     * @return
+     */
+    public static long estimateSize(Object value) {
         int itemCount = 0;
         if (value instanceof Pager) {
             itemCount = ((Pager) value).getItems().size();
@@ -39,11 +50,10 @@ public class EstimatedSizeOfEngine implements SizeOfEngine {
         }
 
         if (itemCount > 0) {
-            return new Size(10000 * itemCount, false);
+            return 10000L * itemCount;
         } else {
-            return new Size(10000, false);
+            return 10000L;
         }
-
     }
 
     @Override
@@ -19,48 +19,55 @@ package io.stallion.dataAccess.filtering;
 
 import io.stallion.services.Log;
 import io.stallion.settings.Settings;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.config.Configuration;
-import net.sf.ehcache.config.PersistenceConfiguration;
 
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.stallion.utils.Literals.list;
+import static io.stallion.utils.Literals.or;
 
 /**
  * A cache used by filters to cache the results of filtering queries,
- * default TTL is 25 seconds, the cache is expired every time there is
+ * default TTL is 60 seconds, the cache is expired every time there is
  * any sort of update to an item in the bucket.
  *
+ * Each bucket gets its own FilterResultCache. Expiring a bucket just bumps
+ * its generation counter, so writes stay cheap even when the bucket holds
+ * many cached results.
+ *
  */
 public class FilterCache {
 
-    private static CacheManager manager;
+    private static final long TTL_MILLIS = 60 * 1000;
+    private static Map<String, FilterResultCache> caches;
     private static TimerTask evictThread;
     private static Timer evictThreadTimer;
 
 
     public static void start() {
-        if (manager == null) {
+        if (caches == null) {
             load();
         }
 
         // Every 5 minutes, evict all expired elements from the cache so they do not build up over time
         evictThread = new TimerTask() {
             public void run() {
-                Thread.currentThread().setName("stallion-ehcache-evict-task");
-                if (manager == null) {
+                Thread.currentThread().setName("stallion-filter-cache-evict-task");
+                Map<String, FilterResultCache> theCaches = caches;
+                if (theCaches == null) {
                     return;
                 }
-                for(String name: manager.getCacheNames()) {
-                    manager.getCache(name).evictExpiredElements();
+                for(FilterResultCache cache: theCaches.values()) {
+                    cache.cleanUp();
                 }
             }
         };
 
-        evictThreadTimer = new Timer("stallion-ehcache-evict-timer");
+        evictThreadTimer = new Timer("stallion-filter-cache-evict-timer", true);
         evictThreadTimer.scheduleAtFixedRate(evictThread, 0, 5 * 60 * 1000);
     }
 
@@ -73,97 +80,98 @@ public class FilterCache {
             evictThread.cancel();
             evictThread = null;
         }
-        if (manager != null) {
-            manager.shutdown();
-            manager = null;
-        }
+        caches = null;
     }
 
 
     public static void load() {
-        Log.finest("Load cache manager.");
-        Configuration config = new Configuration();
-        config.setName("stallionFilterCache");
-        CacheManager.create(config);
-        manager = CacheManager.create();
-        Log.finest("Cache manager created.");
+        Log.finest("Load filter cache.");
+        if (caches == null) {
+            caches = new ConcurrentHashMap<>();
+        }
     }
 
     public static void initCache(String bucket) {
         Log.finer("Init cache for {0}", bucket);
-        if (manager == null) {
+        if (caches == null) {
             load();
         }
-        if (manager.getCache(bucket) != null) {
-            return;
-        }
-        // We have to do this way because there is no way to programmmatically configured the
-        // sizeOfEngine
-        System.setProperty("net.sf.ehcache.sizeofengine.stallionFilterCache." + bucket, "io.stallion.dataAccess.filtering.EstimatedSizeOfEngine");
-
-        CacheConfiguration config = new CacheConfiguration();
-        config.setName(bucket);
-        // Max cache size is very approximately, 50MB
-
-        config.setMaxBytesLocalHeap(Settings.instance().getFilterCacheSize());
-        //config.setDiskPersistent(false);
-        //config.setMaxElementsOnDisk(0);
-        //config.setMaxBytesLocalDisk(0L);
-        config.setOverflowToOffHeap(false);
-        PersistenceConfiguration persistenceConfiguration = new PersistenceConfiguration();
-        persistenceConfiguration.strategy(PersistenceConfiguration.Strategy.NONE);
-
-        config.persistence(persistenceConfiguration);
-        //SizeOfPolicyConfiguration sizeOfPolicyConfiguration = new SizeOfPolicyConfiguration();
-        //sizeOfPolicyConfiguration.
-        //config.addSizeOfPolicy();
-        //config.set
-        Log.finest("Construct new cache for " + bucket);
-        Cache cache = new Cache(config);
-
-        manager.addCache(cache);
-
-        //Cache cache = manager.getCache(bucket);
-        //CacheConfiguration config = cache.getCacheConfiguration();
-
-
-        //config.setMaxBytesLocalHeap(150000000L);
-        Log.finer("Finish cache for {0}", bucket);
+        cacheFor(bucket);
+    }
+
+    private static FilterResultCache cacheFor(String bucket) {
+        return caches.computeIfAbsent(bucket, b ->
+                new FilterResultCache(b, or(Settings.instance().getFilterCacheSize(), 5000000L), TTL_MILLIS));
     }
 
 
-    public static Object get(String bucket, String key) {
-        if (manager == null) {
+    public static Object get(String bucket, Object key) {
+        if (caches == null) {
             return null;
         }
-        Cache cache = manager.getCache(bucket);
+        FilterResultCache cache = caches.get(bucket);
         if (cache == null) {
             return null;
         }
-        Element element = cache.get(key);
-        if (element != null) {
-            return element.getObjectValue();
+        return cache.get(key);
+    }
+
+    /**
+     * Gets the current generation for the bucket. Read this before computing a
+     * result and pass it to set(), so that the result is thrown away if the
+     * bucket was written to in the meantime.
+     *
+     * @param bucket
+     * @return
+     */
+    public static long getGeneration(String bucket) {
+        if (caches == null) {
+            load();
         }
-        return null;
+        return cacheFor(bucket).getGeneration();
+    }
 
+    public static void set(String bucket, Object key, Object value) {
+        set(bucket, key, value, getGeneration(bucket));
     }
 
-    public static void set(String bucket, String key, Object value) {
-        if (manager == null) {
+    public static void set(String bucket, Object key, Object value, long generation) {
+        if (caches == null) {
             load();
         }
-        if (!manager.cacheExists(bucket)) {
-            initCache(bucket);
-        }
-        Element element = new Element(key, value);
-        element.setTimeToLive(60);
-        manager.getCache(bucket).put(element);
+        cacheFor(bucket).put(key, value, generation);
     }
 
+    /**
+     * Expire all cached results for the bucket.
+     *
+     * @param bucket
+     */
     public static void clearBucket(String bucket) {
-        if (manager.cacheExists(bucket) && manager.getCache(bucket).getSize() > 0) {
-            manager.getCache(bucket).removeAll();
+        if (caches == null) {
+            return;
+        }
+        FilterResultCache cache = caches.get(bucket);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Get the hit, miss and eviction counters for every bucket, ordered by bucket name.
+     *
+     * @return
+     */
+    public static List<FilterCacheStats> getStats() {
+        List<FilterCacheStats> stats = list();
+        if (caches == null) {
+            return stats;
+        }
+        for (FilterResultCache cache: caches.values()) {
+            stats.add(cache.getStats());
         }
+        stats.sort(Comparator.comparing(FilterCacheStats::getBucket));
+        return stats;
     }
 
 }
@@ -0,0 +1,155 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The key that a FilterChain result is cached under. It is built directly from
+ * the chain's operations, sorting, aggregate columns and paging, and compares
+ * them structurally, so a cache lookup does not need to build and hash a string.
+ *
+ * Operation values are compared with equals(), so filtering on 2 and on 2L
+ * are cached separately. Collection values are copied into arrays, so that
+ * changing the collection after running the query does not change the key.
+ */
+public final class FilterCacheKey {
+    private final String methodName;
+    private final Object[] methodArgs;
+    private final String bucket;
+    private final Object[] operations;
+    private final boolean includeDeleted;
+    private final String sortField;
+    private final SortDirection sortDirection;
+    private final String secondarySortField;
+    private final SortDirection secondarySortDirection;
+    private final String extraCacheKey;
+    private final Object[] sumColumns;
+    private final Object[] averageColumns;
+    private final int hash;
+
+    FilterCacheKey(FilterChain chain, String methodName, Object[] methodArgs) {
+        this.methodName = methodName;
+        this.methodArgs = methodArgs;
+        this.bucket = chain.getBucket();
+        this.operations = toParts(chain.getOperations());
+        this.includeDeleted = Boolean.TRUE.equals(chain.getIncludeDeleted());
+        this.sortField = chain.getSortField();
+        this.sortDirection = chain.getSortDirection();
+        this.secondarySortField = chain.getSecondarySortField();
+        this.secondarySortDirection = chain.getSecondarySortDirection();
+        this.extraCacheKey = chain.getExtraCacheKey();
+        this.sumColumns = chain.getSumColumns().toArray();
+        this.averageColumns = chain.getAverageColumns().toArray();
+
+        int h = methodName.hashCode();
+        h = 31 * h + Arrays.deepHashCode(methodArgs);
+        h = 31 * h + Objects.hashCode(bucket);
+        h = 31 * h + Arrays.deepHashCode(operations);
+        h = 31 * h + (includeDeleted ? 1 : 0);
+        h = 31 * h + Objects.hashCode(sortField);
+        h = 31 * h + Objects.hashCode(sortDirection);
+        h = 31 * h + Objects.hashCode(secondarySortField);
+        h = 31 * h + Objects.hashCode(secondarySortDirection);
+        h = 31 * h + Objects.hashCode(extraCacheKey);
+        h = 31 * h + Arrays.hashCode(sumColumns);
+        h = 31 * h + Arrays.hashCode(averageColumns);
+        this.hash = h;
+    }
+
+    private static Object[] toParts(List<FilterOperation> ops) {
+        Object[] parts = new Object[ops.size()];
+        for (int i = 0; i < ops.size(); i++) {
+            FilterOperation op = ops.get(i);
+            Object value = op.getOriginalValue();
+            if (value instanceof Collection) {
+                value = ((Collection) value).toArray();
+            }
+            parts[i] = new Object[] {
+                    op.getFieldName(),
+                    op.getOperator(),
+                    op.getIsExclude(),
+                    op.isCaseInsensitive(),
+                    value,
+                    op.isOrOperation() ? toParts(op.getOrSubOperations()) : null
+            };
+        }
+        return parts;
+    }
+
+    boolean matches(String otherMethodName, Object[] otherMethodArgs) {
+        return methodName.equals(otherMethodName) && Arrays.deepEquals(methodArgs, otherMethodArgs);
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FilterCacheKey)) {
+            return false;
+        }
+        FilterCacheKey other = (FilterCacheKey) obj;
+        return hash == other.hash &&
+                includeDeleted == other.includeDeleted &&
+                methodName.equals(other.methodName) &&
+                sortDirection == other.sortDirection &&
+                secondarySortDirection == other.secondarySortDirection &&
+                Objects.equals(bucket, other.bucket) &&
+                Objects.equals(sortField, other.sortField) &&
+                Objects.equals(secondarySortField, other.secondarySortField) &&
+                Objects.equals(extraCacheKey, other.extraCacheKey) &&
+                Arrays.equals(sumColumns, other.sumColumns) &&
+                Arrays.equals(averageColumns, other.averageColumns) &&
+                Arrays.deepEquals(methodArgs, other.methodArgs) &&
+                Arrays.deepEquals(operations, other.operations);
+    }
+
+    /**
+     * A readable version of the key, for logging. This is built on every call,
+     * so do not use it on any hot path.
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return methodName + Arrays.deepToString(methodArgs) + " " + bucket + " " + Arrays.deepToString(operations) +
+                " includeDeleted=" + includeDeleted +
+                " sort=" + sortField + " " + sortDirection +
+                " secondarySort=" + secondarySortField + " " + secondarySortDirection +
+                " extra=" + extraCacheKey +
+                " sum=" + Arrays.toString(sumColumns) +
+                " avg=" + Arrays.toString(averageColumns);
+    }
+}
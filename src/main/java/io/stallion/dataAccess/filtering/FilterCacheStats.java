@@ -0,0 +1,163 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+/**
+ * A snapshot of the counters of the filter result cache for one bucket.
+ */
+public class FilterCacheStats {
+    private String bucket = "";
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+    private long generation = 0;
+    private long entries = 0;
+    private long weight = 0;
+    private long maxWeight = 0;
+
+    /**
+     * The fraction of lookups that found a usable result, from 0 to 1.
+     *
+     * @return
+     */
+    public double getHitRate() {
+        long total = hits + misses;
+        if (total == 0) {
+            return 0;
+        }
+        return (double) hits / (double) total;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public FilterCacheStats setBucket(String bucket) {
+        this.bucket = bucket;
+        return this;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public FilterCacheStats setHits(long hits) {
+        this.hits = hits;
+        return this;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public FilterCacheStats setMisses(long misses) {
+        this.misses = misses;
+        return this;
+    }
+
+    /**
+     * The number of entries removed to keep the cache within its size.
+     *
+     * @return
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public FilterCacheStats setEvictions(long evictions) {
+        this.evictions = evictions;
+        return this;
+    }
+
+    /**
+     * The number of entries dropped because they outlived their TTL.
+     *
+     * @return
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public FilterCacheStats setExpirations(long expirations) {
+        this.expirations = expirations;
+        return this;
+    }
+
+    /**
+     * The number of times the whole bucket was invalidated by a write.
+     *
+     * @return
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public FilterCacheStats setInvalidations(long invalidations) {
+        this.invalidations = invalidations;
+        return this;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public FilterCacheStats setGeneration(long generation) {
+        this.generation = generation;
+        return this;
+    }
+
+    /**
+     * The number of entries held, including ones from older generations that
+     * have not yet been cleaned up.
+     *
+     * @return
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    public FilterCacheStats setEntries(long entries) {
+        this.entries = entries;
+        return this;
+    }
+
+    /**
+     * The estimated size of all entries held, in bytes.
+     *
+     * @return
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public FilterCacheStats setWeight(long weight) {
+        this.weight = weight;
+        return this;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public FilterCacheStats setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        return this;
+    }
+}
@@ -17,6 +17,7 @@
 
 package io.stallion.dataAccess.filtering;
 
+import io.stallion.dataAccess.ColumnStore;
 import io.stallion.dataAccess.DataAccessRegistry;
 import io.stallion.dataAccess.LocalMemoryStash;
 import io.stallion.dataAccess.Model;
@@ -26,16 +27,11 @@ import io.stallion.reflection.ModelDoublePropertyComparator;
 import io.stallion.reflection.ModelPropertyComparator;
 import io.stallion.reflection.PropertyUtils;
 import io.stallion.services.Log;
-import io.stallion.utils.DateUtils;
 import io.stallion.utils.Literals;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.persistence.Column;
 import javax.ws.rs.NotFoundException;
-import java.math.BigInteger;
-import java.time.LocalDate;
-import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.function.Consumer;
 
@@ -62,6 +58,9 @@ import static io.stallion.utils.Literals.list;
  * @param <T>
  */
 public class FilterChain<T extends Model> implements Iterable<T> {
+    // Use a partial sort when the requested pages are less than this fraction of the matching items
+    private static final int TOP_K_RATIO = 4;
+
     private List<T> originalObjects;
     private List<T> objects;
     protected ArrayList<FilterOperation> operations = new ArrayList<FilterOperation>();
@@ -75,12 +74,17 @@ public class FilterChain<T extends Model> implements Iterable<T> {
     private Integer matchingCount = 0;
     private LocalMemoryStash<T> stash;
     private boolean useCache = true;
+    // The generation of the bucket cache when we first checked it, a result computed after
+    // a write to the bucket cannot get cached under the old generation
+    private Long cacheGeneration = null;
+    private FilterCacheKey lastCacheKey = null;
     private boolean idAsSecondarySort = true;
     private List<String> sumColumns = list();
     private List<String> averageColumns = list();
 
     private Map<String, Double> averages = null;
     private Map<String, Double> sums = null;
+    private boolean matchingCountEstimated = false;
 
     public FilterChain(String bucket) {
         this.bucket = bucket;
@@ -397,7 +401,7 @@ public class FilterChain<T extends Model> implements Iterable<T> {
      * @return
      */
     public List<FilterGroup<T>> countBy(String...fieldNames) {
-        Object cached = getCached("countBy");
+        Object cached = getCached("countBy", (Object[]) fieldNames);
         if (cached != null) {
             return (List<FilterGroup<T>>)cached;
         }
@@ -406,21 +410,12 @@ public class FilterChain<T extends Model> implements Iterable<T> {
         }
 
         HashMap<String, FilterGroup<T>> groupByGroupKey = new HashMap<>();
-        boolean[] hasDot = new boolean[fieldNames.length];
-        for (int i=0; i<fieldNames.length;i++) {
-            hasDot[i] = fieldNames[i].contains(".");
-        }
+        // Reading the properties is the expensive part, so for large results the keys are built in parallel
+        String[] itemGroupKeys = ParallelFilter.groupKeys(objects, fieldNames, ParallelFilter.shouldParallelize(objects));
         List<String> groupKeys = new ArrayList<>();
-        for(T o: objects) {
-            String groupKey = "";
-            for (int i=0; i<fieldNames.length; i++) {
-                String fieldName = fieldNames[i];
-                if (hasDot[i]) {
-
-                } else {
-                    groupKey += PropertyUtils.getProperty(o, fieldName).toString() + Literals.GSEP;
-                }
-            }
+        for (int x = 0; x < itemGroupKeys.length; x++) {
+            T o = objects.get(x);
+            String groupKey = itemGroupKeys[x];
             if (!groupByGroupKey.containsKey(groupKey)) {
                 groupByGroupKey.put(groupKey, new FilterGroup<T>(groupKey));
                 groupKeys.add(groupKey);
@@ -432,7 +427,7 @@ public class FilterChain<T extends Model> implements Iterable<T> {
         for (String groupKey: groupKeys) {
             groups.add(groupByGroupKey.get(groupKey));
         }
-        setCached("countBy", groups);
+        setCached("countBy", groups, (Object[]) fieldNames);
         return groups;
     }
 
@@ -450,7 +445,7 @@ public class FilterChain<T extends Model> implements Iterable<T> {
      * @return
      */
     public List<FilterGroup<T>> groupBy(String...fieldNames) {
-        Object cached = getCached("groupBy");
+        Object cached = getCached("groupBy", (Object[]) fieldNames);
         if (cached != null) {
             return (List<FilterGroup<T>>)cached;
         }
@@ -458,7 +453,7 @@ public class FilterChain<T extends Model> implements Iterable<T> {
             process();
         }
         List<FilterGroup<T>> groups = groupBy(objects, fieldNames);
-        setCached("groupBy", groups);
+        setCached("groupBy", groups, (Object[]) fieldNames);
         return groups;
     }
 
@@ -742,8 +737,8 @@ public class FilterChain<T extends Model> implements Iterable<T> {
      * @return
      */
     public Pager<T> pager(Integer page, Integer size)  {
-        String methodKey = "pager"  + Literals.GSEP + page + Literals.GSEP + size;
-        Object cached = getCached(methodKey);
+        Object[] pagerArgs = {page, size};
+        Object cached = getCached("pager", pagerArgs);
         if (cached != null) {
             return (Pager)cached;
         }
@@ -795,10 +790,154 @@ public class FilterChain<T extends Model> implements Iterable<T> {
                 pager.setPageCount(pager.getPageCount() + 1);
             }
         }
-        setCached(methodKey, pager);
+        setCached("pager", pager, pagerArgs);
+        return pager;
+    }
+
+
+    /**
+     * Alias for cursorPager(continuationToken, size, TotalCountMode.EXACT)
+     *
+     * @param continuationToken
+     * @param size
+     * @return
+     */
+    public Pager<T> cursorPager(String continuationToken, Integer size) {
+        return cursorPager(continuationToken, size, TotalCountMode.EXACT);
+    }
+
+    /**
+     * Returns a page of items using keyset (seek) pagination. Instead of a page number,
+     * pass in the continuation token from the previous page (or null for the first page).
+     * The next page starts right after the sort value and id of the last item on the
+     * previous page, so a database query can seek straight to it with an index, rather
+     * than reading and throwing away every row before an offset.
+     *
+     * Items are ordered by the sort field and then by id (by id alone, if there is no sort
+     * field). Secondary sorts are not supported. The token is only valid for a chain with
+     * the same sort.
+     *
+     * @param continuationToken - Pager.getContinuationToken() from the previous page, or null
+     * @param size - how many items are on a page
+     * @param countMode - whether to count all matching items exactly, estimate, or skip counting
+     * @return
+     */
+    public Pager<T> cursorPager(String continuationToken, Integer size, TotalCountMode countMode) {
+        if (!Literals.empty(getSecondarySortField())) {
+            throw new UsageException("A cursor pager cannot be used with a secondary sort");
+        }
+        if (Literals.empty(getSortField())) {
+            return sortBy("id", SortDirection.ASC).cursorPager(continuationToken, size, countMode);
+        }
+        if (size == null || size < 1) {
+            size = 10;
+        }
+        if (countMode == null) {
+            countMode = TotalCountMode.EXACT;
+        }
+        Object[] pagerArgs = {continuationToken, size, countMode};
+        Object cached = getCached("cursorPager", pagerArgs);
+        if (cached != null) {
+            return (Pager)cached;
+        }
+        PageCursor after = null;
+        if (!Literals.empty(continuationToken)) {
+            after = PageCursor.decode(continuationToken);
+            after.checkMatches(getSortField(), getSortDirection());
+        }
+        matchingCountEstimated = false;
+        processSeek(after, size, countMode);
+
+        // One extra item is fetched to find out if there is a next page
+        List<T> items = objects;
+        boolean hasNext = items.size() > size;
+        if (hasNext) {
+            items = new ArrayList<>(items.subList(0, size));
+        }
+        objects = items;
+
+        Pager pager = new Pager();
+        pager.setCurrentItems(items);
+        pager.setSums(sums);
+        pager.setAverages(averages);
+        pager.setItemsPerPage(size);
+        pager.setHasPreviousPage(after != null);
+        pager.setHasNextPage(hasNext);
+        if (hasNext) {
+            pager.setContinuationToken(continuationTokenAfter(items.get(items.size() - 1)));
+        }
+        pager.setTotalCount(getMatchingCount());
+        pager.setTotalCountEstimated(matchingCountEstimated);
+        if (getMatchingCount() >= 0) {
+            pager.setPageCount((getMatchingCount() + size - 1) / size);
+        }
+        setCached("cursorPager", pager, pagerArgs);
         return pager;
     }
 
+    /**
+     * Create the continuation token that points just past the given item.
+     *
+     * @param item
+     * @return
+     */
+    protected String continuationTokenAfter(T item) {
+        return PageCursor.after(item, getSortField(), getSortDirection()).encode();
+    }
+
+    /**
+     * Fill in the objects with the items that come after the cursor (up to size + 1 of them,
+     * so the pager can tell if there is a next page), and the matching count according to
+     * the count mode. The in memory version filters and sorts everything once, caches the
+     * sorted matches, and then for each page finds where the cursor falls with a binary search.
+     *
+     * @param after - the cursor to start after, or null for the first page
+     * @param size
+     * @param countMode
+     */
+    protected void processSeek(PageCursor after, int size, TotalCountMode countMode) {
+        SortedMatches<T> matches = sortedMatches();
+        List<T> items = matches.items;
+        sums = matches.sums;
+        averages = matches.averages;
+        matchingCount = items.size();
+        int start = 0;
+        if (after != null) {
+            int low = 0;
+            int high = items.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (after.compareTo(items.get(mid)) > 0) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            start = low;
+        }
+        objects = new ArrayList<>(items.subList(start, Math.min(items.size(), start + size + 1)));
+        if (countMode == TotalCountMode.NONE) {
+            matchingCount = -1;
+        }
+    }
+
+    /**
+     * Gets every matching item, filtered and sorted, from the filter cache, so that paging
+     * through with a cursor only has to filter and sort once per change to the data,
+     * rather than once per page.
+     *
+     * @return
+     */
+    private SortedMatches<T> sortedMatches() {
+        SortedMatches<T> matches = (SortedMatches<T>) getCached("sortedMatches");
+        if (matches != null) {
+            return matches;
+        }
+        process(1, 0, true);
+        matches = new SortedMatches<>(objects, sums, averages);
+        setCached("sortedMatches", matches);
+        return matches;
+    }
 
     /**
      * Alias for process(0, 100000, false)
@@ -817,74 +956,75 @@ public class FilterChain<T extends Model> implements Iterable<T> {
      *                             we are returning a subet
      */
     protected void process(int page, int size, boolean fetchTotalMatching)  {
-        List<T> availableItems = originalObjects;
-
-        boolean hydrated = tryHydrateObjectsBasedOnUniqueKey();
-        if (hydrated) {
-            return;
-        }
-
-        // If we are filtering on a key, then we can reduce to a subset the number of items we have to look at
-        for (FilterOperation op : operations) {
-            if (op.isOrOperation()) {
-                continue;
-            }
-            if (!op.getIsExclude() && op.getOperator().equals(FilterOperator.EQUAL) && stash != null && stash.getUniqueFields().contains(op.getFieldName())) {
-                T availableItem = stash.forUniqueKey(op.getFieldName(), op.getOriginalValue());
-                if (availableItem != null) {
-                    availableItems = list(availableItem);
-                } else {
-                    availableItems = list();
+        // Decide which indexes to use to narrow down the items we have to look at
+        FilterPlan<T> plan = FilterPlan.plan(this, stash, originalObjects);
+        Iterable<T> source = plan.getSource();
+        boolean presorted = plan.isPresorted();
+
+        boolean aggregating = sumColumns.size() > 0 || averageColumns.size() > 0;
+
+        // When the items are already in order and we do not need the total count, we can stop once the page is full
+        int stopAfter = Integer.MAX_VALUE;
+        if (presorted && !fetchTotalMatching && !aggregating && size > 0) {
+            stopAfter = Math.max(page, 1) * size;
+        }
+
+        // Filter down the source into items, based on applying the compiled filter operations to each item
+        CompiledFilter filter = CompiledFilter.compile(plan.getResidualOperations());
+        boolean includeDeleted = getIncludeDeleted();
+        boolean parallel = stopAfter == Integer.MAX_VALUE && ParallelFilter.shouldParallelize(source);
+        List<T> items;
+        if (parallel) {
+            items = ParallelFilter.filter((List<T>) source, filter, includeDeleted);
+        } else {
+            items = new ArrayList<T>();
+            for (T o : source) {
+                if (!includeDeleted && o.getDeleted() != null && o.getDeleted() == true) {
+                    continue;
                 }
-                break;
-            }
-            if (!op.getIsExclude() && op.getOperator().equals(FilterOperator.EQUAL) && stash != null && stash.getKeyFields().contains(op.getFieldName())) {
-                availableItems = stash.listForKey(op.getFieldName(), op.getOriginalValue());
-                if (availableItems == null) {
-                    availableItems = list();
+                if (filter.matches(o)) {
+                    items.add(o);
+                    if (items.size() >= stopAfter) {
+                        break;
+                    }
                 }
-                break;
             }
         }
 
-        // Filter down availableItems into items, based on applying the filter operations to each item
-        List<T> items = new ArrayList<T>();
-        for(T o: availableItems) {
-            Boolean exclude = false;
-            if (getIncludeDeleted() != true && o.getDeleted() != null && o.getDeleted() == true) {
-                continue;
-            }
-            for (FilterOperation operation: getOperations()) {
-                boolean matches = checkItemMatchesFilterAndExcludes(operation, o);
-                if (!matches) {
-                    exclude = true;
-                    break;
-                }
-            }
-            if (!exclude) {
-                items.add(o);
-            }
+        // Get the total count that matched the filtering
+        int totalMatching = items.size();
+
+        // Sum and average over all matching items, not just the current page
+        ColumnStore.Selection<T> selection = plan.getColumnSelection();
+        if (aggregating && selection != null && selection.hasTotals() && plan.getResidualOperations().isEmpty()) {
+            // The column scan matched exactly, so the totals it computed from the primitive arrays are final
+            sums = selection.getSums(sumColumns);
+            averages = selection.getAverages(averageColumns);
+        } else if (aggregating) {
+            // One pass over the items totals up every column that is summed or averaged
+            Set<String> totalColumns = new LinkedHashSet<>(sumColumns);
+            totalColumns.addAll(averageColumns);
+            ParallelFilter.Totals totals = ParallelFilter.totals(items, new ArrayList<>(totalColumns), ParallelFilter.shouldParallelize(items));
+            sums = totals.getSums(sumColumns);
+            averages = totals.getAverages(averageColumns);
         }
 
         // Apply the sort
-        if (!Literals.empty(getSortField())) {
-            //BeanComparator beanComparator = new BeanComparator(getSortField());
-            if (!Literals.emptyObject(getSecondarySortField())) {
-                ModelDoublePropertyComparator comparator = new ModelDoublePropertyComparator(getSortField(), getSortDirection(), getSecondarySortField(), getSecondarySortDirection());
-                Collections.sort(items, comparator);
+        if (!presorted && !Literals.empty(getSortField())) {
+            Comparator<T> comparator = newSortComparator();
+            int topCount = size > 0 ? Math.max(page, 1) * size : 0;
+            if (topCount > 0 && topCount * TOP_K_RATIO < items.size()) {
+                // We only need the first few pages, so keep the best items in a bounded heap
+                // rather than sorting every matching item.
+                items = sortedTopK(items, comparator, topCount);
             } else {
-                ModelPropertyComparator comparator = new ModelPropertyComparator(getSortField(), isIdAsSecondarySort());
                 Collections.sort(items, comparator);
-                if (getSortDirection().equals(SortDirection.DESC)) {
-                    Collections.reverse(items);
-                }
             }
         }
 
         // Set the internal objects fields to the filtered and sorted items;
         objects = items;
-        // Get the total count that matched the filtering
-        matchingCount = objects.size();
+        matchingCount = totalMatching;
 
         // If we are implementing paging, and want to limit the objects to a page,
         // we do so here.
@@ -905,315 +1045,101 @@ public class FilterChain<T extends Model> implements Iterable<T> {
         }
     }
 
-    private boolean tryHydrateObjectsBasedOnUniqueKey() {
-        boolean matchedUnique = true;
-
-        if (operations.size() > 1) {
-            return false;
-        }
-
-        // If we are filtering on the id, or on a unique key, then we can short circuit the process
-        for (FilterOperation op: operations) {
-            if (!"=".equals(op.getOperator()) || op.getIsExclude()) {
-                continue;
-            }
-            if (!op.getFieldName().equals("id") && !stash.getUniqueFields().contains(op.getFieldName())) {
-                continue;
-            }
-            T o = null;
-            if (op.getFieldName().equals("id")) {
-                o = stash.forId((Long)op.getOriginalValue());
-            } else {
-                o = stash.forUniqueKey(op.getFieldName(), op.getOriginalValue());
-            }
-            if (o == null) {
-                objects = list();
-                return true;
-            }
-            if (!getIncludeDeleted() && o.getDeleted()) {
-                objects = list();
-                return true;
-            }
-            objects = list(o);
-            matchingCount = 1;
-            return true;
-        }
-        return false;
-    }
-
-
     /**
-     * Checks whether the object matches the complete FilterOperation, taking into account
-     * OR subOperations and the isExcludes flag.
+     * Create the comparator for the sort field and direction (and the secondary sort, if there is one). Ties
+     * are broken by id, so that the order is stable no matter how the items were sorted.
      *
-     * @param op
-     * @param o
      * @return
      */
-    private boolean checkItemMatchesFilterAndExcludes(FilterOperation op, T o) {
-        // Handle an OR operation by getting a list of or requirements and recursing down
-        boolean matches = false;
-        if (op.isOrOperation()) {
-            for(FilterOperation subOp: op.getOrSubOperations()) {
-                boolean thisMatches = checkItemMatchesFilterConditions(subOp, o);
-                if (thisMatches){
-                    matches = true;
-                    break;
-                }
-            }
-        } else {
-            matches = checkItemMatchesFilterConditions(op, o);
+    protected Comparator<T> newSortComparator() {
+        if (!Literals.emptyObject(getSecondarySortField())) {
+            return new ModelDoublePropertyComparator<T>(getSortField(), getSortDirection(), getSecondarySortField(), getSecondarySortDirection());
         }
-        if (op.getIsExclude()) {
-            return !matches;
-        } else {
-            return matches;
+        Comparator<T> comparator = new ModelPropertyComparator<T>(getSortField(), isIdAsSecondarySort());
+        if (SortDirection.DESC.equals(getSortDirection())) {
+            comparator = comparator.reversed();
         }
+        return comparator;
     }
 
     /**
-     * Check whether the operation conditions match the object, without taking into account
-     * isExcludes or "OR" subOperations.
+     * Get the first k items of the list in sorted order, using a bounded heap, which takes
+     * O(n log k) rather than the O(n log n) of sorting the whole list.
      *
-     * @param op
-     * @param o
+     * @param items
+     * @param comparator
+     * @param k
+     * @param <Y>
      * @return
      */
-    private boolean checkItemMatchesFilterConditions(FilterOperation op, T o) {
-
-        Object propValue = null;
-        if (op.hasDot()) {
-            propValue = PropertyUtils.getDotProperty(o, op.getFieldName());
-        } else {
-            propValue = PropertyUtils.getPropertyOrMappedValue(o, op.getFieldName());
-        }
-
-        // Filter out nulls
-        if (propValue == null) {
-            if (propValue == null && op.getOriginalValue() != null) {
-                return false;
-            }
-            if (propValue == null && op.getOriginalValue() == null && op.getOperator().equals(FilterOperator.EQUAL)) {
-                return true;
+    static <Y> List<Y> sortedTopK(List<Y> items, Comparator<? super Y> comparator, int k) {
+        // The head of the heap is the worst of the items kept so far
+        PriorityQueue<Y> heap = new PriorityQueue<Y>(k + 1, Collections.reverseOrder(comparator));
+        for (Y item: items) {
+            if (heap.size() < k) {
+                heap.add(item);
+            } else if (comparator.compare(item, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(item);
             }
-        } else if (op.getOriginalValue() == null) {
-            if (op.getOperator().equals(FilterOperator.NOT_EQUAL)) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-        if (propValue != null && op.getOriginalValue() == null )
-
-        if (op.isCaseInsensitive() && propValue instanceof String) {
-            propValue = ((String) propValue).toLowerCase();
-        }
-
-        // Handle the IN operator
-        if (op.getOperator().equals(FilterOperator.IN)) {
-            Boolean isIn = false;
-            Iterable values = (Iterable)propValue;
-            for(Object val: values) {
-                if (val.equals(op.getOriginalValue())) {
-                    isIn = true;
-                    break;
-                }
-            }
-            return isIn;
-        }
-        if (op.getOperator().equals(FilterOperator.ANY)) {
-            Iterable vals = (Iterable)op.getOriginalValue();
-            boolean matches = false;
-            for (Object val: vals) {
-                if (val.equals(propValue)) {
-                    matches = true;
-                    break;
-                }
-            }
-            return matches;
-        }
-
-        // Apply a bunch of heuristics to make sure we are comparing like types,
-        // we don't want to filter something out because we are comparing a Long to an Integer
-        hydrateTypedValue(op, propValue);
-
-        // Filter out nulls again, based on type conversion
-        if (propValue == null && op.getTypedValue() != null) {
-            Log.info("Null value: id:{0} field:{1} objVal:''{2}'' ", o.getId(), op.getFieldName(), propValue);
-            return false;
-        }
-        Log.finest("Compare id:{0} field:{1} objVal:''{2}'' objValType:{3} filterTypedVal:''{4}'' filterValType: {5}", o.getId(), op.getFieldName(), propValue, propValue.getClass().getCanonicalName(), op.getTypedValue(), op.getTypedValue().getClass().getName());
-
-        // When comparing booleans the string "true" should be considered true, and "false" false, this
-        // is important when applying a filter coming from an untyped query string.
-        if (op.getTypedValue() instanceof Boolean && propValue instanceof String) {
-            return op.getTypedValue().toString().toLowerCase().equals((String) propValue.toString().toLowerCase());
-        }
-
-        if (op.getOperator().equals(FilterOperator.EQUAL)) {
-            return op.getTypedValue().equals(propValue);
-        }
-        if (op.getOperator().equals(FilterOperator.NOT_EQUAL)) {
-            return !op.getTypedValue().equals(propValue);
-        }
-
-        if (op.getOperator().equals(FilterOperator.LIKE)) {
-            return StringUtils.containsIgnoreCase(propValue.toString(), op.getTypedValue().toString());
-        }
-
-        int i;
-        if (propValue instanceof ZonedDateTime) {
-            i = ((ZonedDateTime) op.getTypedValue()).compareTo((ZonedDateTime) propValue);
-        } else if (propValue instanceof LocalDate) {
-            i = ((LocalDate) op.getTypedValue()).compareTo((LocalDate) propValue);
-        } else {
-            i = op.getComparableValue().compareTo(propValue);
-        }
-        if (op.getOperator().equals(FilterOperator.GREATER_THAN)) {
-            return i < 0;
-        }
-        if (op.getOperator().equals(FilterOperator.LESS_THAN)) {
-            return i > 0;
         }
-        if (op.getOperator().equals(FilterOperator.GREATER_THAN_OR_EQUAL)) {
-            return i <= 0;
+        List<Y> sorted = new ArrayList<Y>(heap.size());
+        while (!heap.isEmpty()) {
+            sorted.add(heap.poll());
         }
-        if (op.getOperator().equals(FilterOperator.LESS_THAN_OR_EQUAL)) {
-            return i >= 0;
-        }
-        throw new UsageException("You used an uninplemented filter operation: " + op);
+        Collections.reverse(sorted);
+        return sorted;
     }
 
-
-
-
     /**
-     * Hydrate the FilterOperation.typedValue based on gueessing or reflecting
-     * on the type of the property as passed in.
+     * Describe how the chain would be executed: which index is used to find the candidate items,
+     * which filters are applied to each candidate, and how the results get sorted.
      *
-     * @param op
-     * @param propValue
+     * @return
      */
-    private void hydrateTypedValue(FilterOperation op, Object propValue) {
-        if (op.getTypedValue() != null) {
-            return;
-        }
-        if (op.getOriginalValue() == null) {
-            return;
-        }
-        if (op.getOriginalValue().getClass().equals(propValue.getClass())) {
-            op.setTypedValue(op.getOriginalValue());
-            return;
-        }
-        if (op.getOriginalValue().getClass().equals(String.class)) {
-            String val = (String) op.getOriginalValue();
-            if (propValue != null) {
-                if (propValue instanceof Enum) {
-                    op.setTypedValue(Enum.valueOf((Class<? extends Enum>) propValue.getClass(), val));
-                } else if (propValue instanceof ZonedDateTime) {
-                    if (((String) op.getOriginalValue()).length() == 16) {
-                        op.setTypedValue(ZonedDateTime.parse((String)op.getOriginalValue() + ":00 UTC", DateUtils.SQL_FORMAT_ZONED));
-                    } else if (((String) op.getOriginalValue()).length() == 19) {
-                        op.setTypedValue(ZonedDateTime.parse((String)op.getOriginalValue() + " UTC", DateUtils.SQL_FORMAT_ZONED));
-                    } else {
-                        op.setTypedValue(ZonedDateTime.parse((String)op.getOriginalValue(), DateUtils.ISO_FORMAT));
-                    }
-                } else if (propValue.getClass().equals(Integer.class)) {
-                    op.setTypedValue(Integer.parseInt(val));
-                } else if (propValue.getClass().equals(Long.class)) {
-                    op.setTypedValue(Long.parseLong(val));
-                } else if (propValue.getClass().equals(Boolean.class)) {
-                    op.setTypedValue(Boolean.parseBoolean(val));
-
-                } else {
-                    op.setTypedValue(op.getOriginalValue());
-                }
-            } else {
-                op.setTypedValue(op.getOriginalValue());
-            }
-        } else if (op.getOriginalValue() instanceof BigInteger) {
-            op.setTypedValue(((BigInteger) op.getOriginalValue()).longValue());
-
-        } else if (op.getOriginalValue() instanceof Integer && propValue instanceof Long) {
-            op.setTypedValue(new Long((Integer) op.getOriginalValue()));
-        } else if (op.getOriginalValue() instanceof Integer && propValue instanceof Float) {
-            op.setTypedValue(((Integer) op.getOriginalValue()).floatValue());
-        } else if (op.getOriginalValue() instanceof Integer && propValue instanceof Double) {
-            op.setTypedValue(((Integer) op.getOriginalValue()).doubleValue());
-        } else if (op.getOriginalValue() instanceof Long && propValue instanceof Double) {
-            op.setTypedValue(((Long) op.getOriginalValue()).doubleValue());
-        } else if (op.getOriginalValue() instanceof Long && propValue instanceof Float) {
-            op.setTypedValue(((Long) op.getOriginalValue()).floatValue());
-        } else if (propValue instanceof Boolean) {
-            if (op.getOriginalValue() instanceof Integer || op.getOriginalValue() instanceof Long) {
-                if ((Integer)op.getOriginalValue() == 0) {
-                    op.setTypedValue(false);
-                } else if ((Integer)op.getOriginalValue() == 1){
-                    op.setTypedValue(true);
-                }
-            }
-        }
-        if (op.getTypedValue() == null) {
-            op.setTypedValue(op.getOriginalValue());
-        }
+    public String explain() {
+        return FilterPlan.plan(this, stash, originalObjects).explain();
     }
 
-    protected Object getCached(String methodName) {
+
+    protected Object getCached(String methodName, Object...methodArgs) {
         if (!useCache) {
             return null;
         }
-        String key = buildKey(methodName);
+        FilterCacheKey key = buildKey(methodName, methodArgs);
         if (checkSkipCache(key)) {
             return null;
         }
+        cacheGeneration = FilterCache.getGeneration(this.getBucket());
         Object result = FilterCache.get(this.getBucket(), key);
         return result;
     }
 
-    protected boolean checkSkipCache(String key) {
+    protected boolean checkSkipCache(FilterCacheKey key) {
         return false;
     }
 
-    protected void setCached(String methodName, Object val) {
+    protected void setCached(String methodName, Object val, Object...methodArgs) {
         if (!useCache) {
             return;
         }
-        String key = buildKey(methodName);
-        FilterCache.set(this.getBucket(), key, val);
-    }
-
-    private String buildKey(String methodName) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(methodName + Literals.GSEP);
-        if (this.stash != null) {
-            builder.append(this.stash.getBucket() + Literals.GSEP);
-        } else if (this.originalObjects != null && this.originalObjects.size() > 0) {
-            builder.append(this.originalObjects.get(0).getClass().getCanonicalName());
+        FilterCacheKey key = buildKey(methodName, methodArgs);
+        if (cacheGeneration == null) {
+            FilterCache.set(this.getBucket(), key, val);
+        } else {
+            FilterCache.set(this.getBucket(), key, val, cacheGeneration);
         }
+    }
 
-        for (FilterOperation op: operations) {
-            //Log.finest("fn: {0} op: {1} isExclude: {2} orgVal: {3}", op.getFieldName(), op.getOperator(), op.getIsExclude(), op.getOriginalValue());
-            String ov = "<null>";
-            if (op.getOriginalValue() != null) {
-                ov = op.getOriginalValue().toString();
-            }
-            builder.append(op.getFieldName() + op.getOperator() + op.getIsExclude() + Literals.GSEP + ov + Literals.GSEP);
-            if (op.isOrOperation()) {
-                for (FilterOperation subOp: op.getOrSubOperations()) {
-                    ov = "<null>";
-                    if (subOp.getOriginalValue() != null) {
-                        ov = subOp.getOriginalValue().toString();
-                    }
-                    builder.append(subOp.getFieldName() + subOp.getOperator() + subOp.getIsExclude() + Literals.GSEP + ov + Literals.GSEP);
-                }
-            }
+    private FilterCacheKey buildKey(String methodName, Object[] methodArgs) {
+        // getCached() and setCached() are called with the same method, so the key is only built once
+        FilterCacheKey key = lastCacheKey;
+        if (key != null && key.matches(methodName, methodArgs)) {
+            return key;
         }
-        builder.append(getIncludeDeleted());
-        builder.append(getSortField());
-        builder.append(getSortDirection());
-        builder.append(Literals.GSEP + getExtraCacheKey());
-        String fullKey = builder.toString();
-        return DigestUtils.md5Hex(fullKey);
+        key = new FilterCacheKey(this, methodName, methodArgs);
+        lastCacheKey = key;
+        return key;
     }
 
     @Override
@@ -1327,6 +1253,10 @@ public class FilterChain<T extends Model> implements Iterable<T> {
         this.matchingCount = matchingCount;
     }
 
+    protected void setMatchingCountEstimated(boolean matchingCountEstimated) {
+        this.matchingCountEstimated = matchingCountEstimated;
+    }
+
     protected List<T> getObjects() {
         return objects;
     }
@@ -1398,4 +1328,16 @@ public class FilterChain<T extends Model> implements Iterable<T> {
         return secondarySortDirection;
     }
 
+
+    private static class SortedMatches<Y> {
+        private final List<Y> items;
+        private final Map<String, Double> sums;
+        private final Map<String, Double> averages;
+
+        private SortedMatches(List<Y> items, Map<String, Double> sums, Map<String, Double> averages) {
+            this.items = Collections.unmodifiableList(new ArrayList<>(items));
+            this.sums = sums;
+            this.averages = averages;
+        }
+    }
 }
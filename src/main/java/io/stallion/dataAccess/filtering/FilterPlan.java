@@ -0,0 +1,522 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.dataAccess.ColumnStore;
+import io.stallion.dataAccess.LocalMemoryStash;
+import io.stallion.dataAccess.Model;
+import io.stallion.dataAccess.SortedIndex;
+import io.stallion.utils.Literals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static io.stallion.utils.Literals.list;
+
+
+/**
+ * Decides how a FilterChain over a LocalMemoryStash gets executed: which index (if any)
+ * to use to find the candidate items, which operations still have to be checked against
+ * every candidate, and whether the candidates come out already sorted.
+ *
+ * The planner is a simple cost-based one. Each possible access path gets an estimated number
+ * of candidate rows -- one for an id or unique key lookup, the key cardinality from
+ * countForKey() for alternative keys, a fraction of the index for sorted key ranges, a
+ * fraction of the items for a scan of the primitive column store, and every item for a full
+ * scan -- and the cheapest path wins. When there are several
+ * alternative key filters, the candidates are the smallest key set intersected with the others.
+ *
+ * Call FilterChain.explain() to see the chosen plan.
+ *
+ * @param <T>
+ */
+public class FilterPlan<T extends Model> {
+
+    public static enum Access {
+        SCAN,
+        ID,
+        UNIQUE_KEY,
+        KEYS,
+        SORTED_RANGE,
+        SORTED_SCAN,
+        COLUMN_SCAN
+    }
+
+    // Comparing values in a primitive array is roughly this many times cheaper than reading the property
+    private static final int COLUMN_SCAN_SPEEDUP = 20;
+
+    private Access access = Access.SCAN;
+    private Iterable<T> source;
+    private boolean presorted = false;
+    private int estimatedRows = 0;
+    private List<FilterOperation> residualOperations = new ArrayList<>();
+    private ColumnStore.Selection<T> columnSelection = null;
+    private List<String> steps = new ArrayList<>();
+
+    private FilterPlan() {
+
+    }
+
+    /**
+     * Plan the execution of the chain.
+     *
+     * @param chain
+     * @param stash - the stash the chain is reading from, or null
+     * @param originalObjects - the items the chain is filtering
+     * @param <T>
+     * @return
+     */
+    public static <T extends Model> FilterPlan<T> plan(FilterChain<T> chain, LocalMemoryStash<T> stash, List<T> originalObjects) {
+        FilterPlan<T> plan = new FilterPlan<>();
+        new Planner<T>(chain, stash, originalObjects, plan).plan();
+        return plan;
+    }
+
+    /**
+     * The items to run the residual operations against
+     *
+     * @return
+     */
+    public Iterable<T> getSource() {
+        return source;
+    }
+
+    /**
+     * True if the source is already in the order requested by the chain.
+     *
+     * @return
+     */
+    public boolean isPresorted() {
+        return presorted;
+    }
+
+    /**
+     * The operations that still need to be checked against each item from the source,
+     * ordered with the most selective first.
+     *
+     * @return
+     */
+    public List<FilterOperation> getResidualOperations() {
+        return residualOperations;
+    }
+
+    /**
+     * When the plan scanned the column store, the selection, which may include the sums
+     * and averages of the chain's aggregate columns.
+     *
+     * @return the selection, or null if the column store was not used
+     */
+    public ColumnStore.Selection<T> getColumnSelection() {
+        return columnSelection;
+    }
+
+    public Access getAccess() {
+        return access;
+    }
+
+    public int getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    /**
+     * A human readable description of the plan.
+     *
+     * @return
+     */
+    public String explain() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(access).append(" (estimated rows: ").append(estimatedRows).append(")\n");
+        for (String step: steps) {
+            builder.append("  ").append(step).append("\n");
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return explain();
+    }
+
+
+    private static class Planner<T extends Model> {
+        private final FilterChain<T> chain;
+        private final LocalMemoryStash<T> stash;
+        private final List<T> originalObjects;
+        private final FilterPlan<T> plan;
+        private final Map<FilterOperation, Integer> cardinalities = new IdentityHashMap<>();
+
+        Planner(FilterChain<T> chain, LocalMemoryStash<T> stash, List<T> originalObjects, FilterPlan<T> plan) {
+            this.chain = chain;
+            this.stash = stash;
+            this.originalObjects = originalObjects;
+            this.plan = plan;
+        }
+
+        void plan() {
+            List<FilterOperation> residual = new ArrayList<>(chain.getOperations());
+            List<T> all = originalObjects;
+            if (all == null && stash != null) {
+                all = stash.getItems();
+            }
+            int total = all == null ? 0 : all.size();
+
+            // Indexes cover the whole stash, so they can only be used when we are not filtering a subset
+            if (stash == null || all != stash.getItems()) {
+                plan.source = all;
+                plan.estimatedRows = total;
+                plan.steps.add("scan " + total + " items");
+                finish(residual);
+                return;
+            }
+
+            // An id or unique key look up always wins
+            for (FilterOperation op: chain.getOperations()) {
+                if (!isIndexableEquals(op)) {
+                    continue;
+                }
+                if (op.getFieldName().equals("id") && op.getOriginalValue() instanceof Number) {
+                    T item = stash.originalForId(((Number) op.getOriginalValue()).longValue());
+                    plan.access = Access.ID;
+                    plan.source = item == null ? list() : list(item);
+                    plan.estimatedRows = 1;
+                    plan.steps.add("look up id=" + op.getOriginalValue());
+                    finish(residual);
+                    return;
+                }
+                // The unique key index skips deleted items, so it cannot answer an includeDeleted() chain
+                if (stash.getUniqueFields().contains(op.getFieldName()) && !chain.getIncludeDeleted()) {
+                    T item = stash.originalForUniqueKey(op.getFieldName(), op.getOriginalValue());
+                    plan.access = Access.UNIQUE_KEY;
+                    plan.source = item == null ? list() : list(item);
+                    plan.estimatedRows = 1;
+                    plan.steps.add("look up unique key " + op.getFieldName() + "=" + op.getOriginalValue());
+                    finish(residual);
+                    return;
+                }
+            }
+
+            // Find the cardinality of all the alternative keys we are filtering on
+            List<KeyLookup> keyLookups = new ArrayList<>();
+            for (FilterOperation op: chain.getOperations()) {
+                if (isIndexableEquals(op) && stash.getKeyFields().contains(op.getFieldName())) {
+                    KeyLookup lookup = new KeyLookup(op, stash.countForKey(op.getFieldName(), op.getOriginalValue()));
+                    keyLookups.add(lookup);
+                    cardinalities.put(op, lookup.cardinality);
+                }
+            }
+            keyLookups.sort(Comparator.comparingInt(k -> k.cardinality));
+            int keysCost = keyLookups.size() > 0 ? keyLookups.get(0).cardinality : Integer.MAX_VALUE;
+
+            // Estimate a sorted key range as a third of the index when bounded on both sides, otherwise a half
+            FilterOperation rangeOp = findSortedKeyRangeOperation();
+            FilterOperation[] bounds = rangeOp == null ? null : findBounds(rangeOp);
+            int rangeCost = Integer.MAX_VALUE;
+            if (rangeOp != null) {
+                int indexSize = stash.getSortedIndex(rangeOp.getFieldName()).size();
+                rangeCost = (bounds[0] != null && bounds[1] != null) ? indexSize / 3 : indexSize / 2;
+            }
+
+            List<FilterOperation> columnOps = findColumnOperations();
+            // Scanning the columns touches every row, but cheaply, and then we guess a third of the rows match
+            int columnCost = columnOps.isEmpty() ? Integer.MAX_VALUE : Math.max(1, total / COLUMN_SCAN_SPEEDUP + total / 3);
+
+            if (keysCost <= rangeCost && keysCost <= columnCost && keysCost < Integer.MAX_VALUE) {
+                planKeyIntersection(keyLookups);
+                finish(residual);
+                return;
+            }
+            if (rangeOp != null && rangeCost <= columnCost) {
+                List<T> inRange = stash.getSortedIndex(rangeOp.getFieldName()).range(
+                        bounds[0] == null ? null : bounds[0].getOriginalValue(),
+                        bounds[0] != null && bounds[0].getOperator() == FilterOperator.GREATER_THAN_OR_EQUAL,
+                        bounds[1] == null ? null : bounds[1].getOriginalValue(),
+                        bounds[1] != null && bounds[1].getOperator() == FilterOperator.LESS_THAN_OR_EQUAL
+                );
+                if (inRange != null) {
+                    plan.access = Access.SORTED_RANGE;
+                    plan.source = inRange;
+                    plan.estimatedRows = inRange.size();
+                    plan.steps.add("range of sorted key " + rangeOp.getFieldName() + " " + describeBounds(bounds) + ": " + inRange.size() + " items");
+                    if (rangeOp.getFieldName().equals(chain.getSortField()) && canSortWithIndex()) {
+                        if (chain.getSortDirection() == SortDirection.DESC) {
+                            Collections.reverse(inRange);
+                        }
+                        plan.presorted = true;
+                        plan.steps.add("already sorted by " + chain.getSortField() + " " + chain.getSortDirection());
+                    }
+                    finish(residual);
+                    return;
+                }
+            }
+            if (!columnOps.isEmpty()) {
+                planColumnScan(columnOps, residual);
+                finish(residual);
+                return;
+            }
+            if (canSortWithIndex()) {
+                plan.access = Access.SORTED_SCAN;
+                plan.source = stash.getSortedIndex(chain.getSortField()).ordered(chain.getSortDirection() != SortDirection.DESC);
+                plan.presorted = true;
+                plan.estimatedRows = total;
+                plan.steps.add("scan " + total + " items in order of sorted key " + chain.getSortField() + " " + chain.getSortDirection());
+                finish(residual);
+                return;
+            }
+
+            plan.source = all;
+            plan.estimatedRows = total;
+            plan.steps.add("scan " + total + " items");
+            finish(residual);
+        }
+
+        /**
+         * Start with the smallest key set, and keep only the items that are also in the sets
+         * for the other keys. The key operations stay in the residual operations, since the
+         * key sets are not cleaned up when the stashed instance of an item is changed and saved.
+         *
+         * @param keyLookups
+         */
+        private void planKeyIntersection(List<KeyLookup> keyLookups) {
+            plan.access = Access.KEYS;
+            KeyLookup smallest = keyLookups.get(0);
+            plan.steps.add("key " + smallest.op.getFieldName() + "=" + smallest.op.getOriginalValue() + ": " + smallest.cardinality + " items");
+            List<Set<T>> others = new ArrayList<>();
+            for (KeyLookup lookup: keyLookups.subList(1, keyLookups.size())) {
+                others.add(stash.itemsForKey(lookup.op.getFieldName(), lookup.op.getOriginalValue()));
+                plan.steps.add("intersect with key " + lookup.op.getFieldName() + "=" + lookup.op.getOriginalValue() + ": " + lookup.cardinality + " items");
+            }
+            List<T> candidates = new ArrayList<>(smallest.cardinality);
+            for (T item: stash.itemsForKey(smallest.op.getFieldName(), smallest.op.getOriginalValue())) {
+                boolean inAll = true;
+                for (Set<T> other: others) {
+                    if (!other.contains(item)) {
+                        inAll = false;
+                        break;
+                    }
+                }
+                if (inAll) {
+                    candidates.add(item);
+                }
+            }
+            plan.source = candidates;
+            plan.estimatedRows = candidates.size();
+        }
+
+        /**
+         * Scan the primitive arrays of the column store. Operations on numeric columns are
+         * evaluated exactly and dropped from the residual, date operations are only used
+         * to narrow down the candidates.
+         *
+         * @param columnOps
+         * @param residual
+         */
+        private void planColumnScan(List<FilterOperation> columnOps, List<FilterOperation> residual) {
+            LinkedHashSet<String> aggregateColumns = new LinkedHashSet<>(chain.getSumColumns());
+            aggregateColumns.addAll(chain.getAverageColumns());
+            ColumnStore.Selection<T> selection = stash.getColumnStore().select(columnOps, aggregateColumns);
+            plan.access = Access.COLUMN_SCAN;
+            plan.columnSelection = selection;
+            plan.source = selection.getItems();
+            plan.estimatedRows = selection.getItems().size();
+            List<String> descriptions = new ArrayList<>();
+            for (FilterOperation op: selection.getAppliedOperations()) {
+                descriptions.add(describe(op));
+            }
+            plan.steps.add("scan columns for " + String.join(" AND ", descriptions) + ": " +
+                    selection.getItems().size() + " of " + selection.getScannedRows() + " rows");
+            for (FilterOperation op: selection.getExactOperations()) {
+                residual.removeIf(other -> other == op);
+            }
+        }
+
+        private List<FilterOperation> findColumnOperations() {
+            List<FilterOperation> ops = new ArrayList<>();
+            ColumnStore<T> columnStore = stash.getColumnStore();
+            if (columnStore == null || chain.getIncludeDeleted()) {
+                return ops;
+            }
+            for (FilterOperation op: chain.getOperations()) {
+                if (columnStore.canFilter(op)) {
+                    ops.add(op);
+                }
+            }
+            return ops;
+        }
+
+        /**
+         * Order the operations that still have to be checked so the cheapest and most
+         * selective come first, using the key cardinalities where we know them, and describe them.
+         *
+         * @param residual
+         */
+        private void finish(List<FilterOperation> residual) {
+            residual.sort(Comparator.comparingInt(this::rank).thenComparingInt(op -> cardinalities.getOrDefault(op, Integer.MAX_VALUE)));
+            plan.residualOperations = residual;
+            if (residual.size() > 0) {
+                List<String> descriptions = new ArrayList<>();
+                for (FilterOperation op: residual) {
+                    descriptions.add(describe(op));
+                }
+                plan.steps.add("filter by " + String.join(" AND ", descriptions));
+            }
+            if (!plan.presorted && !Literals.empty(chain.getSortField())) {
+                plan.steps.add("sort by " + chain.getSortField() + " " + chain.getSortDirection() +
+                        (Literals.emptyObject(chain.getSecondarySortField()) ? "" : ", " + chain.getSecondarySortField() + " " + chain.getSecondarySortDirection()) +
+                        " (partial sort when paging)");
+            }
+        }
+
+        private int rank(FilterOperation op) {
+            if (op.isOrOperation()) {
+                return 5;
+            }
+            switch (op.getOperator()) {
+                case EQUAL:
+                    return 0;
+                case NOT_EQUAL:
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL:
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL:
+                    return 1;
+                case IN:
+                case ANY:
+                    return 2;
+                case LIKE:
+                    return 3;
+                default:
+                    return 4;
+            }
+        }
+
+        private boolean isIndexableEquals(FilterOperation op) {
+            return !op.isOrOperation() && !op.getIsExclude() && !op.isCaseInsensitive()
+                    && op.getOperator() == FilterOperator.EQUAL && op.getOriginalValue() != null;
+        }
+
+        /**
+         * Find the first greater than/less than operation on a field that has a sorted index.
+         *
+         * @return
+         */
+        private FilterOperation findSortedKeyRangeOperation() {
+            if (chain.getIncludeDeleted() || stash.getSortedFields().isEmpty()) {
+                return null;
+            }
+            for (FilterOperation op: chain.getOperations()) {
+                if (isSortedKeyRangeOperation(op)) {
+                    return op;
+                }
+            }
+            return null;
+        }
+
+        private boolean isSortedKeyRangeOperation(FilterOperation op) {
+            if (op.isOrOperation() || op.getIsExclude() || op.isCaseInsensitive() || op.getOriginalValue() == null) {
+                return false;
+            }
+            switch (op.getOperator()) {
+                case GREATER_THAN:
+                case GREATER_THAN_OR_EQUAL:
+                case LESS_THAN:
+                case LESS_THAN_OR_EQUAL:
+                    return stash.getSortedFields().contains(op.getFieldName());
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Find the first lower and upper bound operations on the same field as the passed in
+         * operation. All operations still get applied to the candidates, so any other range
+         * operations on the field are still respected.
+         *
+         * @param rangeOp
+         * @return an array of the [lower, upper] operations, either of which may be null
+         */
+        private FilterOperation[] findBounds(FilterOperation rangeOp) {
+            FilterOperation[] bounds = new FilterOperation[2];
+            for (FilterOperation op: chain.getOperations()) {
+                if (!op.getFieldName().equals(rangeOp.getFieldName()) || !isSortedKeyRangeOperation(op)) {
+                    continue;
+                }
+                boolean isLower = op.getOperator() == FilterOperator.GREATER_THAN || op.getOperator() == FilterOperator.GREATER_THAN_OR_EQUAL;
+                if (isLower && bounds[0] == null) {
+                    bounds[0] = op;
+                } else if (!isLower && bounds[1] == null) {
+                    bounds[1] = op;
+                }
+            }
+            return bounds;
+        }
+
+        /**
+         * @return true if the sort can be done by iterating over a sorted index
+         */
+        private boolean canSortWithIndex() {
+            if (Literals.empty(chain.getSortField()) || !Literals.emptyObject(chain.getSecondarySortField()) || chain.getIncludeDeleted()) {
+                return false;
+            }
+            SortedIndex<T> index = stash.getSortedIndex(chain.getSortField());
+            return index != null && index.isSortable();
+        }
+
+        private String describeBounds(FilterOperation[] bounds) {
+            List<String> parts = new ArrayList<>();
+            for (FilterOperation op: bounds) {
+                if (op != null) {
+                    parts.add(op.getOperator().forSql() + " " + op.getOriginalValue());
+                }
+            }
+            return String.join(" AND ", parts);
+        }
+
+        private String describe(FilterOperation op) {
+            String description;
+            if (op.isOrOperation()) {
+                List<String> parts = new ArrayList<>();
+                for (FilterOperation subOp: op.getOrSubOperations()) {
+                    parts.add(describe(subOp));
+                }
+                description = "(" + String.join(" OR ", parts) + ")";
+            } else {
+                description = op.getFieldName() + " " + op.getOperator() + " " + op.getOriginalValue();
+            }
+            if (op.getIsExclude()) {
+                description = "NOT " + description;
+            }
+            return description;
+        }
+    }
+
+    private static class KeyLookup {
+        private final FilterOperation op;
+        private final int cardinality;
+
+        KeyLookup(FilterOperation op, int cardinality) {
+            this.op = op;
+            this.cardinality = cardinality;
+        }
+    }
+}
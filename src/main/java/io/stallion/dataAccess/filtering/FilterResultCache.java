@@ -0,0 +1,343 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.utils.DateUtils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The filter result cache for a single bucket.
+ *
+ * Every entry is tagged with the generation of the bucket at the time the
+ * result was computed. Any write to the bucket just increments the generation,
+ * so invalidating the cache is a single atomic increment. Entries from older
+ * generations are dropped when they are next read, when the cleanup timer runs,
+ * or when they reach the end of the LRU order and get evicted.
+ *
+ * Keys are spread over a set of segments, each with its own lock, so that
+ * readers do not all contend on one monitor. Each segment is bounded by
+ * weight, using the same per item estimate as EstimatedSizeOfEngine, and
+ * evicts using a simplified W-TinyLFU policy: new entries go into a small LRU
+ * window, and when they fall out of the window they only get admitted into
+ * the main area if they have been requested more often than the entry that
+ * would be evicted to make room. The main area is a segmented LRU where
+ * entries that get a second hit are moved to a protected region.
+ */
+public class FilterResultCache {
+    private static final long ENTRY_WEIGHT = 10000;
+    private static final long MIN_SEGMENT_WEIGHT = 64 * ENTRY_WEIGHT;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final String bucket;
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final Segment[] segments;
+    private final AtomicLong generation = new AtomicLong(0);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     *
+     * @param bucket
+     * @param maxWeight - the approximate maximum size of the cache, in bytes
+     * @param ttlMillis - how long an entry lives, even if the bucket is never written to
+     */
+    public FilterResultCache(String bucket, long maxWeight, long ttlMillis) {
+        this.bucket = bucket;
+        this.maxWeight = Math.max(maxWeight, ENTRY_WEIGHT);
+        this.ttlMillis = ttlMillis;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && this.maxWeight / (segmentCount * 2) >= MIN_SEGMENT_WEIGHT) {
+            segmentCount = segmentCount * 2;
+        }
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(this.maxWeight / segmentCount);
+        }
+    }
+
+    /**
+     * The current generation of the bucket. Pass this to put() with the result
+     * of a query, so that a result computed before a write cannot get cached
+     * after the write.
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Invalidate every entry in the cache.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        invalidations.increment();
+    }
+
+    public Object get(Object key) {
+        Object value = segmentFor(key).get(key, generation.get(), DateUtils.mils());
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(Object key, Object value) {
+        put(key, value, generation.get());
+    }
+
+    /**
+     * Cache the value, unless the bucket has been written to since resultGeneration.
+     *
+     * @param key
+     * @param value
+     * @param resultGeneration
+     */
+    public void put(Object key, Object value, long resultGeneration) {
+        if (value == null || resultGeneration != generation.get()) {
+            return;
+        }
+        segmentFor(key).put(key, value, resultGeneration, DateUtils.mils() + ttlMillis, EstimatedSizeOfEngine.estimateSize(value));
+    }
+
+    /**
+     * Remove all expired and invalidated entries.
+     */
+    public void cleanUp() {
+        long currentGeneration = generation.get();
+        long now = DateUtils.mils();
+        for (Segment segment: segments) {
+            segment.cleanUp(currentGeneration, now);
+        }
+    }
+
+    public FilterCacheStats getStats() {
+        FilterCacheStats stats = new FilterCacheStats()
+                .setBucket(bucket)
+                .setHits(hits.sum())
+                .setMisses(misses.sum())
+                .setEvictions(evictions.sum())
+                .setExpirations(expirations.sum())
+                .setInvalidations(invalidations.sum())
+                .setGeneration(generation.get())
+                .setMaxWeight(maxWeight);
+        long entries = 0;
+        long weight = 0;
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                entries += segment.window.size() + segment.probation.size() + segment.protectedArea.size();
+                weight += segment.windowWeight + segment.probationWeight + segment.protectedWeight;
+            }
+        }
+        return stats.setEntries(entries).setWeight(weight);
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    private Segment segmentFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    private static class Entry {
+        private final Object key;
+        private final Object value;
+        private final long generation;
+        private final long expiresAt;
+        private final long weight;
+
+        Entry(Object key, Object value, long generation, long expiresAt, long weight) {
+            this.key = key;
+            this.value = value;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    private class Segment {
+        private final long maxWeight;
+        private final long maxWindowWeight;
+        private final long maxProtectedWeight;
+        private final FrequencySketch sketch;
+        // All three maps are kept in LRU order, least recently used first
+        private final LinkedHashMap<Object, Entry> window = new LinkedHashMap<>(16, .75f, true);
+        private final LinkedHashMap<Object, Entry> probation = new LinkedHashMap<>(16, .75f, true);
+        private final LinkedHashMap<Object, Entry> protectedArea = new LinkedHashMap<>(16, .75f, true);
+        private long windowWeight = 0;
+        private long probationWeight = 0;
+        private long protectedWeight = 0;
+
+        Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.maxWindowWeight = Math.max(ENTRY_WEIGHT, maxWeight / 100);
+            this.maxProtectedWeight = (maxWeight - maxWindowWeight) * 4 / 5;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxWeight / ENTRY_WEIGHT));
+        }
+
+        synchronized Object get(Object key, long currentGeneration, long now) {
+            sketch.increment(key);
+            Entry entry = window.get(key);
+            if (entry == null) {
+                entry = probation.get(key);
+            }
+            if (entry == null) {
+                entry = protectedArea.get(key);
+            }
+            if (entry == null) {
+                return null;
+            }
+            if (entry.generation != currentGeneration || entry.expiresAt < now) {
+                remove(key);
+                if (entry.generation == currentGeneration) {
+                    expirations.increment();
+                }
+                return null;
+            }
+            // A second hit while on probation earns the entry a spot in the protected area
+            if (probation.remove(key) != null) {
+                probationWeight -= entry.weight;
+                protectedArea.put(key, entry);
+                protectedWeight += entry.weight;
+                demoteProtected();
+            }
+            return entry.value;
+        }
+
+        synchronized void put(Object key, Object value, long entryGeneration, long expiresAt, long weight) {
+            if (weight > maxWeight - maxWindowWeight) {
+                return;
+            }
+            remove(key);
+            window.put(key, new Entry(key, value, entryGeneration, expiresAt, weight));
+            windowWeight += weight;
+            while (windowWeight > maxWindowWeight && window.size() > 1) {
+                Entry candidate = removeFirst(window);
+                windowWeight -= candidate.weight;
+                admit(candidate);
+            }
+        }
+
+        /**
+         * Move an entry that fell out of the window into probation, evicting
+         * either it or the least recently used entries of the main area,
+         * depending on which has been used more frequently.
+         *
+         * @param candidate
+         */
+        private void admit(Entry candidate) {
+            probation.put(candidate.key, candidate);
+            probationWeight += candidate.weight;
+            boolean candidateAdmitted = true;
+            while (probationWeight + protectedWeight > maxWeight - maxWindowWeight) {
+                LinkedHashMap<Object, Entry> victimArea = probation;
+                if (probation.isEmpty() || (probation.size() == 1 && candidateAdmitted)) {
+                    victimArea = protectedArea.isEmpty() ? probation : protectedArea;
+                }
+                Entry victim = victimArea.entrySet().iterator().next().getValue();
+                if (candidateAdmitted && victim != candidate &&
+                        sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    victim = candidate;
+                }
+                if (victim == candidate) {
+                    candidateAdmitted = false;
+                }
+                remove(victim.key);
+                evictions.increment();
+            }
+        }
+
+        /**
+         * Move entries from the protected area back to probation until it is within its size.
+         */
+        private void demoteProtected() {
+            while (protectedWeight > maxProtectedWeight && protectedArea.size() > 1) {
+                Entry entry = removeFirst(protectedArea);
+                protectedWeight -= entry.weight;
+                probation.put(entry.key, entry);
+                probationWeight += entry.weight;
+            }
+        }
+
+        synchronized void cleanUp(long currentGeneration, long now) {
+            cleanUp(window, currentGeneration, now);
+            cleanUp(probation, currentGeneration, now);
+            cleanUp(protectedArea, currentGeneration, now);
+        }
+
+        private void cleanUp(LinkedHashMap<Object, Entry> area, long currentGeneration, long now) {
+            Iterator<Map.Entry<Object, Entry>> iterator = area.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (entry.generation != currentGeneration || entry.expiresAt < now) {
+                    iterator.remove();
+                    adjustWeight(area, -entry.weight);
+                    if (entry.generation == currentGeneration) {
+                        expirations.increment();
+                    }
+                }
+            }
+        }
+
+        private void remove(Object key) {
+            Entry entry = window.remove(key);
+            if (entry != null) {
+                windowWeight -= entry.weight;
+            }
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationWeight -= entry.weight;
+            }
+            entry = protectedArea.remove(key);
+            if (entry != null) {
+                protectedWeight -= entry.weight;
+            }
+        }
+
+        private void adjustWeight(LinkedHashMap<Object, Entry> area, long delta) {
+            if (area == window) {
+                windowWeight += delta;
+            } else if (area == probation) {
+                probationWeight += delta;
+            } else {
+                protectedWeight += delta;
+            }
+        }
+
+        private Entry removeFirst(LinkedHashMap<Object, Entry> area) {
+            Iterator<Entry> iterator = area.values().iterator();
+            Entry entry = iterator.next();
+            iterator.remove();
+            return entry;
+        }
+    }
+}
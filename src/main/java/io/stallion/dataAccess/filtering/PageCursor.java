@@ -0,0 +1,223 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.dataAccess.Model;
+import io.stallion.reflection.PropertyGetter;
+import io.stallion.utils.json.JSON;
+
+import javax.ws.rs.ClientErrorException;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.Map;
+
+import static io.stallion.utils.Literals.*;
+
+/**
+ * The position of the last item on a page, used for keyset (seek) pagination.
+ * Rather than skipping over the first N matching items the way an offset does,
+ * the next page starts right after the sort value and id of the last item of the
+ * previous page, which an index can jump to directly no matter how deep the page is.
+ *
+ * A cursor is handed to clients as an opaque, url safe continuation token.
+ */
+public class PageCursor {
+    private final String sortField;
+    private final SortDirection sortDirection;
+    private final Object sortValue;
+    private final Long id;
+
+    public PageCursor(String sortField, SortDirection sortDirection, Object sortValue, Long id) {
+        this.sortField = or(sortField, "");
+        this.sortDirection = sortDirection == null ? SortDirection.ASC : sortDirection;
+        this.sortValue = sortValue;
+        this.id = id;
+    }
+
+    /**
+     * Create a cursor pointing just past the given item.
+     *
+     * @param item
+     * @param sortField - the property to read the sort value from, or empty if sorting by id
+     * @param sortDirection
+     * @return
+     */
+    public static <T extends Model> PageCursor after(T item, String sortField, SortDirection sortDirection) {
+        Object value = null;
+        if (!empty(sortField) && !"id".equals(sortField)) {
+            value = PropertyGetter.forObject(item, sortField).get(item);
+        }
+        return new PageCursor(sortField, sortDirection, value, item.getId());
+    }
+
+    /**
+     * Encode as an opaque continuation token.
+     *
+     * @return
+     */
+    public String encode() {
+        Map<String, Object> data = map();
+        data.put("f", sortField);
+        data.put("d", sortDirection.name());
+        data.put("i", id);
+        Object value = sortValue;
+        String type = "s";
+        if (value == null) {
+            type = "n";
+        } else if (value instanceof ZonedDateTime) {
+            type = "t";
+            value = ((ZonedDateTime) value).toInstant().toEpochMilli();
+        } else if (value instanceof LocalDateTime) {
+            type = "ldt";
+            value = value.toString();
+        } else if (value instanceof LocalDate) {
+            type = "ld";
+            value = value.toString();
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof BigInteger) {
+            type = "l";
+            value = ((Number) value).longValue();
+        } else if (value instanceof Number) {
+            type = "d";
+            value = ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            type = "b";
+        } else {
+            value = value.toString();
+        }
+        data.put("t", type);
+        data.put("v", value);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(JSON.stringify(data).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a continuation token created by encode()
+     *
+     * @param token
+     * @return
+     */
+    public static PageCursor decode(String token) {
+        Map<String, Object> data;
+        try {
+            data = JSON.parseMap(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            throw new ClientErrorException("Invalid page continuation token", 400);
+        }
+        if (data == null || !data.containsKey("i") || !data.containsKey("t")) {
+            throw new ClientErrorException("Invalid page continuation token", 400);
+        }
+        Object value = data.get("v");
+        switch ((String) data.get("t")) {
+            case "n":
+                value = null;
+                break;
+            case "t":
+                value = ZonedDateTime.ofInstant(Instant.ofEpochMilli(((Number) value).longValue()), UTC);
+                break;
+            case "ldt":
+                value = LocalDateTime.parse((String) value);
+                break;
+            case "ld":
+                value = LocalDate.parse((String) value);
+                break;
+            case "l":
+                value = ((Number) value).longValue();
+                break;
+            case "d":
+                value = ((Number) value).doubleValue();
+                break;
+            default:
+                break;
+        }
+        Long id = data.get("i") == null ? null : ((Number) data.get("i")).longValue();
+        return new PageCursor((String) data.get("f"), SortDirection.valueOf((String) data.get("d")), value, id);
+    }
+
+    /**
+     * Make sure this cursor was created for a query with the same sort.
+     *
+     * @param field
+     * @param direction
+     */
+    public void checkMatches(String field, SortDirection direction) {
+        if (direction == null) {
+            direction = SortDirection.ASC;
+        }
+        if (!sortField.equals(or(field, "")) || sortDirection != direction) {
+            throw new ClientErrorException("The page continuation token was created for a query with a different sort order", 400);
+        }
+    }
+
+    /**
+     * Compare an item to the cursor, in the same order that ModelPropertyComparator sorts items in
+     * memory: nulls last, strings without case, ties broken by id, and everything reversed
+     * for a descending sort.
+     *
+     * @param item
+     * @return a positive number if the item comes after the cursor
+     */
+    public int compareTo(Model item) {
+        int result = 0;
+        if (!empty(sortField) && !"id".equals(sortField)) {
+            Object itemValue = PropertyGetter.forObject(item, sortField).get(item);
+            Object cursorValue = sortValue;
+            if (itemValue != null && cursorValue != null) {
+                cursorValue = CompiledFilter.coerce(cursorValue, itemValue);
+            }
+            if (itemValue == null && cursorValue == null) {
+                result = 0;
+            } else if (itemValue == null) {
+                result = 1;
+            } else if (cursorValue == null) {
+                result = -1;
+            } else if (itemValue instanceof String && cursorValue instanceof String) {
+                result = ((String) itemValue).compareToIgnoreCase((String) cursorValue);
+            } else {
+                result = ((Comparable) itemValue).compareTo(cursorValue);
+            }
+        }
+        if (result == 0 && item.getId() != null && id != null) {
+            result = item.getId().compareTo(id);
+        }
+        if (sortDirection == SortDirection.DESC) {
+            result = -result;
+        }
+        return result;
+    }
+
+    public String getSortField() {
+        return sortField;
+    }
+
+    public SortDirection getSortDirection() {
+        return sortDirection;
+    }
+
+    public Object getSortValue() {
+        return sortValue;
+    }
+
+    public Long getId() {
+        return id;
+    }
+}
@@ -45,6 +45,8 @@ public class Pager<T> {
     private int previousPageNumber = 0;
     private Map<String, Double> averages = map();
     private Map<String, Double> sums = map();
+    private String continuationToken = null;
+    private boolean totalCountEstimated = false;
 
 
 
@@ -98,6 +100,12 @@ public class Pager<T> {
         return itemsPerPage;
     }
 
+    /**
+     * The total number of items matching the filterchain. For a cursor pager, this
+     * may be an estimate (see isTotalCountEstimated()), or -1 if counting was skipped.
+     *
+     * @return
+     */
     public int getTotalCount() {
         return totalCount;
     }
@@ -215,6 +223,34 @@ public class Pager<T> {
         return this;
     }
 
+    /**
+     * For a cursor pager, the token to pass back to FilterChain.cursorPager() to get
+     * the next page, or null if this is the last page.
+     *
+     * @return
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public Pager setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+        return this;
+    }
+
+    /**
+     * True if the total count is the database's estimate rather than an exact count.
+     *
+     * @return
+     */
+    public boolean isTotalCountEstimated() {
+        return totalCountEstimated;
+    }
+
+    public Pager setTotalCountEstimated(boolean totalCountEstimated) {
+        this.totalCountEstimated = totalCountEstimated;
+        return this;
+    }
 
     // surrounding(2)
     // firstSurroundingAndLast(1)
@@ -0,0 +1,327 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.dataAccess.Model;
+import io.stallion.reflection.PropertyGetter;
+import io.stallion.settings.Settings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+import static io.stallion.utils.Literals.GSEP;
+import static io.stallion.utils.Literals.map;
+
+/**
+ * Helpers for filtering and aggregating very large in-memory buckets on
+ * a fork-join pool. The list is split into chunks, each chunk is
+ * processed on its own, and the per-chunk results are merged back in the
+ * original order, so the results are identical to the single threaded path.
+ *
+ * Parallel execution only kicks in for lists of at least
+ * Settings.parallelFilterThreshold items. It runs on its own pool of
+ * Settings.parallelFilterThreads threads rather than the common pool, so
+ * that large filters do not hold up parallel streams and CompletableFutures
+ * elsewhere in the application.
+ */
+class ParallelFilter {
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static volatile ForkJoinPool pool;
+
+    /**
+     * Whether a list of this size should be processed in parallel.
+     *
+     * @param items
+     * @return
+     */
+    static boolean shouldParallelize(Iterable<?> items) {
+        if (!(items instanceof List) || !(items instanceof RandomAccess)) {
+            return false;
+        }
+        int threshold = getThreshold();
+        return threshold > 0 && ((List) items).size() >= threshold && pool().getParallelism() > 1;
+    }
+
+    /**
+     * The pool that parallel filters run on, created on first use.
+     *
+     * @return
+     */
+    private static ForkJoinPool pool() {
+        ForkJoinPool current = pool;
+        if (current == null) {
+            synchronized (ParallelFilter.class) {
+                current = pool;
+                if (current == null) {
+                    current = new ForkJoinPool(getThreads(), p -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        thread.setName("stallion-parallel-filter-" + thread.getPoolIndex());
+                        return thread;
+                    }, null, false);
+                    pool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static int getThreads() {
+        Integer threads = Settings.instance().getParallelFilterThreads();
+        if (threads == null || threads < 1) {
+            // Leave a processor free for the threads serving requests
+            return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        return threads;
+    }
+
+    private static int getThreshold() {
+        Integer threshold = Settings.instance().getParallelFilterThreshold();
+        if (threshold == null) {
+            return 0;
+        }
+        return threshold;
+    }
+
+    private static int chunkSize(int total) {
+        // Aim for a few chunks per thread, so that a slow chunk does not hold up the whole scan
+        return Math.max(MIN_CHUNK_SIZE, total / (pool().getParallelism() * 4));
+    }
+
+    /**
+     * Get all items in the list that match the filter, in their original order.
+     *
+     * @param items
+     * @param filter
+     * @param includeDeleted
+     * @param <T>
+     * @return
+     */
+    static <T extends Model> List<T> filter(List<T> items, CompiledFilter filter, boolean includeDeleted) {
+        return pool().invoke(new FilterTask<T>(items, 0, items.size(), chunkSize(items.size()), filter, includeDeleted));
+    }
+
+    /**
+     * Get the group key of every item, in the same order as the items.
+     *
+     * @param items
+     * @param fieldNames
+     * @param parallel
+     * @return
+     */
+    static String[] groupKeys(List<?> items, String[] fieldNames, boolean parallel) {
+        String[] keys = new String[items.size()];
+        if (parallel) {
+            pool().invoke(new GroupKeyTask(items, 0, items.size(), chunkSize(items.size()), fieldNames, keys));
+        } else {
+            new GroupKeyTask(items, 0, items.size(), Integer.MAX_VALUE, fieldNames, keys).compute();
+        }
+        return keys;
+    }
+
+    /**
+     * Sum up the given columns of all items. Nulls and values that are not
+     * numbers are skipped, the same as SQL SUM() and AVG() skip nulls.
+     *
+     * @param items
+     * @param columns
+     * @param parallel
+     * @return
+     */
+    static Totals totals(List<?> items, List<String> columns, boolean parallel) {
+        TotalsTask task = new TotalsTask(items, 0, items.size(), parallel ? chunkSize(items.size()) : Integer.MAX_VALUE, columns);
+        if (parallel) {
+            return pool().invoke(task);
+        } else {
+            return task.compute();
+        }
+    }
+
+    static class Totals {
+        private final List<String> columns;
+        private final double[] sums;
+        private final long[] counts;
+
+        Totals(List<String> columns) {
+            this.columns = columns;
+            this.sums = new double[columns.size()];
+            this.counts = new long[columns.size()];
+        }
+
+        private Totals merge(Totals other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+                counts[i] += other.counts[i];
+            }
+            return this;
+        }
+
+        /**
+         * @param columnNames - columns that were totaled
+         * @return
+         */
+        Map<String, Double> getSums(Collection<String> columnNames) {
+            Map<String, Double> result = map();
+            for (String name: columnNames) {
+                result.put(name, sums[columns.indexOf(name)]);
+            }
+            return result;
+        }
+
+        /**
+         * @param columnNames - columns that were totaled
+         * @return
+         */
+        Map<String, Double> getAverages(Collection<String> columnNames) {
+            Map<String, Double> result = map();
+            for (String name: columnNames) {
+                int i = columns.indexOf(name);
+                result.put(name, counts[i] == 0 ? null : sums[i] / counts[i]);
+            }
+            return result;
+        }
+    }
+
+    private static class FilterTask<T extends Model> extends RecursiveTask<List<T>> {
+        private final List<T> items;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+        private final CompiledFilter filter;
+        private final boolean includeDeleted;
+
+        FilterTask(List<T> items, int start, int end, int chunkSize, CompiledFilter filter, boolean includeDeleted) {
+            this.items = items;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.filter = filter;
+            this.includeDeleted = includeDeleted;
+        }
+
+        @Override
+        protected List<T> compute() {
+            if (end - start <= chunkSize) {
+                List<T> matched = new ArrayList<T>();
+                for (int i = start; i < end; i++) {
+                    T o = items.get(i);
+                    if (!includeDeleted && o.getDeleted() != null && o.getDeleted() == true) {
+                        continue;
+                    }
+                    if (filter.matches(o)) {
+                        matched.add(o);
+                    }
+                }
+                return matched;
+            }
+            int middle = (start + end) >>> 1;
+            FilterTask<T> left = new FilterTask<T>(items, start, middle, chunkSize, filter, includeDeleted);
+            FilterTask<T> right = new FilterTask<T>(items, middle, end, chunkSize, filter, includeDeleted);
+            left.fork();
+            List<T> rightMatched = right.compute();
+            List<T> matched = left.join();
+            matched.addAll(rightMatched);
+            return matched;
+        }
+    }
+
+    private static class GroupKeyTask extends RecursiveTask<Void> {
+        private final List<?> items;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+        private final String[] fieldNames;
+        private final String[] keys;
+
+        GroupKeyTask(List<?> items, int start, int end, int chunkSize, String[] fieldNames, String[] keys) {
+            this.items = items;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.fieldNames = fieldNames;
+            this.keys = keys;
+        }
+
+        @Override
+        protected Void compute() {
+            if (end - start <= chunkSize) {
+                StringBuilder builder = new StringBuilder();
+                for (int i = start; i < end; i++) {
+                    Object o = items.get(i);
+                    builder.setLength(0);
+                    for (String fieldName: fieldNames) {
+                        builder.append(PropertyGetter.forObject(o, fieldName).get(o)).append(GSEP);
+                    }
+                    keys[i] = builder.toString();
+                }
+                return null;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(
+                    new GroupKeyTask(items, start, middle, chunkSize, fieldNames, keys),
+                    new GroupKeyTask(items, middle, end, chunkSize, fieldNames, keys)
+            );
+            return null;
+        }
+    }
+
+    private static class TotalsTask extends RecursiveTask<Totals> {
+        private final List<?> items;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+        private final List<String> columns;
+
+        TotalsTask(List<?> items, int start, int end, int chunkSize, List<String> columns) {
+            this.items = items;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.columns = columns;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (end - start <= chunkSize) {
+                Totals totals = new Totals(columns);
+                for (int i = start; i < end; i++) {
+                    Object o = items.get(i);
+                    for (int c = 0; c < columns.size(); c++) {
+                        Object value = PropertyGetter.forObject(o, columns.get(c)).get(o);
+                        if (value instanceof Number) {
+                            totals.sums[c] += ((Number) value).doubleValue();
+                            totals.counts[c]++;
+                        }
+                    }
+                }
+                return totals;
+            }
+            int middle = (start + end) >>> 1;
+            TotalsTask left = new TotalsTask(items, start, middle, chunkSize, columns);
+            TotalsTask right = new TotalsTask(items, middle, end, chunkSize, columns);
+            left.fork();
+            Totals rightTotals = right.compute();
+            return left.join().merge(rightTotals);
+        }
+    }
+}
@@ -60,6 +60,7 @@ public class QueryToPager<T extends Model> {
     private String defaultSort = "";
     private boolean idAsSecondarySort = true;
     private String secondarySort = "";
+    private TotalCountMode _countMode = TotalCountMode.EXACT;
 
 
 
@@ -125,6 +126,17 @@ public class QueryToPager<T extends Model> {
     }
 
 
+    /**
+     * Choose how cursorPager() counts the total matching items.
+     *
+     * @param countMode
+     * @return
+     */
+    public QueryToPager<T> countMode(TotalCountMode countMode) {
+        this._countMode = countMode;
+        return this;
+    }
+
     public FilterChain<T> chain() {
         if (!_requestProcessed) {
             process();
@@ -147,6 +159,22 @@ public class QueryToPager<T extends Model> {
 
     }
 
+    /**
+     * Get a page using keyset pagination, rather than a page number. The "cursor" query
+     * parameter should be the continuation token from the previous page, or empty for the
+     * first page.
+     *
+     * @return
+     */
+    public Pager<T> cursorPager() {
+        if (!_requestProcessed) {
+            process();
+            this._requestProcessed = true;
+        }
+        String cursor = request.getQueryParam("cursor", null);
+        return this.chain.cursorPager(cursor, _pageSize, _countMode);
+    }
+
     protected void process() {
         // ?filters=&search=&page=&sort=&filter_by...
         String search = request.getQueryParam("search", null);
@@ -0,0 +1,37 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+/**
+ * How a cursor pager should get the total number of matching items.
+ */
+public enum TotalCountMode {
+    /**
+     * Count every matching item. On a database table, this is a full SELECT COUNT(*).
+     */
+    EXACT,
+    /**
+     * Use the database's estimate of the number of matching rows, from the query plan. For
+     * in memory filter chains, the exact count is cheap, so this is the same as EXACT.
+     */
+    ESTIMATED,
+    /**
+     * Do not count at all. Pager.getTotalCount() will be -1.
+     */
+    NONE;
+}
@@ -18,17 +18,23 @@
 package io.stallion.http;
 
 import io.stallion.monitoring.HealthTracker;
+import io.stallion.monitoring.RequestTimers;
 import io.stallion.requests.RequestWrapper;
 
 import javax.annotation.Priority;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
 import java.io.IOException;
+import java.lang.reflect.Method;
 
 @Priority(FilterPriorities.HEALTH_TRACKING_RESPONSE_FILTER)
 public class HealthTrackingResponseFilter implements ContainerResponseFilter {
 
+    @Context
+    private ResourceInfo resourceInfo;
 
     @Override
     public void filter(ContainerRequestContext containerRequestContext, ContainerResponseContext containerResponseContext) throws IOException {
@@ -38,7 +44,21 @@ public class HealthTrackingResponseFilter implements ContainerResponseFilter {
                 containerResponseContext
         );
 
+        // Timed up to here, writing out the response body is not included
+        Object timers = containerRequestContext.getProperty(RequestTimers.PROPERTY);
+        if (timers instanceof RequestTimers) {
+            HealthTracker.instance().logTiming(endpointName(), (RequestTimers)timers);
+        }
     }
-}
-
 
+    /**
+     * @return the resource class and method that handled the request, or "unmatched"
+     */
+    private String endpointName() {
+        Method method = resourceInfo == null ? null : resourceInfo.getResourceMethod();
+        if (method == null) {
+            return "unmatched";
+        }
+        return resourceInfo.getResourceClass().getSimpleName() + "." + method.getName();
+    }
+}
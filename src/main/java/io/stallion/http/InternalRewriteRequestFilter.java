@@ -32,9 +32,6 @@ import javax.ws.rs.container.PreMatching;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static io.stallion.utils.Literals.empty;
 
@@ -67,16 +64,12 @@ public class InternalRewriteRequestFilter  implements ContainerRequestFilter {
         String orgPath = containerRequestContext.getUriInfo().getRequestUri().getPath();
         String host = new RequestWrapper(containerRequestContext).getHost();
         if (!orgPath.startsWith("/st-")) { // Don't re-map internal endpoints and asset endpoints.
-            if (Settings.instance().getSecondaryDomains().size() > 0) {
-                for (SecondaryDomain domain : Settings.instance().getSecondaryDomains()) {
-                    if (host.equals(domain.getDomain()) && domain.isStripRootFromPageSlug()) {
-                        String newPath = domain.getRewriteRoot() + orgPath;
-                        Log.fine("SecondaryDomain rewrite {0} to {1}", orgPath, newPath);
-                        containerRequestContext.setRequestUri(URI.create(newPath));
-                        //request.setPath(path);
-                        break;
-                    }
-                }
+            SecondaryDomain domain = Settings.instance().getRewriteRouter().findStrippedSecondaryDomain(host);
+            if (domain != null) {
+                String newPath = domain.getRewriteRoot() + orgPath;
+                Log.fine("SecondaryDomain rewrite {0} to {1}", orgPath, newPath);
+                containerRequestContext.setRequestUri(URI.create(newPath));
+                //request.setPath(path);
             }
         }
     }
@@ -87,10 +80,11 @@ public class InternalRewriteRequestFilter  implements ContainerRequestFilter {
         String path = containerRequestContext.getUriInfo().getRequestUri().getPath();
 
 
-        if (Settings.instance().getRewrites().containsKey(path)) {
-            String newPath = Settings.instance().getRewrites().get(path);
-            containerRequestContext.setRequestUri(URI.create(newPath));
-            Log.fine("Non regex rewrite {0} to {1}", path, newPath);
+        RewriteRouter router = Settings.instance().getRewriteRouter();
+        String rewritten = router.findRewrite(path);
+        if (rewritten != null) {
+            containerRequestContext.setRequestUri(URI.create(rewritten));
+            Log.fine("Non regex rewrite {0} to {1}", path, rewritten);
             return;
         }
 
@@ -103,40 +97,26 @@ public class InternalRewriteRequestFilter  implements ContainerRequestFilter {
             fullPath = path;
         }
 
-        if (Settings.instance().getRewriteCompiledPatterns().size() > 0) {
-            for(Map.Entry<Pattern, String> entry: Settings.instance().getRewriteCompiledPatterns()) {
-                Matcher matcher = null;
-                boolean matchedQuery = false;
-                if (entry.getKey().toString().contains("\\?")) {
-                    matcher = entry.getKey().matcher(fullPath);
-                    matchedQuery = true;
-                } else {
-                    matcher = entry.getKey().matcher(path);
-                }
-                if (matcher.matches()) {
-                    Log.fine("Regex matched: {0}", entry.getKey());
-                    String newPath = matcher.replaceAll(entry.getValue());
-                    URI newUri;
-                    if (newPath.contains("?")) {
-                        String[] parts = newPath.split("\\?", 2);
-
-                        //request.setPath(parts[0]);
-                        //request.setQuery(parts[1]);
-                        newUri = URI.create(parts[0] + "?" + parts[1]);
-                        containerRequestContext.setRequestUri(newUri);
-                    } else {
-                        //request.setPath(newPath);
-                        if (!empty(originalQueryString)) {
-                            newPath = newPath + "?" + originalQueryString;
-                        }
-                        newUri = URI.create(newPath);
-                        containerRequestContext.setRequestUri(newUri);
-                    }
-
-                    Log.fine("Rewrote {0} to {1}", fullPath, newUri);
-                    break;
+        String newPath = router.rewriteByPattern(path, fullPath);
+        if (newPath != null) {
+            URI newUri;
+            if (newPath.contains("?")) {
+                String[] parts = newPath.split("\\?", 2);
+
+                //request.setPath(parts[0]);
+                //request.setQuery(parts[1]);
+                newUri = URI.create(parts[0] + "?" + parts[1]);
+                containerRequestContext.setRequestUri(newUri);
+            } else {
+                //request.setPath(newPath);
+                if (!empty(originalQueryString)) {
+                    newPath = newPath + "?" + originalQueryString;
                 }
+                newUri = URI.create(newPath);
+                containerRequestContext.setRequestUri(newUri);
             }
+
+            Log.fine("Rewrote {0} to {1}", fullPath, newUri);
         }
     }
 }
@@ -18,6 +18,7 @@
 package io.stallion.http;
 
 import io.stallion.Context;
+import io.stallion.monitoring.RequestTimers;
 import io.stallion.requests.IRequest;
 import io.stallion.requests.RequestWrapper;
 import io.stallion.services.Log;
@@ -48,6 +49,7 @@ public class PopulateContextRequestFilter implements ContainerRequestFilter {
         Context.setRequest(
                 req
         );
+        containerRequestContext.setProperty(RequestTimers.PROPERTY, RequestTimers.start());
 
 
     }
@@ -20,7 +20,6 @@ package io.stallion.http;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Filter;
 
 import static io.stallion.utils.Literals.*;
@@ -56,13 +55,12 @@ public class RedirectResponseFilter implements ContainerRequestFilter {
     public void filter(ContainerRequestContext containerRequestContext) throws IOException {
         IRequest request = new RequestWrapper(containerRequestContext);
         String path = containerRequestContext.getUriInfo().getRequestUri().getPath();
-        for(Map.Entry<String, String> redirect: Settings.instance().getRedirects().entrySet()) {
-            if (redirect.getKey().equals(path)) {
-                if (path.equals(redirect.getValue())){
-                    throw new UsageException("Configured redirect creates an infinite loop:" + path);
-                }
-                throw new RedirectionException(301, URI.create(redirect.getValue()));
+        String destination = Settings.instance().getRewriteRouter().findRedirect(path);
+        if (destination != null) {
+            if (path.equals(destination)){
+                throw new UsageException("Configured redirect creates an infinite loop:" + path);
             }
+            throw new RedirectionException(301, URI.create(destination));
         }
 
     }
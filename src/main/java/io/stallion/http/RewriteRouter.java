@@ -0,0 +1,228 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.http;
+
+import io.stallion.settings.SecondaryDomain;
+import io.stallion.settings.Settings;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.stallion.utils.Literals.*;
+
+/**
+ * The redirects, rewrites and secondary domains from the settings, compiled into
+ * lookup structures so that a request does not have to scan every entry.
+ *
+ * - Redirects, non-regex rewrites and secondary domains are hash lookups.
+ * - Rewrite patterns are indexed in a trie by the literal text that the regular
+ *   expression must start with. A request only tries the patterns whose literal
+ *   prefix matches its path, plus any patterns that have no literal prefix, in the
+ *   order they were defined in the settings.
+ *
+ * A router is immutable once built. Settings builds one when it is loaded, and builds
+ * a fresh one whenever the underlying settings are replaced, so a reload swaps
+ * in the new routes all at once.
+ */
+public class RewriteRouter {
+    private final Map<String, String> redirects;
+    private final Map<String, String> rewrites;
+    private final Map<String, SecondaryDomain> strippedDomains = new HashMap<>();
+    private final CompiledRewrite[] patterns;
+    private final PrefixNode patternIndex = new PrefixNode();
+
+    public static RewriteRouter build(Settings settings) {
+        return new RewriteRouter(
+                settings.getRedirects(),
+                settings.getRewrites(),
+                settings.getRewriteCompiledPatterns(),
+                settings.getSecondaryDomains()
+        );
+    }
+
+    public RewriteRouter(Map<String, String> redirects, Map<String, String> rewrites,
+                         List<Map.Entry<Pattern, String>> rewritePatterns, List<SecondaryDomain> secondaryDomains) {
+        this.redirects = redirects == null ? map() : new HashMap<>(redirects);
+        this.rewrites = rewrites == null ? map() : new HashMap<>(rewrites);
+        if (secondaryDomains != null) {
+            for (SecondaryDomain domain : secondaryDomains) {
+                if (domain.isStripRootFromPageSlug()) {
+                    strippedDomains.putIfAbsent(domain.getDomain(), domain);
+                }
+            }
+        }
+        if (rewritePatterns == null) {
+            patterns = new CompiledRewrite[0];
+        } else {
+            patterns = new CompiledRewrite[rewritePatterns.size()];
+            for (int i = 0; i < patterns.length; i++) {
+                Map.Entry<Pattern, String> entry = rewritePatterns.get(i);
+                patterns[i] = new CompiledRewrite(entry.getKey(), entry.getValue());
+                patternIndex.add(literalPrefix(entry.getKey()), i);
+            }
+        }
+    }
+
+    /**
+     * @param path
+     * @return the destination for a 301 redirect of the path, or null
+     */
+    public String findRedirect(String path) {
+        return redirects.get(path);
+    }
+
+    /**
+     * @param path
+     * @return the destination of a non-regex rewrite of the path, or null
+     */
+    public String findRewrite(String path) {
+        return rewrites.get(path);
+    }
+
+    /**
+     * @param host
+     * @return the secondary domain for the host, if its root should be stripped from page slugs, otherwise null
+     */
+    public SecondaryDomain findStrippedSecondaryDomain(String host) {
+        return strippedDomains.get(host);
+    }
+
+    /**
+     * Find the first rewrite pattern that matches the request. Patterns containing
+     * an escaped question mark are matched against the path and query string, all
+     * others against the path alone.
+     *
+     * @param path
+     * @param fullPath - the path plus the query string, if there is one
+     * @return the rewritten path, or null if no pattern matched
+     */
+    public String rewriteByPattern(String path, String fullPath) {
+        if (patterns.length == 0) {
+            return null;
+        }
+        for (int i: patternIndex.candidates(fullPath)) {
+            CompiledRewrite rewrite = patterns[i];
+            Matcher matcher = rewrite.pattern.matcher(rewrite.matchesQuery ? fullPath : path);
+            if (matcher.matches()) {
+                return matcher.replaceAll(rewrite.destination);
+            }
+        }
+        return null;
+    }
+
+    public int getPatternCount() {
+        return patterns.length;
+    }
+
+    /**
+     * The literal text that any match of the regular expression must start with. This
+     * is conservative: anything that is not plainly a literal ends the prefix, and an
+     * alternation anywhere in the expression means there is no prefix at all. So do
+     * flags, such as CASE_INSENSITIVE or COMMENTS, since the text would then not match
+     * literally.
+     *
+     * @param pattern
+     * @return
+     */
+    static String literalPrefix(Pattern pattern) {
+        String regex = pattern.pattern();
+        if (pattern.flags() != 0 || regex.startsWith("(?") || regex.contains("|")) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next;
+            char literal;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // \d, \w, \Q, back references and so on
+                    break;
+                }
+                literal = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (".[]{}()*+?^$".indexOf(c) > -1) {
+                break;
+            } else {
+                literal = c;
+                next = i + 1;
+            }
+            // A quantifier makes the preceding character optional or repeatable
+            if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) > -1) {
+                break;
+            }
+            prefix.append(literal);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static class CompiledRewrite {
+        private final Pattern pattern;
+        private final String destination;
+        private final boolean matchesQuery;
+
+        CompiledRewrite(Pattern pattern, String destination) {
+            this.pattern = pattern;
+            this.destination = destination;
+            this.matchesQuery = pattern.toString().contains("\\?");
+        }
+    }
+
+    private static class PrefixNode {
+        private final Map<Character, PrefixNode> children = new HashMap<>(4);
+        private int[] patternIndexes = new int[0];
+
+        void add(String prefix, int patternIndex) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), k -> new PrefixNode());
+            }
+            node.patternIndexes = Arrays.copyOf(node.patternIndexes, node.patternIndexes.length + 1);
+            node.patternIndexes[node.patternIndexes.length - 1] = patternIndex;
+        }
+
+        /**
+         * @return the indexes of every pattern whose prefix the value starts with, in definition order
+         */
+        int[] candidates(String value) {
+            int[] found = patternIndexes;
+            PrefixNode node = this;
+            for (int i = 0; i < value.length(); i++) {
+                node = node.children.get(value.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.patternIndexes.length > 0) {
+                    int start = found.length;
+                    found = Arrays.copyOf(found, start + node.patternIndexes.length);
+                    System.arraycopy(node.patternIndexes, 0, found, start, node.patternIndexes.length);
+                }
+            }
+            if (found != patternIndexes) {
+                Arrays.sort(found);
+            }
+            return found;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package io.stallion.http;
 
 import io.stallion.Context;
+import io.stallion.monitoring.RequestTimers;
 import io.stallion.services.Log;
 
 import javax.annotation.Priority;
@@ -43,6 +44,7 @@ public class TearDownContextResponseFilter implements ContainerResponseFilter {
         Context.setUser(null);
         Context.setOrg(null);
         Context.setRequest(null);
+        RequestTimers.clear();
 
     }
 }
@@ -19,6 +19,7 @@ package io.stallion.jobs;
 
 import io.stallion.Context;
 import io.stallion.monitoring.HealthTracker;
+import io.stallion.monitoring.MetricsRegistry;
 import io.stallion.requests.JobRequest;
 import io.stallion.services.Log;
 import io.stallion.utils.DateUtils;
@@ -32,6 +33,12 @@ import java.time.ZonedDateTime;
  *  *
  */
 class JobInstanceDispatcher implements Runnable {
+    private static final MetricsRegistry.Histogram JOB_SECONDS = MetricsRegistry.instance().histogram(
+            "stallion_job_duration_seconds", "Time spent executing jobs, by job name.",
+            MetricsRegistry.DEFAULT_SECONDS_BUCKETS, "job");
+    private static final MetricsRegistry.Counter JOB_RUNS = MetricsRegistry.instance().counter(
+            "stallion_job_runs_total", "Job executions, by job name and result.", "job", "result");
+
     private Job job;
     private JobDefinition definition;
     private boolean forced;
@@ -64,6 +71,7 @@ class JobInstanceDispatcher implements Runnable {
         status.setStartedAt(DateUtils.mils());
         JobStatusController.instance().save(status);
 
+        long startNanos = System.nanoTime();
         try {
             // Run the job
 
@@ -91,6 +99,10 @@ class JobInstanceDispatcher implements Runnable {
             }
             JobStatusController.instance().save(status);
         } finally {
+            // Go by the final status, so a job whose status failed to save counts as failed
+            boolean failed = status.getFailedAt() >= status.getStartedAt();
+            JOB_SECONDS.observe((System.nanoTime() - startNanos) / 1e9, definition.getName());
+            JOB_RUNS.inc(definition.getName(), failed ? "failure" : "success");
             Context.setRequest(null);
             JobStatusController.instance().resetLockAndNextRunAt(status, now.plusMinutes(1));
         }
@@ -0,0 +1,65 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The latency of one endpoint over the last 1, 5 and 15 minutes, for the whole request
+ * and for the time spent rendering templates and querying the database. The maps are
+ * keyed by window: "1m", "5m" and "15m".
+ */
+public class EndpointLatencyInfo {
+    private String endpoint = "";
+    private Map<String, LatencySummary> request = new LinkedHashMap<>();
+    private Map<String, LatencySummary> template = new LinkedHashMap<>();
+    private Map<String, LatencySummary> database = new LinkedHashMap<>();
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public Map<String, LatencySummary> getRequest() {
+        return request;
+    }
+
+    public void setRequest(Map<String, LatencySummary> request) {
+        this.request = request;
+    }
+
+    public Map<String, LatencySummary> getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(Map<String, LatencySummary> template) {
+        this.template = template;
+    }
+
+    public Map<String, LatencySummary> getDatabase() {
+        return database;
+    }
+
+    public void setDatabase(Map<String, LatencySummary> database) {
+        this.database = database;
+    }
+}
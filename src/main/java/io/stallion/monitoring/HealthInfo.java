@@ -19,6 +19,7 @@ package io.stallion.monitoring;
 
 import com.sun.management.UnixOperatingSystemMXBean;
 import io.stallion.asyncTasks.TaskHealthInfo;
+import io.stallion.dataAccess.filtering.FilterCacheStats;
 import io.stallion.jobs.JobHealthInfo;
 import io.stallion.settings.Settings;
 
@@ -38,6 +39,7 @@ public class HealthInfo {
     private List<String> errors = new ArrayList<>();
     private List<String> warnings = list();
     private SystemHealth system = null;
+    private List<FilterCacheStats> filterCaches = null;
     private int httpStatusCode = 200;
 
     private static final long MIN_DISK_SPACE = 1024 * 1024 * 1024; // 1 GB Min disk space
@@ -179,6 +181,14 @@ public class HealthInfo {
         this.jobs = jobs;
     }
 
+    public List<FilterCacheStats> getFilterCaches() {
+        return filterCaches;
+    }
+
+    public void setFilterCaches(List<FilterCacheStats> filterCaches) {
+        this.filterCaches = filterCaches;
+    }
+
     public List<EndpointHealthInfo> getEndpoints() {
         return endpoints;
     }
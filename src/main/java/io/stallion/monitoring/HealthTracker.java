@@ -19,6 +19,8 @@ package io.stallion.monitoring;
 
 import com.sun.management.UnixOperatingSystemMXBean;
 import io.stallion.asyncTasks.SimpleAsyncRunner;
+import io.stallion.dataAccess.filtering.FilterCache;
+import io.stallion.dataAccess.filtering.FilterCacheStats;
 import io.stallion.requests.IRequest;
 import io.stallion.services.Log;
 import io.stallion.settings.Settings;
@@ -40,26 +42,38 @@ import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.stallion.utils.Literals.empty;
 
 
 public class HealthTracker {
+    /**
+     * Latency is tracked separately for at most this many endpoints, any more are
+     * grouped together as "other".
+     */
+    public static final int MAX_TRACKED_ENDPOINTS = 200;
+    static final int[] LATENCY_WINDOWS = new int[]{1, 5, 15};
+
+    private static final MetricsRegistry.Histogram REQUEST_SECONDS = MetricsRegistry.instance().histogram(
+            "stallion_http_request_duration_seconds", "Time spent handling HTTP requests, by endpoint.",
+            MetricsRegistry.DEFAULT_SECONDS_BUCKETS, "endpoint");
+    private static final MetricsRegistry.Counter RESPONSES = MetricsRegistry.instance().counter(
+            "stallion_http_responses_total", "HTTP responses sent, by status class.", "status");
     private CircularFifoQueue<ExceptionInfo> exceptionQueue = new CircularFifoQueue(100);
-    private CircularFifoQueue<MinuteInfo> response500s = new CircularFifoQueue<>(50);
-    private CircularFifoQueue<MinuteInfo> response400s = new CircularFifoQueue<>(50);
-    private CircularFifoQueue<MinuteInfo> response404s = new CircularFifoQueue<>(50);
-    private CircularFifoQueue<MinuteInfo> responseCounts = new CircularFifoQueue<>(50);
+    private RollingCounter response500s = newMinuteCounter();
+    private RollingCounter response400s = newMinuteCounter();
+    private RollingCounter response404s = newMinuteCounter();
+    private RollingCounter responseCounts = newMinuteCounter();
     private ScheduledThreadPoolExecutor timedChecker;
     private RollingMetrics metrics = new RollingMetrics();
     private DailyMetrics dailyMetrics = new DailyMetrics();
+    private final RollingLatencyHistogram requestTimes = new RollingLatencyHistogram();
+    private final Map<String, EndpointTimings> endpointTimings = new ConcurrentHashMap<>();
     private static HealthTracker _instance = new HealthTracker();
 
     private HealthTracker() {
@@ -72,6 +86,26 @@ public class HealthTracker {
         instance().timedChecker = new ScheduledThreadPoolExecutor(2, factory);
         instance().timedChecker.scheduleAtFixedRate(instance().metrics, 0, 1, TimeUnit.MINUTES);
         instance().timedChecker.scheduleAtFixedRate(instance().dailyMetrics, 0, 24*60, TimeUnit.MINUTES);
+        registerFilterCacheMetrics();
+    }
+
+    private static void registerFilterCacheMetrics() {
+        MetricsRegistry registry = MetricsRegistry.instance();
+        String[] bucket = new String[]{"bucket"};
+        registry.callback("stallion_filter_cache_hits_total", "counter", "Filter cache hits.", bucket,
+                samples -> FilterCache.getStats().forEach(s -> samples.add(s.getHits(), s.getBucket())));
+        registry.callback("stallion_filter_cache_misses_total", "counter", "Filter cache misses.", bucket,
+                samples -> FilterCache.getStats().forEach(s -> samples.add(s.getMisses(), s.getBucket())));
+        registry.callback("stallion_filter_cache_evictions_total", "counter", "Filter cache entries evicted to stay under the weight limit.", bucket,
+                samples -> FilterCache.getStats().forEach(s -> samples.add(s.getEvictions(), s.getBucket())));
+        registry.callback("stallion_filter_cache_entries", "gauge", "Entries currently in the filter cache.", bucket,
+                samples -> FilterCache.getStats().forEach(s -> samples.add(s.getEntries(), s.getBucket())));
+        registry.callback("stallion_filter_cache_weight", "gauge", "Current weight of the filter cache.", bucket,
+                samples -> FilterCache.getStats().forEach(s -> samples.add(s.getWeight(), s.getBucket())));
+    }
+
+    private static RollingCounter newMinuteCounter() {
+        return new RollingCounter(60000, 16);
     }
 
     public static HealthTracker instance() {
@@ -138,9 +172,48 @@ public class HealthTracker {
         health.setError500s(lastTenMinutesCount(response500s));
         health.setError404s(lastTenMinutesCount(response404s));
         health.setRequestCount(lastTenMinutesCount(responseCounts));
+        health.setLatency(LatencySummary.fromSnapshot(requestTimes.snapshot(10, DateUtils.mils())));
         return health;
     }
 
+    /**
+     * Latency percentiles for every endpoint that has had requests in the last
+     * fifteen minutes, sorted by endpoint.
+     *
+     * @return
+     */
+    public List<EndpointLatencyInfo> getLatencyInfos() {
+        long now = DateUtils.mils();
+        List<EndpointLatencyInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, EndpointTimings> entry: endpointTimings.entrySet()) {
+            EndpointTimings timings = entry.getValue();
+            EndpointLatencyInfo info = new EndpointLatencyInfo();
+            info.setEndpoint(entry.getKey());
+            for (int minutes: LATENCY_WINDOWS) {
+                String window = minutes + "m";
+                info.getRequest().put(window, LatencySummary.fromSnapshot(timings.getRequest().snapshot(minutes, now)));
+                info.getTemplate().put(window, timings.getTemplate() == null ? new LatencySummary() :
+                        LatencySummary.fromSnapshot(timings.getTemplate().snapshot(minutes, now)));
+                info.getDatabase().put(window, timings.getDatabase() == null ? new LatencySummary() :
+                        LatencySummary.fromSnapshot(timings.getDatabase().snapshot(minutes, now)));
+            }
+            if (info.getRequest().get("15m").getCount() > 0) {
+                infos.add(info);
+            }
+        }
+        infos.sort(Comparator.comparing(EndpointLatencyInfo::getEndpoint));
+        return infos;
+    }
+
+    /**
+     * Hit, miss and eviction counters of the filter result cache, for each bucket.
+     *
+     * @return
+     */
+    public List<FilterCacheStats> getFilterCacheStats() {
+        return FilterCache.getStats();
+    }
+
     public void logException(Throwable e) {
         if (e instanceof ClientErrorException) {
             return;
@@ -157,92 +230,92 @@ public class HealthTracker {
         }
     }
 
-    public int lastTenMinutesCount(CircularFifoQueue<MinuteInfo> queue) {
-        ZonedDateTime tenAgo = MinuteInfo.getCurrentMinute().minusMinutes(10);
-        int count = 0;
-        for (MinuteInfo info: queue) {
-            if (info.getMinute().isBefore(tenAgo)) {
-                continue;
-            }
-            count += info.getCount().get();
-        }
-        return count;
+    public int lastTenMinutesCount(RollingCounter counter) {
+        return (int)counter.sum(10, DateUtils.mils());
     }
 
     public void logResponse(IRequest request, ContainerResponseContext response) {
-        incrementQueue(responseCounts);
+        responseCounts.increment();
+        RESPONSES.inc((response.getStatus() / 100) + "xx");
         if (response.getStatus() >= 500) {
             // If the health endpoint is treating us as down, don't log that
             // as a 500 error or else we will be down for ever
             if (!request.getPath().startsWith("/st-internal/")) {
-                incrementQueue(response500s);
+                response500s.increment();
             }
         } else if (response.getStatus() == 404) {
-            incrementQueue(response404s);
+            response404s.increment();
         } else if (response.getStatus() >= 400) {
-            incrementQueue(response400s);
+            response400s.increment();
         }
     }
 
 
-    public void incrementQueue(CircularFifoQueue<MinuteInfo> queue) {
-        ZonedDateTime now = MinuteInfo.getCurrentMinute();
-        MinuteInfo minuteInfo = null;
-        if (!queue.isEmpty()) {
-            minuteInfo = queue.get(queue.size()-1);
-            //minuteInfo = queue.get(0);
-            //Log.info("first: {0}", queue.get(0).getMinute());
-            //Log.info("last:  {0}", queue.get(queue.size() -1).getMinute());
-            //Log.info("now:   {0}", now);
-            if (!minuteInfo.getMinute().equals(now)) {
-                //Log.info("Minutes do not matched, prepare for new minute");
-                minuteInfo = null;
+    /**
+     * Record how long a request took, and how long it spent rendering templates and
+     * querying the database.
+     *
+     * @param endpoint - the resource method that handled the request
+     * @param timers
+     */
+    public void logTiming(String endpoint, RequestTimers timers) {
+        long now = DateUtils.mils();
+        long micros = timers.getElapsedNanos() / 1000;
+        requestTimes.record(micros, now);
+        EndpointTimings timings = endpointTimings.get(endpoint);
+        if (timings == null) {
+            if (endpointTimings.size() >= MAX_TRACKED_ENDPOINTS) {
+                endpoint = "other";
             }
+            timings = endpointTimings.computeIfAbsent(endpoint, k -> new EndpointTimings());
         }
-        if (minuteInfo == null) {
-            minuteInfo = new MinuteInfo();
-            minuteInfo.setMinute(now);
-            synchronized (queue) {
-                queue.add(minuteInfo);
-            }
+        REQUEST_SECONDS.observe(micros / 1000000.0, endpoint);
+        timings.getRequest().record(micros, now);
+        if (timers.getTemplateNanos() > 0) {
+            timings.getOrCreateTemplate().record(timers.getTemplateNanos() / 1000, now);
+        }
+        if (timers.getDatabaseNanos() > 0) {
+            timings.getOrCreateDatabase().record(timers.getDatabaseNanos() / 1000, now);
         }
-        //Log.info("Increment minute {0} {1}", minuteInfo.getMinute().toString(), minuteInfo.getCount().get());
-        minuteInfo.getCount().incrementAndGet();
     }
 
-
-
-
     public CircularFifoQueue<ExceptionInfo> getExceptionQueue() {
         return exceptionQueue;
     }
 
-    public static class MinuteInfo {
-        private ZonedDateTime minute;
-        private AtomicInteger count = new AtomicInteger(0);
-        private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("YYYY-MM-dd-HH:mm");
+    /**
+     * The latency histograms of one endpoint. Most endpoints never render a template or
+     * never hit the database, so those histograms are only created when first needed.
+     */
+    public static class EndpointTimings {
+        private final RollingLatencyHistogram request = new RollingLatencyHistogram();
+        private volatile RollingLatencyHistogram template;
+        private volatile RollingLatencyHistogram database;
 
-        public static ZonedDateTime getCurrentMinute() {
-            ZonedDateTime now = DateUtils.utcNow();
-            return ZonedDateTime.of(
-                    now.getYear(), now.getMonth().getValue(), now.getDayOfMonth(),
-                    now.getHour(), now.getMinute(), 0, 0, ZoneId.of("UTC"));
+        public RollingLatencyHistogram getRequest() {
+            return request;
         }
 
-        public AtomicInteger getCount() {
-            return count;
+        public RollingLatencyHistogram getTemplate() {
+            return template;
         }
 
-        public void setCount(AtomicInteger count) {
-            this.count = count;
+        public RollingLatencyHistogram getDatabase() {
+            return database;
         }
 
-        public ZonedDateTime getMinute() {
-            return minute;
+        synchronized RollingLatencyHistogram getOrCreateTemplate() {
+            if (template == null) {
+                template = new RollingLatencyHistogram();
+            }
+            return template;
         }
 
-        public void setMinute(ZonedDateTime minute) {
-            this.minute = minute;
+        synchronized RollingLatencyHistogram getOrCreateDatabase() {
+            if (database == null) {
+                database = new RollingLatencyHistogram();
+            }
+            return database;
         }
     }
 
@@ -22,6 +22,7 @@ public class HttpHealthInfo {
     private int error400s = 0;
     private int error404s = 0;
     private int requestCount = 0;
+    private LatencySummary latency = new LatencySummary();
 
     public int getError500s() {
         return error500s;
@@ -54,4 +55,16 @@ public class HttpHealthInfo {
     public void setRequestCount(int requestCount) {
         this.requestCount = requestCount;
     }
+
+    /**
+     * Latency of all requests over the last ten minutes
+     * @return
+     */
+    public LatencySummary getLatency() {
+        return latency;
+    }
+
+    public void setLatency(LatencySummary latency) {
+        this.latency = latency;
+    }
 }
@@ -75,10 +75,38 @@ public class InternalEndpoints  {
     }
 
 
+    /**
+     * Latency percentiles for each endpoint over the last 1, 5 and 15 minutes.
+     *
+     * @param secret
+     * @return
+     */
+    @GET
+    @Path("/latencies")
+    public List<EndpointLatencyInfo> getLatencies(@QueryParam("secret") String secret) {
+        checkSecret(secret);
+        return HealthTracker.instance().getLatencyInfos();
+    }
+
+    /**
+     * All registered metrics, in the Prometheus text exposition format.
+     *
+     * @param secret
+     * @return
+     */
+    @GET
+    @Path("/metrics")
+    @Produces("text/plain; version=0.0.4; charset=utf-8")
+    public String getMetrics(@QueryParam("secret") String secret) {
+        checkSecret(secret);
+        return MetricsRegistry.instance().scrape();
+    }
+
+
     private HealthInfo buildHealthInfo(String sectionsString) {
         List<String> sections = Arrays.asList(sectionsString.split(","));
         if ("all".equals(sectionsString)) {
-            sections = list("http", "jobs", "tasks", "endpoints", "system");
+            sections = list("http", "jobs", "tasks", "endpoints", "system", "filterCache");
         }
         HealthInfo info = new HealthInfo();
 
@@ -97,6 +125,9 @@ public class InternalEndpoints  {
         if (sections.contains("system")) {
             info.setSystem(new SystemHealth().hydrateSystemHealth());
         }
+        if (sections.contains("filterCache")) {
+            info.setFilterCaches(HealthTracker.instance().getFilterCacheStats());
+        }
 
         info.hydrateErrors();
 
@@ -0,0 +1,142 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock-free histogram of durations in microseconds. Durations under 8us
+ * get a bucket each, above that every power of two is split into four buckets, so a
+ * percentile read from the histogram is within 12.5% of the true value. Durations over
+ * 2^32us (about 71 minutes) all land in the last bucket.
+ */
+public class LatencyHistogram {
+    private static final int EXACT = 8;
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_OCTAVE = 31;
+    static final int BUCKETS = EXACT + (MAX_OCTAVE - 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucketFor(micros));
+        sum.addAndGet(micros);
+        long currentMax = max.get();
+        while (micros > currentMax && !max.compareAndSet(currentMax, micros)) {
+            currentMax = max.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Add the counts in this histogram to the snapshot.
+     *
+     * @param snapshot
+     */
+    public void addTo(Snapshot snapshot) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            snapshot.counts[i] += count;
+            snapshot.count += count;
+        }
+        snapshot.sum += sum.get();
+        snapshot.max = Math.max(snapshot.max, max.get());
+    }
+
+    static int bucketFor(long micros) {
+        if (micros < EXACT) {
+            return (int)micros;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        if (octave > MAX_OCTAVE) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)(micros >>> (octave - 2)) & (SUB_BUCKETS - 1);
+        return EXACT + (octave - 3) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket
+     * @return the middle of the range of durations that fall in the bucket
+     */
+    static long bucketMidpoint(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int octave = 3 + (bucket - EXACT) / SUB_BUCKETS;
+        int sub = (bucket - EXACT) % SUB_BUCKETS;
+        long width = 1L << (octave - 2);
+        long lower = (1L << octave) + sub * width;
+        return lower + width / 2;
+    }
+
+    /**
+     * The merged counts of one or more histograms, at a point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts = new long[BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long max = 0;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double)sum / count;
+        }
+
+        /**
+         * @param quantile - between 0 and 1, for example 0.99
+         * @return the approximate duration, in microseconds, that the given fraction of
+         * recorded durations were at or under
+         */
+        public long getPercentileMicros(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(bucketMidpoint(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
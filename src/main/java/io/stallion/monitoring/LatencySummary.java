@@ -0,0 +1,89 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+/**
+ * Percentiles of a latency histogram over one window, in milliseconds.
+ */
+public class LatencySummary {
+    private long count = 0;
+    private double meanMillis = 0;
+    private double p50Millis = 0;
+    private double p90Millis = 0;
+    private double p99Millis = 0;
+    private double maxMillis = 0;
+
+    public static LatencySummary fromSnapshot(LatencyHistogram.Snapshot snapshot) {
+        LatencySummary summary = new LatencySummary();
+        summary.setCount(snapshot.getCount());
+        summary.setMeanMillis(snapshot.getMeanMicros() / 1000.0);
+        summary.setP50Millis(snapshot.getPercentileMicros(0.5) / 1000.0);
+        summary.setP90Millis(snapshot.getPercentileMicros(0.9) / 1000.0);
+        summary.setP99Millis(snapshot.getPercentileMicros(0.99) / 1000.0);
+        summary.setMaxMillis(snapshot.getMaxMicros() / 1000.0);
+        return summary;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public void setMeanMillis(double meanMillis) {
+        this.meanMillis = meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public void setP50Millis(double p50Millis) {
+        this.p50Millis = p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public void setP90Millis(double p90Millis) {
+        this.p90Millis = p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public void setP99Millis(double p99Millis) {
+        this.p99Millis = p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    public void setMaxMillis(double maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+}
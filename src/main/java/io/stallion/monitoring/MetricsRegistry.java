@@ -0,0 +1,371 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+import io.stallion.exceptions.UsageException;
+import io.stallion.services.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+
+import static io.stallion.utils.Literals.list;
+
+/**
+ * A small in-process registry of counters, gauges and histograms, which can be written
+ * out in the Prometheus text exposition format (version 0.0.4) for scraping.
+ *
+ * There is one registry per process. Registering a metric that already exists returns
+ * the existing metric, so classes can hold their metrics in static fields. Values that
+ * already live somewhere else, such as the connection pool size or the async task
+ * queue depth, are registered as callbacks and read at scrape time.
+ */
+public class MetricsRegistry {
+    /**
+     * Default histogram buckets for durations, in seconds.
+     */
+    public static final double[] DEFAULT_SECONDS_BUCKETS = new double[]{
+            .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10, 30, 60, 300
+    };
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    public static MetricsRegistry instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get or create a counter. By convention the name should end in "_total".
+     *
+     * @param name
+     * @param help
+     * @param labelNames
+     * @return
+     */
+    public Counter counter(String name, String help, String...labelNames) {
+        return register(new Counter(name, help, labelNames), Counter.class);
+    }
+
+    /**
+     * Get or create a histogram with the given upper bounds. The bounds must be sorted
+     * ascending, the +Inf bucket is added automatically.
+     *
+     * @param name
+     * @param help
+     * @param buckets
+     * @param labelNames
+     * @return
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String...labelNames) {
+        return register(new Histogram(name, help, buckets, labelNames), Histogram.class);
+    }
+
+    /**
+     * Register a gauge without labels whose value is read from the supplier at
+     * scrape time. Replaces any existing callback with the same name.
+     *
+     * @param name
+     * @param help
+     * @param supplier
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        callback(name, "gauge", help, new String[0], samples -> samples.add(supplier.getAsDouble()));
+    }
+
+    /**
+     * Register a metric whose samples are collected at scrape time. The collector
+     * should call Samples.add() once for each combination of label values. Replaces
+     * any existing callback with the same name, so subsystems can safely re-register
+     * when they are restarted.
+     *
+     * @param name
+     * @param type - "gauge" or "counter"
+     * @param help
+     * @param labelNames
+     * @param collector
+     */
+    public void callback(String name, String type, String help, String[] labelNames, Consumer<Samples> collector) {
+        if (!"gauge".equals(type) && !"counter".equals(type)) {
+            throw new UsageException("Callback metric " + name + " must be a gauge or a counter, not " + type);
+        }
+        Metric existing = metrics.get(name);
+        if (existing != null && !(existing instanceof CallbackMetric)) {
+            throw new UsageException("Metric " + name + " is already registered as a " + existing.type);
+        }
+        metrics.put(name, new CallbackMetric(name, type, help, labelNames, collector));
+    }
+
+    public void unregister(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric: metrics.values()) {
+            out.append("# HELP ").append(metric.name).append(' ');
+            appendEscaped(out, metric.help, false);
+            out.append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            try {
+                metric.write(out);
+            } catch (RuntimeException e) {
+                // One broken callback should not take down the whole scrape
+                Log.exception(e, "Error collecting metric " + metric.name);
+            }
+        }
+        return out.toString();
+    }
+
+    private <T extends Metric> T register(T metric, Class<T> cls) {
+        Metric existing = metrics.putIfAbsent(metric.name, metric);
+        if (existing == null) {
+            return metric;
+        }
+        if (!cls.isInstance(existing) || !Arrays.equals(existing.labelNames, metric.labelNames)) {
+            throw new UsageException("Metric " + metric.name + " is already registered with a different type or labels");
+        }
+        return cls.cast(existing);
+    }
+
+    static abstract class Metric {
+        protected final String name;
+        protected final String type;
+        protected final String help;
+        protected final String[] labelNames;
+
+        Metric(String name, String type, String help, String[] labelNames) {
+            if (!name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*")) {
+                throw new UsageException("Invalid metric name: " + name);
+            }
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.labelNames = labelNames;
+        }
+
+        List<String> key(String[] labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new UsageException("Metric " + name + " expects " + labelNames.length + " label values, got " + labelValues.length);
+            }
+            return Arrays.asList(labelValues);
+        }
+
+        abstract void write(StringBuilder out);
+
+        protected void writeSample(StringBuilder out, String sampleName, List<String> labelValues, String extraLabel, String extraValue, double value) {
+            out.append(sampleName);
+            if (labelNames.length > 0 || extraLabel != null) {
+                out.append('{');
+                for (int i = 0; i < labelNames.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(labelNames[i]).append("=\"");
+                    appendEscaped(out, labelValues.get(i), true);
+                    out.append('"');
+                }
+                if (extraLabel != null) {
+                    if (labelNames.length > 0) {
+                        out.append(',');
+                    }
+                    out.append(extraLabel).append("=\"").append(extraValue).append('"');
+                }
+                out.append('}');
+            }
+            out.append(' ').append(formatValue(value)).append('\n');
+        }
+    }
+
+    /**
+     * A monotonically increasing count, optionally split by labels.
+     */
+    public static class Counter extends Metric {
+        private final Map<List<String>, LongAdder> children = new ConcurrentHashMap<>();
+
+        Counter(String name, String help, String[] labelNames) {
+            super(name, "counter", help, labelNames);
+        }
+
+        public void inc(String...labelValues) {
+            add(1, labelValues);
+        }
+
+        public void add(long amount, String...labelValues) {
+            if (amount < 0) {
+                throw new UsageException("Counter " + name + " cannot be decreased");
+            }
+            children.computeIfAbsent(key(labelValues), k -> new LongAdder()).add(amount);
+        }
+
+        public long get(String...labelValues) {
+            LongAdder adder = children.get(key(labelValues));
+            return adder == null ? 0 : adder.sum();
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<List<String>, LongAdder> entry: children.entrySet()) {
+                writeSample(out, name, entry.getKey(), null, null, entry.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * Counts observations into cumulative buckets, along with their sum and count.
+     */
+    public static class Histogram extends Metric {
+        private final double[] bounds;
+        private final Map<List<String>, Child> children = new ConcurrentHashMap<>();
+
+        Histogram(String name, String help, double[] bounds, String[] labelNames) {
+            super(name, "histogram", help, labelNames);
+            for (int i = 1; i < bounds.length; i++) {
+                if (bounds[i] <= bounds[i - 1]) {
+                    throw new UsageException("Histogram " + name + " buckets must be strictly increasing");
+                }
+            }
+            this.bounds = bounds.clone();
+        }
+
+        public void observe(double value, String...labelValues) {
+            Child child = children.computeIfAbsent(key(labelValues), k -> new Child(bounds.length + 1));
+            int bucket = Arrays.binarySearch(bounds, value);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
+            }
+            child.buckets[bucket].increment();
+            child.sum.add(value);
+        }
+
+        public long getCount(String...labelValues) {
+            Child child = children.get(key(labelValues));
+            if (child == null) {
+                return 0;
+            }
+            long count = 0;
+            for (LongAdder bucket: child.buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            for (Map.Entry<List<String>, Child> entry: children.entrySet()) {
+                Child child = entry.getValue();
+                long cumulative = 0;
+                for (int i = 0; i < child.buckets.length; i++) {
+                    cumulative += child.buckets[i].sum();
+                    String le = i < bounds.length ? formatValue(bounds[i]) : "+Inf";
+                    writeSample(out, name + "_bucket", entry.getKey(), "le", le, cumulative);
+                }
+                writeSample(out, name + "_sum", entry.getKey(), null, null, child.sum.sum());
+                writeSample(out, name + "_count", entry.getKey(), null, null, cumulative);
+            }
+        }
+
+        private static class Child {
+            private final LongAdder[] buckets;
+            private final DoubleAdder sum = new DoubleAdder();
+
+            Child(int size) {
+                buckets = new LongAdder[size];
+                for (int i = 0; i < size; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the samples of a callback metric during a scrape.
+     */
+    public static class Samples {
+        private final List<List<String>> labelValues = list();
+        private final List<Double> values = list();
+        private final CallbackMetric metric;
+
+        Samples(CallbackMetric metric) {
+            this.metric = metric;
+        }
+
+        public Samples add(double value, String...labelValues) {
+            this.labelValues.add(metric.key(labelValues));
+            this.values.add(value);
+            return this;
+        }
+    }
+
+    static class CallbackMetric extends Metric {
+        private final Consumer<Samples> collector;
+
+        CallbackMetric(String name, String type, String help, String[] labelNames, Consumer<Samples> collector) {
+            super(name, type, help, labelNames);
+            this.collector = collector;
+        }
+
+        @Override
+        void write(StringBuilder out) {
+            Samples samples = new Samples(this);
+            collector.accept(samples);
+            for (int i = 0; i < samples.values.size(); i++) {
+                writeSample(out, name, samples.labelValues.get(i), null, null, samples.values.get(i));
+            }
+        }
+    }
+
+    static String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static void appendEscaped(StringBuilder out, String value, boolean quoted) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                out.append("\\\\");
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '"' && quoted) {
+                out.append("\\\"");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+/**
+ * Tracks how long the current request has taken, and how much of that was spent
+ * rendering templates and waiting on the database. The timers live on a thread local,
+ * set up when the request starts and cleared when the response is done.
+ *
+ * Nested calls, such as a template rendering an included template, are only
+ * counted once.
+ */
+public class RequestTimers {
+    public static final String PROPERTY = "stallion.requestTimers";
+
+    private static final ThreadLocal<RequestTimers> current = new ThreadLocal<>();
+
+    private final long startedAt = System.nanoTime();
+    private final SubTimer template = new SubTimer();
+    private final SubTimer database = new SubTimer();
+
+    /**
+     * Start timing a new request on this thread.
+     *
+     * @return
+     */
+    public static RequestTimers start() {
+        RequestTimers timers = new RequestTimers();
+        current.set(timers);
+        return timers;
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+
+    public static long templateStarted() {
+        RequestTimers timers = current.get();
+        return timers == null ? 0 : timers.template.started();
+    }
+
+    public static void templateFinished(long started) {
+        RequestTimers timers = current.get();
+        if (timers != null) {
+            timers.template.finished(started);
+        }
+    }
+
+    public static long databaseStarted() {
+        RequestTimers timers = current.get();
+        return timers == null ? 0 : timers.database.started();
+    }
+
+    public static void databaseFinished(long started) {
+        RequestTimers timers = current.get();
+        if (timers != null) {
+            timers.database.finished(started);
+        }
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startedAt;
+    }
+
+    public long getTemplateNanos() {
+        return template.total;
+    }
+
+    public long getDatabaseNanos() {
+        return database.total;
+    }
+
+    private static class SubTimer {
+        private int depth = 0;
+        private long total = 0;
+
+        long started() {
+            depth++;
+            return System.nanoTime();
+        }
+
+        void finished(long started) {
+            if (depth == 0) {
+                return;
+            }
+            depth--;
+            if (depth == 0) {
+                total += System.nanoTime() - started;
+            }
+        }
+    }
+}
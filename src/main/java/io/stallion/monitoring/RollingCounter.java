@@ -0,0 +1,87 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events over a rolling window, as a preallocated ring of LongAdder slots, one per
+ * period. The slot for a timestamp is found by dividing the epoch milliseconds by the
+ * period length, so counting allocates nothing and takes no locks, and stays accurate
+ * with many threads counting at once.
+ *
+ * A slot is cleared when its period comes around again. An increment that races with
+ * that clear, right at the start of a period, can be lost.
+ */
+public class RollingCounter {
+    private final long periodMillis;
+    private final LongAdder[] slots;
+    private final AtomicLongArray slotPeriods;
+
+    /**
+     * @param periodMillis - the length of the period each slot counts, for example 60000
+     * @param periods - how many periods to keep, which bounds the longest window that can be summed
+     */
+    public RollingCounter(long periodMillis, int periods) {
+        this.periodMillis = periodMillis;
+        this.slots = new LongAdder[periods];
+        this.slotPeriods = new AtomicLongArray(periods);
+        for (int i = 0; i < periods; i++) {
+            slots[i] = new LongAdder();
+            slotPeriods.set(i, -1);
+        }
+    }
+
+    public void increment() {
+        add(1, System.currentTimeMillis());
+    }
+
+    public void add(long count, long nowMillis) {
+        long period = nowMillis / periodMillis;
+        int i = (int)(period % slots.length);
+        long slotPeriod = slotPeriods.get(i);
+        if (slotPeriod != period) {
+            if (slotPeriod > period) {
+                // The slot has already moved on to a later period, this count is too old to keep
+                return;
+            }
+            if (slotPeriods.compareAndSet(i, slotPeriod, period)) {
+                slots[i].reset();
+            }
+        }
+        slots[i].add(count);
+    }
+
+    /**
+     * @param periods - how many periods to sum, including the current one
+     * @param nowMillis
+     * @return the count for the current period and the periods-1 before it
+     */
+    public long sum(int periods, long nowMillis) {
+        long currentPeriod = nowMillis / periodMillis;
+        long total = 0;
+        for (int i = 0; i < slots.length; i++) {
+            long slotPeriod = slotPeriods.get(i);
+            if (slotPeriod <= currentPeriod && slotPeriod > currentPeriod - periods) {
+                total += slots[i].sum();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram over the last fifteen minutes, kept as a ring of one histogram per
+ * minute. A slot is cleared and reused when its minute comes around again, so memory use
+ * is fixed. Recording is lock-free; a duration recorded just as its slot rolls over to a
+ * new minute can be lost.
+ */
+public class RollingLatencyHistogram {
+    static final int SLOTS = 16;
+
+    private final LatencyHistogram[] slots = new LatencyHistogram[SLOTS];
+    private final AtomicLongArray slotMinutes = new AtomicLongArray(SLOTS);
+
+    public RollingLatencyHistogram() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new LatencyHistogram();
+            slotMinutes.set(i, -1);
+        }
+    }
+
+    public void record(long micros, long nowMillis) {
+        long minute = nowMillis / 60000;
+        int i = (int)(minute % SLOTS);
+        long slotMinute = slotMinutes.get(i);
+        if (slotMinute != minute && slotMinutes.compareAndSet(i, slotMinute, minute)) {
+            slots[i].reset();
+        }
+        slots[i].record(micros);
+    }
+
+    /**
+     * @param minutes - the size of the window, at most fifteen
+     * @param nowMillis
+     * @return the merged histogram of the current minute and the minutes-1 minutes before it
+     */
+    public LatencyHistogram.Snapshot snapshot(int minutes, long nowMillis) {
+        long currentMinute = nowMillis / 60000;
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        for (int i = 0; i < SLOTS; i++) {
+            long slotMinute = slotMinutes.get(i);
+            if (slotMinute <= currentMinute && slotMinute > currentMinute - minutes) {
+                slots[i].addTo(snapshot);
+            }
+        }
+        return snapshot;
+    }
+}
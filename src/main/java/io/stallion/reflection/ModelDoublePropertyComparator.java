@@ -62,13 +62,23 @@ public class ModelDoublePropertyComparator<T extends Model> implements Comparato
             }
 
         }
+        // Fall back to the id, so that the order is stable for items with the same sort values
+        if (result == 0 && o1.getId() != null && o2.getId() != null) {
+            result = o1.getId().compareTo(o2.getId());
+            if (SortDirection.DESC.equals(dir)) {
+                result = -result;
+            }
+        }
         return result;
     }
 
     private int compareProperties(String propertyName, Object o1, Object o2) {
+        if (propertyName == null || propertyName.isEmpty()) {
+            return 0;
+        }
         Integer result = null;
-        Comparable val1 = (Comparable)PropertyUtils.getPropertyOrMappedValue(o1, propertyName);
-        Comparable val2 = (Comparable)PropertyUtils.getPropertyOrMappedValue(o2, propertyName);
+        Comparable val1 = (Comparable)PropertyGetter.forObject(o1, propertyName).get(o1);
+        Comparable val2 = (Comparable)PropertyGetter.forObject(o2, propertyName).get(o2);
 
         if (val1 == null && val2 == null) {
             result = 0;
@@ -78,7 +88,7 @@ public class ModelDoublePropertyComparator<T extends Model> implements Comparato
             return -1;
         }
 
-        if (result != null) {
+        if (result == null) {
             if (val1 instanceof String && val2 instanceof String) {
                 result = ((String) val1).compareToIgnoreCase((String) val2);
             } else {
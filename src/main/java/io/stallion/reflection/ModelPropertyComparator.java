@@ -42,15 +42,11 @@ public class ModelPropertyComparator <T extends Model> implements Comparator<T>
         if (o1 == null || o2 == null) {
             return 0;
         }
-        Comparable val1 = (Comparable)PropertyUtils.getPropertyOrMappedValue(o1, propertyName);
-        Comparable val2 = (Comparable)PropertyUtils.getPropertyOrMappedValue(o2, propertyName);
+        Comparable val1 = (Comparable)PropertyGetter.forObject(o1, propertyName).get(o1);
+        Comparable val2 = (Comparable)PropertyGetter.forObject(o2, propertyName).get(o2);
 
         if (val1 == null && val2 == null) {
-            if (idIsSecondarySort && o1.getId() != null && o2.getId() != null) {
-                return o1.getId().compareTo(o2.getId());
-            } else {
-                return 0;
-            }
+            return compareIds(o1, o2);
         } else if (val1 == null) {
             return 1;
         } else if (val2 == null) {
@@ -63,9 +59,16 @@ public class ModelPropertyComparator <T extends Model> implements Comparator<T>
         } else {
             result = val1.compareTo(val2);
         }
-        if (result == 0 && idIsSecondarySort && o1.getId() != null && o2.getId() != null) {
-            o1.getId().compareTo(o2.getId());
+        if (result == 0) {
+            result = compareIds(o1, o2);
         }
         return result;
     }
+
+    private int compareIds(T o1, T o2) {
+        if (idIsSecondarySort && o1.getId() != null && o2.getId() != null) {
+            return o1.getId().compareTo(o2.getId());
+        }
+        return 0;
+    }
 }
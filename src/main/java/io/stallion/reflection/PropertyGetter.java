@@ -0,0 +1,224 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.reflection;
+
+import io.stallion.dataAccess.MappedModel;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+
+/**
+ * A pre-resolved accessor for reading one property from objects of one class.
+ *
+ * Getters are looked up once per class and property name and then cached. Where the
+ * model class is visible to the Stallion classloader, the getter is bound into a
+ * Function via LambdaMetafactory, otherwise it is invoked through a MethodHandle.
+ * This lets hot loops, such as the FilterChain, read properties without the string
+ * building and reflective invocation done by {@link PropertyUtils#getPropertyOrMappedValue(Object, String)}.
+ *
+ * The resolution rules are the same as PropertyUtils.getPropertyOrMappedValue: a public
+ * getter wins, then a MappedModel value, and dotted names are read with
+ * {@link PropertyUtils#getDotProperty(Object, String)}.
+ */
+public abstract class PropertyGetter {
+
+    private static final ClassValue<Map<String, PropertyGetter>> gettersByClass = new ClassValue<Map<String, PropertyGetter>>() {
+        @Override
+        protected Map<String, PropertyGetter> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final String propertyName;
+
+    protected PropertyGetter(String propertyName) {
+        this.propertyName = propertyName;
+    }
+
+    /**
+     * Get the getter for the given property of the class of the given object.
+     *
+     * @param target - an instance of the class we are reading from
+     * @param propertyName
+     * @return
+     * @throws PropertyException if the property is not readable and the target is not a MappedModel
+     */
+    public static PropertyGetter forObject(Object target, String propertyName) throws PropertyException {
+        Map<String, PropertyGetter> getters = gettersByClass.get(target.getClass());
+        PropertyGetter getter = getters.get(propertyName);
+        if (getter == null) {
+            getter = resolve(target, propertyName);
+            getters.put(propertyName, getter);
+        }
+        return getter;
+    }
+
+    /**
+     * Read the property value from the target, which must be of the same class
+     * that this getter was resolved for.
+     *
+     * @param target
+     * @return
+     */
+    public abstract Object get(Object target) throws PropertyException;
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+    private static PropertyGetter resolve(Object target, String propertyName) {
+        if (propertyName.contains(".")) {
+            return new DotGetter(propertyName);
+        }
+        if (PropertyUtils.isReadable(target, propertyName)) {
+            return bind(PropertyUtils.getGetter(target, propertyName), propertyName);
+        }
+        if (target instanceof MappedModel) {
+            return new MappedGetter(propertyName);
+        }
+        throw new PropertyException("Cannot read property " + propertyName + " of object " + target + " of class " + target.getClass().getName());
+    }
+
+    private static PropertyGetter bind(Method method, String propertyName) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // Not reachable via a public lookup (eg, a public method on a non-public class),
+            // plain reflection will give the same result as PropertyUtils does.
+            return new ReflectionGetter(propertyName, method);
+        }
+        if (isVisibleToStallion(method.getDeclaringClass())) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                Function<Object, Object> function = (Function<Object, Object>) LambdaMetafactory.metafactory(
+                        lookup,
+                        "apply",
+                        MethodType.methodType(Function.class),
+                        MethodType.methodType(Object.class, Object.class),
+                        handle,
+                        handle.type().wrap()
+                ).getTarget().invokeExact();
+                return new FunctionGetter(propertyName, function);
+            } catch (Throwable e) {
+                // Fall through and use the method handle directly
+            }
+        }
+        return new HandleGetter(propertyName, handle.asType(MethodType.methodType(Object.class, Object.class)));
+    }
+
+    /**
+     * The generated lambda class links against the model class from the Stallion
+     * classloader, so that only works if the model was not loaded by a child classloader
+     * (such as a plugin classloader).
+     *
+     * @param cls
+     * @return
+     */
+    private static boolean isVisibleToStallion(Class cls) {
+        try {
+            return Class.forName(cls.getName(), false, PropertyGetter.class.getClassLoader()) == cls;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static class FunctionGetter extends PropertyGetter {
+        private final Function<Object, Object> function;
+
+        FunctionGetter(String propertyName, Function<Object, Object> function) {
+            super(propertyName);
+            this.function = function;
+        }
+
+        @Override
+        public Object get(Object target) {
+            return function.apply(target);
+        }
+    }
+
+    private static class HandleGetter extends PropertyGetter {
+        private final MethodHandle handle;
+
+        HandleGetter(String propertyName, MethodHandle handle) {
+            super(propertyName);
+            this.handle = handle;
+        }
+
+        @Override
+        public Object get(Object target) {
+            try {
+                return (Object) handle.invokeExact(target);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new PropertyException("property '" + getPropertyName() + "' access threw an exception", e);
+            }
+        }
+    }
+
+    private static class ReflectionGetter extends PropertyGetter {
+        private final Method method;
+
+        ReflectionGetter(String propertyName, Method method) {
+            super(propertyName);
+            this.method = method;
+        }
+
+        @Override
+        public Object get(Object target) {
+            try {
+                return method.invoke(target, (Object[]) null);
+            } catch (IllegalAccessException ex) {
+                throw new PropertyException("property '" + getPropertyName() + "' is not accessible", ex);
+            } catch (InvocationTargetException ex) {
+                throw new PropertyException("property '" + getPropertyName() + "' access threw an exception", ex);
+            }
+        }
+    }
+
+    private static class MappedGetter extends PropertyGetter {
+        MappedGetter(String propertyName) {
+            super(propertyName);
+        }
+
+        @Override
+        public Object get(Object target) {
+            return ((MappedModel) target).get(getPropertyName());
+        }
+    }
+
+    private static class DotGetter extends PropertyGetter {
+        DotGetter(String propertyName) {
+            super(propertyName);
+        }
+
+        @Override
+        public Object get(Object target) {
+            return PropertyUtils.getDotProperty(target, getPropertyName());
+        }
+    }
+}
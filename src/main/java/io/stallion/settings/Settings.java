@@ -23,6 +23,7 @@ import io.stallion.boot.ModeFlags;
 import io.stallion.boot.StallionRunAction;
 import io.stallion.exceptions.ConfigException;
 import io.stallion.exceptions.UsageException;
+import io.stallion.http.RewriteRouter;
 import io.stallion.reflection.PropertyUtils;
 import io.stallion.requests.RouteDefinition;
 import io.stallion.services.Log;
@@ -77,6 +78,10 @@ public class Settings implements ISettings {
     // Tuning
     @SettingMeta(valLong = 5000000)
     private Long filterCacheSize;
+    @SettingMeta(valInt = 50000, help = "In-memory filter chains over at least this many items are filtered and aggregated in parallel. Set to 0 to always filter on a single thread.")
+    private Integer parallelFilterThreshold;
+    @SettingMeta(help = "The number of threads used to filter and aggregate in parallel. Defaults to one less than the number of processors.")
+    private Integer parallelFilterThreads;
 
 
     // File system info
@@ -139,6 +144,7 @@ public class Settings implements ISettings {
     @SettingMeta(cls=ArrayList.class)
     private List<SecondaryDomain> secondaryDomains;
     private Map<String, SecondaryDomain> secondaryDomainByDomain  = map();
+    private volatile RewriteRouter rewriteRouter;
     @SettingMeta(cls=ArrayList.class)
     private List<AssetPreprocessorConfig> assetPreprocessors;
 
@@ -370,6 +376,7 @@ public class Settings implements ISettings {
             userUploads.setUploadsDirectory(getDataDirectory() + "/st-user-file-uploads");
         }
 
+        rewriteRouter = RewriteRouter.build(this);
 
 
     }
@@ -812,6 +819,7 @@ public class Settings implements ISettings {
 
     public void setRedirects(Map<String, String> redirects) {
         this.redirects = redirects;
+        this.rewriteRouter = null;
     }
 
     /**
@@ -893,6 +901,7 @@ public class Settings implements ISettings {
 
     public void setRewrites(Map<String, String> rewrites) {
         this.rewrites = rewrites;
+        this.rewriteRouter = null;
     }
 
     /**
@@ -907,6 +916,7 @@ public class Settings implements ISettings {
 
     public Settings setSecondaryDomains(List<SecondaryDomain> secondaryDomains) {
         this.secondaryDomains = secondaryDomains;
+        this.rewriteRouter = null;
         return this;
     }
 
@@ -916,6 +926,22 @@ public class Settings implements ISettings {
 
     public void setRewriteCompiledPatterns(List<Map.Entry<Pattern, String>> rewriteCompiledPatterns) {
         this.rewriteCompiledPatterns = rewriteCompiledPatterns;
+        this.rewriteRouter = null;
+    }
+
+    /**
+     * The redirects, rewrites, rewrite patterns and secondary domains compiled for
+     * fast lookup. Rebuilt after any of them are replaced via their setters.
+     *
+     * @return
+     */
+    public RewriteRouter getRewriteRouter() {
+        RewriteRouter router = rewriteRouter;
+        if (router == null) {
+            router = RewriteRouter.build(this);
+            rewriteRouter = router;
+        }
+        return router;
     }
 
     /**
@@ -1038,6 +1064,24 @@ public class Settings implements ISettings {
         return this;
     }
 
+    public Integer getParallelFilterThreshold() {
+        return parallelFilterThreshold;
+    }
+
+    public Settings setParallelFilterThreshold(Integer parallelFilterThreshold) {
+        this.parallelFilterThreshold = parallelFilterThreshold;
+        return this;
+    }
+
+    public Integer getParallelFilterThreads() {
+        return parallelFilterThreads;
+    }
+
+    public Settings setParallelFilterThreads(Integer parallelFilterThreads) {
+        this.parallelFilterThreads = parallelFilterThreads;
+        return this;
+    }
+
     public SecretsSettings getSecrets() {
         return secrets;
     }
@@ -34,6 +34,8 @@ public class DbConfig implements SettingsSection {
     private String driverClass;
     @SettingMeta()
     private String implementationClass;
+    @SettingMeta(valBoolean = true, help = "Record every write in the stallion_change_journal table, so that other nodes only have to reload the rows that changed.")
+    private Boolean useChangeJournal;
 
     @Override
     public void postLoad() {
@@ -148,4 +150,20 @@ public class DbConfig implements SettingsSection {
         this.implementationClass = implementationClass;
         return this;
     }
+
+    /**
+     * If true, every insert, update and delete through DB is recorded in the change
+     * journal table, and DbPersister syncs from the journal instead of rescanning each
+     * table for recently updated rows.
+     *
+     * @return
+     */
+    public Boolean getUseChangeJournal() {
+        return useChangeJournal;
+    }
+
+    public DbConfig setUseChangeJournal(Boolean useChangeJournal) {
+        this.useChangeJournal = useChangeJournal;
+        return this;
+    }
 }
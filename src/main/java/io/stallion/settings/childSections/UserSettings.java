@@ -89,6 +89,9 @@ public class UserSettings implements SettingsSection {
     @SettingMeta(val = "")
     private String newAccountsDomainRestricted;
 
+    @SettingMeta(valBoolean = true)
+    private Boolean signedSessionCookies;
+
     public void postLoad() {
         if (Role.valueOf(newAccountsRole.toUpperCase())  == null) {
             throw new ConfigException("Invalid role for stallion.toml settings users.newAccountsRole: " + newAccountsRole);
@@ -317,6 +320,23 @@ public class UserSettings implements SettingsSection {
         return this;
     }
 
+    /**
+     * If true, new session cookies are signed with HMAC rather than encrypted, so that
+     * checking them does not need a key derivation on every request. The session
+     * expiration and valet id are then readable by the client. Encrypted cookies
+     * are still accepted either way.
+     *
+     * @return
+     */
+    public Boolean getSignedSessionCookies() {
+        return signedSessionCookies;
+    }
+
+    public UserSettings setSignedSessionCookies(Boolean signedSessionCookies) {
+        this.signedSessionCookies = signedSessionCookies;
+        return this;
+    }
+
 
     public String getVerifyEmailTemplate() {
         return verifyEmailTemplate;
@@ -22,6 +22,7 @@ import io.stallion.assets.AssetsController;
 import io.stallion.dataAccess.ModelController;
 import io.stallion.exceptions.UsageException;
 import io.stallion.fileSystem.FileSystemWatcherService;
+import io.stallion.monitoring.RequestTimers;
 import io.stallion.requests.MetaInformation;
 import io.stallion.requests.Sandbox;
 import io.stallion.requests.SandboxedRequest;
@@ -215,8 +216,12 @@ public class TemplateRenderer {
 
         if (path.endsWith(".html") || path.endsWith(".jinja") || path.contains("\n")) {
             JinjaTemplating templating = getJinjaTemplating();
-            String html = templating.renderTemplate(path, context);
-            return html;
+            long started = RequestTimers.templateStarted();
+            try {
+                return templating.renderTemplate(path, context);
+            } finally {
+                RequestTimers.templateFinished(started);
+            }
         } else {
             throw new UsageException("Unknown extension for template path: " + path);
         }
@@ -277,8 +282,12 @@ public class TemplateRenderer {
         }
         if (path.endsWith(".html") || path.endsWith(".jinja") || path.contains("\n")) {
             JinjaTemplating templating = getJinjaTemplating();
-            String html = templating.renderTemplate(path, context);
-            return html;
+            long started = RequestTimers.templateStarted();
+            try {
+                return templating.renderTemplate(path, context);
+            } finally {
+                RequestTimers.templateFinished(started);
+            }
         } else {
             throw new UsageException("Unknown extension for template path: " + path);
         }
@@ -54,6 +54,8 @@ public class UserController<T extends IUser> extends StandardModelController<T>
     private static final int PROBLEM_LOG_DURATION_SECONDS = 5 * 60;
     private static final int MAX_PROBLEMS = 7;
     public static String USER_COOKIE_NAME = "stUserSession";
+    // Encrypted cookies start with a hex salt, so they can never start with this
+    static final String SIGNED_COOKIE_PREFIX = "s1.";
 
 
     public static <Y  extends IUser> UserController<Y> instance() {
@@ -589,12 +591,27 @@ public class UserController<T extends IUser> extends StandardModelController<T>
             session.setVid(valetId);
         }
 
+        // A session secret has to stay hidden from the client, so it always gets encrypted
+        if (Settings.instance().getUsers().getSignedSessionCookies() && empty(sessionSecret)) {
+            session.setSec("");
+            String signedPart = Encrypter.signString(sessionSigningKey(user), JSON.stringify(session));
+            return user.getId().toString() + "&" + SIGNED_COOKIE_PREFIX + signedPart;
+        }
+
         String encryptedPart = Encrypter.encryptString(user.getEncryptionSecret(), JSON.stringify(session));
 
         String cookie = user.getId().toString() + "&" + encryptedPart;
         return cookie;
     }
 
+    /**
+     * Signed cookies do not carry the user secret, instead it is part of the signing key,
+     * so changing the secret still invalidates all existing sessions.
+     */
+    private String sessionSigningKey(T user) {
+        return user.getEncryptionSecret() + "&" + user.getSecret();
+    }
+
     public UserValetResult cookieStringToUser(String cookie) {
         String[] parts = cookie.split("&", 2);
         if (parts.length < 2) {
@@ -605,22 +622,32 @@ public class UserController<T extends IUser> extends StandardModelController<T>
             return null;
         }
         Long id = Long.parseLong(parts[0]);
-        String encryptedJson = parts[1];
+        String token = parts[1];
 
 
         T user = forId(id);
         if (user == null) {
             return null;
         }
-        String json = Encrypter.decryptString(user.getEncryptionSecret(), encryptedJson);
-        SessionInfo info = JSON.parse(json, SessionInfo.class);
+        SessionInfo info;
+        if (token.startsWith(SIGNED_COOKIE_PREFIX)) {
+            String json = Encrypter.verifySignedString(sessionSigningKey(user), token.substring(SIGNED_COOKIE_PREFIX.length()));
+            if (json == null) {
+                Log.warn("Invalid signature on session cookie for user {0}", id);
+                return null;
+            }
+            info = JSON.parse(json, SessionInfo.class);
+        } else {
+            String json = Encrypter.decryptString(user.getEncryptionSecret(), token);
+            info = JSON.parse(json, SessionInfo.class);
+            if (!info.getSec().equals(user.getSecret())) {
+                return null;
+            }
+        }
 
         if (info.getExp() < mils()) {
             return null;
         }
-        if (!info.getSec().equals(user.getSecret())) {
-            return null;
-        }
         UserValetResult result = new UserValetResult()
                 .setUser(user);
         if (!empty(info.getVid())) {
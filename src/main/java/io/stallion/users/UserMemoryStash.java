@@ -24,8 +24,6 @@ import io.stallion.services.Log;
 import java.io.File;
 import java.util.List;
 
-import static io.stallion.utils.Literals.list;
-
 
 public class UserMemoryStash<T extends IUser> extends LocalMemoryStash<T> {
     private PredefinedUsersPersister<T> predefinedUserPersister;
@@ -79,22 +77,7 @@ public class UserMemoryStash<T extends IUser> extends LocalMemoryStash<T> {
 
 
     public boolean loadItem(T item)  {
-        //Log.fine("Pojo item: {0}:{1}", item.getClass().getName(), item.getId());
-        boolean hasChanges = false;
-        if (item.getId() == null) {
-            Log.warn("Loading a pojo item with a null ID! bucket: {0} class:{1}", getBucket(), item.getClass().getName());
-        }
-
-        T original = itemByPrimaryKey.getOrDefault(item.getId(), null);
-        if (original != null) {
-            hasChanges = cloneInto(item, original, null, true, list());
-        } else {
-            registerItem(item);
-            hasChanges = true;
-        }
-        getController().onPostLoadItem(item);
-        registerKeys(item);
-        return hasChanges;
+        return loadItem(item, true);
     }
 
 
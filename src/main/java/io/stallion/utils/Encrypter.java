@@ -22,18 +22,26 @@ import io.stallion.services.Log;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base32;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.security.crypto.keygen.KeyGenerators;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A simple class for encrypting and decrypting an arbitrary bit of text
@@ -53,6 +61,29 @@ import java.security.spec.InvalidKeySpecException;
 public class Encrypter {
     private static final int ITERATIONS = 1024;
     private static final int KEY_LENGTH = 128; // bits
+    private static final int MAX_CACHED_KEYS = 4096;
+
+    /**
+     * Keys derived while decrypting, by a digest of the salt and password. Every encrypted
+     * value carries its own salt, but the same value -- such as a session cookie -- tends
+     * to get decrypted over and over, and running PBKDF2 each time costs far more than the
+     * decryption itself. Encrypting always uses a new salt, so those keys are not cached,
+     * or they would push out the keys that actually get reused.
+     */
+    private static final Map<String, SecretKeySpec> keyCache = new LinkedHashMap<String, SecretKeySpec>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKeySpec> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+
+    private static final ThreadLocal<Mac> hmac = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Not a valid signing algorithm", e);
+        }
+    });
 
     /*
     public static String encryptString(String password, String salt, String value) {
@@ -73,7 +104,7 @@ public class Encrypter {
 
     public static String encryptString(String password, String value) {
         String salt = KeyGenerators.string().generateKey();
-        SecretKeySpec skeySpec = makeKeySpec(password, salt);
+        SecretKeySpec skeySpec = deriveKeySpec(password, salt);
         byte[] iv = KeyGenerators.secureRandom(16).generateKey();
         String ivString = Hex.encodeHexString(iv);
 
@@ -119,7 +150,7 @@ public class Encrypter {
         encryptedBase32 = encryptedBase32.substring(48);
         Base32 decoder = new Base32();
         byte[] encrypted = decoder.decode(encryptedBase32.toUpperCase());
-        SecretKeySpec skeySpec = makeKeySpec(password, salt);
+        SecretKeySpec skeySpec = cachedKeySpec(password, salt);
 
 
 
@@ -137,7 +168,76 @@ public class Encrypter {
 
     }
 
-    private static SecretKeySpec makeKeySpec(String password, String salt) {
+    /**
+     * Sign the value with HMAC-SHA256, returning a url-safe token of the form
+     * base64(value).base64(signature). The value is NOT encrypted, anyone holding the
+     * token can read it.
+     *
+     * The key is used as-is without stretching, so this is only suitable for keys with
+     * plenty of entropy, such as randomly generated secrets, not for passwords.
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public static String signString(String key, String value) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(hmac(key, payload));
+    }
+
+    /**
+     * Verify a token created by signString()
+     *
+     * @param key
+     * @param signed
+     * @return the original value, or null if the token was malformed or the signature did not match
+     */
+    public static String verifySignedString(String key, String signed) {
+        int dot = signed.indexOf('.');
+        if (dot < 1) {
+            return null;
+        }
+        String payload = signed.substring(0, dot);
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(signed.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(hmac(key, payload), signature)) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hmac(String key, String payload) {
+        Mac mac = hmac.get();
+        try {
+            mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        } catch (InvalidKeyException e) {
+            throw new IllegalArgumentException("Not a valid secret key", e);
+        }
+        return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SecretKeySpec cachedKeySpec(String password, String salt) {
+        // The salt is always 16 characters, so this is unambiguous, and hashing it keeps
+        // plain text passwords out of the cache
+        String cacheKey = DigestUtils.sha256Hex(salt + password);
+        synchronized (keyCache) {
+            SecretKeySpec cached = keyCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SecretKeySpec skeySpec = deriveKeySpec(password, salt);
+        synchronized (keyCache) {
+            keyCache.put(cacheKey, skeySpec);
+        }
+        return skeySpec;
+    }
+
+    private static SecretKeySpec deriveKeySpec(String password, String salt) {
         byte[] saltBytes = new byte[0];
         try {
             saltBytes = Hex.decodeHex(salt.toCharArray());
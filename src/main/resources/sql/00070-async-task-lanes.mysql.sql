@@ -0,0 +1,5 @@
+ALTER TABLE stallion_async_tasks
+   ADD COLUMN priority int NOT NULL DEFAULT 0,
+   ADD COLUMN lane varchar(50) NOT NULL DEFAULT '',
+   ADD KEY ready_tasks_key (completedAt, lockUuid, lane, executeAt)
+   ;
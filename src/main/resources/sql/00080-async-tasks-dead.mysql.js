@@ -0,0 +1,22 @@
+db.execute('''
+   CREATE TABLE IF NOT EXISTS `stallion_async_tasks_dead` LIKE `stallion_async_tasks`
+''');
+
+/// Several tasks can die with the same customKey, and nothing claims from this table
+db.execute('''
+   ALTER TABLE `stallion_async_tasks_dead`
+       DROP INDEX custom_key_key,
+       DROP INDEX ready_tasks_key,
+       ADD KEY custom_key_key (`customKey`),
+       ADD KEY failed_at_key (`failedAt`)
+''');
+
+/// Move the tasks that already failed permanently out of the hot table
+db.execute('''
+   INSERT INTO `stallion_async_tasks_dead`
+       SELECT * FROM `stallion_async_tasks` WHERE failedAt > 0 AND completedAt = 0
+''');
+
+db.execute('''
+   DELETE FROM `stallion_async_tasks` WHERE failedAt > 0 AND completedAt = 0
+''');
@@ -0,0 +1,180 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+package io.stallion.dataAccess.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.assertEquals;
+
+
+public class ChangeJournalTests {
+
+    /**
+     * A journal that reads from an in-memory table instead of the database, and
+     * keeps track of the changes it applies.
+     */
+    private static class FakeJournal extends ChangeJournal {
+        private final TreeMap<Long, Map<String, Object>> committed = new TreeMap<>();
+        private final Map<Long, String> applied = new TreeMap<>();
+        private int batchesRead = 0;
+        private int resyncs = 0;
+
+        FakeJournal() {
+            super(null);
+            startAt(0);
+        }
+
+        FakeJournal commit(long seq, long rowId, String changeType) {
+            committed.put(seq, map(val("seq", seq), val("table_name", "books"), val("row_id", rowId), val("change_type", changeType)));
+            return this;
+        }
+
+        @Override
+        protected List<Map<String, Object>> findEntries(List<Long> sequences) {
+            List<Map<String, Object>> rows = list();
+            for (Long seq: sequences) {
+                if (committed.containsKey(seq)) {
+                    rows.add(committed.get(seq));
+                }
+            }
+            return rows;
+        }
+
+        @Override
+        protected List<Map<String, Object>> findEntriesAfter(long sequence, int limit) {
+            batchesRead++;
+            List<Map<String, Object>> rows = list();
+            for (Map<String, Object> row: committed.tailMap(sequence, false).values()) {
+                if (rows.size() >= limit) {
+                    break;
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        @Override
+        protected void applyChanges(String tableName, List<Long> upserted, List<Long> deleted) {
+            for (Long id: upserted) {
+                applied.put(id, UPSERT);
+            }
+            for (Long id: deleted) {
+                applied.put(id, DELETE);
+            }
+        }
+
+        @Override
+        protected void prune(long before) {
+
+        }
+
+        @Override
+        protected void resyncAll() {
+            resyncs++;
+        }
+    }
+
+    @Test
+    public void testGapIsFilledWhenLateTransactionCommits() {
+        FakeJournal journal = new FakeJournal()
+                .commit(1, 101, ChangeJournal.UPSERT)
+                .commit(2, 102, ChangeJournal.UPSERT)
+                .commit(4, 104, ChangeJournal.UPSERT);
+        long now = 1000000;
+        journal.pollBatch(now);
+        assertEquals(4, journal.getLastSequence());
+        assertEquals(1, journal.getGapCount());
+        assertEquals(list(101L, 102L, 104L), new ArrayList<>(journal.applied.keySet()));
+
+        // The transaction that got sequence 3 commits after 4 was read
+        journal.commit(3, 103, ChangeJournal.DELETE);
+        journal.pollBatch(now + 1000);
+        assertEquals(0, journal.getGapCount());
+        assertEquals(ChangeJournal.DELETE, journal.applied.get(103L));
+        assertEquals(4, journal.getLastSequence());
+    }
+
+    @Test
+    public void testGapTimesOut() {
+        FakeJournal journal = new FakeJournal()
+                .commit(1, 101, ChangeJournal.UPSERT)
+                .commit(3, 103, ChangeJournal.UPSERT);
+        long now = 1000000;
+        journal.pollBatch(now);
+        assertEquals(1, journal.getGapCount());
+
+        journal.pollBatch(now + ChangeJournal.GAP_TIMEOUT - 1);
+        assertEquals(1, journal.getGapCount());
+
+        // A sequence number that never shows up, such as from a rolled back insert, is given up on
+        journal.pollBatch(now + ChangeJournal.GAP_TIMEOUT + 1);
+        assertEquals(0, journal.getGapCount());
+        journal.commit(2, 102, ChangeJournal.UPSERT);
+        journal.pollBatch(now + ChangeJournal.GAP_TIMEOUT + 1000);
+        assertEquals(null, journal.applied.get(102L));
+    }
+
+    @Test
+    public void testFullBatchIsReadAgain() {
+        FakeJournal journal = new FakeJournal();
+        int total = ChangeJournal.BATCH_SIZE * 2 + 10;
+        for (long seq = 1; seq <= total; seq++) {
+            journal.commit(seq, seq, ChangeJournal.UPSERT);
+        }
+        // The last change to a row wins, even across batches
+        journal.commit(total + 1, 1, ChangeJournal.DELETE);
+
+        assertEquals(true, journal.poll(mils()));
+        assertEquals(total + 1, journal.getLastSequence());
+        assertEquals(3, journal.batchesRead);
+        assertEquals(total, journal.applied.size());
+        assertEquals(ChangeJournal.DELETE, journal.applied.get(1L));
+        assertEquals(ChangeJournal.UPSERT, journal.applied.get((long) total));
+        assertEquals(0, journal.getGapCount());
+    }
+
+    @Test
+    public void testTooManyGapsResyncs() {
+        long skipTo = ChangeJournal.MAX_GAPS + 10;
+        FakeJournal journal = new FakeJournal()
+                .commit(1, 101, ChangeJournal.UPSERT)
+                .commit(skipTo, 102, ChangeJournal.UPSERT);
+        long now = 1000000;
+        journal.pollBatch(now);
+        journal.resyncIfNeeded(now);
+        assertEquals(skipTo, journal.getLastSequence());
+        assertEquals(0, journal.getGapCount());
+        assertEquals(1, journal.resyncs);
+
+        // Resync once more after the gap timeout, to pick up entries that committed late
+        journal.pollBatch(now + 1000);
+        journal.resyncIfNeeded(now + 1000);
+        assertEquals(1, journal.resyncs);
+        journal.pollBatch(now + ChangeJournal.GAP_TIMEOUT);
+        journal.resyncIfNeeded(now + ChangeJournal.GAP_TIMEOUT);
+        assertEquals(2, journal.resyncs);
+        journal.pollBatch(now + ChangeJournal.GAP_TIMEOUT * 2);
+        journal.resyncIfNeeded(now + ChangeJournal.GAP_TIMEOUT * 2);
+        assertEquals(2, journal.resyncs);
+    }
+}
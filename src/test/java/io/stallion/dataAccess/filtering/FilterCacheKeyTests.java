@@ -0,0 +1,122 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.dataAccess.filtering;
+
+import io.stallion.dataAccess.Model;
+import io.stallion.services.Log;
+import io.stallion.utils.Literals;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class FilterCacheKeyTests {
+    private static final int ITERATIONS = 200000;
+
+    private static FilterChain<Model> chain() {
+        return new FilterChain<Model>("books")
+                .filter("published", true)
+                .filterBy("publisherId", 5L, FilterOperator.GREATER_THAN)
+                .andAnyOf(new Or("author", "Dickens"), new Or("author", "Austen"))
+                .sortBy("publishDate", SortDirection.DESC);
+    }
+
+    private static FilterCacheKey key(FilterChain<Model> chain) {
+        return new FilterCacheKey(chain, "pager", new Object[] {1, 10});
+    }
+
+    @Test
+    public void testEquality() {
+        assertEquals(key(chain()), key(chain()));
+        assertEquals(key(chain()).hashCode(), key(chain()).hashCode());
+
+        // Chains that only differ in the secondary sort or in case sensitivity must not share results
+        assertNotEquals(key(chain()), key(chain().secondarySortBy("title", SortDirection.ASC)));
+        assertNotEquals(
+                key(chain().filterBy("title", "emma", FilterOperator.EQUAL, false)),
+                key(chain().filterBy("title", "emma", FilterOperator.EQUAL, true)));
+
+        assertNotEquals(key(chain()), key(chain().filterBy("publisherId", 5, FilterOperator.LESS_THAN)));
+        assertNotEquals(key(chain()), new FilterCacheKey(chain(), "pager", new Object[] {2, 10}));
+    }
+
+    @Test
+    public void testKeySpeed() {
+        Map<Object, Object> cache = new HashMap<>();
+        FilterChain<Model> chain = chain();
+        cache.put(key(chain), "result");
+        cache.put(md5Key(chain, "pager"), "result");
+
+        // Warm up both paths before timing them
+        int hits = 0;
+        for (int x = 0; x < ITERATIONS; x++) {
+            hits += cache.containsKey(key(chain)) ? 1 : 0;
+            hits += cache.containsKey(md5Key(chain, "pager")) ? 1 : 0;
+        }
+        assertEquals(ITERATIONS * 2, hits);
+
+        long started = System.nanoTime();
+        for (int x = 0; x < ITERATIONS; x++) {
+            cache.get(key(chain));
+        }
+        long keyNanos = System.nanoTime() - started;
+
+        started = System.nanoTime();
+        for (int x = 0; x < ITERATIONS; x++) {
+            cache.get(md5Key(chain, "pager"));
+        }
+        long md5Nanos = System.nanoTime() - started;
+
+        Log.info("Cache lookups: FilterCacheKey {0}ns, MD5 string key {1}ns per lookup",
+                keyNanos / ITERATIONS, md5Nanos / ITERATIONS);
+    }
+
+    /**
+     * The key that FilterChain used to build, before FilterCacheKey, for comparison.
+     */
+    private static String md5Key(FilterChain<Model> chain, String methodName) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(methodName + Literals.GSEP);
+        builder.append(chain.getBucket() + Literals.GSEP);
+        for (FilterOperation op: chain.getOperations()) {
+            String ov = "<null>";
+            if (op.getOriginalValue() != null) {
+                ov = op.getOriginalValue().toString();
+            }
+            builder.append(op.getFieldName() + op.getOperator() + op.getIsExclude() + Literals.GSEP + ov + Literals.GSEP);
+            if (op.isOrOperation()) {
+                for (FilterOperation subOp: op.getOrSubOperations()) {
+                    ov = "<null>";
+                    if (subOp.getOriginalValue() != null) {
+                        ov = subOp.getOriginalValue().toString();
+                    }
+                    builder.append(subOp.getFieldName() + subOp.getOperator() + subOp.getIsExclude() + Literals.GSEP + ov + Literals.GSEP);
+                }
+            }
+        }
+        builder.append(chain.getIncludeDeleted());
+        builder.append(chain.getSortField());
+        builder.append(chain.getSortDirection());
+        builder.append(Literals.GSEP + chain.getExtraCacheKey());
+        return DigestUtils.md5Hex(builder.toString());
+    }
+}
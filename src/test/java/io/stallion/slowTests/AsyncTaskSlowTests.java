@@ -230,4 +230,35 @@ public class AsyncTaskSlowTests extends AppIntegrationCaseBase {
 
     }
 
+    @Test
+    public void testEnqueueWakesCoordinator() throws InterruptedException {
+        // Let the coordinator go idle
+        Thread.sleep(1500);
+        int taskNumber = 4242;
+        long start = DateUtils.mils();
+        new AsyncTask(new ExampleTaskHandler().setMyKey("wakeup").setTaskNumber(taskNumber), "", 0).enqueue();
+        for (int x = 0; x < 100; x++) {
+            if (ExampleTaskHandler.handledTaskNumbers.contains(taskNumber)) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(ExampleTaskHandler.handledTaskNumbers.contains(taskNumber));
+        // Well under the old one second polling interval
+        Assert.assertTrue(DateUtils.mils() - start < 700);
+
+        // A task scheduled for shortly in the future runs when it is due, not at the next poll
+        int futureNumber = 4243;
+        long executeAt = DateUtils.mils() + 300;
+        new AsyncTask(new ExampleTaskHandler().setMyKey("wakeup").setTaskNumber(futureNumber), "", executeAt).enqueue();
+        for (int x = 0; x < 150; x++) {
+            if (ExampleTaskHandler.handledTaskNumbers.contains(futureNumber)) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(ExampleTaskHandler.handledTaskNumbers.contains(futureNumber));
+        Assert.assertTrue(DateUtils.mils() >= executeAt);
+    }
+
 }
@@ -20,6 +20,7 @@ package io.stallion.tests.integration.asyncTasks;
 import io.stallion.Context;
 import io.stallion.asyncTasks.AsyncCoordinator;
 import io.stallion.asyncTasks.AsyncTask;
+import io.stallion.asyncTasks.AsyncTaskHandlerBase;
 
 import io.stallion.testing.AppIntegrationCaseBase;
 import io.stallion.utils.DateUtils;
@@ -30,6 +31,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.stallion.utils.Literals.list;
 
 public class AsyncTaskIntegrationTests extends AppIntegrationCaseBase {
 
@@ -78,5 +83,41 @@ public class AsyncTaskIntegrationTests extends AppIntegrationCaseBase {
         Assert.assertTrue(MyTaskHandler.handledSomethings.contains("whizbong"));
     }
 
-}
+    /**
+     * Tasks that are all due run highest priority first, then earliest executeAt.
+     */
+    @Test
+    public void testPriorityOrder() {
+        AsyncCoordinator.instance().getExtraClassLoaders().add(PriorityTaskHandler.class.getClassLoader());
+        long now = DateUtils.mils();
+        new AsyncTask(new PriorityTaskHandler().setName("low-early"), "", now - 300).enqueue();
+        new AsyncTask(new PriorityTaskHandler().setName("low-late"), "", now - 100).enqueue();
+        new AsyncTask(new PriorityTaskHandler().setName("high"), "", now - 50).setPriority(10).enqueue();
+
+        for (int x = 0; x < 3; x++) {
+            Assert.assertTrue(AsyncCoordinator.instance().executeNext(now));
+        }
+        Assert.assertEquals(list("high", "low-early", "low-late"), PriorityTaskHandler.handledNames);
+    }
+
+    public static class PriorityTaskHandler extends AsyncTaskHandlerBase {
+        public static List<String> handledNames = new ArrayList<>();
+
+        private String name;
 
+        @Override
+        public void process() {
+            handledNames.add(getName());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public PriorityTaskHandler setName(String name) {
+            this.name = name;
+            return this;
+        }
+    }
+
+}
@@ -18,7 +18,9 @@
 package io.stallion.tests.integration.filtering;
 
 import io.stallion.dataAccess.AlternativeKey;
+import io.stallion.dataAccess.Columnar;
 import io.stallion.dataAccess.ModelBase;
+import io.stallion.dataAccess.SortedKey;
 import io.stallion.dataAccess.UniqueKey;
 import io.stallion.dataAccess.db.Converter;
 import io.stallion.dataAccess.db.converters.JsonListConverter;
@@ -52,6 +54,8 @@ public class Book extends ModelBase {
     }
 
     @Column
+    @SortedKey
+    @Columnar
     public ZonedDateTime getPublishDate() {
         return publishDate;
     }
@@ -93,6 +97,8 @@ public class Book extends ModelBase {
     }
 
     @Column
+    @AlternativeKey
+    @Columnar
     public Long getPublisherId() {
         return publisherId;
     }
@@ -17,12 +17,23 @@
 
 package io.stallion.tests.integration.filtering;
 
+import io.stallion.dataAccess.ColumnStore;
+import io.stallion.dataAccess.LocalMemoryStash;
+import io.stallion.dataAccess.MaterializedAggregate;
 import io.stallion.dataAccess.file.TextItem;
 import io.stallion.dataAccess.file.TextItemController;
+import io.stallion.dataAccess.filtering.FilterCacheStats;
+import io.stallion.dataAccess.filtering.FilterChain;
 import io.stallion.dataAccess.filtering.FilterGroup;
 import io.stallion.dataAccess.filtering.FilterOperator;
 import io.stallion.dataAccess.filtering.Or;
+import io.stallion.dataAccess.filtering.FilterResultCache;
+import io.stallion.dataAccess.filtering.Pager;
+import io.stallion.dataAccess.filtering.SortDirection;
+import io.stallion.dataAccess.filtering.TotalCountMode;
+import io.stallion.monitoring.HealthTracker;
 import io.stallion.services.Log;
+import io.stallion.settings.Settings;
 import io.stallion.testing.AppIntegrationCaseBase;
 import io.stallion.utils.DateUtils;
 import io.stallion.utils.json.JSON;
@@ -31,10 +42,12 @@ import org.junit.Test;
 
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 
 import static io.stallion.Context.*;
+import static io.stallion.utils.Literals.list;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -78,6 +91,351 @@ public class FilteringTests extends AppIntegrationCaseBase {
         assertEquals(100, booksController().filterBy("categories", "romance", FilterOperator.IN).count());
     }
 
+    @Test
+    public void testTypedValueCoercion() {
+        // Untyped values, as they come in from a query string, get coerced to the property type
+        assertEquals(100, booksController().filter("publisherId", "2").count());
+        assertEquals(100, booksController().filter("publisherId", 2).count());
+        assertEquals(909, booksController().filter("published", "true").count());
+        assertEquals(660, booksController().filter("publishDate", "1884-01-01 12:00", ">").count());
+        // The same compiled filter is shared between chains with the same operations
+        assertEquals(33, booksController().filter("author", "Mark Twain").filter("publisherId", "2").count());
+        assertEquals(33, booksController().filter("author", "Mark Twain").filter("publisherId", "2").count());
+    }
+
+    @Test
+    public void testSortedKeyRangesAndSorting() {
+        ZonedDateTime year1884 = ZonedDateTime.of(1884, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"));
+        ZonedDateTime year1900 = ZonedDateTime.of(1900, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"));
+
+        // publishDate is a @SortedKey, so the range is read off of the sorted index
+        assertEquals(160, booksController()
+                .filterBy("publishDate", year1884, FilterOperator.GREATER_THAN)
+                .filterBy("publishDate", year1900, FilterOperator.LESS_THAN)
+                .count());
+        assertEquals(160, booksController()
+                .filterBy("publishDate", "1884-01-01 12:00", FilterOperator.GREATER_THAN)
+                .filterBy("publishDate", year1900, FilterOperator.LESS_THAN)
+                .filter("published", true)
+                .count() + booksController()
+                .filterBy("publishDate", year1884, FilterOperator.GREATER_THAN)
+                .filterBy("publishDate", year1900, FilterOperator.LESS_THAN)
+                .filter("published", false)
+                .count());
+
+        // Iterating the index must give the same order as sorting a subset, which cannot use the index
+        List<Book> sortedByIndex = booksController().filterChain().sort("publishDate", "desc").all();
+        List<Book> sortedByComparator = booksController().getStash()
+                .filterChain(new ArrayList<>(sortedByIndex))
+                .sort("publishDate", "desc")
+                .all();
+        assertEquals(1000, sortedByIndex.size());
+        for (int i = 0; i < sortedByIndex.size(); i++) {
+            assertEquals(sortedByComparator.get(i).getId(), sortedByIndex.get(i).getId());
+        }
+
+        List<Book> published = booksController().filter("published", true).sort("publishDate", "asc").all();
+        Pager<Book> pager = booksController().filter("published", true).sort("publishDate", "asc").pager(3, 10);
+        assertEquals(909, pager.getTotalCount());
+        assertEquals(10, pager.getItems().size());
+        assertEquals(published.get(20).getId(), pager.getItems().get(0).getId());
+        assertEquals(published.get(0).getId(), booksController().filter("published", true).sort("publishDate", "asc").first().getId());
+    }
+
+    @Test
+    public void testPartialSortPaging() {
+        // Titles repeat, so this also checks that ties are broken by id the same way for a full and a partial sort
+        List<Book> all = booksController().filter("published", true).sort("title", "desc").all();
+        Pager<Book> pager = booksController().filter("published", true).sort("title", "desc").pager(2, 10);
+        assertEquals(909, pager.getTotalCount());
+        assertEquals(91, pager.getPageCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(all.get(10 + i).getId(), pager.getItems().get(i).getId());
+        }
+        assertEquals(all.get(0).getId(), booksController().filter("published", true).sort("title", "desc").first().getId());
+
+        List<Book> byAuthorAndTitle = booksController().filterChain()
+                .sort("author", "asc")
+                .secondarySort("title", "desc")
+                .all();
+        Pager<Book> authorPager = booksController().filterChain()
+                .sort("author", "asc")
+                .secondarySort("title", "desc")
+                .pager(1, 5);
+        assertEquals(1000, authorPager.getTotalCount());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(byAuthorAndTitle.get(i).getId(), authorPager.getItems().get(i).getId());
+        }
+    }
+
+    @Test
+    public void testQueryPlanning() {
+        // author and publisherId are both keys, so the smaller key set gets intersected with the larger one
+        FilterChain<Book> chain = booksController().filter("author", "Mark Twain").filter("publisherId", 2);
+        assertEquals(33, chain.count());
+        String plan = chain.explain();
+        Log.info("Plan: {0}", plan);
+        assertTrue(plan.startsWith("KEYS"));
+        assertTrue(plan.contains("key publisherId=2: 100 items"));
+        assertTrue(plan.contains("intersect with key author=Mark Twain: 167 items"));
+
+        assertTrue(booksController().filter("isbn", "abc").explain().startsWith("UNIQUE_KEY"));
+        assertTrue(booksController().filter("id", 5L).explain().startsWith("ID"));
+        assertEquals(1, booksController().filter("id", 5).count());
+        assertTrue(booksController().filter("published", true).sort("publishDate", "desc").explain().startsWith("SORTED_SCAN"));
+        assertTrue(booksController().filter("published", true).explain().startsWith("SCAN"));
+
+        // The unique key index skips deleted items, so includeDeleted() must not use it
+        Book book = booksController().forId(5L);
+        book.setIsbn("deleted-isbn");
+        booksController().softDelete(book);
+        try {
+            assertEquals(0, booksController().filter("isbn", "deleted-isbn").count());
+            assertEquals(1, booksController().filter("isbn", "deleted-isbn").includeDeleted().count());
+        } finally {
+            book.setIsbn("");
+            book.setDeleted(false);
+            booksController().save(book);
+        }
+    }
+
+    @Test
+    public void testFilterCacheGenerations() {
+        FilterCacheStats before = statsFor("books");
+        assertEquals(100, booksController().filter("publisherId", 7L).count());
+        assertEquals(100, booksController().filter("publisherId", 7L).count());
+        FilterCacheStats after = statsFor("books");
+        assertTrue(after.getHits() > before.getHits());
+
+        // Any write bumps the generation, so the cached count is no longer used
+        Book book = booksController().forId(7L);
+        booksController().save(book);
+        assertEquals(before.getGeneration() + 1, statsFor("books").getGeneration());
+        long hits = statsFor("books").getHits();
+        assertEquals(100, booksController().filter("publisherId", 7L).count());
+        assertEquals(hits, statsFor("books").getHits());
+
+        // Chains that differ only by secondary sort must not share a cache entry
+        Book titleDesc = booksController().filterChain().sort("author", "asc").secondarySort("title", "desc").first();
+        Book titleAsc = booksController().filterChain().sort("author", "asc").secondarySort("title", "asc").first();
+        assertTrue(titleDesc.getTitle().compareTo(titleAsc.getTitle()) > 0);
+
+        // A result computed before a write is not cached
+        FilterResultCache cache = new FilterResultCache("test", 10 * 10000L, 60000);
+        long generation = cache.getGeneration();
+        cache.invalidateAll();
+        cache.put("stale", 1, generation);
+        assertEquals(null, cache.get("stale"));
+
+        // Keys that are read often stay in the cache, one-off keys get evicted
+        for (int x = 0; x < 5; x++) {
+            cache.put("popular" + x, x);
+            for (int y = 0; y < 5; y++) {
+                cache.get("popular" + x);
+            }
+        }
+        for (int x = 0; x < 100; x++) {
+            cache.put("oneoff" + x, x);
+        }
+        for (int x = 0; x < 5; x++) {
+            assertEquals(x, cache.get("popular" + x));
+        }
+        assertTrue(cache.getStats().getEvictions() > 0);
+        assertTrue(cache.getStats().getWeight() <= 10 * 10000L);
+    }
+
+    private FilterCacheStats statsFor(String bucket) {
+        for (FilterCacheStats stats: HealthTracker.instance().getFilterCacheStats()) {
+            if (stats.getBucket().equals(bucket)) {
+                return stats;
+            }
+        }
+        return new FilterCacheStats();
+    }
+
+    @Test
+    public void testParallelFiltering() {
+        Integer threshold = Settings.instance().getParallelFilterThreshold();
+        try {
+            Settings.instance().setParallelFilterThreshold(0);
+            List<Book> sequential = booksController().filter("publishDate", "1884-01-01 12:00", ">").setUseCache(false).all();
+            Pager<Book> sequentialPager = booksController().filter("published", true).setUseCache(false).sum("publisherId").avg("publisherId").pager(2, 10);
+            List<FilterGroup<Book>> sequentialCounts = booksController().filterChain().setUseCache(false).countBy("author", "publishDate.year");
+
+            // Force the fork-join path even for a thousand items
+            Settings.instance().setParallelFilterThreshold(10);
+            List<Book> parallel = booksController().filter("publishDate", "1884-01-01 12:00", ">").setUseCache(false).all();
+            assertEquals(660, parallel.size());
+            for (int i = 0; i < parallel.size(); i++) {
+                assertEquals(sequential.get(i).getId(), parallel.get(i).getId());
+            }
+
+            Pager<Book> parallelPager = booksController().filter("published", true).setUseCache(false).sum("publisherId").avg("publisherId").pager(2, 10);
+            assertEquals(sequentialPager.getSums(), parallelPager.getSums());
+            assertEquals(sequentialPager.getAverages(), parallelPager.getAverages());
+            Pager<Book> all = booksController().filterChain().setUseCache(false).sum("publisherId").avg("publisherId").pager(1, 10);
+            assertEquals(4500.0, all.getSums().get("publisherId"), 0.001);
+            assertEquals(4.5, all.getAverages().get("publisherId"), 0.001);
+
+            List<FilterGroup<Book>> parallelCounts = booksController().filterChain().setUseCache(false).countBy("author", "publishDate.year");
+            assertEquals(sequentialCounts.size(), parallelCounts.size());
+            for (int i = 0; i < parallelCounts.size(); i++) {
+                assertEquals(sequentialCounts.get(i).getKey(), parallelCounts.get(i).getKey());
+                assertEquals(sequentialCounts.get(i).getCount(), parallelCounts.get(i).getCount());
+            }
+        } finally {
+            Settings.instance().setParallelFilterThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void testMaterializedAggregates() {
+        LocalMemoryStash<Book> stash = (LocalMemoryStash<Book>) booksController().getStash();
+        MaterializedAggregate<Book> aggregate = stash.registerAggregate(
+                new MaterializedAggregate<Book>("publishedByAuthor")
+                        .where("published", true)
+                        .groupBy("author")
+                        .sum("publisherId")
+        );
+        try {
+            assertEquals(909, aggregate.getTotalCount());
+            assertEquals(6, aggregate.getGroups().size());
+            for (FilterGroup<Book> group: booksController().filter("published", true).countBy("author")) {
+                assertEquals(group.getCount(), aggregate.getCount(group.getFirst().getAuthor()));
+            }
+            Pager<Book> twain = booksController().filter("published", true).filter("author", "Mark Twain").sum("publisherId").pager(1);
+            assertEquals(twain.getSums().get("publisherId"), aggregate.getGroup("Mark Twain").getSums().get("publisherId"));
+
+            // Moving a book to another author moves its count and sum
+            long twainCount = aggregate.getCount("Mark Twain");
+            long austenCount = aggregate.getCount("Jane Austen");
+            Book book = booksController().filter("published", true).filter("author", "Mark Twain").filter("publisherId", 6L).first();
+            double twainSum = aggregate.getGroup("Mark Twain").getSums().get("publisherId");
+            book.setAuthor("Jane Austen");
+            booksController().save(book);
+            assertEquals(twainCount - 1, aggregate.getCount("Mark Twain"));
+            assertEquals(austenCount + 1, aggregate.getCount("Jane Austen"));
+            assertEquals(twainSum - 6, aggregate.getGroup("Mark Twain").getSums().get("publisherId"), 0.001);
+
+            book.setAuthor("Mark Twain");
+            booksController().save(book);
+            assertEquals(twainCount, aggregate.getCount("Mark Twain"));
+            assertEquals(austenCount, aggregate.getCount("Jane Austen"));
+            assertEquals(909, aggregate.getTotalCount());
+        } finally {
+            stash.unregisterAggregate("publishedByAuthor");
+        }
+    }
+
+    @Test
+    public void testColumnStore() {
+        // publisherId is @Columnar, so the comparison runs against a long[] and the sum is read off the arrays
+        FilterChain<Book> chain = booksController().filterBy("publisherId", 5L, FilterOperator.GREATER_THAN);
+        assertTrue(chain.explain().startsWith("COLUMN_SCAN"));
+        assertEquals(400, chain.count());
+        Pager<Book> pager = booksController().filterBy("publisherId", 5, FilterOperator.GREATER_THAN).sum("publisherId").avg("publisherId").pager(1);
+        assertEquals(400, pager.getTotalCount());
+        assertEquals(3000.0, pager.getSums().get("publisherId"), 0.001);
+        assertEquals(7.5, pager.getAverages().get("publisherId"), 0.001);
+
+        // A subset cannot use the column store, and must get the same answers
+        List<Book> all = new ArrayList<>(booksController().getStash().getItems());
+        List<Book> fromObjects = booksController().getStash().filterChain(all).filterBy("publisherId", 5L, FilterOperator.GREATER_THAN).all();
+        List<Book> fromColumns = booksController().filterBy("publisherId", 5L, FilterOperator.GREATER_THAN).all();
+        assertEquals(fromObjects.size(), fromColumns.size());
+        for (int i = 0; i < fromObjects.size(); i++) {
+            assertEquals(fromObjects.get(i).getId(), fromColumns.get(i).getId());
+        }
+
+        // Dates are stored as epoch millis, and only narrow down the items the filter gets checked against
+        ZonedDateTime year1884 = ZonedDateTime.of(1884, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"));
+        assertTrue(booksController().filterBy("publishDate", year1884, FilterOperator.GREATER_THAN_OR_EQUAL).explain().startsWith("COLUMN_SCAN"));
+        assertEquals(660, booksController().filterBy("publishDate", year1884, FilterOperator.GREATER_THAN).count());
+        // Book 0 is published exactly at this instant, which is on the boundary of the millisecond comparison
+        ZonedDateTime firstDate = ZonedDateTime.of(1850, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"));
+        for (ZonedDateTime date: list(firstDate, firstDate.withZoneSameInstant(ZoneId.of("America/New_York")), firstDate.plusNanos(1))) {
+            for (FilterOperator op: list(FilterOperator.GREATER_THAN, FilterOperator.GREATER_THAN_OR_EQUAL, FilterOperator.LESS_THAN_OR_EQUAL, FilterOperator.EQUAL)) {
+                assertEquals(
+                        booksController().getStash().filterChain(all).filterBy("publishDate", date, op).count(),
+                        booksController().filterBy("publishDate", date, op).count());
+            }
+        }
+
+        // Saving an item updates its row
+        Book book = booksController().filter("publisherId", 9L).first();
+        book.setPublisherId(1L);
+        booksController().save(book);
+        assertEquals(399, booksController().filterBy("publisherId", 5L, FilterOperator.GREATER_THAN).count());
+        book.setPublisherId(9L);
+        booksController().save(book);
+        assertEquals(400, booksController().filterBy("publisherId", 5L, FilterOperator.GREATER_THAN).count());
+    }
+
+    @Test
+    public void testColumnStoreChurn() {
+        // Rows of removed items get reclaimed, so items coming and going do not grow the store forever
+        ColumnStore<Book> store = new ColumnStore<>(list("publisherId"));
+        for (long id = 1; id <= 100; id++) {
+            Book book = new Book().setPublisherId(1L);
+            book.setId(id);
+            store.index(book);
+        }
+        for (long id = 101; id <= 20000; id++) {
+            Book book = new Book().setPublisherId(1000L);
+            book.setId(id);
+            store.index(book);
+            store.remove(book);
+        }
+        ColumnStore.Selection<Book> selection = store.select(list(), list("publisherId"));
+        assertTrue(selection.getScannedRows() < 2500);
+        assertEquals(100, selection.getItems().size());
+        assertEquals(100.0, selection.getSums(list("publisherId")).get("publisherId"), 0.001);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((Long) (i + 1L), selection.getItems().get(i).getId());
+        }
+
+        // Items that were moved by compacting can still be updated in place
+        Book book = new Book().setPublisherId(2L);
+        book.setId(50L);
+        store.index(book);
+        selection = store.select(list(), list("publisherId"));
+        assertEquals(100, selection.getItems().size());
+        assertEquals(101.0, selection.getSums(list("publisherId")).get("publisherId"), 0.001);
+    }
+
+    @Test
+    public void testCursorPaging() {
+        // Walk every page of a sort with lots of ties, and make sure we get the same items in the same order as all()
+        for (SortDirection direction: list(SortDirection.ASC, SortDirection.DESC)) {
+            List<Book> expected = booksController().filter("published", true).sortBy("author", direction).all();
+            List<Book> paged = new ArrayList<>();
+            String token = null;
+            int pages = 0;
+            do {
+                Pager<Book> pager = booksController().filter("published", true).sortBy("author", direction).cursorPager(token, 100);
+                assertEquals(909, pager.getTotalCount());
+                assertEquals(10, pager.getPageCount());
+                assertEquals(pager.getContinuationToken() != null, pager.isHasNextPage());
+                paged.addAll(pager.getItems());
+                token = pager.getContinuationToken();
+                pages++;
+            } while (token != null);
+            assertEquals(10, pages);
+            assertEquals(expected.size(), paged.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getId(), paged.get(i).getId());
+            }
+        }
+
+        // Without a sort, pages are in id order, and counting can be skipped
+        Pager<Book> first = booksController().filterChain().cursorPager(null, 30, TotalCountMode.NONE);
+        assertEquals(-1, first.getTotalCount());
+        assertEquals(0L, (long)first.getItems().get(0).getId());
+        Pager<Book> second = booksController().filterChain().cursorPager(first.getContinuationToken(), 30, TotalCountMode.NONE);
+        assertEquals(30L, (long)second.getItems().get(0).getId());
+        assertTrue(second.isHasPreviousPage());
+    }
+
     @Test
     public void testOrOperations() {
         assertEquals(167 * 2, booksController().anyOf(new Or("author", "Mark Twain"), new Or("author", "Jane Austen")).count());
@@ -0,0 +1,229 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.integration.filtering;
+
+import io.stallion.dataAccess.filtering.FilterGroup;
+import io.stallion.services.Log;
+import io.stallion.testing.AppIntegrationCaseBase;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import static io.stallion.utils.Literals.list;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers a LocalMemoryStash with writer threads while reader threads filter,
+ * group and iterate it, and checks that the readers never fail or see torn data.
+ */
+public class StashConcurrencyTests extends AppIntegrationCaseBase {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int BOOKS_PER_WRITER = 500;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Log.setLogLevel(Level.INFO);
+        startApp("/text_site");
+        BooksController.register();
+        BooksController.instance().populate();
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        BooksController books = BooksController.instance();
+        int startingSize = books.getStash().getItems().size();
+        int twainCount = books.filter("author", "Mark Twain").count();
+        ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = list();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int x = 0; x < BOOKS_PER_WRITER; x++) {
+                        long id = 100000L + writer * BOOKS_PER_WRITER + x;
+                        books.save(new Book()
+                                .setId(id)
+                                .setAuthor("Stress Writer " + writer)
+                                .setTitle("Stress " + id)
+                                .setPublisherId(id % 10L)
+                                .setPublished(true)
+                                .setCategories(list("stress"))
+                                .setPublishDate(ZonedDateTime.of(1950, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"))));
+                        // Also update an existing book, changing two fields that readers check together
+                        Book existing = books.forId((long) (x % 1000));
+                        existing.setTitle("Updated by " + writer);
+                        existing.setDescription("Updated by " + writer);
+                        books.save(existing);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    int lastSize = 0;
+                    while (writing.get()) {
+                        List<Book> snapshot = books.getStash().getItems();
+                        assertTrue("The stash should only grow", snapshot.size() >= lastSize);
+                        lastSize = snapshot.size();
+                        int seen = 0;
+                        for (Book book: snapshot) {
+                            assertNotNull(book);
+                            // Saves swap in a new instance, so an item is never seen half updated
+                            if (book.getTitle().startsWith("Updated by ")) {
+                                assertEquals(book.getTitle(), book.getDescription());
+                            }
+                            seen++;
+                        }
+                        assertEquals(snapshot.size(), seen);
+
+                        int written = books.filter("publishDate.year", 1950).count();
+                        assertTrue(written >= 0 && written <= WRITERS * BOOKS_PER_WRITER);
+                        long total = 0;
+                        for (FilterGroup<Book> group: books.filterChain().countBy("author")) {
+                            total += group.getCount();
+                        }
+                        assertTrue(total >= startingSize);
+                        assertEquals(twainCount, books.filter("author", "Mark Twain").count());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread: threads.subList(0, WRITERS)) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        for (Throwable e: errors) {
+            Log.exception(e, "Error in stress test thread");
+        }
+        assertEquals(0, errors.size());
+        assertEquals(startingSize + WRITERS * BOOKS_PER_WRITER, books.getStash().getItems().size());
+        for (int w = 0; w < WRITERS; w++) {
+            assertEquals(BOOKS_PER_WRITER, books.filter("author", "Stress Writer " + w).count());
+        }
+        for (long id = 100000L; id < 100000L + WRITERS * BOOKS_PER_WRITER; id++) {
+            assertNotNull(books.forId(id));
+        }
+
+        // A reset swaps in the newly loaded items at once, and leaves old snapshots alone.
+        // The test persister does not store anything, so the reloaded stash is empty.
+        List<Book> before = books.getStash().getItems();
+        try {
+            books.getStash().reset();
+            assertEquals(startingSize + WRITERS * BOOKS_PER_WRITER, before.size());
+            assertEquals(0, books.getStash().getItems().size());
+            assertEquals(0, books.filter("author", "Mark Twain").count());
+        } finally {
+            // Put the books back for the other tests
+            books.populate();
+        }
+    }
+
+    @Test
+    public void testHardDeleteDropsItem() {
+        BooksController books = BooksController.instance();
+        Book book = new Book()
+                .setAuthor("Deleted Author")
+                .setTitle("Hard Deleted")
+                .setPublisherId(3L)
+                .setPublished(true)
+                .setCategories(list("deleted"))
+                .setPublishDate(ZonedDateTime.of(1970, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC")));
+        books.save(book);
+        List<Book> before = books.getStash().getItems();
+        assertEquals(1, books.filter("author", "Deleted Author").count());
+
+        books.hardDelete(books.forId(book.getId()));
+        List<Book> after = books.getStash().getItems();
+        assertEquals(before.size() - 1, after.size());
+        for (Book item: after) {
+            assertTrue(!book.getId().equals(item.getId()));
+        }
+        assertTrue(before.contains(book));
+        assertEquals(0, books.filter("author", "Deleted Author").count());
+        assertEquals(null, books.forId(book.getId()));
+    }
+
+    @Test
+    public void testSaveAll() {
+        BooksController books = BooksController.instance();
+        int startingSize = books.getStash().getItems().size();
+        List<Book> batch = list();
+        for (int x = 0; x < 300; x++) {
+            batch.add(new Book()
+                    .setAuthor("Batch Author")
+                    .setTitle("Batch " + x)
+                    .setPublisherId(x % 3L)
+                    .setPublished(true)
+                    .setCategories(list("batch"))
+                    .setPublishDate(ZonedDateTime.of(1960, 1, 1, 12, 0, 0, 0, ZoneId.of("UTC"))));
+        }
+        books.saveAll(batch);
+        assertEquals(startingSize + 300, books.getStash().getItems().size());
+        assertEquals(300, books.filter("author", "Batch Author").count());
+        assertEquals(100, books.filter("author", "Batch Author").filter("publisherId", 2L).count());
+        for (Book book: batch) {
+            assertNotNull(book.getId());
+            assertEquals(book.getTitle(), books.forId(book.getId()).getTitle());
+        }
+
+        // Saving detached copies updates the items in place, without adding new ones
+        List<Book> updates = list();
+        for (Book book: batch) {
+            Book copy = books.detach(books.forId(book.getId()));
+            copy.setDescription("Updated in a batch");
+            updates.add(copy);
+        }
+        books.saveAll(updates);
+        assertEquals(startingSize + 300, books.getStash().getItems().size());
+        assertEquals(300, books.filter("description", "Updated in a batch").count());
+        for (Book book: batch) {
+            assertEquals("Updated in a batch", books.forId(book.getId()).getDescription());
+        }
+    }
+}
@@ -45,8 +45,10 @@ import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import static io.stallion.utils.Literals.*;
 import static org.junit.Assert.*;
@@ -349,4 +351,72 @@ public class MySqlQueryControllerTests extends JerseyIntegrationBaseCase {
 
     }
 
+    @Test
+    public void testStream() {
+        String accountId = "stream-test-" + GeneralUtils.randomTokenBase32(8);
+        List<Payment> payments = list();
+        for (int x = 0; x < 1200; x++) {
+            payments.add(new Payment()
+                    .setAccountId(accountId)
+                    .setAmount(x)
+                    .setMemo("streamed")
+                    .setDate(DateUtils.mils()));
+        }
+        DB.instance().saveAll(payments);
+
+        long total = 0;
+        int count = 0;
+        try (Stream<Payment> stream = DB.instance().stream(Payment.class,
+                "SELECT * FROM stallion_test_payment WHERE accountId=? ORDER BY amount ASC", accountId)) {
+            Iterator<Payment> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                Payment payment = iterator.next();
+                assertEquals(count, payment.getAmount());
+                total += payment.getAmount();
+                count++;
+            }
+        }
+        assertEquals(1200, count);
+        assertEquals(1199 * 1200 / 2, total);
+
+        // Closing a stream part way through releases its connection; opening many of them should not exhaust the pool
+        for (int x = 0; x < 50; x++) {
+            try (Stream<Payment> stream = DB.instance().stream(Payment.class,
+                    "SELECT * FROM stallion_test_payment WHERE accountId=?", accountId)) {
+                assertEquals(5, stream.limit(5).count());
+            }
+        }
+        DB.instance().execute("DELETE FROM stallion_test_payment WHERE accountId=?", accountId);
+    }
+
+    @Test
+    public void testSaveAllInsertsPreassignedIds() {
+        String accountId = "save-all-test-" + GeneralUtils.randomTokenBase32(8);
+        Payment existing = new Payment()
+                .setAccountId(accountId)
+                .setAmount(1)
+                .setMemo("existing")
+                .setDate(DateUtils.mils());
+        DB.instance().saveAll(list(existing));
+
+        // An object with an id that is not yet in the table, and is not flagged as a new insert,
+        // should fall back to an insert, just like save() does, even if the driver does not
+        // report the counts for the batched updates.
+        existing.setMemo("updated");
+        Payment preassigned = new Payment()
+                .setAccountId(accountId)
+                .setAmount(2)
+                .setMemo("preassigned")
+                .setDate(DateUtils.mils());
+        preassigned.setId(DB.instance().getTickets().nextId());
+        preassigned.setIsNewInsert(false);
+        DB.instance().saveAll(list(existing, preassigned));
+
+        assertEquals("updated", DB.instance().queryScalar("SELECT memo FROM stallion_test_payment WHERE id=?", existing.getId()));
+        assertEquals("preassigned", DB.instance().queryScalar("SELECT memo FROM stallion_test_payment WHERE id=?", preassigned.getId()));
+        assertEquals(2, DB.instance().updateAll(list(existing, preassigned)));
+
+        DB.instance().execute("DELETE FROM stallion_test_payment WHERE accountId=?", accountId);
+    }
+
 }
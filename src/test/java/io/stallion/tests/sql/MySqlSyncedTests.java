@@ -21,6 +21,7 @@ import io.stallion.StallionApplication;
 import io.stallion.dataAccess.db.SqlMigrateCommandOptions;
 import io.stallion.dataAccess.DataAccessRegistry;
 import io.stallion.dataAccess.DataAccessRegistration;
+import io.stallion.dataAccess.db.ChangeJournal;
 import io.stallion.dataAccess.db.DB;
 import io.stallion.dataAccess.db.DbPersister;
 import io.stallion.dataAccess.db.SqlMigrationAction;
@@ -41,7 +42,9 @@ import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.UUID;
 
+import static io.stallion.utils.Literals.mils;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 
@@ -209,4 +212,45 @@ public class MySqlSyncedTests extends JerseyIntegrationBaseCase {
 
     }
 
+    @Test
+    public void testJournalSyncsDeletesFromOtherNodes() throws Exception {
+        ChangeJournal journal = DB.instance().getChangeJournal();
+        assertNotNull(journal);
+        House house = new House()
+                .setAddress(UUID.randomUUID().toString())
+                .setPostalCode("30304")
+                .setBuildYear(1911)
+                .setCondemned(false)
+                .setTaxesPaid(false);
+        HouseController.instance().save(house);
+        assertNotNull(HouseController.instance().forId(house.getId()));
+
+        // Another node deletes the row, which it records in the journal in the same transaction
+        DB.instance().inTransaction(conn -> {
+            DB.instance().newQuery().update(conn, "DELETE FROM stallion_test_house WHERE id=?", house.getId());
+            journal.record(conn, "stallion_test_house", house.getId(), ChangeJournal.DELETE);
+        });
+        assertNotNull(HouseController.instance().forId(house.getId()));
+
+        journal.poll(mils() + 1);
+        assertNull(HouseController.instance().forId(house.getId()));
+    }
+
+    @Test
+    public void testJournalEntryRollsBackWithChange() throws Exception {
+        ChangeJournal journal = DB.instance().getChangeJournal();
+        assertNotNull(journal);
+        Long rowId = 987654321L;
+        try {
+            DB.instance().inTransaction(conn -> {
+                journal.record(conn, "stallion_test_house", rowId, ChangeJournal.UPSERT);
+                throw new SQLException("The change failed");
+            });
+        } catch (RuntimeException e) {
+            assertEquals(SQLException.class, e.getCause().getClass());
+        }
+        long count = DB.instance().queryScalar("SELECT COUNT(*) FROM " + ChangeJournal.TABLE_NAME + " WHERE row_id=?", rowId);
+        assertEquals(0L, count);
+    }
+
 }
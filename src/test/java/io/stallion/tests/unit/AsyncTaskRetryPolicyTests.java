@@ -0,0 +1,55 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.asyncTasks.AsyncTask;
+import io.stallion.asyncTasks.AsyncTaskRetryPolicy;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class AsyncTaskRetryPolicyTests {
+
+    @Test
+    public void testBackoffWithJitter() {
+        AsyncTaskRetryPolicy policy = new AsyncTaskRetryPolicy(10, 1000, 60000);
+        for (int x = 0; x < 200; x++) {
+            long first = policy.nextDelay(1);
+            assertTrue(first >= 500 && first <= 1000);
+            long fourth = policy.nextDelay(4);
+            assertTrue(fourth >= 4000 && fourth <= 8000);
+            // Capped at the max delay
+            long late = policy.nextDelay(30);
+            assertTrue(late >= 30000 && late <= 60000);
+            long absurd = policy.nextDelay(Integer.MAX_VALUE);
+            assertTrue(absurd >= 30000 && absurd <= 60000);
+        }
+    }
+
+    @Test
+    public void testShouldRetry() {
+        AsyncTaskRetryPolicy policy = new AsyncTaskRetryPolicy(3, 1000, 60000);
+        AsyncTask task = new AsyncTask().setTryCount(2);
+        assertTrue(policy.shouldRetry(task));
+        task.setTryCount(3);
+        assertFalse(policy.shouldRetry(task));
+        task.setTryCount(1).setNeverRetry(true);
+        assertFalse(policy.shouldRetry(task));
+    }
+}
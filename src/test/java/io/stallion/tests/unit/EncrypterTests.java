@@ -0,0 +1,109 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.exceptions.DecryptionException;
+import io.stallion.services.Log;
+import io.stallion.utils.Encrypter;
+import org.junit.Test;
+
+import java.util.List;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.*;
+
+
+public class EncrypterTests {
+    private static final String SECRET = "Vd8y2JQpX7tLmW0cRk4sZb6nHf1gTa9eUo3i";
+
+    @Test
+    public void testEncryptDecrypt() {
+        String encrypted = Encrypter.encryptString(SECRET, "{\"exp\": 1234}");
+        assertEquals("{\"exp\": 1234}", Encrypter.decryptString(SECRET, encrypted));
+        // Decrypting again comes out of the derived key cache
+        assertEquals("{\"exp\": 1234}", Encrypter.decryptString(SECRET, encrypted));
+
+        boolean failed = false;
+        try {
+            Encrypter.decryptString(SECRET + "x", encrypted);
+        } catch (DecryptionException e) {
+            failed = true;
+        }
+        assertTrue("Decrypting with the wrong password should fail", failed);
+    }
+
+    @Test
+    public void testSignVerify() {
+        String signed = Encrypter.signString(SECRET, "{\"exp\": 1234}");
+        assertEquals("{\"exp\": 1234}", Encrypter.verifySignedString(SECRET, signed));
+
+        assertNull(Encrypter.verifySignedString(SECRET + "x", signed));
+        assertNull(Encrypter.verifySignedString(SECRET, "x" + signed));
+        assertNull(Encrypter.verifySignedString(SECRET, signed.substring(0, signed.length() - 2)));
+        assertNull(Encrypter.verifySignedString(SECRET, "not a token"));
+        assertNull(Encrypter.verifySignedString(SECRET, signed + "!!"));
+    }
+
+    /**
+     * Compares the cost of checking a session cookie on every request: deriving the key
+     * each time, which is what happened before keys were cached, decrypting with a cached
+     * key, and verifying a signed cookie.
+     */
+    @Test
+    public void testSessionCheckBenchmark() {
+        int count = 2000;
+        String json = "{\"sec\":\"\",\"ssec\":\"\",\"exp\":1500000000000,\"crt\":1490000000000,\"vid\":0}";
+        List<String> distinct = list();
+        for (int i = 0; i < count; i++) {
+            distinct.add(Encrypter.encryptString(SECRET + i, json));
+        }
+        String cookie = Encrypter.encryptString(SECRET, json);
+        String signed = Encrypter.signString(SECRET, json);
+
+        // Warm up the JIT
+        for (int i = 0; i < count; i++) {
+            Encrypter.decryptString(SECRET, cookie);
+            Encrypter.verifySignedString(SECRET, signed);
+        }
+
+        // Every token has its own salt, and keys are only cached once they have been
+        // used for decrypting, so each of these derives a key.
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Encrypter.decryptString(SECRET + i, distinct.get(i));
+        }
+        long derivedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Encrypter.decryptString(SECRET, cookie);
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Encrypter.verifySignedString(SECRET, signed);
+        }
+        long signedNanos = System.nanoTime() - start;
+
+        Log.info("Session check per request: derived key {0}us, cached key {1}us, signed {2}us",
+                derivedNanos / count / 1000.0, cachedNanos / count / 1000.0, signedNanos / count / 1000.0);
+        assertTrue(cachedNanos < derivedNanos);
+        assertTrue(signedNanos < derivedNanos);
+    }
+}
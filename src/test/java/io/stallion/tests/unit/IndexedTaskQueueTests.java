@@ -0,0 +1,137 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.asyncTasks.AsyncTask;
+import io.stallion.asyncTasks.IndexedTaskQueue;
+import io.stallion.services.Log;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.*;
+
+
+public class IndexedTaskQueueTests {
+    private static final int TASKS = 20000;
+    private static final int RESCHEDULES = 2000;
+
+    @Test
+    public void testOrderAndIndexes() {
+        IndexedTaskQueue queue = new IndexedTaskQueue();
+        Random random = new Random(42);
+        for (long id = 1; id <= 1000; id++) {
+            queue.add(task(id, random.nextInt(100000)).setCustomKey(id % 10 == 0 ? "key-" + id : ""));
+        }
+        assertEquals(1000, queue.size());
+        assertTrue(queue.contains(500L));
+        assertEquals((Long)20L, queue.getByCustomKey("key-20").getId());
+
+        // Rescheduling moves the task to the front, without adding a duplicate
+        assertFalse(queue.add(task(500L, -1).setCustomKey("moved")));
+        assertEquals(1000, queue.size());
+        assertEquals((Long)500L, queue.peek().getId());
+        assertEquals((Long)500L, queue.getByCustomKey("moved").getId());
+
+        assertEquals((Long)20L, queue.remove(20L).getId());
+        assertFalse(queue.contains(20L));
+        assertNull(queue.getByCustomKey("key-20"));
+        assertNull(queue.remove(20L));
+
+        long last = Long.MIN_VALUE;
+        int count = 0;
+        while (!queue.isEmpty()) {
+            AsyncTask task = queue.poll();
+            assertTrue(task.getExecuteAt() >= last);
+            assertFalse(queue.contains(task.getId()));
+            last = task.getExecuteAt();
+            count++;
+        }
+        assertEquals(999, count);
+    }
+
+    /**
+     * Compares rescheduling and membership checks against the PriorityBlockingQueue
+     * that AsyncFileCoordinator used before.
+     */
+    @Test
+    public void testAgainstPriorityBlockingQueue() {
+        Random random = new Random(7);
+        long[] executeAts = new long[TASKS];
+        for (int x = 0; x < TASKS; x++) {
+            executeAts[x] = random.nextInt(1000000);
+        }
+        int[] picks = new int[RESCHEDULES];
+        long[] newExecuteAts = new long[RESCHEDULES];
+        for (int x = 0; x < RESCHEDULES; x++) {
+            picks[x] = random.nextInt(TASKS);
+            newExecuteAts[x] = random.nextInt(1000000);
+        }
+
+        List<AsyncTask> tasks = tasks(executeAts);
+        PriorityBlockingQueue<AsyncTask> blockingQueue = new PriorityBlockingQueue<>(tasks);
+        long start = System.nanoTime();
+        for (int x = 0; x < RESCHEDULES; x++) {
+            AsyncTask task = tasks.get(picks[x]);
+            blockingQueue.remove(task);
+            task.setExecuteAt(newExecuteAts[x]);
+            blockingQueue.add(task);
+            assertTrue(blockingQueue.contains(task));
+        }
+        long blockingNanos = System.nanoTime() - start;
+
+        tasks = tasks(executeAts);
+        IndexedTaskQueue indexedQueue = new IndexedTaskQueue();
+        for (AsyncTask task: tasks) {
+            indexedQueue.add(task);
+        }
+        start = System.nanoTime();
+        for (int x = 0; x < RESCHEDULES; x++) {
+            AsyncTask task = tasks.get(picks[x]);
+            task.setExecuteAt(newExecuteAts[x]);
+            indexedQueue.add(task);
+            assertTrue(indexedQueue.contains(task.getId()));
+        }
+        long indexedNanos = System.nanoTime() - start;
+        Log.info("{0} reschedules of {1} tasks: PriorityBlockingQueue {2}ms, IndexedTaskQueue {3}ms",
+                RESCHEDULES, TASKS, blockingNanos / 1000000, indexedNanos / 1000000);
+
+        assertEquals(TASKS, indexedQueue.size());
+        while (!blockingQueue.isEmpty()) {
+            assertEquals(blockingQueue.poll().getExecuteAt(), indexedQueue.poll().getExecuteAt());
+        }
+    }
+
+    private List<AsyncTask> tasks(long[] executeAts) {
+        List<AsyncTask> tasks = list();
+        for (int x = 0; x < executeAts.length; x++) {
+            tasks.add(task(x + 1L, executeAts[x]));
+        }
+        return tasks;
+    }
+
+    private AsyncTask task(Long id, long executeAt) {
+        AsyncTask task = new AsyncTask();
+        task.setId(id);
+        task.setExecuteAt(executeAt);
+        return task;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.monitoring.LatencyHistogram;
+import io.stallion.monitoring.RollingLatencyHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros);
+        }
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        histogram.addTo(snapshot);
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(100000, snapshot.getMaxMicros());
+        assertEquals(50000.5, snapshot.getMeanMicros(), 0.01);
+        assertWithin(50000, snapshot.getPercentileMicros(0.5));
+        assertWithin(90000, snapshot.getPercentileMicros(0.9));
+        assertWithin(99000, snapshot.getPercentileMicros(0.99));
+        assertEquals(100000, snapshot.getPercentileMicros(1.0));
+
+        // Small and huge durations still land in a bucket
+        histogram.reset();
+        histogram.record(3);
+        histogram.record(Long.MAX_VALUE / 2);
+        snapshot = new LatencyHistogram.Snapshot();
+        histogram.addTo(snapshot);
+        assertEquals(3, snapshot.getPercentileMicros(0.5));
+        assertEquals(Long.MAX_VALUE / 2, snapshot.getMaxMicros());
+    }
+
+    @Test
+    public void testRollingWindows() {
+        RollingLatencyHistogram rolling = new RollingLatencyHistogram();
+        long start = 1000L * 60000;
+        rolling.record(1000, start);
+        rolling.record(2000, start + 4 * 60000);
+        rolling.record(3000, start + 10 * 60000);
+        long now = start + 10 * 60000 + 30000;
+        assertEquals(1, rolling.snapshot(1, now).getCount());
+        assertEquals(1, rolling.snapshot(5, now).getCount());
+        assertEquals(3, rolling.snapshot(15, now).getCount());
+
+        // Twenty minutes later, the old slots have been reused
+        rolling.record(4000, start + 20 * 60000);
+        assertEquals(2, rolling.snapshot(15, start + 20 * 60000).getCount());
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is not within 12.5% of " + expected, Math.abs(actual - expected) <= expected / 8);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.exceptions.UsageException;
+import io.stallion.monitoring.MetricsRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void testCounter() {
+        MetricsRegistry registry = MetricsRegistry.instance();
+        MetricsRegistry.Counter counter = registry.counter("test_widgets_total", "Widgets made.", "color");
+        counter.inc("red");
+        counter.add(4, "red");
+        counter.inc("blue \"navy\"");
+
+        // Registering again returns the same counter
+        assertSame(counter, registry.counter("test_widgets_total", "Widgets made.", "color"));
+        assertEquals(5, counter.get("red"));
+
+        String text = registry.scrape();
+        assertTrue(text.contains("# HELP test_widgets_total Widgets made.\n"));
+        assertTrue(text.contains("# TYPE test_widgets_total counter\n"));
+        assertTrue(text.contains("test_widgets_total{color=\"red\"} 5\n"));
+        assertTrue(text.contains("test_widgets_total{color=\"blue \\\"navy\\\"\"} 1\n"));
+    }
+
+    @Test
+    public void testHistogram() {
+        MetricsRegistry registry = MetricsRegistry.instance();
+        MetricsRegistry.Histogram histogram = registry.histogram(
+                "test_wait_seconds", "Time spent waiting.", new double[]{0.25, 1, 10}, "queue");
+        histogram.observe(0.125, "a");
+        histogram.observe(0.25, "a");
+        histogram.observe(0.5, "a");
+        histogram.observe(20, "a");
+        assertEquals(4, histogram.getCount("a"));
+        assertEquals(0, histogram.getCount("b"));
+
+        String text = registry.scrape();
+        assertTrue(text.contains("# TYPE test_wait_seconds histogram\n"));
+        assertTrue(text.contains("test_wait_seconds_bucket{queue=\"a\",le=\"0.25\"} 2\n"));
+        assertTrue(text.contains("test_wait_seconds_bucket{queue=\"a\",le=\"1\"} 3\n"));
+        assertTrue(text.contains("test_wait_seconds_bucket{queue=\"a\",le=\"10\"} 3\n"));
+        assertTrue(text.contains("test_wait_seconds_bucket{queue=\"a\",le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("test_wait_seconds_sum{queue=\"a\"} 20.875\n"));
+        assertTrue(text.contains("test_wait_seconds_count{queue=\"a\"} 4\n"));
+    }
+
+    @Test
+    public void testCallbacks() {
+        MetricsRegistry registry = MetricsRegistry.instance();
+        registry.gauge("test_queue_depth", "Items in the queue.", () -> 7);
+        registry.callback("test_pool_connections", "gauge", "Pool connections.", new String[]{"state"},
+                samples -> samples.add(3, "busy").add(2, "idle"));
+        String text = registry.scrape();
+        assertTrue(text.contains("test_queue_depth 7\n"));
+        assertTrue(text.contains("test_pool_connections{state=\"busy\"} 3\n"));
+        assertTrue(text.contains("test_pool_connections{state=\"idle\"} 2\n"));
+
+        // Re-registering a callback replaces it
+        registry.gauge("test_queue_depth", "Items in the queue.", () -> 8);
+        assertTrue(registry.scrape().contains("test_queue_depth 8\n"));
+
+        registry.unregister("test_queue_depth");
+        assertFalse(registry.scrape().contains("test_queue_depth"));
+    }
+
+    @Test(expected = UsageException.class)
+    public void testTypeConflict() {
+        MetricsRegistry.instance().counter("test_conflict_total", "A counter.");
+        MetricsRegistry.instance().histogram("test_conflict_total", "Not a counter.", MetricsRegistry.DEFAULT_SECONDS_BUCKETS);
+    }
+
+    @Test(expected = UsageException.class)
+    public void testWrongLabelCount() {
+        MetricsRegistry.instance().counter("test_labels_total", "A counter.", "a", "b").inc("only-one");
+    }
+}
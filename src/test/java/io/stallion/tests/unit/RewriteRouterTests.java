@@ -0,0 +1,181 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.http.RewriteRouter;
+import io.stallion.services.Log;
+import io.stallion.settings.SecondaryDomain;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.*;
+
+
+public class RewriteRouterTests {
+
+    @Test
+    public void testExactLookups() {
+        RewriteRouter router = new RewriteRouter(
+                map(val("/old", "/new")),
+                map(val("/about", "/pages/about")),
+                null,
+                list(
+                        new SecondaryDomain().setDomain("other.com").setRewriteRoot("/other").setStripRootFromPageSlug(false),
+                        new SecondaryDomain().setDomain("blog.com").setRewriteRoot("/blog")
+                )
+        );
+        assertEquals("/new", router.findRedirect("/old"));
+        assertNull(router.findRedirect("/old/"));
+        assertEquals("/pages/about", router.findRewrite("/about"));
+        assertNull(router.findRewrite("/old"));
+        assertEquals("/blog", router.findStrippedSecondaryDomain("blog.com").getRewriteRoot());
+        assertNull(router.findStrippedSecondaryDomain("other.com"));
+        assertNull(router.rewriteByPattern("/anything", "/anything"));
+    }
+
+    @Test
+    public void testPatterns() {
+        RewriteRouter router = new RewriteRouter(null, null, list(
+                pattern("^/blog/(\\d+)/(.*)$", "/posts/$2"),
+                pattern("/blog/archive", "/archive"),
+                pattern("(?i)/SHOUT/(.*)", "/quiet/$1"),
+                pattern("/search\\?q=(.*)", "/find?query=$1"),
+                pattern("/docs?/(.*)", "/documentation/$1"),
+                pattern(".*\\.php", "/legacy"),
+                pattern("/a|/b", "/ab")
+        ), null);
+
+        assertEquals("/posts/hello", router.rewriteByPattern("/blog/12/hello", "/blog/12/hello"));
+        assertEquals("/archive", router.rewriteByPattern("/blog/archive", "/blog/archive"));
+        assertEquals("/quiet/x", router.rewriteByPattern("/shout/x", "/shout/x"));
+        assertEquals("/find?query=cats", router.rewriteByPattern("/search", "/search?q=cats"));
+        assertEquals("/documentation/x", router.rewriteByPattern("/doc/x", "/doc/x"));
+        assertEquals("/documentation/x", router.rewriteByPattern("/docs/x", "/docs/x"));
+        assertEquals("/legacy", router.rewriteByPattern("/index.php", "/index.php"));
+        assertEquals("/ab", router.rewriteByPattern("/b", "/b"));
+        assertNull(router.rewriteByPattern("/blog", "/blog"));
+        assertNull(router.rewriteByPattern("/search", "/search"));
+
+        // The first pattern in definition order wins, even when a later one has a longer prefix
+        router = new RewriteRouter(null, null, list(
+                pattern("/shop/.*", "/first"),
+                pattern("/shop/items/.*", "/second")
+        ), null);
+        assertEquals("/first", router.rewriteByPattern("/shop/items/1", "/shop/items/1"));
+    }
+
+    @Test
+    public void testPatternFlags() {
+        // Flags change what the literal text matches, so these cannot be indexed by their prefix
+        RewriteRouter router = new RewriteRouter(null, null, list(
+                new AbstractMap.SimpleEntry<>(Pattern.compile("/Shout/(.*)", Pattern.CASE_INSENSITIVE), "/quiet/$1"),
+                new AbstractMap.SimpleEntry<>(Pattern.compile("/spaced / (.*)  # a comment", Pattern.COMMENTS), "/tight/$1"),
+                pattern("(?i)^/Inline/(.*)", "/inline/$1")
+        ), null);
+        assertEquals("/quiet/x", router.rewriteByPattern("/SHOUT/x", "/SHOUT/x"));
+        assertEquals("/quiet/x", router.rewriteByPattern("/shout/x", "/shout/x"));
+        assertEquals("/tight/x", router.rewriteByPattern("/spaced/x", "/spaced/x"));
+        assertEquals("/inline/x", router.rewriteByPattern("/INLINE/x", "/INLINE/x"));
+    }
+
+    /**
+     * Checks that the router picks the same pattern as trying every pattern in order,
+     * and compares the speed of the two with a few thousand legacy rewrites.
+     */
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(42);
+        List<Map.Entry<Pattern, String>> patterns = list();
+        for (int i = 0; i < 3000; i++) {
+            String section = "section" + random.nextInt(100);
+            switch (i % 3) {
+                case 0:
+                    patterns.add(pattern("^/" + section + "/page-" + i + "/(.*)$", "/new/" + i + "/$1"));
+                    break;
+                case 1:
+                    patterns.add(pattern("/" + section + "/(\\d+)-item-" + i, "/items/" + i + "/$1"));
+                    break;
+                default:
+                    patterns.add(pattern("/" + section + "/list\\?page=" + i, "/list/" + i));
+            }
+        }
+        patterns.add(pattern(".*\\.asp", "/legacy"));
+        RewriteRouter router = new RewriteRouter(null, null, patterns, null);
+
+        List<String[]> requests = list();
+        for (int i = 0; i < 20000; i++) {
+            String section = "/section" + random.nextInt(100);
+            int n = random.nextInt(3300);
+            switch (i % 4) {
+                case 0:
+                    requests.add(new String[]{section + "/page-" + n + "/x", section + "/page-" + n + "/x"});
+                    break;
+                case 1:
+                    requests.add(new String[]{section + "/55-item-" + n, section + "/55-item-" + n});
+                    break;
+                case 2:
+                    requests.add(new String[]{section + "/list", section + "/list?page=" + n});
+                    break;
+                default:
+                    requests.add(new String[]{section + "/default.asp", section + "/default.asp"});
+            }
+        }
+
+        // Warm up, and check the results agree
+        for (String[] request: requests) {
+            assertEquals(linearScan(patterns, request[0], request[1]), router.rewriteByPattern(request[0], request[1]));
+        }
+
+        long start = System.nanoTime();
+        for (String[] request: requests) {
+            linearScan(patterns, request[0], request[1]);
+        }
+        long linearNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String[] request: requests) {
+            router.rewriteByPattern(request[0], request[1]);
+        }
+        long routerNanos = System.nanoTime() - start;
+
+        Log.info("Rewrite lookup with {0} patterns: linear scan {1}us, router {2}us",
+                patterns.size(), linearNanos / requests.size() / 1000.0, routerNanos / requests.size() / 1000.0);
+        assertTrue(routerNanos < linearNanos);
+    }
+
+    private static String linearScan(List<Map.Entry<Pattern, String>> patterns, String path, String fullPath) {
+        for (Map.Entry<Pattern, String> entry: patterns) {
+            Matcher matcher = entry.getKey().matcher(entry.getKey().toString().contains("\\?") ? fullPath : path);
+            if (matcher.matches()) {
+                return matcher.replaceAll(entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    private static Map.Entry<Pattern, String> pattern(String regex, String destination) {
+        return new AbstractMap.SimpleEntry<>(Pattern.compile(regex), destination);
+    }
+}
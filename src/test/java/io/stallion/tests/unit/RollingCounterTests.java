@@ -0,0 +1,89 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.monitoring.RollingCounter;
+import io.stallion.services.Log;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.*;
+
+
+public class RollingCounterTests {
+    private static final int THREADS = 200;
+    private static final int INCREMENTS = 20000;
+
+    @Test
+    public void testWindows() {
+        RollingCounter counter = new RollingCounter(60000, 16);
+        long start = 5000L * 60000;
+        counter.add(1, start);
+        counter.add(2, start + 4 * 60000);
+        counter.add(4, start + 9 * 60000 + 59999);
+        long now = start + 9 * 60000 + 59999;
+        assertEquals(4, counter.sum(1, now));
+        assertEquals(6, counter.sum(6, now));
+        assertEquals(7, counter.sum(10, now));
+
+        // Sixteen minutes on, the slot for the first minute is reused and starts from zero
+        counter.add(8, start + 16 * 60000);
+        assertEquals(8, counter.sum(1, start + 16 * 60000));
+        assertEquals(14, counter.sum(16, start + 16 * 60000));
+
+        // A stale timestamp for a slot that has moved on is dropped
+        counter.add(100, start);
+        assertEquals(14, counter.sum(16, start + 16 * 60000));
+    }
+
+    /**
+     * Many threads counting into the same period lose nothing. Stands in for a
+     * contention benchmark, the time is logged for comparison.
+     */
+    @Test
+    public void testContention() throws Exception {
+        RollingCounter counter = new RollingCounter(60000, 16);
+        long now = 7000L * 60000 + 1000;
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future> futures = list();
+            long started = System.nanoTime();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(pool.submit(() -> {
+                    for (int x = 0; x < INCREMENTS; x++) {
+                        counter.add(1, now);
+                    }
+                }));
+            }
+            for (Future future: futures) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - started;
+            Log.info("{0} threads counted {1} each in {2}ms ({3}ns per increment)",
+                    THREADS, INCREMENTS, nanos / 1000000, nanos / ((long)THREADS * INCREMENTS));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals((long)THREADS * INCREMENTS, counter.sum(1, now));
+    }
+}
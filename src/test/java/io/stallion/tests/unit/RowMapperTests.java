@@ -0,0 +1,135 @@
+/*
+ * Stallion Core: A Modern Web Framework
+ *
+ * Copyright (C) 2015 - 2016 Stallion Software LLC.
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 2 of
+ * the License, or (at your option) any later version. This program is distributed in the hope that
+ * it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+ * License for more details. You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/gpl-2.0.html>.
+ *
+ *
+ *
+ */
+
+package io.stallion.tests.unit;
+
+import io.stallion.dataAccess.db.Col;
+import io.stallion.dataAccess.db.Schema;
+import io.stallion.dataAccess.db.converters.ModelListHandler;
+import io.stallion.dataAccess.db.converters.RowMapper;
+import io.stallion.services.Log;
+import io.stallion.tests.integration.filtering.Book;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static io.stallion.utils.Literals.*;
+import static org.junit.Assert.*;
+
+
+public class RowMapperTests {
+    private static final int ROWS = 10000;
+    private static final String[] LABELS = new String[]{"id", "TITLE", "author", "publisherId", "publishDate", "published", "row_updated_at"};
+
+    @Test
+    public void testMapRows() throws Exception {
+        Schema schema = bookSchema();
+        ResultSet resultSet = fakeResultSet();
+
+        long start = System.nanoTime();
+        List<Book> books = new ModelListHandler<Book>(schema).handle(resultSet);
+        Log.info("Mapped {0} rows in {1}ms", ROWS, (System.nanoTime() - start) / 1000000);
+
+        assertEquals(ROWS, books.size());
+        for (int x = 0; x < ROWS; x += 997) {
+            Book book = books.get(x);
+            assertEquals((Long)(x + 1L), book.getId());
+            assertEquals("Title " + x, book.getTitle());
+            assertEquals("Author " + (x % 10), book.getAuthor());
+            assertEquals((Long)(x % 7L), book.getPublisherId());
+            assertEquals(x % 2 == 0, book.isPublished());
+            assertEquals(x * 1000L, book.getPublishDate().toInstant().toEpochMilli());
+            // Not in the result set, so left untouched
+            assertNull(book.getIsbn());
+        }
+
+        // The same query shape reuses the mapper
+        RowMapper first = schema.getRowMapper(resultSet.getMetaData());
+        assertSame(first, schema.getRowMapper(fakeResultSet().getMetaData()));
+    }
+
+    private Schema bookSchema() {
+        Schema schema = new Schema("books", Book.class);
+        schema.getColumns().add(new Col().setName("title").setPropertyName("title"));
+        schema.getColumns().add(new Col().setName("author").setPropertyName("author"));
+        schema.getColumns().add(new Col().setName("publisherid").setPropertyName("publisherId").setjType(Long.class));
+        schema.getColumns().add(new Col().setName("publishdate").setPropertyName("publishDate").setjType(ZonedDateTime.class));
+        schema.getColumns().add(new Col().setName("published").setPropertyName("published").setjType(boolean.class));
+        schema.getColumns().add(new Col().setName("isbn").setPropertyName("isbn"));
+        return schema;
+    }
+
+    /**
+     * A result set over generated rows, implemented with a proxy so the test does
+     * not need a database.
+     */
+    private ResultSet fakeResultSet() {
+        ResultSetMetaData meta = (ResultSetMetaData)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return LABELS.length;
+                        case "getColumnLabel":
+                            return LABELS[(int)args[0] - 1];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        int[] row = new int[]{-1};
+        return (ResultSet)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{ResultSet.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMetaData":
+                            return meta;
+                        case "next":
+                            row[0]++;
+                            return row[0] < ROWS;
+                        case "getDate":
+                            return new java.sql.Date(1500000000000L);
+                        case "getObject":
+                            return valueAt(row[0], (int)args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private Object valueAt(int x, int column) {
+        switch (LABELS[column - 1]) {
+            case "id":
+                return BigInteger.valueOf(x + 1);
+            case "TITLE":
+                return "Title " + x;
+            case "author":
+                return "Author " + (x % 10);
+            case "publisherId":
+                return BigInteger.valueOf(x % 7);
+            case "publishDate":
+                return new Timestamp(x * 1000L);
+            case "published":
+                return x % 2 == 0;
+            default:
+                return null;
+        }
+    }
+}